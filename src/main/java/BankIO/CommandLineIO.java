@@ -17,6 +17,7 @@ import com.revature.bankDataObjects.UserProfile.UserProfileType;
 import bankSystem.BankSystem;
 import bankSystem.Request;
 import bankSystem.Request.RequestType;
+import dao.PageDirection;
 
 
 public class CommandLineIO implements BankIO {
@@ -130,10 +131,14 @@ public class CommandLineIO implements BankIO {
 			= "Enter a list of transaction IDs on a single line, separated by spaces.";
 	 */
 	private static final String VIEW_TRANSACTIONS_MENU
-			= "(1) View all transactions made by a single user\n"
-			+ "(2) View all transactions involving a certain account\n"
+			= "(1) View the latest transactions made by a single user\n"
+			+ "(2) View the latest transactions involving a certain account\n"
 			+ "(3) Input a list of transaction IDs to view\n"
 			+ FRAME_LINE;
+	private static final String VIEW_TRANSACTIONS_PAGING_MENU // added when there's a page to continue from
+			= "(4) View older transactions from the last search\n"
+			+ "(5) View newer transactions from the last search\n"
+			+ FRAME_LINE;
 	
 	/*
 	private static final String CREATE_EMPLOYEE_HEADER 
@@ -146,10 +151,18 @@ public class CommandLineIO implements BankIO {
 	// instance variables (fields)
 	private Scanner scan;
 	
+	// the last history search (user or account), so the user can page through it
+	private List<String> lastHistorySearch; // tag and ID; null if there isn't one
+	private int firstShownID; // the oldest transaction on the page last shown
+	private int lastShownID; // the newest
+	private boolean historyPending; // true between asking for a page and displaying it
+	
 	// constructor
 	public CommandLineIO() {
 
 		scan = new Scanner(System.in);
+		lastHistorySearch = null;
+		historyPending = false;
 	}
 	
 	// helper methods --------------------
@@ -325,6 +338,13 @@ public class CommandLineIO implements BankIO {
 		
 		displayText(DISPLAY_TRANSACTIONS_HEADER, true);
 		
+		// remember where this page of a history search starts and ends (pages are oldest first)
+		if (historyPending && !transactions.isEmpty()) {
+			firstShownID = transactions.get(0).getId();
+			lastShownID = transactions.get(transactions.size() - 1).getId();
+			historyPending = false;
+		}
+		
 		for (TransactionRecord tr : transactions) {
 			String line = "|ID: " + tr.getId();
 			line = line + " |Type: " + cleanUpGenericEnumString("" + tr.getType());
@@ -501,16 +521,66 @@ public class CommandLineIO implements BankIO {
 		//displayText(VIEW_TRANSACTION_HEADER, true);
 		
 		System.out.println(VIEW_TRANSACTIONS_MENU);
-		int choice = parseInt(CHOICES_PROMPT, 1, 4); // max NOT inclusive
+		
+		// paging only makes sense once a page of some history has been shown
+		boolean canPage = lastHistorySearch != null && !historyPending;
+		if (canPage) {
+			System.out.println(VIEW_TRANSACTIONS_PAGING_MENU);
+		}
+		
+		int choice = parseInt(CHOICES_PROMPT, 1, canPage ? 6 : 4); // max NOT inclusive
 		
 		if (choice == 1) { 
 			return viewTransactionsByUser(); 
 		}
 		else if (choice == 2){
 			return viewTransactionsByAccount();
-		} else { // only other choice is 2
+		}
+		else if (choice == 3) {
 			return viewTransactionsByID();
 		}
+		else if (choice == 4) {
+			return viewTransactionsPage(firstShownID, PageDirection.OLDER);
+		}
+		else { // only other choice is 5
+			return viewTransactionsPage(lastShownID, PageDirection.NEWER);
+		}
+	}
+
+	/**
+	 * Continues the last history search from one end of the page last shown.
+	 * If that page turns out to be the last one, BankSystem says so and the same page
+	 * stays current.
+	 * @param startID
+	 * @param direction
+	 * @return
+	 */
+	private Request viewTransactionsPage(int startID, PageDirection direction) {
+		
+		List<String> params = new ArrayList<>(lastHistorySearch);
+		params.add("" + startID);
+		params.add(direction.name());
+		
+		return new Request(
+				RequestType.VIEW_TRANSACTIONS,
+				params);
+	}
+
+	/**
+	 * Remembers a new history search, so that its pages can be continued later.
+	 * @param tag
+	 * @param id
+	 * @return the params for the search's first (latest) page
+	 */
+	private List<String> startHistorySearch(String tag, int id) {
+		
+		List<String> params = new ArrayList<>();
+		params.add(tag);
+		params.add("" + id);
+		
+		lastHistorySearch = new ArrayList<>(params);
+		historyPending = true;
+		return params;
 	}
 
 	/**
@@ -520,9 +590,7 @@ public class CommandLineIO implements BankIO {
 	private Request viewTransactionsByAccount() {
 		
 		int id = parseInt(ACCOUNT_ID_PROMPT);
-		List<String> params = new ArrayList<>();
-		params.add(BankSystem.ACCOUNT_TAG);
-		params.add("" + id);
+		List<String> params = startHistorySearch(BankSystem.ACCOUNT_TAG, id);
 		
 		return new Request(
 				RequestType.VIEW_TRANSACTIONS,
@@ -536,9 +604,7 @@ public class CommandLineIO implements BankIO {
 	private Request viewTransactionsByUser() {
 		
 		int id = parseInt(USER_ID_PROMPT);
-		List<String> params = new ArrayList<>();
-		params.add(BankSystem.USER_PROFILE_TAG);
-		params.add("" + id);
+		List<String> params = startHistorySearch(BankSystem.USER_PROFILE_TAG, id);
 		
 		return new Request(
 				RequestType.VIEW_TRANSACTIONS,
@@ -555,6 +621,8 @@ public class CommandLineIO implements BankIO {
 		
 		List<String> params = parseIDList(ID_LIST_PROMPT);
 		params.add(0, BankSystem.TRANSACTION_TAG);
+		lastHistorySearch = null; // a list of IDs can't be paged
+		historyPending = false;
 		return new Request(
 				RequestType.VIEW_TRANSACTIONS,
 				params);
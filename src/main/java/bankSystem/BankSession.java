@@ -0,0 +1,86 @@
+/**
+ * The state of one user's session with the BankSystem: where its Requests come from (and its
+ * output goes), who is logged in, and whether it is still running. A BankSystem can serve
+ * any number of sessions at once, since everything it shares between them (the DAO and the
+ * record writer) can be used from several threads at once (see BankDAO); each session should
+ * only be used by one thread at a time.
+ *
+ * Sessions are made with BankSystem.openSession().
+ *
+ * @author Andrew Curry
+ */
+package bankSystem;
+
+import com.revature.bankDataObjects.UserProfile;
+import com.revature.bankDataObjects.UserProfile.UserProfileType;
+
+import BankIO.BankIO;
+
+public class BankSession {
+
+	// constants
+	static final int USER_NOT_LOADED = -1; // see getUserChanges()
+
+	// instance variables (fields)
+	private final BankIO io;
+	private UserProfile currentUser; // who is logged in?
+	private boolean running; // controls the session's interaction loop
+	private int userChanges; // how many writes to currentUser had been seen when it was read
+
+	// constructor
+	BankSession(BankIO io) {
+
+		this.io = io;
+		this.currentUser = getEmptyUser();
+		this.running = false;
+		this.userChanges = USER_NOT_LOADED;
+	}
+
+	// methods
+
+	public BankIO getIO() {
+		return io;
+	}
+
+	/**
+	 * @return the logged in user; a user of type NONE if no one is logged in
+	 */
+	public UserProfile getCurrentUser() {
+		return currentUser;
+	}
+
+	void setCurrentUser(UserProfile currentUser) {
+		this.currentUser = currentUser;
+	}
+
+	/**
+	 * @return how many writes to the current user's profile the BankSystem had seen when it was
+	 * 			read, or USER_NOT_LOADED if it needs to be read again regardless
+	 */
+	int getUserChanges() {
+		return userChanges;
+	}
+
+	void setUserChanges(int userChanges) {
+		this.userChanges = userChanges;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	void setRunning(boolean running) {
+		this.running = running;
+	}
+
+	/**
+	 * Creates an 'empty' UserProfile object, representing that no one is logged in.
+	 * @return
+	 */
+	static UserProfile getEmptyUser() {
+
+		UserProfile empty = new UserProfile(-1);
+		empty.setType(UserProfileType.NONE);
+		return empty;
+	}
+}
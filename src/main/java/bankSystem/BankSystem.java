@@ -2,6 +2,9 @@
  * This class controls the operation of the banking system. It gets user Requests from the IO, and resolves
  * them by interacting with the DAO.
  * 
+ * Each user's state (their IO, who is logged in) lives in a BankSession, so one BankSystem can serve
+ * many sessions at once, on as many threads as needed. The only thing shared between sessions is the DAO.
+ * 
  * There is no corresponding interface because the other parts of the system do not need to know anything
  * about the BankSystem (currently, anyway).
  * 
@@ -10,7 +13,11 @@
 package bankSystem;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -28,6 +35,8 @@ import BankIO.BankIO;
 import bankSystem.Request.RequestType;
 import dao.BankDAO;
 import dao.BankDAOException;
+import dao.PageDirection;
+import dao.WriteListener;
 
 
 public class BankSystem {
@@ -45,6 +54,20 @@ public class BankSystem {
 	public static final String ACCOUNT_TAG = "ACC";
 	public static final String TRANSACTION_TAG = "TRR";
 	
+	/**
+	 * How many transactions are shown at a time when viewing a user's or account's history.
+	 * A VIEW_TRANSACTIONS request with a PRF or ACC tag may carry two more params, a starting
+	 * ID and a PageDirection name, to ask for the page before or after the one last shown;
+	 * without them, the latest page is shown.
+	 */
+	public static final int TRANSACTION_PAGE_SIZE = 20;
+	
+	/**
+	 * How many times changing an account is tried, when someone else keeps changing it first,
+	 * before giving up with ACCOUNT_BUSY_MESSAGE. See changeAccount().
+	 */
+	public static final int MAX_ACCOUNT_CHANGE_ATTEMPTS = 10;
+	
 	/**
 	 * ----------------------------------------------------------------------
 	 * These Strings are public for the purpose of testing.
@@ -87,6 +110,8 @@ public class BankSystem {
 			= "New user profile registered.";
 	public static final String ACCOUNT_NOT_OPEN_PREFIX
 			= "Unable to proceed: Bank account is not open. Account ID: ";
+	public static final String ACCOUNT_BUSY_MESSAGE
+			= "Unable to proceed: That account is being changed by someone else. Please try again.";
 	
 	public static final String APPLY_OPEN_ACCOUNT_NOT_CUSTOMER_MESSAGE 
 			= "Unable to proceed: Only customers can apply to open accounts";
@@ -174,6 +199,8 @@ public class BankSystem {
 			= "The following transactions were not found: ";
 	public static final String VIEW_TRANSACTIONS_NONPERMITTED_IDS_PREFIX
 			= "You do not have permission to view the following transactions: ";
+	public static final String VIEW_TRANSACTIONS_NO_MORE_MESSAGE
+			= "There are no more transactions to show in that direction.";
 	
 	public static final String CREATE_EMPLOYEE_SUCCESSFUL_PREFIX
 			= "Employee account created, with ID: ";
@@ -205,183 +232,259 @@ public class BankSystem {
 			RequestType.LOG_OUT, RequestType.QUIT};
 	
 	// instance variables (fields)
-	private BankIO io;
-	private BankDAO dao;
-	
-	private UserProfile currentUser; // who is logged in?
-	private boolean running; // controls interaction loop
+	private final BankDAO dao; // shared by every session, see BankDAO for what that asks of it
+	private final BankSession defaultSession; // for start() and testLoop()
+	private final ConcurrentHashMap<Integer, Integer> profileChanges; // user ID -> writes seen, see refreshCurrentUser()
+	private final TransactionRecordWriter recordWriter; // for the records saved by saveTransactionRecord()
 	
 	// constructor(s)
 	
 	/**
+	 * Makes a BankSystem with no sessions of its own; see openSession().
 	 * Note: the DAO should already be hooked up to the target data store.
-	 * @param io
+	 * @param dao
+	 */
+	public BankSystem(BankDAO dao) {
+		this(null, dao);
+	}
+	
+	/**
+	 * Note: the DAO should already be hooked up to the target data store.
+	 * Transaction records are written as part of each request (WRITE_THROUGH).
+	 * @param io : for the session run by start(); may be null if start() won't be used
 	 * @param dao
 	 */
 	public BankSystem(BankIO io, BankDAO dao) {
+		this(io, dao, TransactionRecordWriter.Durability.WRITE_THROUGH);
+	}
+	
+	/**
+	 * Note: the DAO should already be hooked up to the target data store.
+	 * @param io : for the session run by start(); may be null if start() won't be used
+	 * @param dao
+	 * @param recordDurability : how transaction records are saved, see TransactionRecordWriter;
+	 * 			anything but WRITE_THROUGH means close() should be called when done
+	 */
+	public BankSystem(BankIO io, BankDAO dao, TransactionRecordWriter.Durability recordDurability) {
 		
-		this.io = io;
 		this.dao = dao;
+		this.defaultSession = new BankSession(io);
+		this.profileChanges = new ConcurrentHashMap<>();
+		this.recordWriter = new TransactionRecordWriter(dao, recordDurability);
 		
-		currentUser = getEmptyUser();
-		running = false;
+		dao.addWriteListener(new ProfileWriteListener());
 	}
 	
 	// 'operation' methods
 	
 	/**
-	 * Called by the driver to start operation of the system.
+	 * Called by the driver to start operation of the system, with a single session using
+	 * the IO given to the constructor.
 	 */
 	public void start() {
 		
-		io.displayText(START_MESSAGE, true);
-		running = true;
-		interactionLoop();
+		runSession(defaultSession);
+	}
+	
+	/**
+	 * Waits for any transaction records still being saved, and stops the thread saving them.
+	 * Should be called once every session has ended, before the DAO is closed.
+	 */
+	public void close() {
+		
+		recordWriter.close();
 	}
 	
 	/**
 	 * Should only be called during unit testing.
-	 * Calls the interactionLoop method, but does not set running to true.
-	 * Thus, the loop only happens once.
+	 * Handles a single request from the IO given to the constructor.
 	 */
 	public void testLoop() {
 		
-		interactionLoop();
+		step(defaultSession);
+	}
+	
+	/**
+	 * Starts a new session, with no one logged in. Any number of sessions can be open at once,
+	 * and each can be run on a different thread.
+	 * @param io : where the session's requests come from, and where its output goes
+	 * @return
+	 */
+	public BankSession openSession(BankIO io) {
+		
+		return new BankSession(io);
+	}
+	
+	/**
+	 * Runs the given session on the calling thread until its user quits.
+	 * @param session
+	 */
+	public void runSession(BankSession session) {
+		
+		session.getIO().displayText(START_MESSAGE, true);
+		session.setRunning(true);
+		
+		do {
+			step(session);
+		} while (session.isRunning());
+	}
+	
+	/**
+	 * Opens a session for the given IO and runs it on the given executor, eg a fixed pool of
+	 * worker threads shared by every terminal. The IO is closed when the session ends.
+	 * @param io
+	 * @param executor
+	 * @return completes when the session ends
+	 */
+	public Future<?> submitSession(BankIO io, ExecutorService executor) {
+		
+		BankSession session = openSession(io);
+		
+		return executor.submit(() -> {
+			try {
+				runSession(session);
+			}
+			finally {
+				io.close();
+			}
+		});
 	}
 	
 	/**
-	 * Prompts the user for input, and handles the resulting request.
+	 * Prompts the session's user for input once, and handles the resulting request.
+	 * Only the session's own state is changed, so different sessions can be stepped on 
+	 * different threads at the same time.
+	 * @param session
+	 * @return true if the session is still running afterwards
 	 */
-	private void interactionLoop() {
+	public boolean step(BankSession session) {
 		
 		//boolean running = true;
 		//String outputText = "";
 		RequestType[] permittedRequestTypes; // = new RequestType[0]; // should get replaced in loop
 		Request currentRequest;
 		
-		do {
-			
-			// display a header with the current user
-			if (currentUser.getType() == UserProfileType.NONE) {
-				io.displayText(NO_USER_LOGGED_IN_MESSAGE);
+		// display a header with the current user
+		if (session.getCurrentUser().getType() == UserProfileType.NONE) {
+			session.getIO().displayText(NO_USER_LOGGED_IN_MESSAGE);
+		}
+		else {
+			session.getIO().displayText(
+					USER_LOGGED_IN_PREFIX + session.getCurrentUser().getUsername() + " ID: " + session.getCurrentUser().getId() + "",
+					true);
+		}
+		
+		//determine what to prompt the user with
+		if (session.getCurrentUser().getType() == UserProfileType.NONE) { // if no one is logged in
+			permittedRequestTypes = NO_USER_CHOICES;
+		}
+		else if (session.getCurrentUser().getType() == UserProfileType.CUSTOMER) {
+			if( session.getCurrentUser().getOwnedAccounts().isEmpty()) {
+				permittedRequestTypes = CUSTOMER_CHOICES_NO_ACCOUNTS;
 			}
 			else {
-				io.displayText(
-						USER_LOGGED_IN_PREFIX + currentUser.getUsername() + " ID: " + currentUser.getId() + "",
-						true);
-			}
-			
-			//determine what to prompt the user with
-			if (currentUser.getType() == UserProfileType.NONE) { // if no one is logged in
-				permittedRequestTypes = NO_USER_CHOICES;
+				permittedRequestTypes = CUSTOMER_CHOICES_HAS_ACCOUNT;
 			}
-			else if (currentUser.getType() == UserProfileType.CUSTOMER) {
-				if( currentUser.getOwnedAccounts().isEmpty()) {
-					permittedRequestTypes = CUSTOMER_CHOICES_NO_ACCOUNTS;
-				}
-				else {
-					permittedRequestTypes = CUSTOMER_CHOICES_HAS_ACCOUNT;
+		}
+		else if (session.getCurrentUser().getType() == UserProfileType.EMPLOYEE) {
+			permittedRequestTypes = EMPLOYEE_CHOICES;
+		}
+		else { //if (session.getCurrentUser().getType() == UserProfileType.ADMIN) // assume admin
+			permittedRequestTypes = ADMIN_CHOICES;
+		}
+		
+		currentRequest = session.getIO().prompt(permittedRequestTypes);
+		
+		// now handle the request
+		try {
+			boolean permitted = false;
+			for (RequestType rt : permittedRequestTypes) {
+				if (rt == currentRequest.getType()) {
+					permitted = true;
+					break;
 				}
 			}
-			else if (currentUser.getType() == UserProfileType.EMPLOYEE) {
-				permittedRequestTypes = EMPLOYEE_CHOICES;
-			}
-			else { //if (currentUser.getType() == UserProfileType.ADMIN) // assume admin
-				permittedRequestTypes = ADMIN_CHOICES;
-			}
 			
-			currentRequest = io.prompt(permittedRequestTypes);
-			
-			// now handle the request
-			try {
-				boolean permitted = false;
-				for (RequestType rt : permittedRequestTypes) {
-					if (rt == currentRequest.getType()) {
-						permitted = true;
-						break;
-					}
-				}
-				
-				if (!permitted) {
-					// should be no way to reach this?
-					log.log(Level.WARN, "User " + currentUser.getId() + " attempted forbidden action " + currentRequest.getType());
-					throw new ImpossibleActionException(GENERIC_NO_PERMISSION_MESSAGE);
-				}
-				
-				switch(currentRequest.getType()) {
-				
-					case REGISTER_USER:
-						handleRegisterUser(currentRequest);
-						break;
-					case LOG_IN:
-						handleLogIn(currentRequest);
-						break;
-					case LOG_OUT:
-						handleLogOut(currentRequest);
-						break;
-					case QUIT:
-						handleQuit(currentRequest);
-						break;
-					case APPLY_OPEN_ACCOUNT:
-						handleApplyToOpenAccount(currentRequest);
-						break;
-					case APPROVE_OPEN_ACCOUNT:
-						handleApproveOpenAccount(currentRequest);
-						break;
-					case DENY_OPEN_ACCOUNT:
-						handleDenyOpenAccount(currentRequest);
-						break;
-					case CLOSE_ACCOUNT:
-						handleCloseAccount(currentRequest);
-						break;
-					case ADD_ACCOUNT_OWNER:
-						handleAddAccountOwner(currentRequest);
-						break;
-					case REMOVE_ACCOUNT_OWNER:
-						handleRemoveAccountOwner(currentRequest);
-						break;
-					case DEPOSIT:
-						handleDeposit(currentRequest);
-						break;
-					case WITHDRAW:
-						handleWithdraw(currentRequest);
-						break;
-					case TRANSFER:
-						handleTransfer(currentRequest);
-						break;
-					case VIEW_ACCOUNTS:
-						handleViewAccounts(currentRequest);
-						break;
-					case VIEW_SELF_PROFILE:
-						handleViewSelfProfile(currentRequest);
-						break;
-					case VIEW_USERS:
-						handleViewUsers(currentRequest);
-						break;
-					case VIEW_TRANSACTIONS:
-						handleViewTransactions(currentRequest);
-						break;
-					case CREATE_EMPLOYEE:
-						handleCreateEmployee(currentRequest);
-						break;
-					case CREATE_ADMIN:
-						handleCreateAdmin(currentRequest);
-						break;
-				}
-				
-				// in case something about the current user has been updated, refresh it
-				currentUser = dao.readUserProfile(currentUser.getId());
-			}
-			catch (ImpossibleActionException e) {
-				io.displayText(e.getMessage());
+			if (!permitted) {
+				// should be no way to reach this?
+				log.log(Level.WARN, "User " + session.getCurrentUser().getId() + " attempted forbidden action " + currentRequest.getType());
+				throw new ImpossibleActionException(GENERIC_NO_PERMISSION_MESSAGE);
 			}
-			catch (BankDAOException e) {
-				io.displayText(LOST_CONNECTION_UNRECOVERABLE_MESSAGE);
-				stopRunning();
+			
+			switch(currentRequest.getType()) {
+			
+				case REGISTER_USER:
+					handleRegisterUser(session, currentRequest);
+					break;
+				case LOG_IN:
+					handleLogIn(session, currentRequest);
+					break;
+				case LOG_OUT:
+					handleLogOut(session, currentRequest);
+					break;
+				case QUIT:
+					handleQuit(session, currentRequest);
+					break;
+				case APPLY_OPEN_ACCOUNT:
+					handleApplyToOpenAccount(session, currentRequest);
+					break;
+				case APPROVE_OPEN_ACCOUNT:
+					handleApproveOpenAccount(session, currentRequest);
+					break;
+				case DENY_OPEN_ACCOUNT:
+					handleDenyOpenAccount(session, currentRequest);
+					break;
+				case CLOSE_ACCOUNT:
+					handleCloseAccount(session, currentRequest);
+					break;
+				case ADD_ACCOUNT_OWNER:
+					handleAddAccountOwner(session, currentRequest);
+					break;
+				case REMOVE_ACCOUNT_OWNER:
+					handleRemoveAccountOwner(session, currentRequest);
+					break;
+				case DEPOSIT:
+					handleDeposit(session, currentRequest);
+					break;
+				case WITHDRAW:
+					handleWithdraw(session, currentRequest);
+					break;
+				case TRANSFER:
+					handleTransfer(session, currentRequest);
+					break;
+				case VIEW_ACCOUNTS:
+					handleViewAccounts(session, currentRequest);
+					break;
+				case VIEW_SELF_PROFILE:
+					handleViewSelfProfile(session, currentRequest);
+					break;
+				case VIEW_USERS:
+					handleViewUsers(session, currentRequest);
+					break;
+				case VIEW_TRANSACTIONS:
+					handleViewTransactions(session, currentRequest);
+					break;
+				case CREATE_EMPLOYEE:
+					handleCreateEmployee(session, currentRequest);
+					break;
+				case CREATE_ADMIN:
+					handleCreateAdmin(session, currentRequest);
+					break;
 			}
 			
-		} while(running); // end of do-while loop
-	} // end interactionLoop() method
+			// in case something about the current user has been updated, refresh it
+			refreshCurrentUser(session);
+		}
+		catch (ImpossibleActionException e) {
+			session.getIO().displayText(e.getMessage());
+		}
+		catch (BankDAOException e) {
+			session.getIO().displayText(LOST_CONNECTION_UNRECOVERABLE_MESSAGE);
+			stopRunning(session);
+		}
+		
+		return session.isRunning();
+	} // end step() method
 
 	
 	// methods for handling specific request types --------------
@@ -392,27 +495,28 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleRegisterUser(Request currentRequest) throws ImpossibleActionException {
+	private void handleRegisterUser(BankSession session, Request currentRequest) throws ImpossibleActionException {
 		
 		List<String> params = currentRequest.getParams();
 		String username = params.get(0);
 		String password = params.get(1);
 		
 		try {
-			if (dao.isUsernameFree(username)) {
-				UserProfile user = new UserProfile(dao.getHighestUserProfileID() + 1);
-				user.setUsername(username);
-				user.setPassword(password);
-				user.setType(UserProfileType.CUSTOMER);
-				dao.write(user);
+			UserProfile user = new UserProfile(dao.allocateUserProfileID());
+			user.setUsername(username);
+			user.setPassword(password);
+			user.setType(UserProfileType.CUSTOMER);
+			
+			// checked and written in one step, so two sessions can't both take the username
+			if (dao.writeIfUsernameFree(user)) {
 				//System.out.println("DEBUG: new user was just written");
-				io.displayText(USER_REGISTERED_MESSAGED);
-				changeLoggedInUser(user);
+				session.getIO().displayText(USER_REGISTERED_MESSAGED);
+				changeLoggedInUser(session, user);
 				
 				TransactionRecord tr = new TransactionRecord();
 				tr.setType(TransactionType.USER_REGISTERED);
 				//tr.setActingUser(user.getId());
-				saveTransactionRecord(tr);
+				saveTransactionRecord(session, tr);
 			}
 			else { // username is taken
 				throw new ImpossibleActionException(USERNAME_IN_USE_MESSAGE);
@@ -429,7 +533,7 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleLogIn(Request currentRequest) throws ImpossibleActionException {
+	private void handleLogIn(BankSession session, Request currentRequest) throws ImpossibleActionException {
 		
 		List<String> params = currentRequest.getParams();
 		String username = params.get(0);
@@ -443,8 +547,8 @@ public class BankSystem {
 			}
 			else { // account found
 				if (up.getPassword().equals(password)) {
-					io.displayText(LOG_IN_SUCCESSFUL_PREFIX + username);
-					changeLoggedInUser(up);
+					session.getIO().displayText(LOG_IN_SUCCESSFUL_PREFIX + username);
+					changeLoggedInUser(session, up);
 				}
 				else { // invalid pass
 					throw new ImpossibleActionException(LOGIN_INVALID_PASSWORD_MESSAGE);
@@ -464,10 +568,10 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleLogOut(Request currentRequest) throws ImpossibleActionException {
+	private void handleLogOut(BankSession session, Request currentRequest) throws ImpossibleActionException {
 		
-		io.displayText(LOGOUT_MESSAGE);;
-		changeLoggedInUser(getEmptyUser());
+		session.getIO().displayText(LOGOUT_MESSAGE);;
+		changeLoggedInUser(session, BankSession.getEmptyUser());
 		// no transaction
 	}
 	
@@ -476,11 +580,12 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleQuit(Request currentRequest) throws ImpossibleActionException {
+	private void handleQuit(BankSession session, Request currentRequest) throws ImpossibleActionException {
 		
-		io.displayText(QUIT_MESSAGE);
-		stopRunning();
-		// no transaction
+		session.getIO().displayText(QUIT_MESSAGE);
+		stopRunning(session);
+		// no transaction, but make sure the session's records are saved before it ends
+		recordWriter.flush();
 	}
 	
 	/**
@@ -488,31 +593,45 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleApplyToOpenAccount(Request currentRequest) throws ImpossibleActionException {
+	private void handleApplyToOpenAccount(BankSession session, Request currentRequest) throws ImpossibleActionException {
 		
 		// unnecessary due to generic catchall
 		/*
-		if (currentUser.getType() != UserProfileType.CUSTOMER) {
+		if (session.getCurrentUser().getType() != UserProfileType.CUSTOMER) {
 			throw new ImpossibleActionException(APPLY_OPEN_ACCOUNT_NOT_CUSTOMER_MESSAGE);
 		}
 		*/
 		
+		int userID = session.getCurrentUser().getId();
+		
 		try {
-			BankAccount ba = new BankAccount(dao.getHighestBankAccountID() + 1);
-			ba.setStatus(BankAccountStatus.PENDING);
-			ba.setType(BankAccountType.SINGLE);
-			ba.setFunds(0);
-			ba.addOwner(currentUser.getId());
-			dao.write(ba);
-			currentUser.addAccount(ba.getId());
-			dao.write(currentUser);
-			io.displayText(APPLY_OPEN_ACCOUNT_MESSAGE);
+			// the account's ID is new, so only the profile can be changed by someone else; it
+			// is read fresh, rather than taken from the session, so that isn't written over
+			BankAccount ba = changeAccount(dao.allocateBankAccountID(), acc -> {
+				UserProfile up = dao.readUserProfile(userID);
+				
+				if (up.getType() == UserProfileType.NONE) {
+					throw new ImpossibleActionException(USER_ID_NOT_FOUND_PREFIX + userID);
+				}
+				
+				acc.setStatus(BankAccountStatus.PENDING);
+				acc.setType(BankAccountType.SINGLE);
+				acc.setFunds(0);
+				acc.addOwner(userID);
+				up.addAccount(acc.getId());
+				
+				List<BankData> alsoWrite = new ArrayList<>();
+				alsoWrite.add(up);
+				return alsoWrite;
+			});
+			
+			session.getIO().displayText(APPLY_OPEN_ACCOUNT_MESSAGE);
 			
 			TransactionRecord tr = new TransactionRecord();
 			tr.setType(TransactionType.ACCOUNT_REGISTERED);
-			//tr.setActingUser(currentUser.getId());
+			//tr.setActingUser(session.getCurrentUser().getId());
 			tr.setDestinationAccount(ba.getId());
-			saveTransactionRecord(tr);
+			saveTransactionRecord(session, tr);
 		}
 		catch(BankDAOException e) {
 			throw new ImpossibleActionException(GENERIC_DAO_ERROR_MESSAGE);
@@ -524,13 +643,13 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleApproveOpenAccount(Request currentRequest) throws ImpossibleActionException {
+	private void handleApproveOpenAccount(BankSession session, Request currentRequest) throws ImpossibleActionException {
 		
 		// check permissions - only employees and admins can approve an account
 		/*
-		if (currentUser.getType() != UserProfileType.EMPLOYEE 
-				&& currentUser.getType() != UserProfileType.ADMIN) {
-			io.displayText(APPROVE_OPEN_ACCOUNT_NO_PERMISSION_MESSAGE);
+		if (session.getCurrentUser().getType() != UserProfileType.EMPLOYEE 
+				&& session.getCurrentUser().getType() != UserProfileType.ADMIN) {
+			session.getIO().displayText(APPROVE_OPEN_ACCOUNT_NO_PERMISSION_MESSAGE);
 		}
 		*/
 		
@@ -538,24 +657,24 @@ public class BankSystem {
 			List<String> params = currentRequest.getParams();
 			int id = Integer.parseInt(params.get(0));
 			
-			BankAccount ba = dao.readBankAccount(id);
-			
-			if (ba.getType() == BankAccountType.NONE) {
-				throw new ImpossibleActionException(BANK_ACCOUNT_DOES_NOT_EXIST_PREFIX + id);
-			}
-			if (ba.getStatus() != BankAccountStatus.PENDING) {
-				throw new ImpossibleActionException(BANK_ACCOUNT_NOT_PENDING_MESSAGE);
-			}
-			
-			ba.setStatus(BankAccountStatus.OPEN);
-			dao.write(ba);
-			io.displayText(ACCOUNT_APPROVED_MESSAGE);
+			BankAccount ba = changeAccount(id, acc -> {
+				if (acc.getType() == BankAccountType.NONE) {
+					throw new ImpossibleActionException(BANK_ACCOUNT_DOES_NOT_EXIST_PREFIX + id);
+				}
+				if (acc.getStatus() != BankAccountStatus.PENDING) {
+					throw new ImpossibleActionException(BANK_ACCOUNT_NOT_PENDING_MESSAGE);
+				}
+				
+				acc.setStatus(BankAccountStatus.OPEN);
+				return Collections.emptyList();
+			});
+			session.getIO().displayText(ACCOUNT_APPROVED_MESSAGE);
 			
 			TransactionRecord tr = new TransactionRecord();
 			tr.setType(TransactionType.ACCOUNT_APPROVED);
-			//tr.setActingUser(currentUser.getId());
+			//tr.setActingUser(session.getCurrentUser().getId());
 			tr.setDestinationAccount(ba.getId());
-			saveTransactionRecord(tr);
+			saveTransactionRecord(session, tr);
 		}
 		catch(BankDAOException e) {
 			throw new ImpossibleActionException(GENERIC_DAO_ERROR_MESSAGE);
@@ -567,36 +686,36 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleDenyOpenAccount(Request currentRequest) throws ImpossibleActionException {
+	private void handleDenyOpenAccount(BankSession session, Request currentRequest) throws ImpossibleActionException {
 		
 		// check permissions - only employees and admins can approve an account
-		if (currentUser.getType() != UserProfileType.EMPLOYEE 
-				&& currentUser.getType() != UserProfileType.ADMIN) {
-			io.displayText(APPROVE_OPEN_ACCOUNT_NO_PERMISSION_MESSAGE);
+		if (session.getCurrentUser().getType() != UserProfileType.EMPLOYEE 
+				&& session.getCurrentUser().getType() != UserProfileType.ADMIN) {
+			session.getIO().displayText(APPROVE_OPEN_ACCOUNT_NO_PERMISSION_MESSAGE);
 		}
 		
 		try {
 			List<String> params = currentRequest.getParams();
 			int id = Integer.parseInt(params.get(0));
 			
-			BankAccount ba = dao.readBankAccount(id);
-			
-			if (ba.getType() == BankAccountType.NONE) {
-				throw new ImpossibleActionException(BANK_ACCOUNT_DOES_NOT_EXIST_PREFIX + id);
-			}
-			if (ba.getStatus() != BankAccountStatus.PENDING) {
-				throw new ImpossibleActionException(BANK_ACCOUNT_NOT_PENDING_MESSAGE);
-			}
-			
-			ba.setStatus(BankAccountStatus.CLOSED);
-			dao.write(ba);
-			io.displayText(ACCOUNT_DENIED_MESSAGE);
+			BankAccount ba = changeAccount(id, acc -> {
+				if (acc.getType() == BankAccountType.NONE) {
+					throw new ImpossibleActionException(BANK_ACCOUNT_DOES_NOT_EXIST_PREFIX + id);
+				}
+				if (acc.getStatus() != BankAccountStatus.PENDING) {
+					throw new ImpossibleActionException(BANK_ACCOUNT_NOT_PENDING_MESSAGE);
+				}
+				
+				acc.setStatus(BankAccountStatus.CLOSED);
+				return Collections.emptyList();
+			});
+			session.getIO().displayText(ACCOUNT_DENIED_MESSAGE);
 			
 			TransactionRecord tr = new TransactionRecord();
 			tr.setType(TransactionType.ACCOUNT_CLOSED);
-			//tr.setActingUser(currentUser.getId());
+			//tr.setActingUser(session.getCurrentUser().getId());
 			tr.setDestinationAccount(ba.getId());
-			saveTransactionRecord(tr);
+			saveTransactionRecord(session, tr);
 		}
 		catch(BankDAOException e) {
 			throw new ImpossibleActionException(GENERIC_DAO_ERROR_MESSAGE);
@@ -609,37 +728,38 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleCloseAccount(Request currentRequest) throws ImpossibleActionException {
+	private void handleCloseAccount(BankSession session, Request currentRequest) throws ImpossibleActionException {
 		
-		if (currentUser.getType() != UserProfileType.ADMIN) {
-			io.displayText(CLOSE_ACCOUNT_NO_PERMISSION_MESSAGE);
+		if (session.getCurrentUser().getType() != UserProfileType.ADMIN) {
+			session.getIO().displayText(CLOSE_ACCOUNT_NO_PERMISSION_MESSAGE);
 		}
 		
 		try {
 			List<String> params = currentRequest.getParams();
 			int id = Integer.parseInt(params.get(0));
 			
-			BankAccount ba = dao.readBankAccount(id);
-			
-			if (ba.getType() == BankAccountType.NONE) {
-				throw new ImpossibleActionException(BANK_ACCOUNT_DOES_NOT_EXIST_PREFIX + id);
-			}
-			if (ba.getStatus() != BankAccountStatus.OPEN) {
-				throw new ImpossibleActionException(CLOSE_ACCOUNT_NOT_OPEN_MESSAGE);
-			}
+			TransactionRecord tr = new TransactionRecord();
 			
-			int funds = ba.getFunds();
-			ba.setFunds(0);
-			ba.setStatus(BankAccountStatus.CLOSED);
-			dao.write(ba);
-			io.displayText(CLOSE_ACCOUNT_MESSAGE);
+			// if a deposit lands between reading the funds and zeroing them, this starts over
+			BankAccount ba = changeAccount(id, acc -> {
+				if (acc.getType() == BankAccountType.NONE) {
+					throw new ImpossibleActionException(BANK_ACCOUNT_DOES_NOT_EXIST_PREFIX + id);
+				}
+				if (acc.getStatus() != BankAccountStatus.OPEN) {
+					throw new ImpossibleActionException(CLOSE_ACCOUNT_NOT_OPEN_MESSAGE);
+				}
+				
+				tr.setMoneyAmount(acc.getFunds());
+				acc.setFunds(0);
+				acc.setStatus(BankAccountStatus.CLOSED);
+				return Collections.emptyList();
+			});
+			session.getIO().displayText(CLOSE_ACCOUNT_MESSAGE);
 			
-			TransactionRecord tr = new TransactionRecord();
 			tr.setType(TransactionType.ACCOUNT_CLOSED);
-			//tr.setActingUser(currentUser.getId());
+			//tr.setActingUser(session.getCurrentUser().getId());
 			tr.setDestinationAccount(ba.getId());
-			tr.setMoneyAmount(funds);
-			saveTransactionRecord(tr);
+			saveTransactionRecord(session, tr);
 		}
 		catch(BankDAOException e) {
 			throw new ImpossibleActionException(GENERIC_DAO_ERROR_MESSAGE);
@@ -653,59 +773,58 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleAddAccountOwner(Request currentRequest) throws ImpossibleActionException {
+	private void handleAddAccountOwner(BankSession session, Request currentRequest) throws ImpossibleActionException {
 		
 		List<String> params = currentRequest.getParams();
 		int accID = Integer.parseInt(params.get(0));
 		int userToAddID = Integer.parseInt(params.get(1));
 		
-		if (currentUser.getType() == UserProfileType.CUSTOMER && !currentUser.getOwnedAccounts().contains(accID)) {
+		if (session.getCurrentUser().getType() == UserProfileType.CUSTOMER && !session.getCurrentUser().getOwnedAccounts().contains(accID)) {
 			throw new ImpossibleActionException(ADD_OWNER_CUSTOMER_NOT_OWN_ACCOUNT_MESSAGE);
 		}
 		// assume its not a NONE account
 		
 		try {
-			BankAccount ba = dao.readBankAccount(accID);
-			
-			if (ba.getType() == BankAccountType.NONE) {
-				throw new ImpossibleActionException(ACCOUNT_DOES_NOT_EXIST_PREFIX + accID);
-			}
-			if (ba.getStatus() != BankAccountStatus.OPEN) {
-				throw new ImpossibleActionException(ADD_OWNER_ACCOUNT_NOT_OPEN_MESSAGE);
-			}
-			
-			UserProfile up = dao.readUserProfile(userToAddID);
-			
-			if (up.getType() == UserProfileType.NONE) {
-				throw new ImpossibleActionException(USER_ID_NOT_FOUND_PREFIX + accID);
-			}
-			
-			if (up.getType() != UserProfileType.CUSTOMER) {
-				throw new ImpossibleActionException(ADD_OWNER_NEW_USER_NOT_CUSTOMER_MESSAGE);
-			}
-			
-			if (up.getOwnedAccounts().contains(accID)) {
-				throw new ImpossibleActionException(ADD_OWNER_ALREADY_OWNED_MESSAGE);
-			}
-			
-			// should finally be valid
-			ba.setType(BankAccountType.JOINT);
-			ba.addOwner(userToAddID);
-			up.addAccount(accID);
-			
-			List<BankData> toWrite = new ArrayList<>();
-			toWrite.add(up);
-			toWrite.add(ba);
-			dao.write(toWrite);
+			changeAccount(accID, ba -> {
+				if (ba.getType() == BankAccountType.NONE) {
+					throw new ImpossibleActionException(ACCOUNT_DOES_NOT_EXIST_PREFIX + accID);
+				}
+				if (ba.getStatus() != BankAccountStatus.OPEN) {
+					throw new ImpossibleActionException(ADD_OWNER_ACCOUNT_NOT_OPEN_MESSAGE);
+				}
+				
+				UserProfile up = dao.readUserProfile(userToAddID);
+				
+				if (up.getType() == UserProfileType.NONE) {
+					throw new ImpossibleActionException(USER_ID_NOT_FOUND_PREFIX + accID);
+				}
+				
+				if (up.getType() != UserProfileType.CUSTOMER) {
+					throw new ImpossibleActionException(ADD_OWNER_NEW_USER_NOT_CUSTOMER_MESSAGE);
+				}
+				
+				if (up.getOwnedAccounts().contains(accID)) {
+					throw new ImpossibleActionException(ADD_OWNER_ALREADY_OWNED_MESSAGE);
+				}
+				
+				// should finally be valid
+				ba.setType(BankAccountType.JOINT);
+				ba.addOwner(userToAddID);
+				up.addAccount(accID);
+				
+				List<BankData> alsoWrite = new ArrayList<>();
+				alsoWrite.add(up);
+				return alsoWrite;
+			});
 			
-			io.displayText(ADD_OWNER_TO_ACCOUNT_MESSAGE);
+			session.getIO().displayText(ADD_OWNER_TO_ACCOUNT_MESSAGE);
 			
 			TransactionRecord tr = new TransactionRecord();
 			tr.setType(TransactionType.ACCOUNT_OWNER_ADDED);
-			//tr.setActingUser(currentUser.getId());
+			//tr.setActingUser(session.getCurrentUser().getId());
 			tr.setSourceAccount(userToAddID);
 			tr.setDestinationAccount(accID);
-			saveTransactionRecord(tr);
+			saveTransactionRecord(session, tr);
 		}
 		catch(BankDAOException e) {
 			throw new ImpossibleActionException(GENERIC_DAO_ERROR_MESSAGE);
@@ -721,61 +840,64 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleRemoveAccountOwner(Request currentRequest) throws ImpossibleActionException {
+	private void handleRemoveAccountOwner(BankSession session, Request currentRequest) throws ImpossibleActionException {
 		
 		List<String> params = currentRequest.getParams();
 		int accID = Integer.parseInt(params.get(0));
 		int userToRemoveID = Integer.parseInt(params.get(1));
 		
-		if (currentUser.getType() == UserProfileType.CUSTOMER && !currentUser.getOwnedAccounts().contains(accID)) {
+		if (session.getCurrentUser().getType() == UserProfileType.CUSTOMER && !session.getCurrentUser().getOwnedAccounts().contains(accID)) {
 			throw new ImpossibleActionException(REMOVE_OWNER_CUSTOMER_NOT_OWN_ACCOUNT_MESSAGE);
 		}
 		// assume its not a NONE account
 		try {
-			UserProfile userToRemove = dao.readUserProfile(userToRemoveID);
-			BankAccount ba = dao.readBankAccount(accID);
-			
-			if (userToRemove.getType() == UserProfileType.NONE) {
-				throw new ImpossibleActionException(USER_ID_NOT_FOUND_PREFIX + userToRemoveID);
-			}
-			
-			if (ba.getType() == BankAccountType.NONE) {
-				throw new ImpossibleActionException(BANK_ACCOUNT_DOES_NOT_EXIST_PREFIX + accID);
-			}
-			if (ba.getStatus() != BankAccountStatus.OPEN) {
-				throw new ImpossibleActionException(REMOVE_OWNER_ACCOUNT_NOT_OPEN_MESSAGE);
-			}
-			
-			if (!userToRemove.getOwnedAccounts().contains(accID)) {
-				throw new ImpossibleActionException(REMOVE_OWNER_TARGET_NOT_OWNER);
-			}
-			
-			
-			if (ba.getOwners().size() == 1 && ba.getStatus() == BankAccountStatus.OPEN) {
-				throw new ImpossibleActionException(REMOVE_OWNER_OPEN_ONLY_ONE_OWNER);
-			}
-			if (currentUser.getType() == UserProfileType.CUSTOMER 
-					&& currentUser.getId() != userToRemoveID) {
-				throw new ImpossibleActionException(REMOVE_OWNER_CUSTOMER_CAN_ONLY_REMOVE_THEMSELF_MESSAGE);
-			}
-			
-			// now we can actually do it
-			userToRemove.removeAccount(accID);
-			dao.write(userToRemove);
-			ba.removeOwner(userToRemoveID);
-			if (ba.getOwners().size() == 1) {
-				ba.setType(BankAccountType.SINGLE);
-			}
-			dao.write(ba);
+			changeAccount(accID, ba -> {
+				UserProfile userToRemove = dao.readUserProfile(userToRemoveID);
+				
+				if (userToRemove.getType() == UserProfileType.NONE) {
+					throw new ImpossibleActionException(USER_ID_NOT_FOUND_PREFIX + userToRemoveID);
+				}
+				
+				if (ba.getType() == BankAccountType.NONE) {
+					throw new ImpossibleActionException(BANK_ACCOUNT_DOES_NOT_EXIST_PREFIX + accID);
+				}
+				if (ba.getStatus() != BankAccountStatus.OPEN) {
+					throw new ImpossibleActionException(REMOVE_OWNER_ACCOUNT_NOT_OPEN_MESSAGE);
+				}
+				
+				if (!userToRemove.getOwnedAccounts().contains(accID)) {
+					throw new ImpossibleActionException(REMOVE_OWNER_TARGET_NOT_OWNER);
+				}
+				
+				
+				if (ba.getOwners().size() == 1 && ba.getStatus() == BankAccountStatus.OPEN) {
+					throw new ImpossibleActionException(REMOVE_OWNER_OPEN_ONLY_ONE_OWNER);
+				}
+				if (session.getCurrentUser().getType() == UserProfileType.CUSTOMER 
+						&& session.getCurrentUser().getId() != userToRemoveID) {
+					throw new ImpossibleActionException(REMOVE_OWNER_CUSTOMER_CAN_ONLY_REMOVE_THEMSELF_MESSAGE);
+				}
+				
+				// now we can actually do it
+				userToRemove.removeAccount(accID);
+				ba.removeOwner(userToRemoveID);
+				if (ba.getOwners().size() == 1) {
+					ba.setType(BankAccountType.SINGLE);
+				}
+				
+				List<BankData> alsoWrite = new ArrayList<>();
+				alsoWrite.add(userToRemove);
+				return alsoWrite;
+			});
 			
-			io.displayText(REMOVE_OWNER_SUCCESSFUL_MESSAGE);
+			session.getIO().displayText(REMOVE_OWNER_SUCCESSFUL_MESSAGE);
 			
 			TransactionRecord tr = new TransactionRecord();
 			tr.setType(TransactionType.ACCOUNT_OWNER_REMOVED);
-			//tr.setActingUser(currentUser.getId());
+			//tr.setActingUser(session.getCurrentUser().getId());
 			tr.setSourceAccount(userToRemoveID); // iffy on the formatting
 			tr.setDestinationAccount(accID);
-			saveTransactionRecord(tr);
+			saveTransactionRecord(session, tr);
 		}
 		catch (BankDAOException e) {
 			throw new ImpossibleActionException(GENERIC_DAO_ERROR_MESSAGE);
@@ -791,39 +913,34 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleDeposit(Request currentRequest) throws ImpossibleActionException {
+	private void handleDeposit(BankSession session, Request currentRequest) throws ImpossibleActionException {
 		
 		List<String> params = currentRequest.getParams();
 		int accID = Integer.parseInt(params.get(0));
 		int moneyAmount = Integer.parseInt(params.get(1));
 		
 		try {
-			BankAccount ba = dao.readBankAccount(accID);
-			
-			if (ba.getType() == BankAccountType.NONE) {
-				throw new ImpossibleActionException(ACCOUNT_DOES_NOT_EXIST_PREFIX + accID);
-			}
-
-			if (currentUser.getType() == UserProfileType.CUSTOMER 
-					&& !currentUser.getOwnedAccounts().contains(accID)) {
+			if (session.getCurrentUser().getType() == UserProfileType.CUSTOMER 
+					&& !session.getCurrentUser().getOwnedAccounts().contains(accID)) {
+				checkAccountExists(accID);
 				throw new ImpossibleActionException(DEPOSIT_ACCOUNT_NOT_OWNED_MESSAGE);
 			}
 			
-			if (ba.getStatus() != BankAccountStatus.OPEN) {
-				throw new ImpossibleActionException(DEPOSIT_ACCOUNT_NOT_OPEN_MESSAGE);
-			}
-			
-			// can go ahead now
-			ba.setFunds(ba.getFunds() + moneyAmount);
-			dao.write(ba);
-			
-			io.displayText(DEPOSIT_SUCCESSFUL_MESSAGE);
-			
 			TransactionRecord tr = new TransactionRecord();
 			tr.setType(TransactionType.FUNDS_DEPOSITED);
 			tr.setDestinationAccount(accID);
 			tr.setMoneyAmount(moneyAmount);
-			saveTransactionRecord(tr);
+			stampTransactionRecord(session, tr);
+			
+			// the DAO checks the account and changes it in one step
+			if (!dao.depositFunds(accID, moneyAmount, tr)) {
+				// only read the account to find out what went wrong
+				checkAccountExists(accID);
+				throw new ImpossibleActionException(DEPOSIT_ACCOUNT_NOT_OPEN_MESSAGE);
+			}
+			
+			TransactionRecordWriter.logSaved(tr); // the DAO gave it its ID
+			session.getIO().displayText(DEPOSIT_SUCCESSFUL_MESSAGE);
 		}
 		catch(BankDAOException e) {
 			throw new ImpossibleActionException(GENERIC_DAO_ERROR_MESSAGE);
@@ -839,43 +956,39 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleWithdraw(Request currentRequest) throws ImpossibleActionException {
+	private void handleWithdraw(BankSession session, Request currentRequest) throws ImpossibleActionException {
 		
 		List<String> params = currentRequest.getParams();
 		int accID = Integer.parseInt(params.get(0));
 		int moneyAmount = Integer.parseInt(params.get(1));
 		
 		try {
-			BankAccount ba = dao.readBankAccount(accID);
-			
-			if (ba.getType() == BankAccountType.NONE) {
-				throw new ImpossibleActionException(ACCOUNT_DOES_NOT_EXIST_PREFIX + accID);
-			}
-
-			if (currentUser.getType() == UserProfileType.CUSTOMER 
-					&& !currentUser.getOwnedAccounts().contains(accID)) {
+			if (session.getCurrentUser().getType() == UserProfileType.CUSTOMER 
+					&& !session.getCurrentUser().getOwnedAccounts().contains(accID)) {
+				checkAccountExists(accID);
 				throw new ImpossibleActionException(DEPOSIT_ACCOUNT_NOT_OWNED_MESSAGE);
 			}
 			
-			if (ba.getStatus() != BankAccountStatus.OPEN) {
-				throw new ImpossibleActionException(DEPOSIT_ACCOUNT_NOT_OPEN_MESSAGE);
-			}
-			
-			if (ba.getFunds() < moneyAmount) {
-				throw new ImpossibleActionException(WITHDRAW_OVERDRAFT_BLOCK_MESSAGE);
-			}
-			
-			// can go ahead now
-			ba.setFunds(ba.getFunds() - moneyAmount);
-			dao.write(ba);
-			
-			io.displayText(WITHDRAW_SUCCESSFUL_MESSAGE);
-			
 			TransactionRecord tr = new TransactionRecord();
 			tr.setType(TransactionType.FUNDS_WITHDRAWN);
 			tr.setDestinationAccount(accID);
 			tr.setMoneyAmount(moneyAmount);
-			saveTransactionRecord(tr);
+			stampTransactionRecord(session, tr);
+			
+			// the DAO checks the account and changes it in one step
+			if (!dao.withdrawFunds(accID, moneyAmount, tr)) {
+				// only read the account to find out what went wrong
+				BankAccount ba = checkAccountExists(accID);
+				
+				if (ba.getStatus() != BankAccountStatus.OPEN) {
+					throw new ImpossibleActionException(DEPOSIT_ACCOUNT_NOT_OPEN_MESSAGE);
+				}
+				
+				throw new ImpossibleActionException(WITHDRAW_OVERDRAFT_BLOCK_MESSAGE);
+			}
+			
+			TransactionRecordWriter.logSaved(tr); // the DAO gave it its ID
+			session.getIO().displayText(WITHDRAW_SUCCESSFUL_MESSAGE);
 		}
 		catch(BankDAOException e) {
 			throw new ImpossibleActionException(GENERIC_DAO_ERROR_MESSAGE);
@@ -890,7 +1003,7 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleTransfer(Request currentRequest) throws ImpossibleActionException {
+	private void handleTransfer(BankSession session, Request currentRequest) throws ImpossibleActionException {
 		
 		List<String> params = currentRequest.getParams();
 		int sourceAccID = Integer.parseInt(params.get(0)); // money comes from
@@ -898,59 +1011,43 @@ public class BankSystem {
 		int moneyAmount = Integer.parseInt(params.get(2)); // how much?
 		
 		try {
-			BankAccount source = dao.readBankAccount(sourceAccID);
-			BankAccount dest = dao.readBankAccount(destAccID);
-			
 			// check the permissions
-			
-			if (source.getType() == BankAccountType.NONE) {
-				throw new ImpossibleActionException(
-						ACCOUNT_DOES_NOT_EXIST_PREFIX + sourceAccID);
-			}
-			if (dest.getType() == BankAccountType.NONE) {
-				throw new ImpossibleActionException(
-						ACCOUNT_DOES_NOT_EXIST_PREFIX + destAccID);
-			}
-			
 			// assume no NONE user
-			if (currentUser.getType() == UserProfileType.CUSTOMER 
-					&& !currentUser.getOwnedAccounts().contains(sourceAccID)) {
+			if (session.getCurrentUser().getType() == UserProfileType.CUSTOMER 
+					&& !session.getCurrentUser().getOwnedAccounts().contains(sourceAccID)) {
+				checkAccountExists(sourceAccID);
+				checkAccountExists(destAccID);
 				throw new ImpossibleActionException(
 						TRANSFER_SOURCE_ACCOUNT_NOT_OWNED_MESSAGE);
 			}
 			
-			
-			if (source.getStatus() != BankAccountStatus.OPEN) {
-				throw new ImpossibleActionException(
-						ACCOUNT_NOT_OPEN_PREFIX + sourceAccID);
-			}
-			if (dest.getStatus() != BankAccountStatus.OPEN) {
-				throw new ImpossibleActionException(
-						ACCOUNT_NOT_OPEN_PREFIX + destAccID);
-			}
-			
-			// check the funds
-			if (source.getFunds() < moneyAmount) {
-				throw new ImpossibleActionException(TRANSFER_OVERDRAFT_BLOCK_MESSAGE);
-			}
-			
-			// should finally be good
-			source.setFunds(source.getFunds() - moneyAmount);
-			dest.setFunds(dest.getFunds() + moneyAmount);
-			
-			List<BankData> toWrite = new ArrayList<>();
-			toWrite.add(source);
-			toWrite.add(dest);
-			dao.write(toWrite);
-			
-			io.displayText(TRANSFER_SUCCESSFUL_MESSAGE);
-			
 			TransactionRecord tr = new TransactionRecord();
 			tr.setType(TransactionType.FUNDS_TRANSFERRED);
 			tr.setSourceAccount(sourceAccID);
 			tr.setDestinationAccount(destAccID);
 			tr.setMoneyAmount(moneyAmount);
-			saveTransactionRecord(tr);
+			stampTransactionRecord(session, tr);
+			
+			// the DAO checks both accounts and moves the money in one step
+			if (!dao.transferFunds(sourceAccID, destAccID, moneyAmount, tr)) {
+				// only read the accounts to find out what went wrong
+				BankAccount source = checkAccountExists(sourceAccID);
+				BankAccount dest = checkAccountExists(destAccID);
+				
+				if (source.getStatus() != BankAccountStatus.OPEN) {
+					throw new ImpossibleActionException(
+							ACCOUNT_NOT_OPEN_PREFIX + sourceAccID);
+				}
+				if (dest.getStatus() != BankAccountStatus.OPEN) {
+					throw new ImpossibleActionException(
+							ACCOUNT_NOT_OPEN_PREFIX + destAccID);
+				}
+				
+				throw new ImpossibleActionException(TRANSFER_OVERDRAFT_BLOCK_MESSAGE);
+			}
+			
+			TransactionRecordWriter.logSaved(tr); // the DAO gave it its ID
+			session.getIO().displayText(TRANSFER_SUCCESSFUL_MESSAGE);
 		}
 		catch(BankDAOException e) {
 			throw new ImpossibleActionException(GENERIC_DAO_ERROR_MESSAGE);
@@ -967,7 +1064,7 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleViewAccounts(Request currentRequest) throws ImpossibleActionException {
+	private void handleViewAccounts(BankSession session, Request currentRequest) throws ImpossibleActionException {
 		
 		//System.out.println("DEBUG: handleViewAccounts called");
 		try {
@@ -1002,8 +1099,8 @@ public class BankSystem {
 			String nonexistantAccounts = "";
 			
 			for (int accID : lookupIDs) {
-				if (currentUser.getType() == UserProfileType.CUSTOMER
-						&& !currentUser.getOwnedAccounts().contains(accID)) {
+				if (session.getCurrentUser().getType() == UserProfileType.CUSTOMER
+						&& !session.getCurrentUser().getOwnedAccounts().contains(accID)) {
 					unpermittedAccounts = unpermittedAccounts + " " + accID;
 					continue;
 				}
@@ -1021,13 +1118,13 @@ public class BankSystem {
 			//System.out.println("DEBUG: accounts list is: " + accounts);
 			
 			if (!accounts.isEmpty()) {
-				io.displayBankAccounts(accounts);
+				session.getIO().displayBankAccounts(accounts);
 			}
 			if (!unpermittedAccounts.equals("")) {
-				io.displayText(VIEW_ACCOUNTS_NO_PERMISSION_PREFIX + unpermittedAccounts);
+				session.getIO().displayText(VIEW_ACCOUNTS_NO_PERMISSION_PREFIX + unpermittedAccounts);
 			}
 			if (!nonexistantAccounts.equals("")) {
-				io.displayText(VIEW_ACCOUNTS_NOT_FOUND_PREFIX + nonexistantAccounts);
+				session.getIO().displayText(VIEW_ACCOUNTS_NOT_FOUND_PREFIX + nonexistantAccounts);
 			}
 		}
 		catch (BankDAOException e){
@@ -1040,11 +1137,11 @@ public class BankSystem {
 	 * 
 	 * @param currentRequest
 	 */
-	private void handleViewSelfProfile(Request currentRequest) {
+	private void handleViewSelfProfile(BankSession session, Request currentRequest) {
 		
 		List<UserProfile> users = new ArrayList<>();
-		users.add(currentUser);
-		io.displayUserProfiles(users);
+		users.add(session.getCurrentUser());
+		session.getIO().displayUserProfiles(users);
 	}
 	
 	/**
@@ -1055,7 +1152,7 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleViewUsers(Request currentRequest) throws ImpossibleActionException {
+	private void handleViewUsers(BankSession session, Request currentRequest) throws ImpossibleActionException {
 
 		try {
 			String invalidIDs = "";
@@ -1074,11 +1171,11 @@ public class BankSystem {
 			} // end for id loop
 			
 			if (!users.isEmpty()) {
-				io.displayUserProfiles(users);				
+				session.getIO().displayUserProfiles(users);				
 			}
 			if (!invalidIDs.equals("")) {
 				//System.out.println("DEBUG: printing invalid ids");
-				io.displayText(USER_ID_MULTIPLE_NOT_FOUND_PREFIX + invalidIDs);
+				session.getIO().displayText(USER_ID_MULTIPLE_NOT_FOUND_PREFIX + invalidIDs);
 			}
 		}
 		catch (BankDAOException e) {
@@ -1095,7 +1192,7 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleViewTransactions(Request currentRequest) throws ImpossibleActionException {
+	private void handleViewTransactions(BankSession session, Request currentRequest) throws ImpossibleActionException {
 		
 		//System.out.println("DEBUG: handleViewTransactions called");
 		try {
@@ -1105,6 +1202,7 @@ public class BankSystem {
 			List<TransactionRecord> transactions = new ArrayList<>(); // may be replaced
 			String nonpermittedIDs = "";
 			String invalidIDs = "";
+			boolean paged = false; // only one page of a history is shown at a time
 			//List<TransactionRecord> toDisplay = new ArrayList<>();
 			
 			if (tag.equals(TRANSACTION_TAG)) {
@@ -1114,8 +1212,8 @@ public class BankSystem {
 					if (tr.getType() == TransactionType.NONE) {
 						invalidIDs = invalidIDs + " " + tr.getId();
  					}
-					else if (currentUser.getType() == UserProfileType.CUSTOMER 
-							&& tr.getActingUser() != currentUser.getId()) {
+					else if (session.getCurrentUser().getType() == UserProfileType.CUSTOMER 
+							&& tr.getActingUser() != session.getCurrentUser().getId()) {
 						nonpermittedIDs = nonpermittedIDs + " " + nonpermittedIDs;
 					}
 					else { // valid, permitted ID
@@ -1125,37 +1223,44 @@ public class BankSystem {
 			}
 			else if (tag.equals(USER_PROFILE_TAG)) {
 				int userID = Integer.parseInt(params.get(1));
-				if (currentUser.getType() == UserProfileType.CUSTOMER
-						&& currentUser.getId() != userID) {
+				if (session.getCurrentUser().getType() == UserProfileType.CUSTOMER
+						&& session.getCurrentUser().getId() != userID) {
 					throw new ImpossibleActionException(
 							VIEW_TRANSACTIONS_CUSTOMER_CAN_ONLY_VIEW_SELF_MESSAGE);
 				}
 				
-				transactions = dao.readTransactionRecordByActingUserId(userID);
+				transactions = dao.readTransactionRecordPageByActingUserId(userID, 
+						pageStart(params), TRANSACTION_PAGE_SIZE, pageDirection(params));
+				paged = true;
 			}
 			else if (tag.equals(ACCOUNT_TAG)) {
 				//System.out.println("DEBUG: View TRR reached ACCOUNT_TAG block");
 				int accID = Integer.parseInt(params.get(1));
-				if (currentUser.getType() == UserProfileType.CUSTOMER 
-						&& !currentUser.getOwnedAccounts().contains(accID)) {
+				if (session.getCurrentUser().getType() == UserProfileType.CUSTOMER 
+						&& !session.getCurrentUser().getOwnedAccounts().contains(accID)) {
 					//System.out.println("DEBUG: View TRR reached ACCOUNT_TAG block and threw");
 					throw new ImpossibleActionException(
 							VIEW_TRANSACTIONS_CUSTOMER_CAN_ONLY_VIEW_SELF_MESSAGE);
 				}
 
-				transactions = dao.readTransactionRecordByAccountId(accID);
+				transactions = dao.readTransactionRecordPageByAccountId(accID, 
+						pageStart(params), TRANSACTION_PAGE_SIZE, pageDirection(params));
+				paged = true;
 				//System.out.println("DEBUG: transactions list is " + transactions);
 			}
 			
 			// finally display the transactions
 			if (!transactions.isEmpty()) {
-				io.displayTransactionRecords(transactions);
+				session.getIO().displayTransactionRecords(transactions);
+			}
+			else if (paged) {
+				session.getIO().displayText(VIEW_TRANSACTIONS_NO_MORE_MESSAGE);
 			}
 			if (!invalidIDs.equals("")) {
-				io.displayText(VIEW_TRANSACTIONS_INVALID_IDS_PREFIX + invalidIDs);
+				session.getIO().displayText(VIEW_TRANSACTIONS_INVALID_IDS_PREFIX + invalidIDs);
 			}
 			if (!nonpermittedIDs.equals("")) {
-				io.displayText(
+				session.getIO().displayText(
 						VIEW_TRANSACTIONS_NONPERMITTED_IDS_PREFIX + nonpermittedIDs);
 			}		
 		}
@@ -1164,35 +1269,60 @@ public class BankSystem {
 		}
 	}
 	
+	/**
+	 * @param params : from a VIEW_TRANSACTIONS request with a PRF or ACC tag
+	 * @return the direction to page in; OLDER if the request doesn't say
+	 */
+	private PageDirection pageDirection(List<String> params) {
+		
+		if (params.size() > 3) {
+			return PageDirection.valueOf(params.get(3));
+		}
+		
+		return PageDirection.OLDER;
+	}
+	
+	/**
+	 * @param params : from a VIEW_TRANSACTIONS request with a PRF or ACC tag
+	 * @return the ID to page from; if the request doesn't say, the end that gives the latest page
+	 */
+	private int pageStart(List<String> params) {
+		
+		if (params.size() > 3) {
+			return Integer.parseInt(params.get(2));
+		}
+		
+		return PageDirection.OLDER.fromEnd();
+	}
+	
 	/**
 	 * Creates a new account with employee privileges.
 	 * Can only be done by an admin (checked by generic check)
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleCreateEmployee(Request currentRequest) throws ImpossibleActionException {
+	private void handleCreateEmployee(BankSession session, Request currentRequest) throws ImpossibleActionException {
 
 		try {
 			List<String> params = currentRequest.getParams();
 			String username = params.get(0);
-			
-			if (!dao.isUsernameFree(username)) {
-				throw new ImpossibleActionException(USERNAME_IN_USE_MESSAGE);
-			}
-			
 			String password = params.get(1); 
-			int empID = dao.getHighestUserProfileID() + 1;
+			int empID = dao.allocateUserProfileID();
 			UserProfile employee = new UserProfile(empID);
 			employee.setUsername(username);
 			employee.setPassword(password);
 			employee.setType(UserProfileType.EMPLOYEE);
-			dao.write(employee);
-			io.displayText(CREATE_EMPLOYEE_SUCCESSFUL_PREFIX + empID);
+			
+			if (!dao.writeIfUsernameFree(employee)) {
+				throw new ImpossibleActionException(USERNAME_IN_USE_MESSAGE);
+			}
+			
+			session.getIO().displayText(CREATE_EMPLOYEE_SUCCESSFUL_PREFIX + empID);
 			
 			TransactionRecord tr = new TransactionRecord();
 			tr.setType(TransactionType.USER_REGISTERED);
 			tr.setDestinationAccount(empID);
-			saveTransactionRecord(tr);
+			saveTransactionRecord(session, tr);
 		}
 		catch (BankDAOException e) {
 			throw new ImpossibleActionException(GENERIC_DAO_ERROR_MESSAGE);
@@ -1205,29 +1335,28 @@ public class BankSystem {
 	 * @param currentRequest
 	 * @throws ImpossibleActionException
 	 */
-	private void handleCreateAdmin(Request currentRequest) throws ImpossibleActionException {
+	private void handleCreateAdmin(BankSession session, Request currentRequest) throws ImpossibleActionException {
 
 		try {
 			List<String> params = currentRequest.getParams();
 			String username = params.get(0);
-			
-			if (!dao.isUsernameFree(username)) {
-				throw new ImpossibleActionException(USERNAME_IN_USE_MESSAGE);
-			}
-			
 			String password = params.get(1); 
-			int adminID = dao.getHighestUserProfileID() + 1;
+			int adminID = dao.allocateUserProfileID();
 			UserProfile adm = new UserProfile(adminID);
 			adm.setUsername(username);
 			adm.setPassword(password);
 			adm.setType(UserProfileType.ADMIN);
-			dao.write(adm);
-			io.displayText(CREATE_EMPLOYEE_SUCCESSFUL_PREFIX + adminID);
+			
+			if (!dao.writeIfUsernameFree(adm)) {
+				throw new ImpossibleActionException(USERNAME_IN_USE_MESSAGE);
+			}
+			
+			session.getIO().displayText(CREATE_EMPLOYEE_SUCCESSFUL_PREFIX + adminID);
 			
 			TransactionRecord tr = new TransactionRecord();
 			tr.setType(TransactionType.USER_REGISTERED);
 			tr.setDestinationAccount(adminID);
-			saveTransactionRecord(tr);
+			saveTransactionRecord(session, tr);
 		}
 		catch (BankDAOException e) {
 			throw new ImpossibleActionException(GENERIC_DAO_ERROR_MESSAGE);
@@ -1237,69 +1366,165 @@ public class BankSystem {
 	// util methods
 
 	/**
-	 * Creates an 'empty' UserProfile object, representing that no one is logged in.
-	 * @return
+	 * Changes the current user to the given user.
+	 * @param user
 	 */
-	private static UserProfile getEmptyUser() {
+	private void changeLoggedInUser(BankSession session, UserProfile user) {
+
+		session.setCurrentUser(user);
 		
-		UserProfile empty = new UserProfile(-1);
-		empty.setType(UserProfileType.NONE);
-		return empty;
+		// a write could have come between reading the user and now, so read it once more
+		// at the end of the step, after which only writes to it cause a read
+		session.setUserChanges(BankSession.USER_NOT_LOADED);
 	}
 	
 	/**
-	 * Changes the current user to the given user.
-	 * @param user
+	 * Reads the current user again, but only if it has been written (by any session) since
+	 * the session last read it, rather than once for every request.
+	 * @param session
+	 * @throws BankDAOException
 	 */
-	private void changeLoggedInUser(UserProfile user) {
-
-		currentUser = user;
+	private void refreshCurrentUser(BankSession session) throws BankDAOException {
+		
+		UserProfile user = session.getCurrentUser();
+		if (user.getType() == UserProfileType.NONE) {
+			return;
+		}
+		
+		int changes = profileChanges.getOrDefault(user.getId(), 0);
+		if (changes != session.getUserChanges()) {
+			// noted before reading, so a write that lands during the read is read next time
+			session.setUserChanges(changes);
+			session.setCurrentUser(dao.readUserProfile(user.getId()));
+		}
 	}
 	
 	/**
 	 * Sets the running variable to false, ending the loop.
 	 */
-	private void stopRunning() {
+	private void stopRunning(BankSession session) {
 		
-		running = false;
+		session.setRunning(false);
 	}
 	
 	/**
-	 * Writes the given TR to the database.
+	 * Saves the given TR through the recordWriter, which may finish writing it after this returns.
 	 * This method will take care of finding the ID, setting the acting user,
 	 *  and creating the timestamp (eventually)
 	 * @param tr
 	 */
-	private void saveTransactionRecord(TransactionRecord tr){
+	private void saveTransactionRecord(BankSession session, TransactionRecord tr){
 		
 		try {
-			tr.setId(dao.getHighestTransactionRecordID() + 1);
-			tr.setActingUser(currentUser.getId());
-			tr.setTime(java.time.LocalDateTime.now().toString());
-			
-			log.log(
-					Level.INFO, 
-					"About to save transaction: " + transactionRecordToString(tr));
-			
-			dao.write(tr);			
+			tr.setId(dao.allocateTransactionRecordID());
+			stampTransactionRecord(session, tr);
+			recordWriter.save(tr);
 		}
 		catch(BankDAOException e) {
-			io.displayText(TRANSACTION_RECORD_NOT_SAVED_MESSAGE);
+			session.getIO().displayText(TRANSACTION_RECORD_NOT_SAVED_MESSAGE);
 		}
 	}
 	
-	private String transactionRecordToString(TransactionRecord tr) {
+	/**
+	 * Fills in the acting user and time of a transaction record that is about to be saved.
+	 * The ID is left to saveTransactionRecord(), or to the DAO for the funds records, which
+	 * only get one if the money moves.
+	 * @param tr
+	 */
+	private void stampTransactionRecord(BankSession session, TransactionRecord tr) {
+		
+		tr.setActingUser(session.getCurrentUser().getId());
+		tr.setTime(java.time.LocalDateTime.now().toString());
+	}
+	
+	/**
+	 * @param accID
+	 * @return the account
+	 * @throws ImpossibleActionException if there is no such account
+	 * @throws BankDAOException
+	 */
+	private BankAccount checkAccountExists(int accID) throws ImpossibleActionException, BankDAOException {
 		
-		String s = "" + tr.getId() 
-				+ " " + tr.getTime() 
-				+ " " + tr.getType()
-				+ " " + tr.getActingUser()
-				+ " " + tr.getSourceAccount()
-				+ " " + tr.getDestinationAccount()
-				+ " " + tr.getMoneyAmount();
+		BankAccount ba = dao.readBankAccount(accID);
 		
-		return s;
+		if (ba.getType() == BankAccountType.NONE) {
+			throw new ImpossibleActionException(ACCOUNT_DOES_NOT_EXIST_PREFIX + accID);
+		}
+		
+		return ba;
 	}
 	
+	/**
+	 * Reads the account, has the change check and change it, and writes it back only if nobody
+	 * else changed it (or any profile the change writes along with it) in the meantime; if they
+	 * did, starts over with a fresh read. Nothing is locked while the change is worked out, so
+	 * changes to different accounts (or to the same one, when they don't actually overlap) 
+	 * never wait on each other.
+	 * @param accID
+	 * @param change : may run more than once, so should only change what it is given
+	 * @return the account as written
+	 * @throws ImpossibleActionException if the change can't be made, or the account
+	 * 			was changed by someone else on every attempt
+	 * @throws BankDAOException
+	 */
+	private BankAccount changeAccount(int accID, AccountChange change) 
+			throws ImpossibleActionException, BankDAOException {
+		
+		for (int attempt = 1; attempt <= MAX_ACCOUNT_CHANGE_ATTEMPTS; attempt++) {
+			BankAccount ba = dao.readBankAccount(accID);
+			List<BankData> alsoWrite = change.apply(ba);
+			
+			if (dao.writeIfUnchanged(ba, alsoWrite)) {
+				return ba;
+			}
+			
+			log.log(Level.DEBUG, "Account " + accID + " or its owner was changed during attempt " 
+					+ attempt + ", retrying");
+		}
+		
+		log.log(Level.WARN, "Gave up changing account " + accID + " after " 
+				+ MAX_ACCOUNT_CHANGE_ATTEMPTS + " attempts");
+		throw new ImpossibleActionException(ACCOUNT_BUSY_MESSAGE);
+	}
+	
+	
+	// nested types
+	
+	/**
+	 * One attempt at a change to a bank account, see changeAccount().
+	 */
+	private interface AccountChange {
+		
+		/**
+		 * @param ba : freshly read; should be changed in place
+		 * @return anything else to write along with the account (eg an owner's profile, which
+		 * 			should be read here too, since it is checked for changes like the account)
+		 * @throws ImpossibleActionException if the account can't be changed this way
+		 * @throws BankDAOException
+		 */
+		public List<BankData> apply(BankAccount ba) throws ImpossibleActionException, BankDAOException;
+	}
 	
+	/**
+	 * Counts the writes to each user profile, so that sessions know when their current user
+	 * needs to be read again (see refreshCurrentUser()).
+	 */
+	private class ProfileWriteListener implements WriteListener {
+		
+		@Override
+		public void written(List<BankData> written) {
+			
+			for (BankData bd : written) {
+				if (bd instanceof UserProfile) {
+					profileChanges.merge(bd.getId(), 1, Integer::sum);
+				}
+				else if (bd instanceof BankAccount) {
+					// some DAOs (PostgresDAO) build a profile's account list from the accounts' owners
+					for (int ownerID : ((BankAccount)bd).getOwners()) {
+						profileChanges.merge(ownerID, 1, Integer::sum);
+					}
+				}
+			}
+		}
+	}
 }
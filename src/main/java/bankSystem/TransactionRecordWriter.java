@@ -0,0 +1,318 @@
+/**
+ * Saves the transaction records of requests that don't move money (registrations, approvals,
+ * closings, owner changes...), so that a request doesn't have to wait for its record to be
+ * written (see Durability). Records go into a fixed size ring buffer, and a background thread
+ * takes out everything waiting each time it is free and writes it with one dao.write(). When
+ * records come in faster than they can be written, they are written in bigger batches instead
+ * of queueing up more writes. If the buffer is full, save() waits for room, so a slow data
+ * store slows requests down instead of filling up memory.
+ *
+ * Deposits, withdrawals and transfers don't use this, since their records are written in the
+ * same atomic step as the money (see BankDAO.depositFunds()).
+ *
+ * @author Andrew Curry
+ */
+package bankSystem;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.revature.bankDataObjects.BankData;
+import com.revature.bankDataObjects.TransactionRecord;
+
+import dao.BankDAO;
+import dao.BankDAOException;
+
+public class TransactionRecordWriter {
+
+	// enums
+
+	/**
+	 * What save() waits for before returning.
+	 */
+	public enum Durability {
+		WRITE_THROUGH, // save() writes the record itself; nothing runs in the background
+		BATCHED, // save() waits for the batch its record is written in, and reports if it failed
+		BACKGROUND // save() only waits for room in the buffer; a failed write is only logged, and
+					// records not yet written when the program dies are lost
+	}
+
+	// constants
+	public static final int DEFAULT_CAPACITY = 1024;
+	public static final int DEFAULT_BATCH_SIZE = 256;
+
+	private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+	// class/static variables
+	private static Logger log = Logger.getLogger(TransactionRecordWriter.class);
+
+	// instance variables
+	private final BankDAO dao;
+	private final Durability durability;
+	private final int batchSize;
+	private final ExecutorService writer; // null with WRITE_THROUGH
+
+	// everything below is guarded by this
+	private final TransactionRecord[] ring;
+	private int head; // where the oldest waiting record is
+	private int count; // how many records are waiting
+	private long addedSeq; // how many records have ever been added
+	private long doneSeq; // how many of those have been written, or failed
+	private final Set<TransactionRecord> failed; // only with BATCHED, until save() sees it
+	private boolean closed;
+
+	// constructors
+	public TransactionRecordWriter(BankDAO dao, Durability durability) {
+		this(dao, durability, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * @param dao
+	 * @param durability
+	 * @param capacity : how many records can wait to be written before save() has to wait
+	 * @param batchSize : the most records written with one dao.write()
+	 */
+	public TransactionRecordWriter(BankDAO dao, Durability durability, int capacity, int batchSize) {
+
+		if (capacity < 1 || batchSize < 1) {
+			throw new IllegalArgumentException("capacity and batchSize must be at least 1");
+		}
+
+		this.dao = dao;
+		this.durability = durability;
+		this.batchSize = batchSize;
+		this.ring = new TransactionRecord[capacity];
+		this.head = 0;
+		this.count = 0;
+		this.addedSeq = 0;
+		this.doneSeq = 0;
+		this.failed = Collections.newSetFromMap(new IdentityHashMap<>());
+		this.closed = false;
+
+		if (durability == Durability.WRITE_THROUGH) {
+			writer = null;
+		}
+		else {
+			writer = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "TransactionRecordWriter");
+				t.setDaemon(true);
+				return t;
+			});
+			writer.submit(this::writeLoop);
+		}
+	}
+
+	// methods
+
+	/**
+	 * Saves the given record, which should already have its ID. How long this waits depends
+	 * on the Durability. Once closed, records are written straight through.
+	 * @param tr
+	 * @throws BankDAOException if the record is known not to have been saved
+	 */
+	public void save(TransactionRecord tr) throws BankDAOException {
+
+		synchronized (this) {
+			if (writer != null && !closed) {
+				add(tr);
+				return;
+			}
+		}
+
+		dao.write(tr);
+		logSaved(tr);
+	}
+
+	/**
+	 * Waits until every record saved before this call has been written (or has failed).
+	 */
+	public synchronized void flush() {
+
+		long seq = addedSeq;
+
+		try {
+			while (doneSeq < seq) {
+				wait();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * Writes everything still waiting, and stops the background thread.
+	 */
+	public void close() {
+
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+
+		if (writer != null) {
+			writer.shutdown();
+			try {
+				if (!writer.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+					log.log(Level.ERROR, "Gave up waiting for transaction records to be written");
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return the Durability this writer was made with
+	 */
+	public Durability getDurability() {
+		return durability;
+	}
+
+	/**
+	 * Logs a record once it has been written. Also used for the funds records, which are
+	 * written by the DAO, so this is the only place records are logged.
+	 * @param tr
+	 */
+	static void logSaved(TransactionRecord tr) {
+
+		if (log.isInfoEnabled()) {
+			log.log(Level.INFO, "Saved transaction: " + tr.getId() 
+					+ " " + tr.getTime() 
+					+ " " + tr.getType()
+					+ " " + tr.getActingUser()
+					+ " " + tr.getSourceAccount()
+					+ " " + tr.getDestinationAccount()
+					+ " " + tr.getMoneyAmount());
+		}
+	}
+
+	// helper methods
+
+	/**
+	 * Puts the record into the ring, waiting for room if it is full, and then for it to be
+	 * written if the Durability says so. Must hold the lock.
+	 * @param tr
+	 * @throws BankDAOException
+	 */
+	private void add(TransactionRecord tr) throws BankDAOException {
+
+		try {
+			while (count == ring.length) {
+				wait();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new BankDAOException("ALERT: Interrupted while waiting to save transaction record " + tr.getId());
+		}
+
+		ring[(head + count) % ring.length] = tr;
+		count++;
+		long seq = ++addedSeq;
+		notifyAll();
+
+		if (durability != Durability.BATCHED) {
+			return;
+		}
+
+		try {
+			while (doneSeq < seq) {
+				wait();
+			}
+		}
+		catch (InterruptedException e) {
+			// the record is still written, just without anyone finding out how it went
+			Thread.currentThread().interrupt();
+			return;
+		}
+
+		if (failed.remove(tr)) {
+			throw new BankDAOException("ALERT: Could not save transaction record " + tr.getId());
+		}
+	}
+
+	/**
+	 * Run by the background thread until closed: takes out everything waiting (up to
+	 * batchSize) and writes it in one go.
+	 */
+	private void writeLoop() {
+
+		List<BankData> batch = new ArrayList<>(batchSize);
+
+		while (true) {
+			synchronized (this) {
+				try {
+					while (count == 0 && !closed) {
+						wait();
+					}
+				}
+				catch (InterruptedException e) {
+					log.log(Level.ERROR, "Transaction record writer interrupted with " + count + " records waiting");
+					return;
+				}
+
+				if (count == 0) {
+					return; // closed, and nothing left
+				}
+
+				int n = Math.min(count, batchSize);
+				for (int i = 0; i < n; i++) {
+					batch.add(ring[head]);
+					ring[head] = null;
+					head = (head + 1) % ring.length;
+				}
+				count -= n;
+				notifyAll(); // there is room now
+			}
+
+			boolean written = writeBatch(batch);
+
+			synchronized (this) {
+				doneSeq += batch.size();
+				if (!written && durability == Durability.BATCHED) {
+					for (BankData bd : batch) {
+						failed.add((TransactionRecord)bd);
+					}
+				}
+				notifyAll();
+			}
+
+			batch.clear();
+		}
+	}
+
+	/**
+	 * @param batch
+	 * @return true if it was written
+	 */
+	private boolean writeBatch(List<BankData> batch) {
+
+		try {
+			dao.write(batch);
+			log.log(Level.DEBUG, "Wrote a batch of " + batch.size() + " transaction records");
+			for (BankData bd : batch) {
+				logSaved((TransactionRecord)bd);
+			}
+			return true;
+		}
+		catch (BankDAOException | RuntimeException e) {
+			// keep the records in the log, since they won't be anywhere else
+			log.log(Level.ERROR, "Could not write " + batch.size() + " transaction records: " + e.getMessage());
+			for (BankData bd : batch) {
+				log.log(Level.ERROR, "Transaction record not saved: " + bd);
+			}
+			return false;
+		}
+	}
+}
@@ -26,6 +26,7 @@ public class BankAccount extends BankData {
 	private BankAccountStatus status;
 	private BankAccountType type;
 	private int funds; // could be a special Money class or something
+	private int version; // how many times the stored account has been changed, see BankDAO.writeIfUnchanged()
 	
 	
 	// constructor(s)
@@ -106,4 +107,12 @@ public class BankAccount extends BankData {
 	public void setType(BankAccountType type) {
 		this.type = type;
 	}
+	
+	public int getVersion() {
+		return version;
+	}
+	
+	public void setVersion(int version) {
+		this.version = version;
+	}
 }
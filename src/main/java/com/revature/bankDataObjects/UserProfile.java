@@ -23,6 +23,7 @@ public class UserProfile extends BankData {
 	private String password; // not encrypted
 	private UserProfileType type;
 	private List<Integer> ownedAccounts; // referenced by ID number (should this be a set?)
+	private int version; // how many times the stored profile has been changed, see BankDAO.writeIfUnchanged()
 	
 	// constructor(s)
 	public UserProfile() {
@@ -109,4 +110,14 @@ public class UserProfile extends BankData {
 	}
 	
 	
+	public int getVersion() {
+		return version;
+	}
+	
+	
+	public void setVersion(int version) {
+		this.version = version;
+	}
+	
+	
 }
@@ -0,0 +1,66 @@
+/**
+ * Does the hasNext() / next() bookkeeping for a BankDataCursor, so that each DAO's cursor
+ * only has to say how to fetch the next object and how to clean up.
+ *
+ * @author Andrew Curry
+ */
+package dao;
+
+import java.util.NoSuchElementException;
+
+import com.revature.bankDataObjects.BankData;
+
+public abstract class AbstractBankDataCursor<T extends BankData> implements BankDataCursor<T> {
+
+	// instance variables
+	private T upNext; // fetched but not yet returned, or null
+	private boolean closed = false;
+
+	// methods
+
+	@Override
+	public boolean hasNext() throws BankDAOException {
+
+		if (upNext == null && !closed) {
+			upNext = fetch();
+		}
+
+		return upNext != null;
+	}
+
+	@Override
+	public T next() throws BankDAOException {
+
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+
+		T result = upNext;
+		upNext = null;
+		return result;
+	}
+
+	@Override
+	public void close() throws BankDAOException {
+
+		if (!closed) {
+			closed = true;
+			upNext = null;
+			release();
+		}
+	}
+
+	// methods for subclasses
+
+	/**
+	 * @return the next object, or null if there are no more
+	 * @throws BankDAOException
+	 */
+	protected abstract T fetch() throws BankDAOException;
+
+	/**
+	 * Releases whatever the cursor holds. Only called once.
+	 * @throws BankDAOException
+	 */
+	protected abstract void release() throws BankDAOException;
+}
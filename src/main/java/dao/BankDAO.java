@@ -2,6 +2,11 @@
  * This interface lists the methods that a DAO will need to function
  * inside the banking system.
  * 
+ * A BankSystem shares one DAO between all of its sessions, so every method may be called
+ * from several threads at once. The file DAOs guard their files and in-memory data with
+ * the DAO object's own lock: TextFileDAO holds it for every write and every index lookup,
+ * BinaryFileDAO for the whole of every call. PostgresDAO leaves it to the database.
+ * 
  * Andrew Curry, Project 0
  */
 package dao;
@@ -38,6 +43,13 @@ public interface BankDAO {
 	public List<BankAccount> readAllBankAccounts() throws BankDAOException;
 	
 	
+	/**
+	 * Opens a cursor over all bank accounts in the data storage. See openUserProfileCursor().
+	 * @return
+	 * @throws BankDAOException
+	 */
+	public BankDataCursor<BankAccount> openBankAccountCursor() throws BankDAOException;
+	
 	/**
 	 * Fetches the user profile with the given ID number from the data storage.
 	 * If no such account exists, the resulting UserProfile object will have type NONE.
@@ -60,6 +72,14 @@ public interface BankDAO {
 	 */
 	public List<UserProfile> readAllUserProfiles() throws BankDAOException;
 	
+	/**
+	 * Opens a cursor over all user profiles in the data storage, which fetches them as they are
+	 * asked for instead of all at once. Must be closed.
+	 * @return
+	 * @throws BankDAOException
+	 */
+	public BankDataCursor<UserProfile> openUserProfileCursor() throws BankDAOException;
+	
 	/**
 	 * Fetches the TransactionRecord with the given ID number from the data storage.
 	 * If no such account exists, the resulting TransactionRecord object will have type NONE.
@@ -74,6 +94,13 @@ public interface BankDAO {
 	 */
 	public List<TransactionRecord> readAllTransactionRecords() throws BankDAOException;
 	
+	/**
+	 * Opens a cursor over all TransactionRecords in the data storage. See openUserProfileCursor().
+	 * @return
+	 * @throws BankDAOException
+	 */
+	public BankDataCursor<TransactionRecord> openTransactionRecordCursor() throws BankDAOException;
+	
 	/**
 	 * Fetches all TransactionRecords that were carried out by the given user.
 	 * Returns an empty list if there are no matches.
@@ -92,6 +119,32 @@ public interface BankDAO {
 	 */
 	public List<TransactionRecord> readTransactionRecordByAccountId(int accID) throws BankDAOException;
 	
+	/**
+	 * Fetches one page of the TransactionRecords carried out by the given user (keyset
+	 * pagination, see PageDirection).
+	 * @param actingUserID
+	 * @param startID : exclusive; direction.fromEnd() for the first page
+	 * @param limit : the most records to return
+	 * @param direction
+	 * @return the page, oldest first; empty if there is nothing past startID
+	 * @throws BankDAOException
+	 */
+	public List<TransactionRecord> readTransactionRecordPageByActingUserId(int actingUserID, 
+			int startID, int limit, PageDirection direction) throws BankDAOException;
+	
+	/**
+	 * Fetches one page of the TransactionRecords that involved the given account (as source or
+	 * destination). See readTransactionRecordPageByActingUserId().
+	 * @param accID
+	 * @param startID
+	 * @param limit
+	 * @param direction
+	 * @return
+	 * @throws BankDAOException
+	 */
+	public List<TransactionRecord> readTransactionRecordPageByAccountId(int accID, 
+			int startID, int limit, PageDirection direction) throws BankDAOException;
+	
 	/**
 	 * Writes the given BankData object to the data storage. WILL overwrite if matching
 	 * data is already present.
@@ -105,6 +158,67 @@ public interface BankDAO {
 	 * @param bd
 	 */
 	public void write(List<BankData> toWrite) throws BankDAOException;
+
+	/**
+	 * Writes the given account only if the stored account is still at the version it was read
+	 * at (ba.getVersion()), ie nobody has changed it since; a compare-and-set. Every change to
+	 * a stored account (any write, deposit, withdrawal or transfer) moves its version on, and
+	 * an account that doesn't exist yet is at the version a read of it returns. User profiles
+	 * are versioned the same way, and any in alsoWrite are checked along with the account.
+	 * @param ba : on success, its version is moved on to match the stored account
+	 * @param alsoWrite : written in the same step as the account, only if it is written; may be
+	 * 			empty. On success, the versions of any profiles in it are moved on too
+	 * @return true if it was written, false if the account or one of the profiles was changed
+	 * 			in the meantime, in which case nothing is written and they should be read again
+	 * @throws BankDAOException
+	 */
+	public boolean writeIfUnchanged(BankAccount ba, List<BankData> alsoWrite) throws BankDAOException;
+
+	/**
+	 * Writes a new user profile, but only if no other profile has its username, as one atomic
+	 * step; two sessions registering the same username at once can't both get it.
+	 * @param up : should have a new ID (see allocateUserProfileID())
+	 * @return true if it was written, false if the username is taken
+	 * @throws BankDAOException
+	 */
+	public boolean writeIfUsernameFree(UserProfile up) throws BankDAOException;
+
+	/**
+	 * Adds money to an open account, as one atomic step.
+	 * @param accID
+	 * @param amount : assumed to be positive
+	 * @param record : written along with the change, in the same step; may be null. If its ID
+	 * 			is 0, it is given a new one (see allocateTransactionRecordID()), which is given
+	 * 			back if the deposit doesn't happen
+	 * @return true if the deposit happened, false if there is no open account with that ID
+	 * @throws BankDAOException
+	 */
+	public boolean depositFunds(int accID, int amount, TransactionRecord record) throws BankDAOException;
+	
+	/**
+	 * Takes money out of an open account, as one atomic step. The funds can't go below zero.
+	 * @param accID
+	 * @param amount : assumed to be positive
+	 * @param record : see depositFunds()
+	 * @return true if the withdrawal happened, false if there is no open account with that ID
+	 * 			or it doesn't hold enough money
+	 * @throws BankDAOException
+	 */
+	public boolean withdrawFunds(int accID, int amount, TransactionRecord record) throws BankDAOException;
+	
+	/**
+	 * Moves money from one open account to another, as one atomic step. The source account's
+	 * funds can't go below zero. Nobody will ever see the money in both accounts or in neither.
+	 * @param sourceAccID
+	 * @param destAccID
+	 * @param amount : assumed to be positive
+	 * @param record : see depositFunds()
+	 * @return true if the transfer happened, false if either account isn't open (or doesn't exist)
+	 * 			or the source account doesn't hold enough money
+	 * @throws BankDAOException
+	 */
+	public boolean transferFunds(int sourceAccID, int destAccID, int amount, TransactionRecord record) 
+			throws BankDAOException;
 	
 	/** 
 	 * @return the highest ID currently assigned to a user profile
@@ -120,12 +234,50 @@ public interface BankDAO {
 	 * @return the highest ID currently assigned to a transaction record
 	 */
 	public int getHighestTransactionRecordID() throws BankDAOException;
-	
+
 	/**
-	 * Determines whether or not the given username is free to use. Used during registration, to make sure that usernames are unique.
+	 * Reserves a new ID for a user profile. The same ID is never handed out twice, even to
+	 * different sessions, but IDs that are reserved and never written can leave gaps.
+	 * @return
+	 * @throws BankDAOException
+	 */
+	public int allocateUserProfileID() throws BankDAOException;
+
+	/**
+	 * Reserves a new ID for a bank account. See allocateUserProfileID().
+	 * @return
+	 * @throws BankDAOException
+	 */
+	public int allocateBankAccountID() throws BankDAOException;
+
+	/**
+	 * Reserves a new ID for a transaction record. See allocateUserProfileID().
+	 * @return
+	 * @throws BankDAOException
+	 */
+	public int allocateTransactionRecordID() throws BankDAOException;
+
+	/**
+	 * Determines whether or not the given username is free to use. To register a username,
+	 * use writeIfUsernameFree() instead, since it could be taken right after this returns.
 	 * @param username
 	 * @return
 	 */
 	public boolean isUsernameFree(String username) throws BankDAOException;
+
+	/**
+	 * Adds a listener that is told about everything this DAO stores through write() or
+	 * writeIfUnchanged(), after it is stored. The funds methods (depositFunds() etc) aren't
+	 * reported, since they only change an account's funds and add records. Only writes made
+	 * through this DAO object are reported, not ones made by other processes.
+	 * @param listener
+	 */
+	public void addWriteListener(WriteListener listener);
+
+	/**
+	 * Releases anything the DAO is holding on to (background threads, connections, etc).
+	 * The DAO should not be used after this is called.
+	 */
+	public void close() throws BankDAOException;
 	
 }
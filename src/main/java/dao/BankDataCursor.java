@@ -0,0 +1,38 @@
+/**
+ * Walks through a set of BankData objects one at a time, without loading them all into memory
+ * first, so that exports and audits of a large data store run in constant memory.
+ *
+ * A cursor holds on to an open file or a database connection until it is closed, so it should
+ * always be used in a try-with-resources block:
+ * 	try (BankDataCursor<TransactionRecord> cursor = dao.openTransactionRecordCursor()) {
+ * 		while (cursor.hasNext()) { ... cursor.next() ... }
+ * 	}
+ *
+ * @author Andrew Curry
+ */
+package dao;
+
+import com.revature.bankDataObjects.BankData;
+
+public interface BankDataCursor<T extends BankData> extends AutoCloseable {
+
+	/**
+	 * @return true if next() has another object to return
+	 * @throws BankDAOException
+	 */
+	public boolean hasNext() throws BankDAOException;
+
+	/**
+	 * @return the next object
+	 * @throws BankDAOException
+	 * @throws java.util.NoSuchElementException if there are no more
+	 */
+	public T next() throws BankDAOException;
+
+	/**
+	 * Releases whatever the cursor is holding. Safe to call more than once.
+	 * @throws BankDAOException
+	 */
+	@Override
+	public void close() throws BankDAOException;
+}
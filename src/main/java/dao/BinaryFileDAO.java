@@ -0,0 +1,1174 @@
+/**
+ * A file-based DAO that stores data in a binary, fixed-width format instead of text lines.
+ *
+ * Accounts, profiles and transactions each get their own file of fixed-size slots, and the
+ * slot for a given ID is found at (ID * slot size), so reading one account is a single
+ * positioned read. Anything that doesn't fit in a slot (usernames, passwords, long owner
+ * lists, long timestamps) goes into an append-only overflow file, and the slot holds its offset.
+ *
+ * Given a base name like "bank", the files used are bank.prf, bank.acc, bank.trr and bank.ovf.
+ * Existing .bdf text files can be converted with convertTextFile().
+ *
+ * @author Andrew Curry
+ */
+package dao;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.revature.bankDataObjects.BankAccount;
+import com.revature.bankDataObjects.BankData;
+import com.revature.bankDataObjects.TransactionRecord;
+import com.revature.bankDataObjects.UserProfile;
+import com.revature.bankDataObjects.BankAccount.BankAccountStatus;
+import com.revature.bankDataObjects.BankAccount.BankAccountType;
+import com.revature.bankDataObjects.TransactionRecord.TransactionType;
+import com.revature.bankDataObjects.UserProfile.UserProfileType;
+
+public class BinaryFileDAO implements BankDAO {
+
+	// file extensions
+	private static final String PROFILE_FILE_EXTENSION = ".prf";
+	private static final String ACCOUNT_FILE_EXTENSION = ".acc";
+	private static final String TRANSACTION_FILE_EXTENSION = ".trr";
+	private static final String OVERFLOW_FILE_EXTENSION = ".ovf";
+
+	/*
+	 * slot layouts. a first byte of 0 always means the slot is empty.
+	 *
+	 * account (32 bytes):
+	 * 	[0] status	[1] type	[2-3] owner count	[4-7] funds
+	 * 	[8-15] overflow offset of the owner list (-1 if inline)	[16-31] up to 4 inline owners
+	 *
+	 * profile (40 bytes):
+	 * 	[0] type	[2-3] account count
+	 * 	[8-15] overflow offset of username + password
+	 * 	[16-23] overflow offset of the owned account list (-1 if inline)	[24-39] up to 4 inline accounts
+	 *
+	 * transaction (64 bytes):
+	 * 	[0] type	[1] time length (NULL_LENGTH if null, OVERFLOW_LENGTH if in overflow)
+	 * 	[4-7] acting user	[8-11] source account	[12-15] destination account	[16-19] money amount
+	 * 	[20-27] overflow offset of the time	[28-63] inline time
+	 */
+	private static final int ACCOUNT_SLOT_SIZE = 32;
+	private static final int PROFILE_SLOT_SIZE = 40;
+	private static final int TRANSACTION_SLOT_SIZE = 64;
+
+	private static final int INLINE_ID_LIST_SIZE = 4;
+	private static final int INLINE_TIME_SIZE = 36;
+	private static final byte NULL_LENGTH = -1;
+	private static final byte OVERFLOW_LENGTH = -2;
+	private static final long NO_OVERFLOW = -1;
+	private static final int SLOTS_PER_CHUNK = 1024; // for full scans
+	private static final int CONVERT_BATCH_SIZE = 1024; // see convertTextFile()
+
+	// the position of each value in these arrays is its code in the file. 0 is reserved for empty slots.
+	private static final BankAccountStatus[] ACCOUNT_STATUS_CODES
+			= {null, BankAccountStatus.OPEN, BankAccountStatus.CLOSED,
+			BankAccountStatus.PENDING, BankAccountStatus.NONE};
+	private static final BankAccountType[] ACCOUNT_TYPE_CODES
+			= {null, BankAccountType.SINGLE, BankAccountType.JOINT, BankAccountType.NONE};
+	private static final UserProfileType[] PROFILE_TYPE_CODES
+			= {null, UserProfileType.CUSTOMER, UserProfileType.EMPLOYEE,
+			UserProfileType.ADMIN, UserProfileType.NONE};
+	private static final TransactionType[] TRANSACTION_TYPE_CODES
+			= {null, TransactionType.ACCOUNT_REGISTERED, TransactionType.ACCOUNT_APPROVED,
+			TransactionType.ACCOUNT_CLOSED, TransactionType.FUNDS_TRANSFERRED,
+			TransactionType.FUNDS_DEPOSITED, TransactionType.FUNDS_WITHDRAWN,
+			TransactionType.USER_REGISTERED, TransactionType.ACCOUNT_OWNER_ADDED,
+			TransactionType.ACCOUNT_OWNER_REMOVED, TransactionType.NONE};
+
+	private static final String IO_ERROR_MESSAGE = "ALERT: Problem accessing binary data file: ";
+
+	// class / static variables
+	private static Logger log = Logger.getLogger(BinaryFileDAO.class);
+
+	// instance variables
+	private String baseFilename;
+	private FileChannel profileFile;
+	private FileChannel accountFile;
+	private FileChannel transactionFile;
+	private FileChannel overflowFile;
+
+	private Map<String, Integer> usernameIndex; // username -> user ID, built when opened
+
+	// new IDs are handed out in blocks, so most allocations don't need a scan
+	private IdAllocator profileIDs;
+	private IdAllocator accountIDs;
+	private IdAllocator transactionIDs;
+	private IdAllocator.AfterHighest profileIDSource; // told about stored IDs in store()
+	private IdAllocator.AfterHighest accountIDSource;
+	private IdAllocator.AfterHighest transactionIDSource;
+
+	// the slots have no room for a version, see writeIfUnchanged()
+	private final DataVersions accountVersions = new DataVersions(BankAccount.class);
+	private final DataVersions profileVersions = new DataVersions(UserProfile.class);
+	private final WriteListeners writeListeners = new WriteListeners();
+
+	// constructor
+
+	/**
+	 * Opens (or creates) the set of binary files with the given base name.
+	 * @param baseFilename
+	 * @throws BankDAOException
+	 */
+	public BinaryFileDAO(String baseFilename) throws BankDAOException {
+
+		this.baseFilename = baseFilename;
+
+		try {
+			profileFile = openChannel(baseFilename + PROFILE_FILE_EXTENSION);
+			accountFile = openChannel(baseFilename + ACCOUNT_FILE_EXTENSION);
+			transactionFile = openChannel(baseFilename + TRANSACTION_FILE_EXTENSION);
+			overflowFile = openChannel(baseFilename + OVERFLOW_FILE_EXTENSION);
+		}
+		catch (IOException e) {
+			throw new BankDAOException(IO_ERROR_MESSAGE + baseFilename);
+		}
+
+		usernameIndex = new HashMap<>();
+		for (UserProfile up : readAllUserProfiles()) {
+			usernameIndex.put(up.getUsername(), up.getId());
+		}
+
+		profileIDSource = IdAllocator.afterHighest(this::getHighestUserProfileID);
+		accountIDSource = IdAllocator.afterHighest(this::getHighestBankAccountID);
+		transactionIDSource = IdAllocator.afterHighest(this::getHighestTransactionRecordID);
+		profileIDs = new IdAllocator(profileIDSource);
+		accountIDs = new IdAllocator(accountIDSource);
+		transactionIDs = new IdAllocator(transactionIDSource);
+	}
+
+	/**
+	 * Copies everything in a .bdf text file into a new set of binary files.
+	 * Any binary files with the same base name are replaced.
+	 * @param textFilename
+	 * @param baseFilename
+	 * @return a BinaryFileDAO for the new files
+	 * @throws BankDAOException
+	 */
+	public static BinaryFileDAO convertTextFile(String textFilename, String baseFilename)
+			throws BankDAOException {
+
+		TextFileDAO source = new TextFileDAO(textFilename);
+		BinaryFileDAO target = new BinaryFileDAO(baseFilename);
+
+		try {
+			target.truncateAll();
+
+			// copied a batch at a time, so big files don't have to fit in memory
+			target.copyFrom(source.openUserProfileCursor());
+			target.copyFrom(source.openBankAccountCursor());
+			target.copyFrom(source.openTransactionRecordCursor());
+		}
+		finally {
+			source.close();
+		}
+
+		log.log(Level.INFO, "Converted " + textFilename + " into binary files " + baseFilename);
+		return target;
+	}
+
+	/**
+	 * Writes everything from the cursor, CONVERT_BATCH_SIZE objects per write, and closes it.
+	 * @param cursor
+	 * @throws BankDAOException
+	 */
+	private void copyFrom(BankDataCursor<? extends BankData> cursor) throws BankDAOException {
+
+		try (BankDataCursor<? extends BankData> c = cursor) {
+			List<BankData> batch = new ArrayList<>();
+
+			while (c.hasNext()) {
+				batch.add(c.next());
+				if (batch.size() == CONVERT_BATCH_SIZE) {
+					write(batch);
+					batch.clear();
+				}
+			}
+
+			write(batch);
+		}
+	}
+
+	// methods from BankDAO interface --------------------------------------------
+
+	@Override
+	public String getResourceName() {
+		return baseFilename;
+	}
+
+	/**
+	 * Fetches the bank account with the given ID number from the data storage.
+	 * If no such account exists, the resulting BankAccount object will have type NONE.
+	 * @param accID
+	 * @return BankAccount object
+	 */
+	@Override
+	public synchronized BankAccount readBankAccount(int accID) throws BankDAOException {
+
+		ByteBuffer slot = readSlot(accountFile, accID, ACCOUNT_SLOT_SIZE);
+		BankAccount ba = (slot == null) ? new BankAccount() : buildAccountFromSlot(slot);
+		ba.setId(accID);
+		ba.setVersion(accountVersions.get(accID));
+		return ba;
+	}
+
+	@Override
+	public synchronized List<BankAccount> readAllBankAccounts() throws BankDAOException {
+
+		List<BankAccount> accounts = new ArrayList<>();
+
+		scanSlots(accountFile, ACCOUNT_SLOT_SIZE, (id, slot) -> {
+			BankAccount ba = buildAccountFromSlot(slot);
+			ba.setId(id);
+			ba.setVersion(accountVersions.get(id));
+			accounts.add(ba);
+		});
+
+		return accounts;
+	}
+
+	@Override
+	public BankDataCursor<BankAccount> openBankAccountCursor() throws BankDAOException {
+
+		return new SlotCursor<>(accountFile, ACCOUNT_SLOT_SIZE, (id, slot) -> {
+			BankAccount ba = buildAccountFromSlot(slot);
+			ba.setId(id);
+			return ba;
+		});
+	}
+
+	@Override
+	public synchronized UserProfile readUserProfile(int userID) throws BankDAOException {
+
+		ByteBuffer slot = readSlot(profileFile, userID, PROFILE_SLOT_SIZE);
+		UserProfile up = (slot == null) ? new UserProfile() : buildUserProfileFromSlot(slot);
+		up.setId(userID);
+		up.setVersion(profileVersions.get(userID));
+		return up;
+	}
+
+	@Override
+	public synchronized UserProfile readUserProfile(String username) throws BankDAOException {
+
+		Integer userID = usernameIndex.get(username);
+
+		if (userID == null) {
+			return new UserProfile(); // type NONE
+		}
+
+		return readUserProfile(userID);
+	}
+
+	@Override
+	public synchronized List<UserProfile> readAllUserProfiles() throws BankDAOException {
+
+		List<UserProfile> profiles = new ArrayList<>();
+
+		scanSlots(profileFile, PROFILE_SLOT_SIZE, (id, slot) -> {
+			UserProfile up = buildUserProfileFromSlot(slot);
+			up.setId(id);
+			up.setVersion(profileVersions.get(id));
+			profiles.add(up);
+		});
+
+		return profiles;
+	}
+
+	@Override
+	public BankDataCursor<UserProfile> openUserProfileCursor() throws BankDAOException {
+
+		return new SlotCursor<>(profileFile, PROFILE_SLOT_SIZE, (id, slot) -> {
+			UserProfile up = buildUserProfileFromSlot(slot);
+			up.setId(id);
+			return up;
+		});
+	}
+
+	@Override
+	public synchronized TransactionRecord readTransactionRecord(int recID) throws BankDAOException {
+
+		ByteBuffer slot = readSlot(transactionFile, recID, TRANSACTION_SLOT_SIZE);
+		TransactionRecord tr = (slot == null) ? new TransactionRecord() : buildTransactionRecordFromSlot(slot);
+		tr.setId(recID);
+		return tr;
+	}
+
+	@Override
+	public synchronized List<TransactionRecord> readAllTransactionRecords() throws BankDAOException {
+
+		List<TransactionRecord> transactions = new ArrayList<>();
+
+		scanSlots(transactionFile, TRANSACTION_SLOT_SIZE, (id, slot) -> {
+			TransactionRecord tr = buildTransactionRecordFromSlot(slot);
+			tr.setId(id);
+			transactions.add(tr);
+		});
+
+		return transactions;
+	}
+
+	@Override
+	public BankDataCursor<TransactionRecord> openTransactionRecordCursor() throws BankDAOException {
+
+		return new SlotCursor<>(transactionFile, TRANSACTION_SLOT_SIZE, (id, slot) -> {
+			TransactionRecord tr = buildTransactionRecordFromSlot(slot);
+			tr.setId(id);
+			return tr;
+		});
+	}
+
+	@Override
+	public synchronized List<TransactionRecord> readTransactionRecordByActingUserId(int actingUserID)
+			throws BankDAOException {
+
+		List<TransactionRecord> matchingRecords = new ArrayList<>();
+
+		// the fixed layout lets us check the field before building anything
+		scanSlots(transactionFile, TRANSACTION_SLOT_SIZE, (id, slot) -> {
+			if (slot.getInt(4) == actingUserID) {
+				TransactionRecord tr = buildTransactionRecordFromSlot(slot);
+				tr.setId(id);
+				matchingRecords.add(tr);
+			}
+		});
+
+		return matchingRecords;
+	}
+
+	@Override
+	public synchronized List<TransactionRecord> readTransactionRecordByAccountId(int accID)
+			throws BankDAOException {
+
+		List<TransactionRecord> matchingRecords = new ArrayList<>();
+
+		scanSlots(transactionFile, TRANSACTION_SLOT_SIZE, (id, slot) -> {
+			if (slot.getInt(8) == accID || slot.getInt(12) == accID) {
+				TransactionRecord tr = buildTransactionRecordFromSlot(slot);
+				tr.setId(id);
+				matchingRecords.add(tr);
+			}
+		});
+
+		return matchingRecords;
+	}
+
+	@Override
+	public synchronized List<TransactionRecord> readTransactionRecordPageByActingUserId(int actingUserID,
+			int startID, int limit, PageDirection direction) throws BankDAOException {
+
+		return scanHistoryPage(startID, limit, direction, slot -> slot.getInt(4) == actingUserID);
+	}
+
+	@Override
+	public synchronized List<TransactionRecord> readTransactionRecordPageByAccountId(int accID,
+			int startID, int limit, PageDirection direction) throws BankDAOException {
+
+		return scanHistoryPage(startID, limit, direction, 
+				slot -> slot.getInt(8) == accID || slot.getInt(12) == accID);
+	}
+
+	@Override
+	public void write(BankData bd) throws BankDAOException {
+
+		List<BankData> toWrite = new ArrayList<>();
+		toWrite.add(bd);
+		write(toWrite);
+	}
+
+	/**
+	 * Writes each of the BankData objects in the given List to the data storage.
+	 * WILL overwrite if matching data is already present.
+	 * @param toWrite
+	 */
+	@Override
+	public synchronized void write(List<BankData> toWrite) throws BankDAOException {
+
+		store(toWrite);
+		writeListeners.written(toWrite);
+	}
+
+	/**
+	 * Every write holds the DAO's lock, so the versions can't change between the checks and
+	 * the write.
+	 */
+	@Override
+	public synchronized boolean writeIfUnchanged(BankAccount ba, List<BankData> alsoWrite) 
+			throws BankDAOException {
+
+		if (accountVersions.get(ba.getId()) != ba.getVersion()) {
+			return false;
+		}
+		for (BankData bd : alsoWrite) {
+			if (bd instanceof UserProfile 
+					&& profileVersions.get(bd.getId()) != ((UserProfile)bd).getVersion()) {
+				return false;
+			}
+		}
+
+		List<BankData> toWrite = new ArrayList<>(alsoWrite.size() + 1);
+		toWrite.add(ba);
+		toWrite.addAll(alsoWrite);
+
+		store(toWrite);
+		ba.setVersion(accountVersions.get(ba.getId()));
+		for (BankData bd : alsoWrite) {
+			if (bd instanceof UserProfile) {
+				((UserProfile)bd).setVersion(profileVersions.get(bd.getId()));
+			}
+		}
+		writeListeners.written(toWrite);
+		return true;
+	}
+
+	@Override
+	public synchronized boolean writeIfUsernameFree(UserProfile up) throws BankDAOException {
+
+		if (usernameIndex.containsKey(up.getUsername())) {
+			return false;
+		}
+
+		write(up);
+		return true;
+	}
+
+	@Override
+	public void addWriteListener(WriteListener listener) {
+		writeListeners.add(listener);
+	}
+
+	@Override
+	public boolean depositFunds(int accID, int amount, TransactionRecord record) throws BankDAOException {
+		return moveFunds(-1, accID, amount, record);
+	}
+
+	@Override
+	public boolean withdrawFunds(int accID, int amount, TransactionRecord record) throws BankDAOException {
+		return moveFunds(accID, -1, amount, record);
+	}
+
+	@Override
+	public boolean transferFunds(int sourceAccID, int destAccID, int amount, TransactionRecord record)
+			throws BankDAOException {
+		return moveFunds(sourceAccID, destAccID, amount, record);
+	}
+
+	@Override
+	public synchronized int getHighestUserProfileID() throws BankDAOException {
+		return highestSlotID(profileFile, PROFILE_SLOT_SIZE);
+	}
+
+	@Override
+	public synchronized int getHighestBankAccountID() throws BankDAOException {
+		return highestSlotID(accountFile, ACCOUNT_SLOT_SIZE);
+	}
+
+	@Override
+	public synchronized int getHighestTransactionRecordID() throws BankDAOException {
+		return highestSlotID(transactionFile, TRANSACTION_SLOT_SIZE);
+	}
+
+	@Override
+	public int allocateUserProfileID() throws BankDAOException {
+		return profileIDs.allocate();
+	}
+
+	@Override
+	public int allocateBankAccountID() throws BankDAOException {
+		return accountIDs.allocate();
+	}
+
+	@Override
+	public int allocateTransactionRecordID() throws BankDAOException {
+		return transactionIDs.allocate();
+	}
+
+	@Override
+	public synchronized boolean isUsernameFree(String username) throws BankDAOException {
+		return !usernameIndex.containsKey(username);
+	}
+
+	@Override
+	public synchronized void close() throws BankDAOException {
+
+		try {
+			profileFile.close();
+			accountFile.close();
+			transactionFile.close();
+			overflowFile.close();
+		}
+		catch (IOException e) {
+			throw new BankDAOException(IO_ERROR_MESSAGE + baseFilename);
+		}
+	}
+
+	// helper methods for funds -----------------------------------------------------
+
+	/**
+	 * Checks and changes the accounts while holding the DAO's lock, so no other write can
+	 * get in between. A record without an ID is given one first, outside the lock, since a
+	 * new block of IDs takes the lock too; it is given back if the money doesn't move.
+	 * @param sourceAccID : where the money comes from, or -1 for a deposit
+	 * @param destAccID : where the money goes, or -1 for a withdrawal
+	 * @param amount
+	 * @param record : may be null
+	 * @return false if an account isn't open or the source can't cover the amount
+	 * @throws BankDAOException
+	 */
+	private boolean moveFunds(int sourceAccID, int destAccID, int amount, TransactionRecord record)
+			throws BankDAOException {
+
+		boolean newID = record != null && record.getId() == 0;
+
+		if (newID) {
+			record.setId(transactionIDs.allocate());
+		}
+
+		if (checkAndMoveFunds(sourceAccID, destAccID, amount, record)) {
+			return true;
+		}
+
+		if (newID) {
+			transactionIDs.giveBack(record.getId());
+			record.setId(0);
+		}
+		return false;
+	}
+
+	/**
+	 * See moveFunds().
+	 */
+	private synchronized boolean checkAndMoveFunds(int sourceAccID, int destAccID, int amount, 
+			TransactionRecord record) throws BankDAOException {
+
+		BankAccount source = sourceAccID < 0 ? null : readBankAccount(sourceAccID);
+		BankAccount dest = destAccID < 0 ? null : readBankAccount(destAccID);
+
+		if ((source != null && (source.getStatus() != BankAccountStatus.OPEN || source.getFunds() < amount))
+				|| (dest != null && dest.getStatus() != BankAccountStatus.OPEN)) {
+			return false;
+		}
+
+		List<BankData> toWrite = new ArrayList<>();
+
+		if (sourceAccID != destAccID) { // moving money to the same account changes nothing
+			if (source != null) {
+				source.setFunds(source.getFunds() - amount);
+				toWrite.add(source);
+			}
+			if (dest != null) {
+				dest.setFunds(dest.getFunds() + amount);
+				toWrite.add(dest);
+			}
+		}
+
+		if (record != null) {
+			toWrite.add(record);
+		}
+
+		store(toWrite);
+		return true;
+	}
+
+	/**
+	 * Writes the objects to their slots, without telling the listeners (see write()).
+	 * @param toWrite
+	 * @throws BankDAOException
+	 */
+	private synchronized void store(List<BankData> toWrite) throws BankDAOException {
+
+		try {
+			for (BankData bd : toWrite) {
+
+				if (bd.getId() < 0) {
+					throw new BankDAOException("ALERT: Cannot store data with a negative ID: " + bd);
+				}
+
+				if (bd instanceof UserProfile) {
+					writeUserProfile((UserProfile)bd);
+					profileIDSource.stored(bd.getId());
+				}
+				else if (bd instanceof BankAccount) {
+					writeBankAccount((BankAccount)bd);
+					accountIDSource.stored(bd.getId());
+				}
+				else if (bd instanceof TransactionRecord) {
+					writeTransactionRecord((TransactionRecord)bd);
+					transactionIDSource.stored(bd.getId());
+				}
+				else {
+					throw new BankDAOException("BankData subclass not supported in write: " + bd.getClass());
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new BankDAOException(IO_ERROR_MESSAGE + baseFilename);
+		}
+		finally {
+			// even a write that failed part way may have changed some of them
+			accountVersions.changed(toWrite);
+			profileVersions.changed(toWrite);
+		}
+	}
+
+	// helper methods for slots -----------------------------------------------------
+
+	private static FileChannel openChannel(String filename) throws IOException {
+
+		return FileChannel.open(
+				Paths.get(filename),
+				StandardOpenOption.CREATE,
+				StandardOpenOption.READ,
+				StandardOpenOption.WRITE);
+	}
+
+	/**
+	 * Empties every file. Only used when converting.
+	 * @throws BankDAOException
+	 */
+	private synchronized void truncateAll() throws BankDAOException {
+
+		try {
+			profileFile.truncate(0);
+			accountFile.truncate(0);
+			transactionFile.truncate(0);
+			overflowFile.truncate(0);
+			usernameIndex.clear();
+		}
+		catch (IOException e) {
+			throw new BankDAOException(IO_ERROR_MESSAGE + baseFilename);
+		}
+	}
+
+	/**
+	 * Reads the slot for the given ID with a single positioned read.
+	 * @return the slot, or null if it is empty or past the end of the file
+	 * @throws BankDAOException
+	 */
+	private ByteBuffer readSlot(FileChannel file, int id, int slotSize) throws BankDAOException {
+
+		if (id < 0) {
+			return null;
+		}
+
+		ByteBuffer slot = ByteBuffer.allocate(slotSize);
+
+		try {
+			long position = (long)id * slotSize;
+			while (slot.hasRemaining()) {
+				if (file.read(slot, position + slot.position()) < 0) {
+					return null; // past the end of the file
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new BankDAOException(IO_ERROR_MESSAGE + baseFilename);
+		}
+
+		return (slot.get(0) == 0) ? null : slot;
+	}
+
+	/**
+	 * Reads through every non-empty slot in the file, in ID order, a chunk at a time.
+	 * @throws BankDAOException
+	 */
+	private void scanSlots(FileChannel file, int slotSize, SlotVisitor visitor) throws BankDAOException {
+
+		ByteBuffer chunk = ByteBuffer.allocate(slotSize * SLOTS_PER_CHUNK);
+		long position = 0;
+		long consumed;
+
+		while ((consumed = readChunk(file, slotSize, position, chunk, visitor)) > 0) {
+			position += consumed;
+		}
+	}
+
+	/**
+	 * Reads one chunk of slots, starting at the given position, and passes each non-empty
+	 * one to the visitor.
+	 * @param chunk : reused between calls, its size is how much is read at once
+	 * @return how many bytes were read, or 0 at the end of the file
+	 * @throws BankDAOException
+	 */
+	private long readChunk(FileChannel file, int slotSize, long position, ByteBuffer chunk, 
+			SlotVisitor visitor) throws BankDAOException {
+
+		try {
+			if (position + slotSize > file.size()) {
+				return 0;
+			}
+
+			chunk.clear();
+			while (chunk.hasRemaining() && file.read(chunk, position + chunk.position()) > 0) {
+				// keep reading until the chunk is full or the file runs out
+			}
+			chunk.flip();
+
+			int slotsRead = chunk.limit() / slotSize;
+			for (int i = 0; i < slotsRead; i++) {
+				if (chunk.get(i * slotSize) != 0) {
+					chunk.limit((i + 1) * slotSize).position(i * slotSize);
+					visitor.visit((int)(position / slotSize) + i, chunk.slice());
+					chunk.limit(slotsRead * slotSize);
+				}
+			}
+
+			return (long)slotsRead * slotSize;
+		}
+		catch (IOException e) {
+			throw new BankDAOException(IO_ERROR_MESSAGE + baseFilename);
+		}
+	}
+
+	/**
+	 * Reads transaction slots a chunk at a time, moving away from startID in the given 
+	 * direction, and stops as soon as the page is full. Since a slot's position is its ID,
+	 * the latest page of a long history only reads the end of the file.
+	 * @param matches : checked against the raw slot, before anything is built
+	 * @return the page, oldest first
+	 * @throws BankDAOException
+	 */
+	private List<TransactionRecord> scanHistoryPage(int startID, int limit, PageDirection direction,
+			SlotFilter matches) throws BankDAOException {
+
+		List<TransactionRecord> page = new ArrayList<>();
+		ByteBuffer chunk = ByteBuffer.allocate(TRANSACTION_SLOT_SIZE * SLOTS_PER_CHUNK);
+		long slotCount;
+
+		try {
+			slotCount = transactionFile.size() / TRANSACTION_SLOT_SIZE;
+		}
+		catch (IOException e) {
+			throw new BankDAOException(IO_ERROR_MESSAGE + baseFilename);
+		}
+
+		if (direction == PageDirection.NEWER) {
+			long position = (Math.max(startID, -1) + 1L) * TRANSACTION_SLOT_SIZE;
+			long consumed = 1;
+
+			while (page.size() < limit && consumed > 0) {
+				consumed = readChunk(transactionFile, TRANSACTION_SLOT_SIZE, position, chunk, (id, slot) -> {
+					if (page.size() < limit && matches.test(slot)) {
+						page.add(buildHistoryRecord(id, slot));
+					}
+				});
+				position += consumed;
+			}
+
+			return page;
+		}
+
+		// OLDER: the chunks are read back to front, and each chunk's matches are collected
+		// front to back, so the closest ones are at the end of each chunk's list
+		long end = Math.min(startID, slotCount); // exclusive
+
+		while (page.size() < limit && end > 0) {
+			long first = Math.max(0, end - SLOTS_PER_CHUNK);
+			long chunkEnd = end;
+			List<TransactionRecord> inChunk = new ArrayList<>();
+
+			readChunk(transactionFile, TRANSACTION_SLOT_SIZE, first * TRANSACTION_SLOT_SIZE, chunk, (id, slot) -> {
+				if (id < chunkEnd && matches.test(slot)) {
+					inChunk.add(buildHistoryRecord(id, slot));
+				}
+			});
+
+			for (int i = inChunk.size() - 1; i >= 0 && page.size() < limit; i--) {
+				page.add(inChunk.get(i));
+			}
+
+			end = first;
+		}
+
+		Collections.reverse(page);
+		return page;
+	}
+
+	private TransactionRecord buildHistoryRecord(int id, ByteBuffer slot) throws BankDAOException {
+
+		TransactionRecord tr = buildTransactionRecordFromSlot(slot);
+		tr.setId(id);
+		return tr;
+	}
+
+	/**
+	 * Writes a whole slot at the position for the given ID.
+	 * @throws IOException
+	 */
+	private static void writeSlot(FileChannel file, int id, ByteBuffer slot) throws IOException {
+
+		slot.position(0);
+		long position = (long)id * slot.capacity();
+		while (slot.hasRemaining()) {
+			file.write(slot, position + slot.position());
+		}
+	}
+
+	/**
+	 * @return the ID of the last non-empty slot in the file, or -1 if there are none
+	 * @throws BankDAOException
+	 */
+	private int highestSlotID(FileChannel file, int slotSize) throws BankDAOException {
+
+		try {
+			// slots past the highest ID are never written, so this is almost always the last one
+			for (long id = file.size() / slotSize - 1; id >= 0; id--) {
+				if (readSlot(file, (int)id, slotSize) != null) {
+					return (int)id;
+				}
+			}
+		}
+		catch (IOException e) {
+			throw new BankDAOException(IO_ERROR_MESSAGE + baseFilename);
+		}
+
+		return -1;
+	}
+
+	// helper methods for the overflow file -----------------------------------------
+
+	/**
+	 * Appends a record to the overflow file.
+	 * Records are stored as [int length][data]; old records are never reused.
+	 * @param data : written from position 0 to its limit
+	 * @return the offset of the new record
+	 * @throws IOException
+	 */
+	private long writeOverflow(ByteBuffer data) throws IOException {
+
+		data.flip();
+		long offset = overflowFile.size();
+		ByteBuffer record = ByteBuffer.allocate(4 + data.remaining());
+		record.putInt(data.remaining()).put(data).flip();
+
+		while (record.hasRemaining()) {
+			overflowFile.write(record, offset + record.position());
+		}
+
+		return offset;
+	}
+
+	/**
+	 * @param offset
+	 * @return the data of the overflow record at the given offset
+	 * @throws BankDAOException
+	 */
+	private ByteBuffer readOverflow(long offset) throws BankDAOException {
+
+		try {
+			ByteBuffer length = ByteBuffer.allocate(4);
+			while (length.hasRemaining() && overflowFile.read(length, offset + length.position()) > 0) {
+				// keep reading
+			}
+
+			ByteBuffer data = ByteBuffer.allocate(length.getInt(0));
+			while (data.hasRemaining() && overflowFile.read(data, offset + 4 + data.position()) > 0) {
+				// keep reading
+			}
+
+			data.flip();
+			return data;
+		}
+		catch (IOException e) {
+			throw new BankDAOException(IO_ERROR_MESSAGE + baseFilename);
+		}
+	}
+
+	/**
+	 * Stores a list of IDs in the slot at the given position, or in the overflow file if
+	 * it has too many entries. Takes up 2 bytes for the count, plus the overflow offset and
+	 * the inline IDs at the given positions.
+	 * @throws IOException
+	 */
+	private void putIDList(ByteBuffer slot, List<Integer> ids, int countPosition,
+			int overflowPosition, int inlinePosition) throws IOException {
+
+		slot.putShort(countPosition, (short)Math.min(ids.size(), Short.MAX_VALUE));
+
+		if (ids.size() <= INLINE_ID_LIST_SIZE) {
+			slot.putLong(overflowPosition, NO_OVERFLOW);
+			for (int i = 0; i < ids.size(); i++) {
+				slot.putInt(inlinePosition + 4 * i, ids.get(i));
+			}
+		}
+		else {
+			ByteBuffer data = ByteBuffer.allocate(4 + 4 * ids.size());
+			data.putInt(ids.size());
+			for (int id : ids) {
+				data.putInt(id);
+			}
+			slot.putLong(overflowPosition, writeOverflow(data));
+		}
+	}
+
+	/**
+	 * Reverses putIDList.
+	 * @throws BankDAOException
+	 */
+	private List<Integer> getIDList(ByteBuffer slot, int countPosition,
+			int overflowPosition, int inlinePosition) throws BankDAOException {
+
+		List<Integer> ids = new ArrayList<>();
+		long overflowOffset = slot.getLong(overflowPosition);
+
+		if (overflowOffset == NO_OVERFLOW) {
+			int count = slot.getShort(countPosition);
+			for (int i = 0; i < count; i++) {
+				ids.add(slot.getInt(inlinePosition + 4 * i));
+			}
+		}
+		else {
+			ByteBuffer data = readOverflow(overflowOffset);
+			int count = data.getInt();
+			for (int i = 0; i < count; i++) {
+				ids.add(data.getInt());
+			}
+		}
+
+		return ids;
+	}
+
+	/**
+	 * Adds a string to the buffer as [int length][UTF-8 bytes], with a length of -1 for null.
+	 */
+	private static void putString(ByteBuffer data, byte[] bytes) {
+
+		if (bytes == null) {
+			data.putInt(-1);
+		}
+		else {
+			data.putInt(bytes.length).put(bytes);
+		}
+	}
+
+	/**
+	 * Reverses putString.
+	 */
+	private static String getString(ByteBuffer data) {
+
+		int length = data.getInt();
+
+		if (length < 0) {
+			return null;
+		}
+
+		byte[] bytes = new byte[length];
+		data.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static byte[] toBytes(String s) {
+		return (s == null) ? null : s.getBytes(StandardCharsets.UTF_8);
+	}
+
+	// conversions between slots and BankData objects ------------------------------
+
+	private BankAccount buildAccountFromSlot(ByteBuffer slot) throws BankDAOException {
+
+		BankAccount ba = new BankAccount();
+		ba.setStatus(ACCOUNT_STATUS_CODES[slot.get(0)]);
+		ba.setType(ACCOUNT_TYPE_CODES[slot.get(1)]);
+		ba.setFunds(slot.getInt(4));
+		ba.setOwners(getIDList(slot, 2, 8, 16));
+		return ba;
+	}
+
+	private void writeBankAccount(BankAccount ba) throws IOException {
+
+		ByteBuffer slot = ByteBuffer.allocate(ACCOUNT_SLOT_SIZE);
+		// an account without a status is still stored, as NONE
+		slot.put(0, codeOf(ACCOUNT_STATUS_CODES,
+				ba.getStatus() == null ? BankAccountStatus.NONE : ba.getStatus()));
+		slot.put(1, codeOf(ACCOUNT_TYPE_CODES, ba.getType()));
+		slot.putInt(4, ba.getFunds());
+		putIDList(slot, ba.getOwners(), 2, 8, 16);
+		writeSlot(accountFile, ba.getId(), slot);
+	}
+
+	private UserProfile buildUserProfileFromSlot(ByteBuffer slot) throws BankDAOException {
+
+		UserProfile up = new UserProfile();
+		up.setType(PROFILE_TYPE_CODES[slot.get(0)]);
+
+		ByteBuffer strings = readOverflow(slot.getLong(8));
+		up.setUsername(getString(strings));
+		up.setPassword(getString(strings));
+
+		up.setOwnedAccounts(getIDList(slot, 2, 16, 24));
+		return up;
+	}
+
+	private void writeUserProfile(UserProfile up) throws IOException, BankDAOException {
+
+		// if the username changed, the old one is free again
+		ByteBuffer oldSlot = readSlot(profileFile, up.getId(), PROFILE_SLOT_SIZE);
+		if (oldSlot != null) {
+			usernameIndex.remove(buildUserProfileFromSlot(oldSlot).getUsername());
+		}
+
+		byte[] username = toBytes(up.getUsername());
+		byte[] password = toBytes(up.getPassword());
+		ByteBuffer strings = ByteBuffer.allocate(8
+				+ (username == null ? 0 : username.length)
+				+ (password == null ? 0 : password.length));
+		putString(strings, username);
+		putString(strings, password);
+
+		ByteBuffer slot = ByteBuffer.allocate(PROFILE_SLOT_SIZE);
+		slot.put(0, codeOf(PROFILE_TYPE_CODES, up.getType()));
+		slot.putLong(8, writeOverflow(strings));
+		putIDList(slot, up.getOwnedAccounts(), 2, 16, 24);
+		writeSlot(profileFile, up.getId(), slot);
+
+		usernameIndex.put(up.getUsername(), up.getId());
+	}
+
+	private TransactionRecord buildTransactionRecordFromSlot(ByteBuffer slot) throws BankDAOException {
+
+		TransactionRecord tr = new TransactionRecord();
+		tr.setType(TRANSACTION_TYPE_CODES[slot.get(0)]);
+		tr.setActingUser(slot.getInt(4));
+		tr.setSourceAccount(slot.getInt(8));
+		tr.setDestinationAccount(slot.getInt(12));
+		tr.setMoneyAmount(slot.getInt(16));
+
+		byte timeLength = slot.get(1);
+
+		if (timeLength == OVERFLOW_LENGTH) {
+			tr.setTime(getString(readOverflow(slot.getLong(20))));
+		}
+		else if (timeLength != NULL_LENGTH) {
+			byte[] time = new byte[timeLength];
+			slot.position(28);
+			slot.get(time);
+			slot.position(0);
+			tr.setTime(new String(time, StandardCharsets.UTF_8));
+		}
+
+		return tr;
+	}
+
+	private void writeTransactionRecord(TransactionRecord tr) throws IOException {
+
+		ByteBuffer slot = ByteBuffer.allocate(TRANSACTION_SLOT_SIZE);
+		slot.put(0, codeOf(TRANSACTION_TYPE_CODES, tr.getType()));
+		slot.putInt(4, tr.getActingUser());
+		slot.putInt(8, tr.getSourceAccount());
+		slot.putInt(12, tr.getDestinationAccount());
+		slot.putInt(16, tr.getMoneyAmount());
+
+		byte[] time = toBytes(tr.getTime());
+
+		if (time == null) {
+			slot.put(1, NULL_LENGTH);
+		}
+		else if (time.length <= INLINE_TIME_SIZE) {
+			slot.put(1, (byte)time.length);
+			slot.position(28);
+			slot.put(time);
+		}
+		else {
+			ByteBuffer data = ByteBuffer.allocate(4 + time.length);
+			putString(data, time);
+			slot.put(1, OVERFLOW_LENGTH);
+			slot.putLong(20, writeOverflow(data));
+		}
+
+		writeSlot(transactionFile, tr.getId(), slot);
+	}
+
+	/**
+	 * @return the position of the value in the given code array
+	 */
+	private static <T> byte codeOf(T[] codes, T value) {
+
+		for (byte i = 1; i < codes.length; i++) {
+			if (codes[i] == value) {
+				return i;
+			}
+		}
+
+		return (byte)(codes.length - 1); // the NONE value is always last
+	}
+
+	/**
+	 * Called for each non-empty slot by scanSlots.
+	 */
+	private interface SlotVisitor {
+		void visit(int id, ByteBuffer slot) throws BankDAOException;
+	}
+
+	/**
+	 * Checks a raw slot, for scanHistoryPage.
+	 */
+	private interface SlotFilter {
+		boolean test(ByteBuffer slot);
+	}
+
+	/**
+	 * Turns a non-empty slot into an object, for SlotCursor.
+	 */
+	private interface SlotBuilder<T> {
+		T build(int id, ByteBuffer slot) throws BankDAOException;
+	}
+
+	/**
+	 * Walks a file one chunk of slots at a time, taking the DAO's lock for each chunk rather
+	 * than for the whole walk, so other reads and writes can go on in between. Only one chunk's
+	 * worth of objects is held at once.
+	 */
+	private class SlotCursor<T extends BankData> extends AbstractBankDataCursor<T> {
+
+		private final FileChannel file;
+		private final int slotSize;
+		private final SlotBuilder<T> builder;
+		private final ByteBuffer chunk;
+		private final ArrayDeque<T> built; // from the last chunk, not yet handed out
+		private long position; // where the next chunk starts
+		private boolean done;
+
+		private SlotCursor(FileChannel file, int slotSize, SlotBuilder<T> builder) {
+			this.file = file;
+			this.slotSize = slotSize;
+			this.builder = builder;
+			this.chunk = ByteBuffer.allocate(slotSize * SLOTS_PER_CHUNK);
+			this.built = new ArrayDeque<>();
+			this.position = 0;
+			this.done = false;
+		}
+
+		@Override
+		protected T fetch() throws BankDAOException {
+
+			while (built.isEmpty() && !done) {
+				synchronized (BinaryFileDAO.this) {
+					long consumed = readChunk(file, slotSize, position, chunk, 
+							(id, slot) -> built.add(builder.build(id, slot)));
+					position += consumed;
+					done = consumed == 0;
+				}
+			}
+
+			return built.poll();
+		}
+
+		@Override
+		protected void release() {
+			built.clear(); // the file belongs to the DAO
+		}
+	}
+}
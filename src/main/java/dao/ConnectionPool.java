@@ -0,0 +1,621 @@
+/**
+ * A small, bounded pool of JDBC connections, so that each DAO method doesn't pay for a fresh
+ * TCP connection and login. Callers borrow a connection and close() it as usual (eg with
+ * try-with-resources); closing hands it back to the pool instead of disconnecting.
+ *
+ * - at most maxSize connections exist at once; borrowers past that wait, up to a timeout
+ * - connections that have sat idle for a while are checked with isValid() before being handed out
+ * - idle connections beyond minSize are closed after the idle timeout
+ * - a connection held for longer than the leak threshold is logged, with where it was borrowed;
+ *   off unless setLeakThreshold() is called, since it records the stack of every borrow
+ * - a connection handed back mid-transaction is rolled back, and auto-commit is turned back on
+ *
+ * The idle eviction and leak checks are done by a background thread every few seconds.
+ *
+ * @author Andrew Curry
+ */
+package dao;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+public class ConnectionPool {
+
+	/**
+	 * Opens a new physical connection, eg with DriverManager.
+	 */
+	public interface ConnectionFactory {
+		Connection create() throws SQLException;
+	}
+
+	// constants
+	public static final int DEFAULT_MIN_SIZE = 1;
+	public static final int DEFAULT_MAX_SIZE = 8;
+	public static final long DEFAULT_BORROW_TIMEOUT_MILLIS = 5000;
+	public static final long DEFAULT_IDLE_TIMEOUT_MILLIS = 60000;
+	public static final long DEFAULT_LEAK_THRESHOLD_MILLIS = 0; // off, see setLeakThreshold()
+
+	private static final long MAINTENANCE_INTERVAL_MILLIS = 5000;
+	private static final long VALIDATION_BYPASS_MILLIS = 500; // recently used connections are trusted
+	private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+
+	// class/static variables
+	private static Logger log = Logger.getLogger(ConnectionPool.class);
+
+	// instance variables
+	private ConnectionFactory factory;
+	private int minSize;
+	private int maxSize;
+	private long borrowTimeout;
+	private long idleTimeout;
+	private long leakThreshold; // 0 turns leak detection off
+	private ScheduledExecutorService maintainer;
+
+	// everything below is guarded by this
+	private Deque<PooledConnection> idle; // most recently returned first
+	private Set<PooledConnection> borrowed;
+	private int total; // connections that exist or are being opened
+	private int waiting; // threads waiting for a connection
+	private boolean closed;
+
+	// statistics, also guarded by this
+	private long createdCount;
+	private long destroyedCount;
+	private long borrowCount;
+	private long waitCount;
+	private long timeoutCount;
+	private long validationFailureCount;
+	private long evictionCount;
+	private long leakCount;
+
+	// constructor
+	public ConnectionPool(ConnectionFactory factory, int minSize, int maxSize) {
+		this.factory = factory;
+		this.minSize = minSize;
+		this.maxSize = maxSize;
+		this.borrowTimeout = DEFAULT_BORROW_TIMEOUT_MILLIS;
+		this.idleTimeout = DEFAULT_IDLE_TIMEOUT_MILLIS;
+		this.leakThreshold = DEFAULT_LEAK_THRESHOLD_MILLIS;
+		this.idle = new ArrayDeque<>();
+		this.borrowed = new HashSet<>();
+		this.total = 0;
+		this.waiting = 0;
+		this.closed = false;
+
+		maintainer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ConnectionPool-maintenance");
+			t.setDaemon(true);
+			return t;
+		});
+		maintainer.scheduleWithFixedDelay(this::backgroundMaintain,
+				MAINTENANCE_INTERVAL_MILLIS, MAINTENANCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+	}
+
+	// methods
+
+	/**
+	 * Hands out an idle connection, or opens a new one if there are fewer than maxSize.
+	 * Otherwise waits for one to be returned.
+	 * @return a connection; close() it to give it back
+	 * @throws SQLException if a new connection couldn't be opened, or none came free in time
+	 */
+	public Connection borrow() throws SQLException {
+
+		long deadline = System.currentTimeMillis() + borrowTimeout;
+
+		while (true) {
+			PooledConnection pc;
+
+			synchronized (this) {
+				pc = takeIdleOrReserve(deadline);
+			}
+
+			if (pc == null) {
+				pc = open(); // a slot was reserved for us
+			}
+			else if (!isUsable(pc)) {
+				synchronized (this) {
+					validationFailureCount++;
+				}
+				destroy(pc);
+				continue;
+			}
+
+			synchronized (this) {
+				if (closed) {
+					// the pool was shut down while we were opening or checking it
+					total--;
+					destroyedCount++;
+					closeQuietly(pc.connection);
+					throw new SQLException("Connection pool is closed");
+				}
+
+				pc.borrowedAt = System.currentTimeMillis();
+				pc.borrowedFrom = leakThreshold > 0 ? new Throwable("connection borrowed here") : null;
+				pc.leakReported = false;
+				borrowed.add(pc);
+				borrowCount++;
+			}
+
+			return pc.newHandle();
+		}
+	}
+
+	/**
+	 * Closes idle connections that have timed out (keeping at least minSize), opens
+	 * connections to get back up to minSize, and logs any connection that has been
+	 * borrowed for longer than the leak threshold.
+	 * Normally run by the background thread; public so that it can be run on demand in tests.
+	 */
+	public void maintain() {
+
+		List<PooledConnection> toClose = new ArrayList<>();
+		int toOpen;
+		long now = System.currentTimeMillis();
+
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+
+			// the oldest idle connections are at the back
+			Iterator<PooledConnection> it = idle.descendingIterator();
+			while (it.hasNext() && total - toClose.size() > minSize) {
+				PooledConnection pc = it.next();
+				if (now - pc.lastUsed < idleTimeout) {
+					break;
+				}
+				it.remove();
+				toClose.add(pc);
+			}
+
+			total -= toClose.size();
+			destroyedCount += toClose.size();
+			evictionCount += toClose.size();
+
+			if (leakThreshold > 0) {
+				for (PooledConnection pc : borrowed) {
+					if (!pc.leakReported && now - pc.borrowedAt > leakThreshold) {
+						pc.leakReported = true;
+						leakCount++;
+						log.log(Level.WARN, "Connection has been borrowed for " + (now - pc.borrowedAt)
+								+ " ms without being closed, possible leak", pc.borrowedFrom);
+					}
+				}
+			}
+
+			toOpen = Math.max(0, minSize - total);
+			total += toOpen;
+		}
+
+		for (PooledConnection pc : toClose) {
+			closeQuietly(pc.connection);
+		}
+
+		for (int i = 0; i < toOpen; i++) {
+			try {
+				PooledConnection pc = open();
+				synchronized (this) {
+					if (closed) {
+						total--;
+						destroyedCount++;
+						closeQuietly(pc.connection);
+					}
+					else {
+						idle.addFirst(pc);
+						notifyAll();
+					}
+				}
+			}
+			catch (SQLException e) {
+				// open() already gave the slot back; the database may just be down
+				log.log(Level.WARN, "Unable to open connection to refill pool: " + e.getMessage());
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Closes every idle connection and stops handing out new ones. Borrowed connections
+	 * are closed when they are given back.
+	 */
+	public void close() {
+
+		List<PooledConnection> toClose;
+
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+
+			closed = true;
+			maintainer.shutdownNow();
+			toClose = new ArrayList<>(idle);
+			idle.clear();
+			total -= toClose.size();
+			destroyedCount += toClose.size();
+			notifyAll();
+		}
+
+		for (PooledConnection pc : toClose) {
+			closeQuietly(pc.connection);
+		}
+	}
+
+	/**
+	 * @return a snapshot of the pool's current size and lifetime counters
+	 */
+	public synchronized Statistics getStatistics() {
+		return new Statistics(total, idle.size(), borrowed.size(), waiting, createdCount, destroyedCount,
+				borrowCount, waitCount, timeoutCount, validationFailureCount, evictionCount, leakCount);
+	}
+
+	/**
+	 * @param millis : how long borrow() waits for a connection to come free
+	 */
+	public synchronized void setBorrowTimeout(long millis) {
+		this.borrowTimeout = millis;
+	}
+
+	/**
+	 * @param millis : how long a connection beyond minSize may sit idle before it is closed
+	 */
+	public synchronized void setIdleTimeout(long millis) {
+		this.idleTimeout = millis;
+	}
+
+	/**
+	 * Leak detection is for debugging: while it is on, every borrow records its stack trace,
+	 * so that a leak report can say where the connection was borrowed.
+	 * @param millis : how long a connection may be borrowed before it is reported as a leak,
+	 * 			or 0 to turn leak detection off (the default)
+	 */
+	public synchronized void setLeakThreshold(long millis) {
+		this.leakThreshold = millis;
+	}
+
+	// helper methods
+
+	/**
+	 * Takes the most recently used idle connection, or reserves a slot for a new one,
+	 * or waits until one of those is possible. Must hold the lock.
+	 * @param deadline
+	 * @return an idle connection, or null if the caller should open a new one
+	 * @throws SQLException
+	 */
+	private PooledConnection takeIdleOrReserve(long deadline) throws SQLException {
+
+		boolean counted = false;
+
+		while (true) {
+			if (closed) {
+				throw new SQLException("Connection pool is closed");
+			}
+
+			PooledConnection pc = idle.pollFirst();
+			if (pc != null) {
+				return pc;
+			}
+
+			if (total < maxSize) {
+				total++;
+				return null;
+			}
+
+			long remaining = deadline - System.currentTimeMillis();
+			if (remaining <= 0) {
+				timeoutCount++;
+				throw new SQLException("Timed out waiting for a database connection, all " + maxSize + " in use");
+			}
+
+			if (!counted) {
+				waitCount++;
+				counted = true;
+			}
+
+			waiting++;
+			try {
+				wait(remaining);
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new SQLException("Interrupted while waiting for a database connection");
+			}
+			finally {
+				waiting--;
+			}
+		}
+	}
+
+	/**
+	 * Opens a new connection into a slot that has already been counted in total.
+	 * Gives the slot back if that fails.
+	 * @return
+	 * @throws SQLException
+	 */
+	private PooledConnection open() throws SQLException {
+
+		try {
+			PooledConnection pc = new PooledConnection(factory.create());
+			synchronized (this) {
+				createdCount++;
+			}
+			return pc;
+		}
+		catch (SQLException | RuntimeException e) {
+			synchronized (this) {
+				total--;
+				notifyAll();
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Checks an idle connection before it is handed out. Connections used very recently
+	 * are assumed to still be fine, which saves a round trip on busy pools.
+	 * @param pc
+	 * @return
+	 */
+	private boolean isUsable(PooledConnection pc) {
+
+		try {
+			if (pc.connection.isClosed()) {
+				return false;
+			}
+
+			if (System.currentTimeMillis() - pc.lastUsed < VALIDATION_BYPASS_MILLIS) {
+				return true;
+			}
+
+			return pc.connection.isValid(VALIDATION_TIMEOUT_SECONDS);
+		}
+		catch (SQLException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Called when a borrower closes its handle.
+	 * @param pc
+	 */
+	private void giveBack(PooledConnection pc) {
+
+		boolean healthy = resetState(pc.connection);
+		boolean keep;
+
+		synchronized (this) {
+			if (!borrowed.remove(pc)) {
+				return;
+			}
+
+			keep = healthy && !closed;
+
+			if (keep) {
+				pc.lastUsed = System.currentTimeMillis();
+				idle.addFirst(pc);
+			}
+			else {
+				total--;
+				destroyedCount++;
+			}
+
+			notifyAll();
+		}
+
+		if (!keep) {
+			closeQuietly(pc.connection);
+		}
+	}
+
+	/**
+	 * Undoes anything a borrower left behind that would affect the next borrower.
+	 * @param conn
+	 * @return false if the connection seems to be broken
+	 */
+	private static boolean resetState(Connection conn) {
+
+		try {
+			if (conn.isClosed()) {
+				return false;
+			}
+
+			if (!conn.getAutoCommit()) {
+				conn.rollback();
+				conn.setAutoCommit(true);
+			}
+
+			return true;
+		}
+		catch (SQLException e) {
+			log.log(Level.WARN, "Discarding connection that could not be reset: " + e.getMessage());
+			return false;
+		}
+	}
+
+	/**
+	 * Throws away a connection that was taken from the idle list.
+	 * @param pc
+	 */
+	private void destroy(PooledConnection pc) {
+
+		synchronized (this) {
+			total--;
+			destroyedCount++;
+			notifyAll();
+		}
+
+		closeQuietly(pc.connection);
+	}
+
+	private static void closeQuietly(Connection conn) {
+
+		try {
+			conn.close();
+		}
+		catch (SQLException e) {
+			log.log(Level.DEBUG, "Problem closing pooled connection: " + e.getMessage());
+		}
+	}
+
+	private void backgroundMaintain() {
+
+		try {
+			maintain();
+		}
+		catch (RuntimeException e) {
+			log.log(Level.WARN, "Connection pool maintenance failed: " + e.getMessage());
+		}
+	}
+
+	// nested classes
+
+	/**
+	 * A physical connection, and what the pool knows about it.
+	 */
+	private class PooledConnection {
+
+		private final Connection connection;
+		private long lastUsed;
+		private long borrowedAt;
+		private Throwable borrowedFrom; // only recorded for leak reports
+		private boolean leakReported;
+
+		private PooledConnection(Connection connection) {
+			this.connection = connection;
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		/**
+		 * @return a new Connection to give the borrower. Closing it returns the connection
+		 * 			to the pool, and after that the handle can't be used again.
+		 */
+		private Connection newHandle() {
+
+			InvocationHandler handler = new InvocationHandler() {
+
+				private boolean handleClosed = false;
+
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+
+					switch (method.getName()) {
+						case "close":
+							if (!handleClosed) {
+								handleClosed = true;
+								giveBack(PooledConnection.this);
+							}
+							return null;
+						case "isClosed":
+							return handleClosed || connection.isClosed();
+						case "equals":
+							return proxy == args[0];
+						case "hashCode":
+							return System.identityHashCode(proxy);
+						case "toString":
+							return "pooled " + connection;
+					}
+
+					if (handleClosed) {
+						throw new SQLException("Connection has already been returned to the pool");
+					}
+
+					try {
+						return method.invoke(connection, args);
+					}
+					catch (InvocationTargetException e) {
+						throw e.getCause();
+					}
+				}
+			};
+
+			return (Connection)Proxy.newProxyInstance(
+					Connection.class.getClassLoader(), new Class<?>[] {Connection.class}, handler);
+		}
+	}
+
+	/**
+	 * A snapshot of the pool's state, see getStatistics().
+	 */
+	public static class Statistics {
+
+		private final int total;
+		private final int idle;
+		private final int active;
+		private final int waiting;
+		private final long created;
+		private final long destroyed;
+		private final long borrows;
+		private final long waits;
+		private final long timeouts;
+		private final long validationFailures;
+		private final long evictions;
+		private final long leaks;
+
+		private Statistics(int total, int idle, int active, int waiting, long created, long destroyed,
+				long borrows, long waits, long timeouts, long validationFailures, long evictions, long leaks) {
+			this.total = total;
+			this.idle = idle;
+			this.active = active;
+			this.waiting = waiting;
+			this.created = created;
+			this.destroyed = destroyed;
+			this.borrows = borrows;
+			this.waits = waits;
+			this.timeouts = timeouts;
+			this.validationFailures = validationFailures;
+			this.evictions = evictions;
+			this.leaks = leaks;
+		}
+
+		/** @return connections that are open, or being opened */
+		public int getTotal() { return total; }
+		/** @return connections waiting in the pool */
+		public int getIdle() { return idle; }
+		/** @return connections currently borrowed */
+		public int getActive() { return active; }
+		/** @return threads currently waiting for a connection */
+		public int getWaiting() { return waiting; }
+		/** @return physical connections opened so far */
+		public long getCreated() { return created; }
+		/** @return physical connections closed so far */
+		public long getDestroyed() { return destroyed; }
+		/** @return successful calls to borrow() */
+		public long getBorrows() { return borrows; }
+		/** @return calls to borrow() that had to wait */
+		public long getWaits() { return waits; }
+		/** @return calls to borrow() that gave up waiting */
+		public long getTimeouts() { return timeouts; }
+		/** @return idle connections found to be broken when borrowed */
+		public long getValidationFailures() { return validationFailures; }
+		/** @return idle connections closed for being idle too long */
+		public long getEvictions() { return evictions; }
+		/** @return borrowed connections reported as possible leaks */
+		public long getLeaks() { return leaks; }
+
+		@Override
+		public String toString() {
+			return "total=" + total + " idle=" + idle + " active=" + active + " waiting=" + waiting
+					+ " created=" + created + " destroyed=" + destroyed + " borrows=" + borrows
+					+ " waits=" + waits + " timeouts=" + timeouts + " validationFailures=" + validationFailures
+					+ " evictions=" + evictions + " leaks=" + leaks;
+		}
+	}
+}
@@ -0,0 +1,90 @@
+/**
+ * Keeps the version of each bank account or user profile for the file DAOs (see 
+ * BankDAO.writeIfUnchanged()). Their file formats have no room for a version, and they are
+ * the only writer of their files, so the versions are kept in memory: everything starts at
+ * the same base version when the DAO is opened, and moves on each time the DAO writes it.
+ * Each DAO keeps one of these for accounts and one for profiles.
+ *
+ * If the files are changed some other way (see TextFileDAO.revalidate()), changeAll() moves
+ * everything on at once, so that nothing read before the change can be written over it.
+ *
+ * @author Andrew Curry
+ */
+package dao;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.revature.bankDataObjects.BankData;
+
+class DataVersions {
+
+	// instance variables
+	private final Class<? extends BankData> kind; // what is versioned; anything else is skipped
+	
+	// guarded by this
+	private Map<Integer, Integer> versions; // only IDs that have been written
+	private int base; // the version of every ID not in the map
+
+	// constructor
+	DataVersions(Class<? extends BankData> kind) {
+
+		this.kind = kind;
+		versions = new HashMap<>();
+		base = 0;
+	}
+
+	// methods
+
+	/**
+	 * When the data might be being written at the same time, call this before reading the
+	 * rest of it, so the worst case is an old version with new data, which only makes a
+	 * writeIfUnchanged() fail and retry.
+	 * @param id
+	 * @return the current version of the account or profile
+	 */
+	synchronized int get(int id) {
+		return versions.getOrDefault(id, base);
+	}
+
+	/**
+	 * For reads that don't know the IDs they will find until they have found them (eg by
+	 * username); take the copy before reading, and get the versions from it.
+	 * @return a copy of the versions as they are now
+	 */
+	synchronized DataVersions copy() {
+
+		DataVersions copy = new DataVersions(kind);
+		copy.versions.putAll(versions);
+		copy.base = base;
+		return copy;
+	}
+
+	/**
+	 * Moves on the version of everything of this kind in the list. Should be called once it
+	 * is written (with the DAO's lock still held).
+	 * @param written : may hold other BankData too, which is skipped
+	 */
+	synchronized void changed(List<BankData> written) {
+
+		for (BankData bd : written) {
+			if (kind.isInstance(bd)) {
+				versions.put(bd.getId(), get(bd.getId()) + 1);
+			}
+		}
+	}
+
+	/**
+	 * Moves on the version of everything, including what hasn't been written.
+	 */
+	synchronized void changeAll() {
+
+		for (int version : versions.values()) {
+			base = Math.max(base, version);
+		}
+
+		base++;
+		versions.clear();
+	}
+}
@@ -1,6 +1,7 @@
 /**
  * A utility class for managing Connection objects as well as resetting the database to a starting
- * state in case I break it.
+ * state in case I break it. Connections come from a shared ConnectionPool, so closing one
+ * returns it to the pool rather than disconnecting.
  * 
  * @author Andrew Curry
  */
@@ -17,12 +18,25 @@ import java.io.IOException;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 
 public class DatabaseUtil {
 
 	// constants
 	private final static String CONFIG_FILE_ADDRESS = "config\\DatabaseConfig.txt";
+	private final static String DUPLICATE_TABLE_STATE = "42P07"; // also used for sequences
+	private final static String ISO_TIME_PATTERN = "^[0-9]{4}-[0-9]{2}-[0-9]{2}T";
+	
+	/**
+	 * Version of the tables made by resetDatabase(). Versions before 2 had no 
+	 * schema_version table. See migrateDatabase().
+	 */
+	public final static int SCHEMA_VERSION = 4;
 	
 	// class / static variables
 	private static Logger log = Logger.getLogger(DatabaseUtil.class);
@@ -31,6 +45,9 @@ public class DatabaseUtil {
 	private static String databaseUsername;
 	private static String databasePassword;
 	
+	private static ConnectionPool pool; // opened on first use
+	private static boolean schemaChecked = false; // see migrateDatabase()
+	
 	
 	/**
 	 * Retrieves the necessary information about the database.
@@ -47,9 +64,20 @@ public class DatabaseUtil {
 		}
 		reader.close();
 		
-		databaseAddress = lines[0];
-		databaseUsername = lines[1];
-		databasePassword = lines[2];
+		synchronized (DatabaseUtil.class) {
+			boolean changed = !lines[0].equals(databaseAddress) 
+					|| !lines[1].equals(databaseUsername) 
+					|| !lines[2].equals(databasePassword);
+			
+			databaseAddress = lines[0];
+			databaseUsername = lines[1];
+			databasePassword = lines[2];
+			
+			if (changed) {
+				closePool(); // pooled connections were made with the old settings
+				schemaChecked = false; // and it may be a different database
+			}
+		}
 	}
 	
 	/**
@@ -64,18 +92,14 @@ public class DatabaseUtil {
 	/**
 	 * Based on the ConnectionUtil method from the demo
 	 * Should probably be private but public makes it easier to test
-	 * @return
+	 * @return a pooled connection, or null if none could be had
 	 */
 	public static Connection getConnection() {
 		
 		Connection conn = null;
 		
 		try {
-			conn = DriverManager.getConnection(
-					databaseAddress,
-					databaseUsername,
-					databasePassword
-					);
+			conn = getPool().borrow();
 		} catch (SQLException e) {
 			log.log(Level.WARN, "Unable to obtain connection to database: " + e.getMessage());
 		}
@@ -83,6 +107,44 @@ public class DatabaseUtil {
 		return conn;
 	}
 	
+	/**
+	 * @return the pool's current size and counters, for monitoring
+	 */
+	public static ConnectionPool.Statistics getPoolStatistics() {
+		return getPool().getStatistics();
+	}
+	
+	/**
+	 * Closes every pooled connection. The next getConnection() starts a new pool.
+	 */
+	public static synchronized void closePool() {
+		
+		if (pool != null) {
+			log.log(Level.INFO, "Closing connection pool: " + pool.getStatistics());
+			pool.close();
+			pool = null;
+		}
+	}
+	
+	/**
+	 * @return the connection pool, opening it if needed
+	 */
+	private static synchronized ConnectionPool getPool() {
+		
+		if (pool == null) {
+			String address = databaseAddress;
+			String username = databaseUsername;
+			String password = databasePassword;
+			
+			pool = new ConnectionPool(
+					() -> DriverManager.getConnection(address, username, password),
+					ConnectionPool.DEFAULT_MIN_SIZE, 
+					ConnectionPool.DEFAULT_MAX_SIZE);
+		}
+		
+		return pool;
+	}
+	
 	/**
 	 * (Should) set the database into a fresh state.
 	 */
@@ -95,6 +157,7 @@ public class DatabaseUtil {
 			dropTableIfExists(conn, "bank_account");
 			dropTableIfExists(conn, "transaction_record");
 			dropTableIfExists(conn, "account_ownership");
+			dropTableIfExists(conn, "schema_version");
 			
 			// create tables ------------------------------------------------------------
 			Statement stm;
@@ -105,7 +168,8 @@ public class DatabaseUtil {
 					+ "\"user_id\" INT NOT NULL,\n"
 					+ "\"username\" VARCHAR(120) NOT NULL,\n"
 					+ "\"password\" VARCHAR(120) NOT NULL,\n"
-					+ "\"type\" VARCHAR(120) NOT NULL,\n"
+					+ "\"type\" SMALLINT NOT NULL,\n"
+					+ "\"version\" INT NOT NULL DEFAULT 0,\n"
 					+ "CONSTRAINT \"PK_user_profile\" PRIMARY KEY (\"user_id\")\n"
 					+ ");";
 			stm = conn.createStatement();
@@ -114,9 +178,10 @@ public class DatabaseUtil {
 			String createBankAccountTable = "CREATE TABLE \"bank_account\"\n"
 					+ "(\n"
 					+ "\"account_id\" INT NOT NULL,\n"
-					+ "\"status\" VARCHAR(120) NOT NULL,\n"
-					+ "\"type\" VARCHAR(120) NOT NULL,\n"
+					+ "\"status\" SMALLINT NOT NULL,\n"
+					+ "\"type\" SMALLINT NOT NULL,\n"
 					+ "\"funds\" INT NOT NULL,\n"
+					+ "\"version\" INT NOT NULL DEFAULT 0,\n"
 					+ "CONSTRAINT \"PK_bank_account\" PRIMARY KEY (\"account_id\")\n"
 					+ ");";
 			stm = conn.createStatement();
@@ -125,8 +190,8 @@ public class DatabaseUtil {
 			String createTransactionTable = "CREATE TABLE \"transaction_record\"\n"
 					+ "(\n"
 					+ "\"transaction_id\" INT NOT NULL,\n"
-					+ "\"time\" VARCHAR(120) NOT NULL,\n"
-					+ "\"type\" VARCHAR(120) NOT NULL,\n"
+					+ "\"time\" TIMESTAMPTZ NOT NULL,\n"
+					+ "\"type\" SMALLINT NOT NULL,\n"
 					+ "\"acting_user\" INT NOT NULL,\n"
 					+ "\"source_account\" INT,\n"
 					+ "\"destination_account\" INT,\n"
@@ -169,11 +234,27 @@ public class DatabaseUtil {
 			stm = conn.createStatement();
 			stm.execute(addAccountIDForeignKey);
 			
+			createIndexes(conn);
+			createSchemaVersionTable(conn, SCHEMA_VERSION);
+			
 			// populate with starting data -----------------
 			populateUserProfiles(conn);
 			populateBankAccounts(conn);
 			populateTransactionRecords(conn);
 			populateAccountOwnership(conn);
+			
+			// ID sequences, which start after the data above ---------------
+			dropSequenceIfExists(conn, PostgresDAO.USER_PROFILE_ID_SEQUENCE);
+			dropSequenceIfExists(conn, PostgresDAO.BANK_ACCOUNT_ID_SEQUENCE);
+			dropSequenceIfExists(conn, PostgresDAO.TRANSACTION_RECORD_ID_SEQUENCE);
+			createIdSequence(conn, PostgresDAO.USER_PROFILE_ID_SEQUENCE, "user_profile", "user_id");
+			createIdSequence(conn, PostgresDAO.BANK_ACCOUNT_ID_SEQUENCE, "bank_account", "account_id");
+			createIdSequence(conn, PostgresDAO.TRANSACTION_RECORD_ID_SEQUENCE, 
+					"transaction_record", "transaction_id");
+			
+			synchronized (DatabaseUtil.class) {
+				schemaChecked = true; // it was just made at the current version
+			}
 		}
 		catch(SQLException e) {
 			log.log(Level.WARN, "Problem resetting database: " + e.getMessage());
@@ -181,6 +262,239 @@ public class DatabaseUtil {
 		}
 	}
 
+	/**
+	 * Brings a database made by an older version of resetDatabase() up to SCHEMA_VERSION, 
+	 * keeping its data. The whole migration is one transaction, so if any step fails the
+	 * database is left as it was. Once it has succeeded, it isn't checked again for the rest
+	 * of the run; PostgresDAO calls this when it is made.
+	 * @throws BankDAOException if the schema couldn't be checked or brought up to date
+	 */
+	public static synchronized void migrateDatabase() throws BankDAOException {
+		
+		if (schemaChecked) {
+			return;
+		}
+		
+		try (Connection conn = getConnection()){
+			
+			if (conn == null) {
+				throw new BankDAOException("ALERT: Could not check database schema: no connection");
+			}
+			
+			conn.setAutoCommit(false);
+			
+			try {
+				int version = readSchemaVersion(conn);
+				
+				if (version > 0 && version < SCHEMA_VERSION) {
+					// nobody else can use (or migrate) the tables until this commits
+					Statement stm = conn.createStatement();
+					stm.execute("LOCK TABLE user_profile, bank_account, transaction_record, "
+							+ "account_ownership IN ACCESS EXCLUSIVE MODE");
+					
+					// each step brings it up one version
+					version = readSchemaVersion(conn);
+					if (version == 1) {
+						migrateFromVersion1(conn);
+						version = 2;
+					}
+					if (version == 2) {
+						migrateFromVersion2(conn);
+						version = 3;
+					}
+					if (version == 3) {
+						migrateFromVersion3(conn);
+					}
+				}
+				
+				conn.commit();
+			}
+			catch (SQLException | BankDAOException e) {
+				conn.rollback();
+				throw e;
+			}
+			finally {
+				conn.setAutoCommit(true);
+			}
+		}
+		catch (SQLException e) {
+			log.log(Level.ERROR, "Problem migrating database: " + e.getMessage());
+			throw new BankDAOException("ALERT: Could not migrate database schema: " + e.getMessage());
+		}
+		
+		schemaChecked = true;
+	}
+	
+	/**
+	 * @param conn
+	 * @return the schema version, 1 if the tables are from before versions were kept, 
+	 * 			or 0 if there are no tables at all
+	 * @throws SQLException
+	 */
+	private static int readSchemaVersion(Connection conn) throws SQLException {
+		
+		Statement stm = conn.createStatement();
+		ResultSet rs = stm.executeQuery("SELECT to_regclass('user_profile') IS NOT NULL AS has_tables, "
+				+ "to_regclass('schema_version') IS NOT NULL AS versioned;");
+		rs.next();
+		
+		if (!rs.getBoolean("has_tables")) {
+			return 0;
+		}
+		if (!rs.getBoolean("versioned")) {
+			return 1;
+		}
+		
+		rs = stm.executeQuery("SELECT MAX(version) AS version FROM schema_version;");
+		rs.next();
+		return rs.getInt("version");
+	}
+	
+	/**
+	 * Version 1 stored enums and times as VARCHAR, and had no secondary indexes.
+	 * The enums become their SMALLINT codes, and times become TIMESTAMPTZ. Any time that 
+	 * isn't an ISO date-time (which the program has always written) becomes the epoch.
+	 * Usernames become unique, so a database where two profiles share one can't be migrated
+	 * until someone decides which of them to rename.
+	 * @param conn
+	 * @throws SQLException
+	 * @throws BankDAOException if a username is used more than once
+	 */
+	private static void migrateFromVersion1(Connection conn) throws SQLException, BankDAOException {
+		
+		log.log(Level.INFO, "Migrating database schema from version 1 to 2");
+		Statement stm = conn.createStatement();
+		
+		List<String> duplicates = new ArrayList<>();
+		ResultSet rs = stm.executeQuery("SELECT username FROM user_profile "
+				+ "GROUP BY username HAVING count(*) > 1 ORDER BY username;");
+		while (rs.next()) {
+			duplicates.add(rs.getString("username"));
+		}
+		if (!duplicates.isEmpty()) {
+			log.log(Level.ERROR, "Can't migrate database, usernames used by more than one profile: " 
+					+ duplicates);
+			throw new BankDAOException("ALERT: Can't migrate database: these usernames are used by "
+					+ "more than one user profile, and must be made unique first: " + duplicates);
+		}
+		
+		rs = stm.executeQuery("SELECT count(*) AS bad FROM transaction_record "
+				+ "WHERE time !~ '" + ISO_TIME_PATTERN + "';");
+		rs.next();
+		if (rs.getInt("bad") > 0) {
+			log.log(Level.WARN, rs.getInt("bad") + " transaction times could not be read, "
+					+ "and will be set to the epoch");
+		}
+		
+		stm.execute("ALTER TABLE user_profile "
+				+ "ALTER COLUMN type TYPE SMALLINT USING " 
+				+ codeCase("type", PostgresDAO.PROFILE_TYPE_CODES) + ";");
+		stm.execute("ALTER TABLE bank_account "
+				+ "ALTER COLUMN status TYPE SMALLINT USING " 
+				+ codeCase("status", PostgresDAO.ACCOUNT_STATUS_CODES) + ", "
+				+ "ALTER COLUMN type TYPE SMALLINT USING " 
+				+ codeCase("type", PostgresDAO.ACCOUNT_TYPE_CODES) + ";");
+		stm.execute("ALTER TABLE transaction_record "
+				+ "ALTER COLUMN type TYPE SMALLINT USING " 
+				+ codeCase("type", PostgresDAO.TRANSACTION_TYPE_CODES) + ", "
+				+ "ALTER COLUMN time TYPE TIMESTAMPTZ USING (CASE WHEN time ~ '" + ISO_TIME_PATTERN 
+				+ "' THEN time::timestamp ELSE 'epoch'::timestamp END);");
+		
+		createIndexes(conn);
+		createSchemaVersionTable(conn, 2);
+	}
+	
+	/**
+	 * Version 3 added the version of each bank account, used by PostgresDAO.writeIfUnchanged().
+	 * Existing accounts start at version 0.
+	 * @param conn
+	 * @throws SQLException
+	 */
+	private static void migrateFromVersion2(Connection conn) throws SQLException {
+		
+		log.log(Level.INFO, "Migrating database schema from version 2 to 3");
+		Statement stm = conn.createStatement();
+		
+		stm.execute("ALTER TABLE bank_account ADD COLUMN version INT NOT NULL DEFAULT 0;");
+		stm.execute("INSERT INTO schema_version (version) VALUES (3);");
+	}
+	
+	/**
+	 * Version 4 added the version of each user profile, so that writeIfUnchanged() can check
+	 * the profiles written along with an account. Existing profiles start at version 0.
+	 * @param conn
+	 * @throws SQLException
+	 */
+	private static void migrateFromVersion3(Connection conn) throws SQLException {
+		
+		log.log(Level.INFO, "Migrating database schema from version 3 to 4");
+		Statement stm = conn.createStatement();
+		
+		stm.execute("ALTER TABLE user_profile ADD COLUMN version INT NOT NULL DEFAULT 0;");
+		stm.execute("INSERT INTO schema_version (version) VALUES (4);");
+	}
+	
+	/**
+	 * @param column
+	 * @param codes : see PostgresDAO.ACCOUNT_STATUS_CODES etc
+	 * @return a CASE expression turning the column's old VARCHAR value into its code
+	 */
+	private static String codeCase(String column, String[] codes) {
+		
+		StringBuilder sb = new StringBuilder("(CASE " + column);
+		for (int i = 0; i < codes.length; i++) {
+			sb.append(" WHEN '").append(codes[i]).append("' THEN ").append(i);
+		}
+		sb.append(" ELSE 0 END)");
+		return sb.toString();
+	}
+	
+	/**
+	 * The secondary indexes. Transaction history is looked up by acting user and by either 
+	 * account, and each index also holds the ID so the results come out in order. The join 
+	 * from accounts to their owners goes through account_ownership by account_id, which the 
+	 * primary key (user_id first) doesn't cover. Usernames must be unique, and are how people
+	 * log in.
+	 * @param conn
+	 * @throws SQLException
+	 */
+	static void createIndexes(Connection conn) throws SQLException {
+		
+		Statement stm = conn.createStatement();
+		stm.execute("CREATE UNIQUE INDEX \"UQ_user_profile_username\" ON user_profile (username);");
+		stm.execute("CREATE INDEX \"IX_transaction_acting_user\" "
+				+ "ON transaction_record (acting_user, transaction_id);");
+		stm.execute("CREATE INDEX \"IX_transaction_source_account\" "
+				+ "ON transaction_record (source_account, transaction_id);");
+		stm.execute("CREATE INDEX \"IX_transaction_destination_account\" "
+				+ "ON transaction_record (destination_account, transaction_id);");
+		stm.execute("CREATE INDEX \"IX_account_ownership_account\" "
+				+ "ON account_ownership (account_id, user_id);");
+	}
+	
+	/**
+	 * Drops the indexes made by createIndexes(), eg so that a bulk load doesn't have to keep
+	 * them up to date row by row. They should be created again in the same transaction.
+	 * @param conn
+	 * @throws SQLException
+	 */
+	static void dropIndexes(Connection conn) throws SQLException {
+		
+		Statement stm = conn.createStatement();
+		stm.execute("DROP INDEX IF EXISTS \"UQ_user_profile_username\";");
+		stm.execute("DROP INDEX IF EXISTS \"IX_transaction_acting_user\";");
+		stm.execute("DROP INDEX IF EXISTS \"IX_transaction_source_account\";");
+		stm.execute("DROP INDEX IF EXISTS \"IX_transaction_destination_account\";");
+		stm.execute("DROP INDEX IF EXISTS \"IX_account_ownership_account\";");
+	}
+	
+	private static void createSchemaVersionTable(Connection conn, int version) throws SQLException {
+		
+		Statement stm = conn.createStatement();
+		stm.execute("CREATE TABLE schema_version (version INT NOT NULL);");
+		stm.execute("INSERT INTO schema_version (version) VALUES (" + version + ");");
+	}
+
 	/**
 	 * Helper method that does what it says
 	 * @param conn
@@ -193,6 +507,76 @@ public class DatabaseUtil {
 		stm.execute(sql);
 	}
 	
+	private static void dropSequenceIfExists(Connection conn, String sequence) throws SQLException {
+		
+		String sql = "DROP SEQUENCE IF EXISTS " + sequence;
+		Statement stm = conn.createStatement();
+		stm.execute(sql);
+	}
+	
+	/**
+	 * Creates a sequence for handing out IDs a block at a time (see PostgresDAO.ID_BLOCK_SIZE),
+	 * starting after the highest ID already in the table. Done in one transaction, so if two
+	 * programs try at once, one of them fails on CREATE and just uses the other's sequence,
+	 * and nobody sees the sequence before it has been moved past the existing IDs.
+	 * @param conn
+	 * @param sequence
+	 * @param table
+	 * @param column : the table's ID column
+	 * @throws SQLException
+	 */
+	public static void createIdSequence(Connection conn, String sequence, String table, String column) 
+			throws SQLException {
+		
+		boolean autoCommit = conn.getAutoCommit();
+		conn.setAutoCommit(false);
+		
+		try {
+			Statement stm = conn.createStatement();
+			stm.execute("CREATE SEQUENCE " + sequence 
+					+ " INCREMENT BY " + PostgresDAO.ID_BLOCK_SIZE + " MINVALUE 1");
+			stm.execute("SELECT setval('" + sequence + "', "
+					+ "(SELECT COALESCE(MAX(" + column + "), 0) + 1 FROM " + table + "), false)");
+			conn.commit();
+		}
+		catch (SQLException e) {
+			conn.rollback();
+			
+			if (!DUPLICATE_TABLE_STATE.equals(e.getSQLState())) {
+				throw e;
+			}
+			// someone else made it first, which is fine
+		}
+		finally {
+			conn.setAutoCommit(autoCommit);
+		}
+	}
+	
+	/**
+	 * Moves an ID sequence past the highest ID in its table, for after rows have been added 
+	 * with IDs that didn't come from the sequence (eg a bulk load). Never moves it backwards, 
+	 * and does nothing if the sequence hasn't been made yet, since createIdSequence() will 
+	 * start it in the right place.
+	 * @param conn
+	 * @param sequence
+	 * @param table
+	 * @param column
+	 * @throws SQLException
+	 */
+	static void advanceIdSequence(Connection conn, String sequence, String table, String column) 
+			throws SQLException {
+		
+		Statement stm = conn.createStatement();
+		ResultSet rs = stm.executeQuery("SELECT to_regclass('" + sequence + "') IS NOT NULL AS found;");
+		rs.next();
+		
+		if (rs.getBoolean("found")) {
+			String next = "(SELECT COALESCE(MAX(" + column + "), 0) + 1 FROM " + table + ")";
+			stm.executeQuery("SELECT setval('" + sequence + "', " + next + ", false) "
+					+ "FROM " + sequence + " WHERE last_value < " + next + ";");
+		}
+	}
+	
 	/**
 	 * Another helper for readability
 	 * @param conn
@@ -207,28 +591,28 @@ public class DatabaseUtil {
 		pstm.setInt(1, 1);
 		pstm.setString(2, "admin");
 		pstm.setString(3, "admin");
-		pstm.setString(4, "ADMIN");
+		pstm.setShort(4, PostgresDAO.codeOf(PostgresDAO.PROFILE_TYPE_CODES, "ADMIN"));
 		pstm.execute();
 		
 		pstm = conn.prepareStatement(insertUserProfileString);
 		pstm.setInt(1, 2);
 		pstm.setString(2, "empl");
 		pstm.setString(3, "empass");
-		pstm.setString(4, "EMPLOYEE");
+		pstm.setShort(4, PostgresDAO.codeOf(PostgresDAO.PROFILE_TYPE_CODES, "EMPLOYEE"));
 		pstm.execute();
 		
 		pstm = conn.prepareStatement(insertUserProfileString);
 		pstm.setInt(1, 3);
 		pstm.setString(2, "cust");
 		pstm.setString(3, "pass");
-		pstm.setString(4, "CUSTOMER");
+		pstm.setShort(4, PostgresDAO.codeOf(PostgresDAO.PROFILE_TYPE_CODES, "CUSTOMER"));
 		pstm.execute();
 		
 		pstm = conn.prepareStatement(insertUserProfileString);
 		pstm.setInt(1, 4);
 		pstm.setString(2, "cust2");
 		pstm.setString(3, "pass");
-		pstm.setString(4, "CUSTOMER");
+		pstm.setShort(4, PostgresDAO.codeOf(PostgresDAO.PROFILE_TYPE_CODES, "CUSTOMER"));
 		pstm.execute();
 	}
 	
@@ -244,15 +628,15 @@ public class DatabaseUtil {
 		
 		pstm = conn.prepareStatement(insertBankAccountString);
 		pstm.setInt(1, 1); // acc id is 1
-		pstm.setString(2, "OPEN"); // status
-		pstm.setString(3, "SINGLE"); // type
+		pstm.setShort(2, PostgresDAO.codeOf(PostgresDAO.ACCOUNT_STATUS_CODES, "OPEN")); // status
+		pstm.setShort(3, PostgresDAO.codeOf(PostgresDAO.ACCOUNT_TYPE_CODES, "SINGLE")); // type
 		pstm.setInt(4, 123456); // funds
 		pstm.execute();
 		
 		pstm = conn.prepareStatement(insertBankAccountString);
 		pstm.setInt(1, 2); // acc id is 2
-		pstm.setString(2, "CLOSED"); // status
-		pstm.setString(3, "SINGLE"); // type
+		pstm.setShort(2, PostgresDAO.codeOf(PostgresDAO.ACCOUNT_STATUS_CODES, "CLOSED")); // status
+		pstm.setShort(3, PostgresDAO.codeOf(PostgresDAO.ACCOUNT_TYPE_CODES, "SINGLE")); // type
 		pstm.setInt(4, 0); // funds
 		pstm.execute();
 		
@@ -268,8 +652,8 @@ public class DatabaseUtil {
 		
 		pstm = conn.prepareStatement(insertTransactionString);
 		pstm.setInt(1, 1); // id
-		pstm.setString(2, java.time.LocalDateTime.now().toString()); // time
-		pstm.setString(3, "FUNDS_DEPOSITED"); // type 
+		pstm.setTimestamp(2, Timestamp.valueOf(LocalDateTime.now())); // time
+		pstm.setShort(3, PostgresDAO.codeOf(PostgresDAO.TRANSACTION_TYPE_CODES, "FUNDS_DEPOSITED")); // type 
 		pstm.setInt(4, 3); // the acting user - the customer profile
 		pstm.setInt(5, -1); // the source account, none
 		pstm.setInt(6, 1); // the destination account, owned by the customer
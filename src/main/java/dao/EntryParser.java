@@ -0,0 +1,146 @@
+/**
+ * A cursor over a single bank data file entry, eg "ACC 444 OPN SNG 78923 101".
+ * Reads ints and 3-letter codes straight out of the entry, without splitting it into
+ * an array of temporary Strings first. Shared by the TextFileDAO's entry builders, which
+ * run on every line of every scan.
+ *
+ * Tokens are separated by single spaces. Codes are matched against the expected set in place,
+ * so the builders never need a String for them.
+ *
+ * @author Andrew Curry
+ */
+package dao;
+
+public class EntryParser {
+
+	// instance variables
+	private String entry;
+	private int position; // start of the next token
+
+	// constructors
+	public EntryParser() {
+		reset("");
+	}
+
+	public EntryParser(String entry) {
+		reset(entry);
+	}
+
+	// methods
+
+	/**
+	 * Points the cursor at the start of a new entry, so the parser can be reused.
+	 * @param entry
+	 */
+	public void reset(String entry) {
+		this.entry = entry;
+		this.position = 0;
+	}
+
+	/**
+	 * @return true if there is at least one more token
+	 */
+	public boolean hasNext() {
+		return position < entry.length();
+	}
+
+	/**
+	 * Moves past the next token without reading it.
+	 */
+	public void skip() {
+		position = tokenEnd() + 1;
+	}
+
+	/**
+	 * Reads the next token as a (possibly negative) int.
+	 * @return
+	 * @throws NumberFormatException if the token isn't a number
+	 */
+	public int nextInt() {
+
+		int end = tokenEnd();
+		int i = position;
+		boolean negative = false;
+
+		if (i < end && entry.charAt(i) == '-') {
+			negative = true;
+			i++;
+		}
+
+		if (i == end) {
+			throw new NumberFormatException("Expected a number in entry: " + entry);
+		}
+
+		int value = 0;
+		for (; i < end; i++) {
+			int digit = entry.charAt(i) - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException("Expected a number in entry: " + entry);
+			}
+			value = value * 10 - digit; // accumulate negatively so MIN_VALUE fits
+		}
+
+		position = end + 1;
+		return negative ? value : -value;
+	}
+
+	/**
+	 * Reads the next token as one of a fixed set of codes, eg {"OPN", "CLS", "PND", "NON"}.
+	 * @param codes
+	 * @return the index of the matching code, or -1 if the token isn't one of them
+	 */
+	public int nextCode(String[] codes) {
+
+		int end = tokenEnd();
+		int length = end - position;
+		int found = -1;
+
+		for (int i = 0; i < codes.length; i++) {
+			if (codes[i].length() == length && entry.regionMatches(position, codes[i], 0, length)) {
+				found = i;
+				break;
+			}
+		}
+
+		position = end + 1;
+		return found;
+	}
+
+	/**
+	 * Checks whether the next token is the given String, and moves past it either way.
+	 * @param expected
+	 * @return
+	 */
+	public boolean nextEquals(String expected) {
+
+		int end = tokenEnd();
+		boolean equal = end - position == expected.length()
+				&& entry.regionMatches(position, expected, 0, expected.length());
+
+		position = end + 1;
+		return equal;
+	}
+
+	/**
+	 * Reads the next token as a String. Only needed for free text, like usernames.
+	 * @return
+	 */
+	public String next() {
+
+		int end = tokenEnd();
+		String token = entry.substring(position, end);
+		position = end + 1;
+		return token;
+	}
+
+	// helper methods
+
+	/**
+	 * @return the index of the space after the current token, or the end of the entry
+	 */
+	private int tokenEnd() {
+
+		int end = entry.indexOf(' ', position);
+		return end < 0 ? entry.length() : end;
+	}
+}
@@ -0,0 +1,187 @@
+/**
+ * Hands out new ID numbers for one kind of BankData (hi/lo allocation). IDs are reserved from
+ * a BlockSource a block at a time, eg from a database sequence, and then given out one by one
+ * with a plain increment, so the data storage is only consulted once per block.
+ *
+ * IDs still left in a block when the program stops are never used, so there can be gaps
+ * between IDs, but the same ID is never given out twice.
+ *
+ * @author Andrew Curry
+ */
+package dao;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IdAllocator {
+
+	// interfaces
+
+	/**
+	 * Where blocks of IDs come from. Each call must reserve a new block that no other
+	 * caller (in this process or any other) will also get.
+	 */
+	public interface BlockSource {
+
+		/**
+		 * @param size : how many IDs to reserve
+		 * @return the first ID of the block; the block is [first, first + size)
+		 * @throws BankDAOException
+		 */
+		public int reserveBlock(int size) throws BankDAOException;
+	}
+
+	/**
+	 * How a DAO finds the highest ID it has stored, for use with afterHighest().
+	 */
+	public interface HighestID {
+
+		public int get() throws BankDAOException;
+	}
+
+	// constants
+	public static final int DEFAULT_BLOCK_SIZE = 50;
+
+	// instance variables
+	private BlockSource source;
+	private int blockSize;
+
+	// guarded by this
+	private int next; // the next ID to give out
+	private int limit; // the end of the current block (exclusive)
+
+	// constructors
+	public IdAllocator(BlockSource source) {
+		this(source, DEFAULT_BLOCK_SIZE);
+	}
+
+	public IdAllocator(BlockSource source, int blockSize) {
+
+		if (blockSize < 1) {
+			throw new IllegalArgumentException("blockSize must be at least 1");
+		}
+
+		this.source = source;
+		this.blockSize = blockSize;
+		this.next = 0;
+		this.limit = 0; // empty, so the first allocate() reserves a block
+	}
+
+	// methods
+
+	/**
+	 * @return a new ID, which has not been given out before
+	 * @throws BankDAOException if a new block was needed and couldn't be reserved
+	 */
+	public synchronized int allocate() throws BankDAOException {
+
+		if (next >= limit) {
+			next = source.reserveBlock(blockSize);
+			limit = next + blockSize;
+		}
+
+		return next++;
+	}
+
+	/**
+	 * Takes back an ID that was never written, eg for a change that was turned down, so that
+	 * it is given out again. Only works if nothing else has been given out since; otherwise
+	 * the ID is just left unused.
+	 * @param id : from allocate()
+	 */
+	public synchronized void giveBack(int id) {
+
+		if (id == next - 1) {
+			next = id;
+		}
+	}
+
+	/**
+	 * Throws away the rest of the current block, so the next allocate() reserves a new one.
+	 */
+	public synchronized void discardBlock() {
+		next = 0;
+		limit = 0;
+	}
+
+	/**
+	 * @return how many IDs are reserved at a time
+	 */
+	public int getBlockSize() {
+		return blockSize;
+	}
+
+	// static factory
+
+	/**
+	 * A BlockSource for DAOs that don't have sequences of their own, like the file DAOs.
+	 * See AfterHighest.
+	 * @param highest : usually one of the DAO's getHighest*ID() methods
+	 * @return
+	 */
+	public static AfterHighest afterHighest(HighestID highest) {
+		return new AfterHighest(highest);
+	}
+
+	// nested classes
+
+	/**
+	 * Each block starts after both the highest stored ID and the end of the last block, so only
+	 * the process that owns the data can safely use it. Finding the highest stored ID can mean
+	 * reading every entry, so it is only done for the first block (and after rescan()); from
+	 * then on the DAO reports the IDs it stores through stored(), which covers data written
+	 * with IDs that weren't allocated here.
+	 * Reserved blocks are only kept in memory, so unused IDs can be reused after a restart,
+	 * which is fine since they were never written anywhere.
+	 */
+	public static class AfterHighest implements BlockSource {
+
+		private final HighestID highest;
+
+		// stored() is called while the DAO is writing, holding its lock, and reserveBlock()
+		// takes the DAO's lock to find the highest ID, so stored() mustn't lock this
+		private final AtomicInteger reservedThrough; // the end of the last block, or past the highest stored ID
+		private volatile boolean known; // whether the highest stored ID has been found since rescan()
+
+		private AfterHighest(HighestID highest) {
+
+			this.highest = highest;
+			this.reservedThrough = new AtomicInteger(0);
+			this.known = false;
+		}
+
+		@Override
+		public synchronized int reserveBlock(int size) throws BankDAOException {
+
+			if (!known) {
+				known = true; // first, so a rescan() while looking is not lost
+				try {
+					int next = highest.get() + 1;
+					reservedThrough.accumulateAndGet(next, Math::max);
+				}
+				catch (BankDAOException e) {
+					known = false;
+					throw e;
+				}
+			}
+
+			return reservedThrough.getAndAdd(size);
+		}
+
+		/**
+		 * Should be called with the ID of everything the DAO stores, so no block is started
+		 * at or below it.
+		 * @param id
+		 */
+		public void stored(int id) {
+			reservedThrough.accumulateAndGet(id + 1, Math::max);
+		}
+
+		/**
+		 * Has the next block find the highest stored ID again, eg because the data was
+		 * changed by something other than the DAO.
+		 */
+		public void rescan() {
+			known = false;
+		}
+	}
+}
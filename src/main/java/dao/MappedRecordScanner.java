@@ -0,0 +1,434 @@
+/**
+ * Searches a bank data file for entries by their tag, eg "ACC 444 ".
+ * The file is memory-mapped and the tag is compared against the raw bytes at the
+ * start of each line, so only the lines that actually match are turned into Strings.
+ * Used by the TextFileDAO in place of a BufferedReader / readLine loop.
+ *
+ * @author Andrew Curry
+ */
+package dao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+public class MappedRecordScanner {
+
+	// constants
+	private static final byte NEWLINE = '\n';
+	private static final byte CARRIAGE_RETURN = '\r';
+
+	// how much of the file is mapped at once. lines never straddle two regions.
+	private static final int MAX_REGION_SIZE = 1 << 30;
+	private static final int LINE_READ_SIZE = 256; // for reading a single line at an offset
+	private static final int CURSOR_BUFFER_SIZE = 1 << 16; // see LineCursor
+
+	// used to release mappings early, see unmap(). null if not available.
+	private static final Object UNSAFE;
+	private static final Method INVOKE_CLEANER;
+
+	static {
+		Object unsafe = null;
+		Method invokeCleaner = null;
+
+		try {
+			Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+			invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+			Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+			theUnsafe.setAccessible(true);
+			unsafe = theUnsafe.get(null);
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			// java 8, or the method isn't accessible. the GC will get to the mappings eventually.
+			invokeCleaner = null;
+		}
+
+		UNSAFE = unsafe;
+		INVOKE_CLEANER = invokeCleaner;
+	}
+
+	// instance variables
+	private String filename;
+
+	// constructor
+	public MappedRecordScanner(String filename) {
+		this.filename = filename;
+	}
+
+	// search methods
+
+	/**
+	 * Finds a single line starting with the given tag.
+	 * @param tag
+	 * @param lastMatch : if true, return the last matching line instead of the first
+	 * @return the matching line, or the empty string if there is none
+	 * @throws IOException
+	 */
+	public String findLine(String tag, boolean lastMatch) throws IOException {
+
+		String[] found = {""};
+		scan(toBytes(tag), (offset, line) -> found[0] = line, !lastMatch);
+		return found[0];
+	}
+
+	/**
+	 * Finds every line starting with the given tag, in file order.
+	 * Passing the empty string returns every line.
+	 * @param tag
+	 * @return
+	 * @throws IOException
+	 */
+	public List<String> findLines(String tag) throws IOException {
+
+		List<String> found = new ArrayList<>();
+		scan(toBytes(tag), (offset, line) -> found.add(line), false);
+		return found;
+	}
+
+	/**
+	 * Passes every line starting with the given tag to the visitor, along with the
+	 * byte offset where the line starts in the file. Used to build on-disk indexes.
+	 * @param tag
+	 * @param visitor
+	 * @throws IOException
+	 */
+	public void forEachLine(String tag, LineVisitor visitor) throws IOException {
+
+		scan(toBytes(tag), visitor, false);
+	}
+
+	/**
+	 * Opens a cursor over the lines starting with the given tag, which reads the file a buffer
+	 * at a time as lines are asked for, instead of collecting them all first. Only the part of
+	 * the file that existed when it was opened is read, so lines appended later aren't seen.
+	 * A file that is replaced (rather than changed in place) keeps being read as it was.
+	 * @param tag
+	 * @return
+	 * @throws IOException
+	 */
+	public LineCursor openCursor(String tag) throws IOException {
+
+		return new LineCursor(FileChannel.open(Paths.get(filename), StandardOpenOption.READ), toBytes(tag));
+	}
+
+	/**
+	 * Reads the single line starting at the given byte offset.
+	 * @param offset : should be the start of a line, as passed to a LineVisitor
+	 * @return the line, or the empty string if the offset is past the end of the file
+	 * @throws IOException
+	 */
+	public String readLineAt(long offset) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+			return readLineAt(channel, offset, ByteBuffer.allocate(LINE_READ_SIZE));
+		}
+	}
+
+	/**
+	 * Reads the lines starting at each of the given byte offsets, opening the file once.
+	 * @param offsets
+	 * @return the lines, in the same order as the offsets
+	 * @throws IOException
+	 */
+	public List<String> readLinesAt(List<Long> offsets) throws IOException {
+
+		List<String> lines = new ArrayList<>(offsets.size());
+
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+
+			ByteBuffer buffer = ByteBuffer.allocate(LINE_READ_SIZE);
+			for (long offset : offsets) {
+				lines.add(readLineAt(channel, offset, buffer));
+			}
+		}
+
+		return lines;
+	}
+
+	// helper methods
+
+	/**
+	 * Walks the file one mapped region at a time, passing matching lines to the visitor.
+	 * @param prefix
+	 * @param visitor
+	 * @param stopAtFirst
+	 * @throws IOException
+	 */
+	private void scan(byte[] prefix, LineVisitor visitor, boolean stopAtFirst) throws IOException {
+
+		try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+
+			long fileSize = channel.size();
+			long position = 0;
+
+			while (position < fileSize) {
+				long regionSize = Math.min(fileSize - position, MAX_REGION_SIZE);
+				boolean lastRegion = position + regionSize == fileSize;
+				MappedByteBuffer region = channel.map(FileChannel.MapMode.READ_ONLY, position, regionSize);
+				int consumed;
+
+				try {
+					consumed = scanRegion(region, position, (int)regionSize, lastRegion, prefix, visitor, stopAtFirst);
+				}
+				finally {
+					unmap(region);
+				}
+
+				if (consumed < 0) {
+					return; // found the one we were looking for
+				}
+				if (consumed == 0) {
+					throw new IOException("Line too long to scan in file: " + filename);
+				}
+
+				position += consumed;
+			}
+		}
+	}
+
+	/**
+	 * Scans the complete lines in one mapped region.
+	 * @param regionStart : the offset of the region within the file
+	 * @return how many bytes of the region were consumed (everything up to the last newline,
+	 * 			or the whole region if it is the end of the file), or -1 if stopAtFirst
+	 * 			is set and a match was found
+	 */
+	private static int scanRegion(MappedByteBuffer region, long regionStart, int size, boolean lastRegion,
+			byte[] prefix, LineVisitor visitor, boolean stopAtFirst) {
+
+		int lineStart = 0;
+
+		while (lineStart < size) {
+
+			// compare the prefix, stopping early on a mismatch or the end of the line
+			int i = 0;
+			while (i < prefix.length
+					&& lineStart + i < size
+					&& region.get(lineStart + i) == prefix[i]) {
+				i++;
+			}
+			boolean matches = i == prefix.length;
+
+			// find the end of the line
+			int lineEnd = lineStart + i;
+			while (lineEnd < size && region.get(lineEnd) != NEWLINE) {
+				lineEnd++;
+			}
+
+			if (lineEnd == size && !lastRegion) {
+				return lineStart; // this line continues into the next region
+			}
+
+			if (matches) {
+				visitor.visit(regionStart + lineStart, decode(region, lineStart, lineEnd));
+				if (stopAtFirst) {
+					return -1;
+				}
+			}
+
+			lineStart = lineEnd + 1;
+		}
+
+		return size;
+	}
+
+	/**
+	 * Turns the bytes of a single line into a String, dropping any trailing carriage return.
+	 * @return
+	 */
+	private static String decode(MappedByteBuffer region, int start, int end) {
+
+		if (end > start && region.get(end - 1) == CARRIAGE_RETURN) {
+			end--;
+		}
+
+		byte[] bytes = new byte[end - start];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = region.get(start + i);
+		}
+
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static String readLineAt(FileChannel channel, long offset, ByteBuffer buffer) throws IOException {
+
+		ByteArrayOutputStream line = new ByteArrayOutputStream();
+		long position = offset;
+
+		while (true) {
+			buffer.clear();
+			int read = channel.read(buffer, position);
+
+			if (read <= 0) {
+				break; // end of the file
+			}
+
+			for (int i = 0; i < read; i++) {
+				if (buffer.get(i) == NEWLINE) {
+					line.write(buffer.array(), 0, i);
+					return stripCarriageReturn(line.toString("UTF-8"));
+				}
+			}
+
+			line.write(buffer.array(), 0, read);
+			position += read;
+		}
+
+		return stripCarriageReturn(line.toString("UTF-8"));
+	}
+
+	private static String stripCarriageReturn(String line) {
+
+		if (line.endsWith("\r")) {
+			return line.substring(0, line.length() - 1);
+		}
+
+		return line;
+	}
+
+	private static byte[] toBytes(String tag) {
+		return tag.getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Releases the mapping right away instead of waiting for the garbage collector.
+	 * Without this, Windows will not let the DAO rewrite a file that was recently scanned.
+	 * This is best-effort: if the JVM doesn't allow it, the mapping is left to the GC.
+	 * @param buffer : must not be used after this is called
+	 */
+	private static void unmap(MappedByteBuffer buffer) {
+
+		if (INVOKE_CLEANER == null) {
+			return;
+		}
+
+		try {
+			INVOKE_CLEANER.invoke(UNSAFE, buffer);
+		}
+		catch (ReflectiveOperationException | RuntimeException e) {
+			// leave it to the GC
+		}
+	}
+
+	/**
+	 * Receives each matching line, and the offset in the file where it starts.
+	 */
+	public interface LineVisitor {
+		void visit(long offset, String line);
+	}
+
+	/**
+	 * See openCursor(). Not thread safe.
+	 */
+	public static class LineCursor implements Closeable {
+
+		private FileChannel channel;
+		private byte[] prefix;
+		private long end; // the file's size when the cursor was opened
+		private long position; // where the next read from the file starts
+		private ByteBuffer buffer; // holds bytes read but not yet returned, between position and limit
+
+		private LineCursor(FileChannel channel, byte[] prefix) throws IOException {
+			this.channel = channel;
+			this.prefix = prefix;
+			this.end = channel.size();
+			this.position = 0;
+			this.buffer = ByteBuffer.allocate(CURSOR_BUFFER_SIZE);
+			this.buffer.limit(0); // empty
+		}
+
+		/**
+		 * @return the next matching line, or null if there are no more
+		 * @throws IOException
+		 */
+		public String next() throws IOException {
+
+			while (true) {
+				int lineStart = buffer.position();
+				int lineEnd = lineStart;
+				while (lineEnd < buffer.limit() && buffer.get(lineEnd) != NEWLINE) {
+					lineEnd++;
+				}
+
+				if (lineEnd == buffer.limit()) { // no complete line in the buffer
+					if (position < end) {
+						fill();
+						continue;
+					}
+					if (lineStart == lineEnd) {
+						return null; // nothing left at all
+					}
+					// otherwise, the last line has no newline after it
+				}
+
+				buffer.position(Math.min(lineEnd + 1, buffer.limit()));
+
+				if (startsWithPrefix(lineStart, lineEnd)) {
+					if (lineEnd > lineStart && buffer.get(lineEnd - 1) == CARRIAGE_RETURN) {
+						lineEnd--;
+					}
+					return new String(buffer.array(), lineStart, lineEnd - lineStart, StandardCharsets.UTF_8);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+
+		/**
+		 * Keeps the unread bytes, and reads more of the file after them. The buffer grows if
+		 * a single line doesn't fit in it.
+		 * @throws IOException
+		 */
+		private void fill() throws IOException {
+
+			buffer.compact();
+
+			if (!buffer.hasRemaining()) {
+				ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2);
+				buffer.flip();
+				bigger.put(buffer);
+				buffer = bigger;
+			}
+
+			buffer.limit(buffer.position() + (int)Math.min(buffer.remaining(), end - position));
+			int read = channel.read(buffer, position);
+
+			if (read < 0) {
+				end = position; // the file got shorter
+			}
+			else {
+				position += read;
+			}
+
+			buffer.flip();
+		}
+
+		private boolean startsWithPrefix(int lineStart, int lineEnd) {
+
+			if (lineEnd - lineStart < prefix.length) {
+				return false;
+			}
+
+			for (int i = 0; i < prefix.length; i++) {
+				if (buffer.get(lineStart + i) != prefix[i]) {
+					return false;
+				}
+			}
+
+			return true;
+		}
+	}
+}
@@ -0,0 +1,67 @@
+/**
+ * Which way a page of transaction history runs from its starting ID, for keyset pagination:
+ * a page is the (up to) limit records closest to the starting ID on one side of it, so the
+ * next page starts from the last ID of this one, and nothing is skipped or shown twice even
+ * if records are added in between. Pages are always returned oldest (lowest ID) first.
+ *
+ * @author Andrew Curry
+ */
+package dao;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.revature.bankDataObjects.TransactionRecord;
+
+public enum PageDirection {
+	OLDER, // IDs below the starting ID
+	NEWER; // IDs above the starting ID
+	
+	/**
+	 * @return the starting ID for the first page in this direction: the newest records
+	 * 			for OLDER, the oldest ones for NEWER
+	 */
+	public int fromEnd() {
+		return this == OLDER ? Integer.MAX_VALUE : Integer.MIN_VALUE;
+	}
+	
+	/**
+	 * @param id
+	 * @param startID
+	 * @return true if the ID is past the starting ID in this direction, so could be on the page
+	 */
+	public boolean isPast(int id, int startID) {
+		return this == OLDER ? id < startID : id > startID;
+	}
+	
+	/**
+	 * Picks one page out of a set of records, for DAOs that can't do it as part of the query.
+	 * @param records : in any order
+	 * @param startID
+	 * @param limit
+	 * @return
+	 */
+	public List<TransactionRecord> selectPage(List<TransactionRecord> records, int startID, int limit) {
+		
+		List<TransactionRecord> page = new ArrayList<>();
+		
+		for (TransactionRecord tr : records) {
+			if (isPast(tr.getId(), startID)) {
+				page.add(tr);
+			}
+		}
+		
+		// closest to the start first, then keep the first limit of them
+		Comparator<TransactionRecord> byID = Comparator.comparingInt(TransactionRecord::getId);
+		page.sort(this == OLDER ? byID.reversed() : byID);
+		page = new ArrayList<>(page.subList(0, Math.min(limit, page.size())));
+		
+		if (this == OLDER) {
+			Collections.reverse(page);
+		}
+		
+		return page;
+	}
+}
@@ -0,0 +1,558 @@
+/**
+ * Bulk loading and exporting for the Postgres database, using COPY through the driver's
+ * CopyManager instead of one INSERT per row. Loading goes from any BankDAO's cursors
+ * (usually a TextFileDAO over a .bdf file) into user_profile, bank_account,
+ * account_ownership and transaction_record; exporting writes the tables out as a .bdf file.
+ *
+ * Rows are streamed both ways, so the size of the data set isn't limited by memory.
+ *
+ * @author Andrew Curry
+ */
+package dao;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+import org.postgresql.PGConnection;
+import org.postgresql.copy.PGCopyInputStream;
+import org.postgresql.copy.PGCopyOutputStream;
+
+import com.revature.bankDataObjects.BankAccount;
+import com.revature.bankDataObjects.BankAccount.BankAccountStatus;
+import com.revature.bankDataObjects.BankAccount.BankAccountType;
+import com.revature.bankDataObjects.BankData;
+import com.revature.bankDataObjects.TransactionRecord;
+import com.revature.bankDataObjects.TransactionRecord.TransactionType;
+import com.revature.bankDataObjects.UserProfile;
+import com.revature.bankDataObjects.UserProfile.UserProfileType;
+
+public class PostgresBulkCopy {
+
+	// constants
+	private static final int COPY_BUFFER_SIZE = 256 * 1024;
+
+	private static final String NULL_CONNECTION_MESSAGE
+			= "ALERT: Could not connect to the database for a bulk copy.";
+	private static final String COPY_FAILED_MESSAGE
+			= "ALERT: The bulk copy failed, and nothing was changed in the database.";
+	private static final String EXPORT_FAILED_MESSAGE
+			= "ALERT: The bulk export failed: ";
+
+	private static final String COPY_PROFILES_IN
+			= "COPY user_profile (user_id, username, password, type) FROM STDIN";
+	private static final String COPY_ACCOUNTS_IN
+			= "COPY bank_account (account_id, status, type, funds) FROM STDIN";
+	private static final String COPY_OWNERSHIP_IN
+			= "COPY account_ownership (user_id, account_id) FROM STDIN";
+	private static final String COPY_TRANSACTIONS_IN
+			= "COPY transaction_record (transaction_id, time, type, acting_user, "
+			+ "source_account, destination_account, money_amount) FROM STDIN";
+
+	// owners and times are turned into plain text in the query, so each row is easy to split
+	private static final String COPY_PROFILES_OUT
+			= "COPY (SELECT up.user_id, up.username, up.password, up.type, "
+			+ "COALESCE(string_agg(ao.account_id::text, ' ' ORDER BY ao.account_id), '') "
+			+ "FROM user_profile up LEFT JOIN account_ownership ao ON ao.user_id = up.user_id "
+			+ "GROUP BY up.user_id ORDER BY up.user_id) TO STDOUT";
+	private static final String COPY_ACCOUNTS_OUT
+			= "COPY (SELECT ba.account_id, ba.status, ba.type, ba.funds, "
+			+ "COALESCE(string_agg(ao.user_id::text, ' ' ORDER BY ao.user_id), '') "
+			+ "FROM bank_account ba LEFT JOIN account_ownership ao ON ao.account_id = ba.account_id "
+			+ "GROUP BY ba.account_id ORDER BY ba.account_id) TO STDOUT";
+	private static final String COPY_TRANSACTIONS_OUT // not sorted, so it's a plain sequential scan
+			= "COPY (SELECT transaction_id, extract(epoch FROM time), type, acting_user, "
+			+ "source_account, destination_account, money_amount FROM transaction_record) TO STDOUT";
+
+	// times that can't be read are stored as the epoch, like migrateDatabase() does
+	private static final LocalDateTime UNREADABLE_TIME = LocalDateTime.of(1970, 1, 1, 0, 0);
+
+	// class / static variables
+	private static Logger log = Logger.getLogger(PostgresBulkCopy.class);
+
+	// methods
+
+	/**
+	 * Loads a .bdf file into the database. See load(BankDAO, boolean).
+	 * @param filename
+	 * @param replace
+	 * @return
+	 * @throws BankDAOException
+	 */
+	public static Counts loadFile(String filename, boolean replace) throws BankDAOException {
+
+		TextFileDAO source = new TextFileDAO(filename);
+
+		try {
+			return load(source, replace);
+		}
+		finally {
+			source.close();
+		}
+	}
+
+	/**
+	 * Copies everything in the source into the database, in one transaction, so either all of
+	 * it is loaded or none of it is. Ownership comes from each account's list of owners.
+	 * @param source : read through its cursors, so it can be bigger than memory
+	 * @param replace : if true, the tables are emptied first, and the indexes are dropped during
+	 * 			the load and built again at the end, which is much faster than keeping them up to
+	 * 			date row by row; if false, the rows are added to what's there, and any ID that is
+	 * 			already taken makes the whole load fail
+	 * @return how many rows were copied into each table
+	 * @throws BankDAOException
+	 */
+	public static Counts load(BankDAO source, boolean replace) throws BankDAOException {
+
+		DatabaseUtil.migrateDatabase();
+
+		try (Connection conn = DatabaseUtil.getConnection()) {
+
+			if (conn == null) {
+				throw new BankDAOException(NULL_CONNECTION_MESSAGE);
+			}
+
+			boolean autoCommit = conn.getAutoCommit();
+			conn.setAutoCommit(false);
+
+			try {
+				Statement stm = conn.createStatement();
+
+				if (replace) {
+					// truncating in the same transaction also lets the server skip some WAL
+					stm.execute("TRUNCATE user_profile, bank_account, account_ownership, transaction_record;");
+					DatabaseUtil.dropIndexes(conn);
+				}
+
+				Counts counts = new Counts();
+				PGConnection pgConn = conn.unwrap(PGConnection.class);
+
+				counts.profiles = copyProfilesIn(pgConn, source);
+				copyAccountsIn(pgConn, source, counts);
+				counts.transactions = copyTransactionsIn(pgConn, source);
+
+				if (replace) {
+					DatabaseUtil.createIndexes(conn);
+				}
+
+				DatabaseUtil.advanceIdSequence(conn, PostgresDAO.USER_PROFILE_ID_SEQUENCE,
+						"user_profile", "user_id");
+				DatabaseUtil.advanceIdSequence(conn, PostgresDAO.BANK_ACCOUNT_ID_SEQUENCE,
+						"bank_account", "account_id");
+				DatabaseUtil.advanceIdSequence(conn, PostgresDAO.TRANSACTION_RECORD_ID_SEQUENCE,
+						"transaction_record", "transaction_id");
+
+				conn.commit();
+
+				// the planner's statistics are way off after a big load; the load itself is done
+				// either way, so a failure here is only worth a warning
+				try {
+					conn.setAutoCommit(true);
+					stm.execute("ANALYZE user_profile, bank_account, account_ownership, transaction_record;");
+				}
+				catch (SQLException e) {
+					log.log(Level.WARN, "Could not analyze tables after bulk load: " + e.getMessage());
+				}
+
+				log.log(Level.INFO, "Bulk loaded " + counts + " from " + source.getResourceName());
+				return counts;
+			}
+			catch (SQLException | IOException | BankDAOException e) {
+				conn.rollback(); // before autocommit is turned back on, which would commit
+				log.log(Level.ERROR, "Exception during bulk load: " + e.getMessage());
+				throw new BankDAOException(COPY_FAILED_MESSAGE);
+			}
+			finally {
+				conn.setAutoCommit(autoCommit);
+			}
+		}
+		catch (SQLException e) {
+			log.log(Level.ERROR, "SQL exception during bulk load: " + e.getMessage());
+			throw new BankDAOException(COPY_FAILED_MESSAGE);
+		}
+	}
+
+	/**
+	 * Writes everything in the database to a new .bdf file (replacing the file if it exists).
+	 * The tables are read in one transaction, so the file is a consistent snapshot.
+	 * @param filename
+	 * @return how many of each kind of entry were written (ownerships are part of the
+	 * 			profile and account entries)
+	 * @throws BankDAOException
+	 */
+	public static Counts exportFile(String filename) throws BankDAOException {
+
+		DatabaseUtil.migrateDatabase();
+
+		try (Connection conn = DatabaseUtil.getConnection()) {
+
+			if (conn == null) {
+				throw new BankDAOException(NULL_CONNECTION_MESSAGE);
+			}
+
+			boolean autoCommit = conn.getAutoCommit();
+			conn.setAutoCommit(false);
+
+			try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(filename), StandardCharsets.UTF_8), COPY_BUFFER_SIZE)) {
+
+				conn.createStatement().execute("SET TRANSACTION ISOLATION LEVEL REPEATABLE READ READ ONLY;");
+
+				Counts counts = new Counts();
+				PGConnection pgConn = conn.unwrap(PGConnection.class);
+
+				counts.profiles = copyOut(pgConn, COPY_PROFILES_OUT, writer, PostgresBulkCopy::profileFromRow);
+				counts.accounts = copyOut(pgConn, COPY_ACCOUNTS_OUT, writer, PostgresBulkCopy::accountFromRow);
+				counts.transactions = copyOut(pgConn, COPY_TRANSACTIONS_OUT, writer,
+						PostgresBulkCopy::transactionFromRow);
+
+				conn.commit();
+				log.log(Level.INFO, "Bulk exported " + counts + " to " + filename);
+				return counts;
+			}
+			catch (SQLException | IOException | BankDAOException e) {
+				conn.rollback(); // before autocommit is turned back on, which would commit
+				log.log(Level.ERROR, "Exception during bulk export: " + e.getMessage());
+				throw new BankDAOException(EXPORT_FAILED_MESSAGE + filename);
+			}
+			finally {
+				conn.setAutoCommit(autoCommit);
+			}
+		}
+		catch (SQLException e) {
+			log.log(Level.ERROR, "SQL exception during bulk export: " + e.getMessage());
+			throw new BankDAOException(EXPORT_FAILED_MESSAGE + filename);
+		}
+	}
+
+	// helper methods - loading
+
+	private static long copyProfilesIn(PGConnection pgConn, BankDAO source)
+			throws SQLException, IOException, BankDAOException {
+
+		long count = 0;
+
+		try (BankDataCursor<UserProfile> cursor = source.openUserProfileCursor();
+				Writer rows = openCopyIn(pgConn, COPY_PROFILES_IN)) {
+
+			while (cursor.hasNext()) {
+				UserProfile up = cursor.next();
+				rows.write(up.getId() + "\t" + escape(up.getUsername()) + "\t" + escape(up.getPassword())
+						+ "\t" + PostgresDAO.codeOf(PostgresDAO.PROFILE_TYPE_CODES, up.getType()) + "\n");
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Copies the accounts in, and their owners into account_ownership. The owners are kept
+	 * in a temporary file until the accounts are done, since only one COPY can run at a time
+	 * on a connection.
+	 */
+	private static void copyAccountsIn(PGConnection pgConn, BankDAO source, Counts counts)
+			throws SQLException, IOException, BankDAOException {
+
+		File ownersFile = File.createTempFile("account_ownership", ".copy");
+
+		try {
+			try (BankDataCursor<BankAccount> cursor = source.openBankAccountCursor();
+					Writer rows = openCopyIn(pgConn, COPY_ACCOUNTS_IN);
+					Writer owners = new BufferedWriter(new OutputStreamWriter(
+							new FileOutputStream(ownersFile), StandardCharsets.UTF_8), COPY_BUFFER_SIZE)) {
+
+				while (cursor.hasNext()) {
+					BankAccount ba = cursor.next();
+					rows.write(ba.getId()
+							+ "\t" + PostgresDAO.codeOf(PostgresDAO.ACCOUNT_STATUS_CODES, ba.getStatus())
+							+ "\t" + PostgresDAO.codeOf(PostgresDAO.ACCOUNT_TYPE_CODES, ba.getType())
+							+ "\t" + ba.getFunds() + "\n");
+					counts.accounts++;
+
+					for (int ownerID : ba.getOwners()) {
+						owners.write(ownerID + "\t" + ba.getId() + "\n");
+						counts.ownerships++;
+					}
+				}
+			}
+
+			try (BufferedReader owners = Files.newBufferedReader(
+							ownersFile.toPath(), StandardCharsets.UTF_8);
+					Writer rows = openCopyIn(pgConn, COPY_OWNERSHIP_IN)) {
+
+				char[] buffer = new char[COPY_BUFFER_SIZE];
+				int read;
+				while ((read = owners.read(buffer)) > 0) {
+					rows.write(buffer, 0, read);
+				}
+			}
+		}
+		finally {
+			ownersFile.delete();
+		}
+	}
+
+	private static long copyTransactionsIn(PGConnection pgConn, BankDAO source)
+			throws SQLException, IOException, BankDAOException {
+
+		long count = 0;
+		ZoneId zone = ZoneId.systemDefault();
+
+		try (BankDataCursor<TransactionRecord> cursor = source.openTransactionRecordCursor();
+				Writer rows = openCopyIn(pgConn, COPY_TRANSACTIONS_IN)) {
+
+			while (cursor.hasNext()) {
+				TransactionRecord tr = cursor.next();
+				rows.write(tr.getId()
+						+ "\t" + toTimestampText(tr.getTime(), zone)
+						+ "\t" + PostgresDAO.codeOf(PostgresDAO.TRANSACTION_TYPE_CODES, tr.getType())
+						+ "\t" + tr.getActingUser()
+						+ "\t" + tr.getSourceAccount()
+						+ "\t" + tr.getDestinationAccount()
+						+ "\t" + tr.getMoneyAmount() + "\n");
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * @return a writer for COPY text format rows; closing it ends the COPY
+	 */
+	private static Writer openCopyIn(PGConnection pgConn, String sql) throws SQLException {
+
+		return new BufferedWriter(new OutputStreamWriter(
+				new PGCopyOutputStream(pgConn, sql, COPY_BUFFER_SIZE), StandardCharsets.UTF_8),
+				COPY_BUFFER_SIZE);
+	}
+
+	/**
+	 * Transaction times are local date-times in this machine's time zone (see
+	 * PostgresDAO.toTimestamp()), so they're sent with the zone's offset at that time.
+	 * @param time
+	 * @param zone
+	 * @return
+	 */
+	private static String toTimestampText(String time, ZoneId zone) {
+
+		LocalDateTime ldt;
+		try {
+			ldt = LocalDateTime.parse(time);
+		}
+		catch (DateTimeParseException | NullPointerException e) {
+			ldt = UNREADABLE_TIME;
+		}
+
+		return ldt.atZone(zone).toOffsetDateTime().toString();
+	}
+
+	/**
+	 * Escapes a value for COPY text format.
+	 * @param value
+	 * @return
+	 */
+	private static String escape(String value) {
+
+		StringBuilder sb = new StringBuilder(value.length());
+
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+				case '\\':
+					sb.append("\\\\");
+					break;
+				case '\t':
+					sb.append("\\t");
+					break;
+				case '\n':
+					sb.append("\\n");
+					break;
+				case '\r':
+					sb.append("\\r");
+					break;
+				default:
+					sb.append(c);
+			}
+		}
+
+		return sb.toString();
+	}
+
+	// helper methods - exporting
+
+	/**
+	 * Runs a COPY ... TO STDOUT and writes each row to the .bdf file as an entry.
+	 * @return how many rows there were
+	 */
+	private static long copyOut(PGConnection pgConn, String sql, Writer writer, RowParser parser)
+			throws SQLException, IOException, BankDAOException {
+
+		long count = 0;
+
+		try (BufferedReader rows = new BufferedReader(new InputStreamReader(
+				new PGCopyInputStream(pgConn, sql), StandardCharsets.UTF_8), COPY_BUFFER_SIZE)) {
+
+			String row;
+			while ((row = rows.readLine()) != null) {
+				writer.write(TextFileDAO.formatEntry(parser.parse(row.split("\t", -1))));
+				writer.write("\n");
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	private static UserProfile profileFromRow(String[] fields) {
+
+		UserProfile up = new UserProfile(Integer.parseInt(fields[0]));
+		up.setUsername(unescape(fields[1]));
+		up.setPassword(unescape(fields[2]));
+		up.setType(UserProfileType.valueOf(fromCode(PostgresDAO.PROFILE_TYPE_CODES, fields[3])));
+
+		for (String accID : splitIDs(fields[4])) {
+			up.addAccount(Integer.parseInt(accID));
+		}
+
+		return up;
+	}
+
+	private static BankAccount accountFromRow(String[] fields) {
+
+		BankAccount ba = new BankAccount(Integer.parseInt(fields[0]));
+		ba.setStatus(BankAccountStatus.valueOf(fromCode(PostgresDAO.ACCOUNT_STATUS_CODES, fields[1])));
+		ba.setType(BankAccountType.valueOf(fromCode(PostgresDAO.ACCOUNT_TYPE_CODES, fields[2])));
+		ba.setFunds(Integer.parseInt(fields[3]));
+
+		for (String ownerID : splitIDs(fields[4])) {
+			ba.addOwner(Integer.parseInt(ownerID));
+		}
+
+		return ba;
+	}
+
+	private static TransactionRecord transactionFromRow(String[] fields) {
+
+		// the epoch seconds may have a fraction, down to microseconds
+		BigDecimal epoch = new BigDecimal(fields[1]);
+		Instant instant = Instant.ofEpochSecond(epoch.longValue(),
+				epoch.remainder(BigDecimal.ONE).movePointRight(9).intValue());
+
+		TransactionRecord tr = new TransactionRecord(Integer.parseInt(fields[0]));
+		tr.setTime(LocalDateTime.ofInstant(instant, ZoneId.systemDefault()).toString());
+		tr.setType(TransactionType.valueOf(fromCode(PostgresDAO.TRANSACTION_TYPE_CODES, fields[2])));
+		tr.setActingUser(Integer.parseInt(fields[3]));
+		tr.setSourceAccount(Integer.parseInt(fields[4]));
+		tr.setDestinationAccount(Integer.parseInt(fields[5]));
+		tr.setMoneyAmount(Integer.parseInt(fields[6]));
+		return tr;
+	}
+
+	/**
+	 * @param codes : see PostgresDAO.ACCOUNT_STATUS_CODES etc
+	 * @param field
+	 * @return the enum name for the SMALLINT code, or NONE if it isn't one
+	 */
+	private static String fromCode(String[] codes, String field) {
+
+		int code = Integer.parseInt(field);
+		return code >= 0 && code < codes.length ? codes[code] : codes[0];
+	}
+
+	private static String[] splitIDs(String field) {
+		return field.isEmpty() ? new String[0] : field.split(" ");
+	}
+
+	/**
+	 * The other direction of escape()
+	 * @param field
+	 * @return
+	 */
+	private static String unescape(String field) {
+
+		if (field.indexOf('\\') < 0) {
+			return field;
+		}
+
+		StringBuilder sb = new StringBuilder(field.length());
+
+		for (int i = 0; i < field.length(); i++) {
+			char c = field.charAt(i);
+			if (c == '\\' && i + 1 < field.length()) {
+				char next = field.charAt(++i);
+				switch (next) {
+					case 't':
+						sb.append('\t');
+						break;
+					case 'n':
+						sb.append('\n');
+						break;
+					case 'r':
+						sb.append('\r');
+						break;
+					default:
+						sb.append(next);
+				}
+			}
+			else {
+				sb.append(c);
+			}
+		}
+
+		return sb.toString();
+	}
+
+	// nested classes / interfaces
+
+	/**
+	 * Turns one COPY text row (split on tabs) into BankData, for copyOut().
+	 */
+	private interface RowParser {
+		BankData parse(String[] fields);
+	}
+
+	/**
+	 * How many rows a bulk load or export copied.
+	 */
+	public static class Counts {
+
+		private long profiles;
+		private long accounts;
+		private long ownerships;
+		private long transactions;
+
+		/** @return user_profile rows */
+		public long getProfiles() { return profiles; }
+		/** @return bank_account rows */
+		public long getAccounts() { return accounts; }
+		/** @return account_ownership rows (always 0 for an export) */
+		public long getOwnerships() { return ownerships; }
+		/** @return transaction_record rows */
+		public long getTransactions() { return transactions; }
+
+		@Override
+		public String toString() {
+			return profiles + " profiles, " + accounts + " accounts, "
+					+ ownerships + " ownerships, " + transactions + " transactions";
+		}
+	}
+}
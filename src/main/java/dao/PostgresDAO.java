@@ -6,7 +6,10 @@
 package dao;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -22,10 +25,14 @@ import com.revature.bankDataObjects.BankAccount.BankAccountStatus;
 import com.revature.bankDataObjects.BankAccount.BankAccountType;
 
 import java.io.IOException;
+import java.sql.Array;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeParseException;
 
 public class PostgresDAO implements BankDAO {
 	
@@ -55,6 +62,23 @@ public class PostgresDAO implements BankDAO {
 	private static final String TRANSACTION_TYPE_USER_REGISTERED = "USER_REGISTERED";
 	//private static final String TRANSACTION_TYPE_NONE = "NONE";
 	
+	// since schema version 2 (see DatabaseUtil), these enums are stored as SMALLINT codes,
+	// which are their positions in these arrays. only ever add to the end, or existing rows
+	// will change meaning. the strings are what version 1 stored, for the migration.
+	static final String[] ACCOUNT_STATUS_CODES = {"NONE", 
+			ACCOUNT_STATUS_OPEN, ACCOUNT_STATUS_CLOSED, ACCOUNT_STATUS_PENDING};
+	static final String[] ACCOUNT_TYPE_CODES = {"NONE", ACCOUNT_TYPE_SINGLE, ACCOUNT_TYPE_JOINT};
+	static final String[] PROFILE_TYPE_CODES = {"NONE", 
+			PROFILE_TYPE_CUSTOMER, PROFILE_TYPE_EMPLOYEE, PROFILE_TYPE_ADMIN};
+	static final String[] TRANSACTION_TYPE_CODES = {"NONE", 
+			TRANSACTION_TYPE_ACCOUNT_REGISTERED, TRANSACTION_TYPE_ACCOUNT_APPROVED, 
+			TRANSACTION_TYPE_ACCOUNT_CLOSED, TRANSACTION_TYPE_ACCOUNT_OWNER_ADDED, 
+			TRANSACTION_TYPE_ACCOUNT_OWNER_REMOVED, TRANSACTION_TYPE_FUNDS_TRANSFERRED, 
+			TRANSACTION_TYPE_FUNDS_DEPOSITED, TRANSACTION_TYPE_FUNDS_WITHDRAWN, 
+			TRANSACTION_TYPE_USER_REGISTERED};
+	
+	private static final int ACCOUNT_STATUS_OPEN_CODE = codeOf(ACCOUNT_STATUS_CODES, ACCOUNT_STATUS_OPEN);
+	
 	private static final String GENERIC_SQL_EXCEPTION_MESSAGE
 			= "ALERT: There was a problem communicating with the database.";
 	private static final String NULL_CONNECTION_MESSAGE
@@ -65,6 +89,59 @@ public class PostgresDAO implements BankDAO {
 	private static final String WRITE_BANKDATA_NO_RECOGNIED_MESSAGE
 			= "ALERT: Attempting to write invalid data type.";
 	
+	// accounts and profiles are read together with their ownership rows in a single query,
+	// rather than one extra query per row. add a WHERE clause, then the matching GROUP BY.
+	private static final String SELECT_ACCOUNTS_WITH_OWNERS 
+			= "SELECT ba.account_id, ba.status, ba.type, ba.funds, ba.version, "
+			+ "array_agg(ao.user_id ORDER BY ao.user_id) FILTER (WHERE ao.user_id IS NOT NULL) AS owners "
+			+ "FROM bank_account ba LEFT JOIN account_ownership ao ON ao.account_id = ba.account_id ";
+	private static final String GROUP_ACCOUNTS = " GROUP BY ba.account_id ORDER BY ba.account_id;";
+	
+	private static final String SELECT_PROFILES_WITH_ACCOUNTS 
+			= "SELECT up.user_id, up.username, up.password, up.type, up.version, "
+			+ "array_agg(ao.account_id ORDER BY ao.account_id) FILTER (WHERE ao.account_id IS NOT NULL) AS accounts "
+			+ "FROM user_profile up LEFT JOIN account_ownership ao ON ao.user_id = up.user_id ";
+	private static final String GROUP_PROFILES = " GROUP BY up.user_id ORDER BY up.user_id;";
+	
+	// funds are moved by a single statement each, so the check and the change can't be split
+	// up by another session. each one defines a "moved" CTE that has a row if it worked.
+	// like any other change, they move the account's version on, see writeIfUnchanged()
+	private static final String DEPOSIT_CTE 
+			= "moved AS (UPDATE bank_account SET funds = funds + ?, version = version + 1 "
+			+ "WHERE account_id = ? AND status = " + ACCOUNT_STATUS_OPEN_CODE + " RETURNING account_id)";
+	private static final String WITHDRAW_CTE 
+			= "moved AS (UPDATE bank_account SET funds = funds - ?, version = version + 1 "
+			+ "WHERE account_id = ? AND status = " + ACCOUNT_STATUS_OPEN_CODE + " AND funds >= ? "
+			+ "RETURNING account_id)";
+	// both rows are locked up front, in ID order, so that two opposite transfers can't deadlock
+	private static final String TRANSFER_CTE 
+			= "locked AS (SELECT account_id, status, funds FROM bank_account "
+			+ "WHERE account_id IN (?, ?) ORDER BY account_id FOR UPDATE), "
+			+ "debit AS (UPDATE bank_account b SET funds = b.funds - ?, version = b.version + 1 FROM locked s, locked d "
+			+ "WHERE b.account_id = s.account_id AND s.account_id = ? "
+			+ "AND s.status = " + ACCOUNT_STATUS_OPEN_CODE + " AND s.funds >= ? "
+			+ "AND d.account_id = ? AND d.status = " + ACCOUNT_STATUS_OPEN_CODE + " RETURNING b.account_id), "
+			+ "moved AS (UPDATE bank_account b SET funds = b.funds + ?, version = b.version + 1 FROM debit "
+			+ "WHERE b.account_id = ? RETURNING b.account_id)";
+	private static final String SELF_TRANSFER_CTE 
+			= "moved AS (SELECT account_id FROM bank_account "
+			+ "WHERE account_id = ? AND status = " + ACCOUNT_STATUS_OPEN_CODE + " AND funds >= ?)";
+	private static final String RECORD_CTE 
+			= ", record AS (INSERT INTO transaction_record (transaction_id, time, type, acting_user, "
+			+ "source_account, destination_account, money_amount) "
+			+ "SELECT ?, ?::timestamptz, ?::smallint, ?, ?, ?, ? FROM moved ON CONFLICT (transaction_id) DO NOTHING)";
+	
+	// new IDs come from sequences that step by a whole block, so one nextval() reserves
+	// a block of IDs for this process. see DatabaseUtil.createIdSequence()
+	public static final String USER_PROFILE_ID_SEQUENCE = "user_profile_id_seq";
+	public static final String BANK_ACCOUNT_ID_SEQUENCE = "bank_account_id_seq";
+	public static final String TRANSACTION_RECORD_ID_SEQUENCE = "transaction_record_id_seq";
+	public static final int ID_BLOCK_SIZE = IdAllocator.DEFAULT_BLOCK_SIZE;
+	
+	public static final int DEFAULT_FETCH_SIZE = 500;
+	
+	private static final String UNDEFINED_TABLE_STATE = "42P01"; // also used for missing sequences
+	
 	// class / static variables
 	private static Logger log = Logger.getLogger(PostgresDAO.class);
 	
@@ -73,6 +150,14 @@ public class PostgresDAO implements BankDAO {
 	//private String databaseUsername;
 	//private String databasePassword;
 	
+	private int fetchSize = DEFAULT_FETCH_SIZE; // for cursors
+	
+	private IdAllocator profileIDs;
+	private IdAllocator accountIDs;
+	private IdAllocator transactionIDs;
+	
+	private final WriteListeners writeListeners = new WriteListeners();
+	
 	// constructor
 	public PostgresDAO() throws BankDAOException{
 
@@ -82,6 +167,18 @@ public class PostgresDAO implements BankDAO {
 		catch (IOException e) {
 			throw new BankDAOException("ERROR: Could not properly locate DatabaseConfig.txt");
 		}
+		
+		DatabaseUtil.migrateDatabase();
+		
+		profileIDs = new IdAllocator(
+				size -> reserveIdBlock(USER_PROFILE_ID_SEQUENCE, "user_profile", "user_id"), 
+				ID_BLOCK_SIZE);
+		accountIDs = new IdAllocator(
+				size -> reserveIdBlock(BANK_ACCOUNT_ID_SEQUENCE, "bank_account", "account_id"), 
+				ID_BLOCK_SIZE);
+		transactionIDs = new IdAllocator(
+				size -> reserveIdBlock(TRANSACTION_RECORD_ID_SEQUENCE, "transaction_record", "transaction_id"), 
+				ID_BLOCK_SIZE);
 	}
 	
 	// methods from DAO interface ------------------------------------------------
@@ -112,25 +209,15 @@ public class PostgresDAO implements BankDAO {
 				throw new BankDAOException(NULL_CONNECTION_MESSAGE);
 			}
 			
-			String sql = "SELECT * FROM bank_account WHERE account_id = ?;";
+			String sql = SELECT_ACCOUNTS_WITH_OWNERS + "WHERE ba.account_id = ?" + GROUP_ACCOUNTS;
 			PreparedStatement pstm = conn.prepareStatement(sql);
 			pstm.setInt(1, accID);
 			ResultSet accSet = pstm.executeQuery();
 			
-			BankAccount ba = new BankAccount(accID);
-			
-			while (accSet.next()) { // should only be one result
-				//System.out.println("DEBUG: while loop starting");
-				//ba.setId(accSet.getInt("account_id"));
-				ba.setStatus(stringToBankAccountStatus(accSet.getString("status")));
-				ba.setType(stringToBankAccountType(accSet.getString("type")));
-				ba.setFunds(accSet.getInt("funds"));
-				ba.setOwners(getAccountOwnerList(conn, accID));
-			}
+			List<BankAccount> found = getAccountListFromResults(accSet); // should only be one result
 			accSet.close();
 			
-			return ba;
-			//return buildBankAccountFromResults(accSet, ownerSet);
+			return found.isEmpty() ? new BankAccount(accID) : found.get(0);
 		}
 		catch(SQLException e) {
 			log.log(Level.ERROR, "SQL exception in readBankAccount: " + e.getMessage());
@@ -151,11 +238,11 @@ public class PostgresDAO implements BankDAO {
 				throw new BankDAOException(NULL_CONNECTION_MESSAGE);
 			}
 			
-			String sql = "SELECT * FROM bank_account";
+			String sql = SELECT_ACCOUNTS_WITH_OWNERS + GROUP_ACCOUNTS;
 			PreparedStatement pstm = conn.prepareStatement(sql);
 			ResultSet accSet = pstm.executeQuery();
 			
-			return getAccountListFromResults(conn, accSet);
+			return getAccountListFromResults(accSet);
 		}
 		catch(SQLException e) {
 			log.log(Level.ERROR, "SQL exception in readAllBankAccounts: " + e.getMessage());
@@ -163,6 +250,14 @@ public class PostgresDAO implements BankDAO {
 		}
 	}
 
+	/**
+	 * Reads through a server-side cursor, see setFetchSize().
+	 */
+	@Override
+	public BankDataCursor<BankAccount> openBankAccountCursor() throws BankDAOException {
+		return openResultSetCursor(SELECT_ACCOUNTS_WITH_OWNERS + GROUP_ACCOUNTS, this::getAccountFromRow);
+	}
+
 	/**
 	 * Fetches the user profile with the given ID number from the data storage.
 	 * If no such account exists, the resulting UserProfile object will have type NONE.
@@ -178,21 +273,14 @@ public class PostgresDAO implements BankDAO {
 				throw new BankDAOException(NULL_CONNECTION_MESSAGE);
 			}
 			
-			String sql = "SELECT * FROM user_profile WHERE user_id = ?;";
+			String sql = SELECT_PROFILES_WITH_ACCOUNTS + "WHERE up.user_id = ?" + GROUP_PROFILES;
 			PreparedStatement pstm = conn.prepareStatement(sql);
 			pstm.setInt(1, userID);
 			ResultSet userSet = pstm.executeQuery();
 			
-			UserProfile up = new UserProfile(userID);
-			while (userSet.next()) { // should only be one result
-				//up.setId(userSet.getInt("user_id"));
-				up.setUsername(userSet.getString("username"));
-				up.setPassword(userSet.getString("password"));
-				up.setType(stringToUserProfileType(userSet.getString("type")));
-				up.setOwnedAccounts(getUserOwnedAccountsList(conn, userID));
-			}
+			List<UserProfile> found = getUserProfileListFromResults(userSet); // should only be one result
 			
-			return up;
+			return found.isEmpty() ? new UserProfile(userID) : found.get(0);
 		}
 		catch(SQLException e) {
 			log.log(Level.ERROR, "SQL exception in readUserProfile by ID: " + e.getMessage());
@@ -215,23 +303,14 @@ public class PostgresDAO implements BankDAO {
 				throw new BankDAOException(NULL_CONNECTION_MESSAGE);
 			}
 			
-			String sql = "SELECT * FROM user_profile WHERE username = ?;";
+			String sql = SELECT_PROFILES_WITH_ACCOUNTS + "WHERE up.username = ?" + GROUP_PROFILES;
 			PreparedStatement pstm = conn.prepareStatement(sql);
 			pstm.setString(1, username);
 			ResultSet userSet = pstm.executeQuery();
 			
-			UserProfile up = new UserProfile();
-			while (userSet.next()) { // should only be one result
-				int userID = userSet.getInt("user_id");
-				up.setId(userID);
-				up.setUsername(userSet.getString("username"));
-				up.setPassword(userSet.getString("password"));
-				up.setType(stringToUserProfileType(userSet.getString("type")));
-				up.setOwnedAccounts(getUserOwnedAccountsList(conn, userID));
-			}
+			List<UserProfile> found = getUserProfileListFromResults(userSet); // should only be one result
 			
-			//up.setOwnedAccounts(ownedAccounts);
-			return up;
+			return found.isEmpty() ? new UserProfile() : found.get(0);
 		}
 		catch(SQLException e) {
 			log.log(Level.ERROR, "SQL exception in readUserProfile by username: " + e.getMessage());
@@ -252,11 +331,11 @@ public class PostgresDAO implements BankDAO {
 				throw new BankDAOException(NULL_CONNECTION_MESSAGE);
 			}
 			
-			String sql = "SELECT * FROM user_profile;";
+			String sql = SELECT_PROFILES_WITH_ACCOUNTS + GROUP_PROFILES;
 			PreparedStatement pstm = conn.prepareStatement(sql);
 			ResultSet userSet = pstm.executeQuery();
 			
-			return getUserProfileListFromResults(conn, userSet);
+			return getUserProfileListFromResults(userSet);
 		}
 		catch(SQLException e) {
 			log.log(Level.ERROR, "SQL exception in readAllUserProfiles: " + e.getMessage());
@@ -264,6 +343,14 @@ public class PostgresDAO implements BankDAO {
 		}
 	}
 
+	/**
+	 * Reads through a server-side cursor, see setFetchSize().
+	 */
+	@Override
+	public BankDataCursor<UserProfile> openUserProfileCursor() throws BankDAOException {
+		return openResultSetCursor(SELECT_PROFILES_WITH_ACCOUNTS + GROUP_PROFILES, this::getUserProfileFromRow);
+	}
+
 	/**
 	 * Fetches the TransactionRecord with the given ID number from the data storage.
 	 * If no such account exists, the resulting TransactionRecord object will have type NONE.
@@ -287,8 +374,8 @@ public class PostgresDAO implements BankDAO {
 			TransactionRecord tr = new TransactionRecord(recID);
 			while (trrSet.next()) { // should only be one result
 				// dont need to set ID
-				tr.setType(stringToTransactionType(trrSet.getString("type")));
-				tr.setTime(trrSet.getString("time"));
+				tr.setType(stringToTransactionType(codeToString(TRANSACTION_TYPE_CODES, trrSet.getShort("type"))));
+				tr.setTime(fromTimestamp(trrSet.getTimestamp("time")));
 				tr.setActingUser(trrSet.getInt("acting_user"));
 				tr.setSourceAccount(trrSet.getInt("source_account"));
 				tr.setDestinationAccount(trrSet.getInt("destination_account"));
@@ -328,6 +415,15 @@ public class PostgresDAO implements BankDAO {
 		}
 	}
 
+	/**
+	 * Reads through a server-side cursor, see setFetchSize().
+	 */
+	@Override
+	public BankDataCursor<TransactionRecord> openTransactionRecordCursor() throws BankDAOException {
+		return openResultSetCursor("SELECT * FROM transaction_record ORDER BY transaction_id;", 
+				this::getTransactionFromRow);
+	}
+
 	/**
 	 * Fetches all TransactionRecords that were carried out by the given user.
 	 * Returns an empty list if there are no matches.
@@ -386,6 +482,42 @@ public class PostgresDAO implements BankDAO {
 		}
 	}
 
+	/**
+	 * Keyset pagination: the (acting_user, transaction_id) index is walked from startID, so
+	 * the cost depends on the page size and not on how long the history is.
+	 */
+	@Override
+	public List<TransactionRecord> readTransactionRecordPageByActingUserId(int actingUserID, 
+			int startID, int limit, PageDirection direction) throws BankDAOException {
+		
+		String sql = "SELECT * FROM transaction_record WHERE acting_user = ?" 
+				+ pageCondition(direction) + pageOrder(direction) + " LIMIT ?;";
+		
+		return readTransactionRecordPage(sql, direction, "readTransactionRecordPageByActingUserId", 
+				actingUserID, startID, limit);
+	}
+
+	/**
+	 * Like readTransactionRecordPageByActingUserId(), but the source and destination sides are
+	 * each read from their own index (and limited) before being merged, since an OR across
+	 * the two columns can't be walked in order by either index.
+	 */
+	@Override
+	public List<TransactionRecord> readTransactionRecordPageByAccountId(int accID, 
+			int startID, int limit, PageDirection direction) throws BankDAOException {
+		
+		String condition = pageCondition(direction);
+		String order = pageOrder(direction);
+		String sql = "SELECT * FROM ("
+				+ "(SELECT * FROM transaction_record WHERE source_account = ?" + condition + order + " LIMIT ?)"
+				+ " UNION "
+				+ "(SELECT * FROM transaction_record WHERE destination_account = ?" + condition + order + " LIMIT ?)"
+				+ ") AS page" + order + " LIMIT ?;";
+		
+		return readTransactionRecordPage(sql, direction, "readTransactionRecordPageByAccountId", 
+				accID, startID, limit, accID, startID, limit, limit);
+	}
+
 	/**
 	 * Writes the given BankData object to the data storage.
 	 * User profiles cannot be changed after being initially written, other than owned accounts.
@@ -396,14 +528,8 @@ public class PostgresDAO implements BankDAO {
 	@Override
 	public void write(BankData bd) throws BankDAOException {
 		
-		try (Connection conn = DatabaseUtil.getConnection()){
-			writeHelp(conn, bd);
-		}
-		catch (SQLException e){
-			log.log(Level.ERROR, "SQL exception in write: " + e.getMessage());
-			throw new BankDAOException(GENERIC_SQL_EXCEPTION_MESSAGE);
-		}
-		
+		// a profile or account is several statements, which should still be all-or-nothing
+		write(Collections.singletonList(bd));
 	}
 
 	/**
@@ -411,6 +537,8 @@ public class PostgresDAO implements BankDAO {
 	 * User profiles cannot be changed after being initially written, other than owned accounts.
 	 * BankAccounts can change status, type, funds, and owners
 	 * TransactionRecords cannot be changed.
+	 * The whole list is written in one transaction, so either all of it is written or none of it
+	 * is (eg both sides of a transfer, and its record).
 	 * @param bd
 	 */
 	@Override
@@ -418,15 +546,210 @@ public class PostgresDAO implements BankDAO {
 
 		try (Connection conn = DatabaseUtil.getConnection()){
 			
-			for (BankData bd : toWrite) {
-				writeHelp(conn, bd);				
+			if (conn == null) {
+				throw new BankDAOException(NULL_CONNECTION_MESSAGE);
+			}
+			
+			conn.setAutoCommit(false);
+			
+			try {
+				writeHelp(conn, toWrite);
+				conn.commit();
+			}
+			catch (SQLException | BankDAOException e) {
+				conn.rollback();
+				throw e;
+			}
+			finally {
+				conn.setAutoCommit(true);
 			}
 		}
 		catch (SQLException e){
 			log.log(Level.ERROR, "SQL exception in write-list: " + e.getMessage());
 			throw new BankDAOException(GENERIC_SQL_EXCEPTION_MESSAGE);
 		}
+		
+		writeListeners.written(toWrite);
+	}
 
+	/**
+	 * The account's row is only updated WHERE version = ba.getVersion(), which also locks it
+	 * until the rest is written in the same transaction. An account that doesn't exist yet is
+	 * inserted instead, as long as nobody else has inserted it first. The rows of any profiles
+	 * in alsoWrite are locked and checked the same way before anything else is written.
+	 * @param ba
+	 * @param alsoWrite
+	 * @return false if the account had changed
+	 * @throws BankDAOException
+	 */
+	@Override
+	public boolean writeIfUnchanged(BankAccount ba, List<BankData> alsoWrite) throws BankDAOException {
+		
+		try (Connection conn = DatabaseUtil.getConnection()){
+			
+			if (conn == null) {
+				throw new BankDAOException(NULL_CONNECTION_MESSAGE);
+			}
+			
+			conn.setAutoCommit(false);
+			
+			try {
+				if (!writeBankAccountIfVersion(conn, ba) || !profilesAtVersion(conn, alsoWrite)) {
+					conn.rollback();
+					return false;
+				}
+				
+				List<int[]> ownerships = new ArrayList<>(); // {user_id, account_id}
+				for (int ownerID : ba.getOwners()) {
+					ownerships.add(new int[] {ownerID, ba.getId()});
+				}
+				
+				writeOwnerships(conn, Collections.emptySet(), Collections.singleton(ba.getId()), ownerships);
+				writeHelp(conn, alsoWrite);
+				conn.commit();
+			}
+			catch (SQLException | BankDAOException e) {
+				conn.rollback();
+				throw e;
+			}
+			finally {
+				conn.setAutoCommit(true);
+			}
+		}
+		catch (SQLException e){
+			log.log(Level.ERROR, "SQL exception in writeIfUnchanged: " + e.getMessage());
+			throw new BankDAOException(GENERIC_SQL_EXCEPTION_MESSAGE);
+		}
+		
+		ba.setVersion(ba.getVersion() + 1);
+		for (BankData bd : alsoWrite) {
+			if (bd instanceof UserProfile) {
+				UserProfile up = (UserProfile)bd;
+				up.setVersion(up.getVersion() + 1);
+			}
+		}
+		
+		List<BankData> written = new ArrayList<>(alsoWrite.size() + 1);
+		written.add(ba);
+		written.addAll(alsoWrite);
+		writeListeners.written(written);
+		return true;
+	}
+	
+	/**
+	 * The row is inserted ON CONFLICT (username) DO NOTHING, so the unique index on username
+	 * decides, even between processes. Any accounts the profile owns are written in the same
+	 * transaction, only if the row went in.
+	 * @param up
+	 * @return false if the username is taken
+	 * @throws BankDAOException
+	 */
+	@Override
+	public boolean writeIfUsernameFree(UserProfile up) throws BankDAOException {
+		
+		String sql = "INSERT INTO user_profile (user_id, username, password, type, version) "
+				+ "VALUES (?, ?, ?, ?, 1) "
+				+ "ON CONFLICT (username) DO NOTHING;";
+		
+		try (Connection conn = DatabaseUtil.getConnection()){
+			
+			if (conn == null) {
+				throw new BankDAOException(NULL_CONNECTION_MESSAGE);
+			}
+			
+			conn.setAutoCommit(false);
+			
+			try {
+				PreparedStatement pstm = conn.prepareStatement(sql);
+				pstm.setInt(1, up.getId());
+				pstm.setString(2, up.getUsername());
+				pstm.setString(3, up.getPassword());
+				pstm.setShort(4, codeOf(PROFILE_TYPE_CODES, up.getType()));
+				
+				if (pstm.executeUpdate() == 0) {
+					conn.rollback();
+					return false;
+				}
+				
+				List<int[]> ownerships = new ArrayList<>(); // {user_id, account_id}
+				for (int accID : up.getOwnedAccounts()) {
+					ownerships.add(new int[] {up.getId(), accID});
+				}
+				
+				writeOwnerships(conn, Collections.singleton(up.getId()), Collections.emptySet(), ownerships);
+				conn.commit();
+			}
+			catch (SQLException e) {
+				conn.rollback();
+				throw e;
+			}
+			finally {
+				conn.setAutoCommit(true);
+			}
+		}
+		catch (SQLException e){
+			log.log(Level.ERROR, "SQL exception in writeIfUsernameFree: " + e.getMessage());
+			throw new BankDAOException(GENERIC_SQL_EXCEPTION_MESSAGE);
+		}
+		
+		up.setVersion(1);
+		writeListeners.written(Collections.singletonList(up));
+		return true;
+	}
+	
+	@Override
+	public void addWriteListener(WriteListener listener) {
+		writeListeners.add(listener);
+	}
+
+	/**
+	 * Adds money to an open account, as one atomic step.
+	 * One statement, so one round trip, including the record.
+	 * @param accID
+	 * @param amount
+	 * @param record : may be null
+	 * @return true if the deposit happened
+	 * @throws BankDAOException
+	 */
+	@Override
+	public boolean depositFunds(int accID, int amount, TransactionRecord record) throws BankDAOException {
+		return moveFunds(DEPOSIT_CTE, record, amount, accID);
+	}
+
+	/**
+	 * Takes money out of an open account, as one atomic step.
+	 * One statement, so one round trip, including the record.
+	 * @param accID
+	 * @param amount
+	 * @param record : may be null
+	 * @return true if the withdrawal happened
+	 * @throws BankDAOException
+	 */
+	@Override
+	public boolean withdrawFunds(int accID, int amount, TransactionRecord record) throws BankDAOException {
+		return moveFunds(WITHDRAW_CTE, record, amount, accID, amount);
+	}
+
+	/**
+	 * Moves money from one open account to another, as one atomic step.
+	 * One statement, so one round trip, including the record.
+	 * @param sourceAccID
+	 * @param destAccID
+	 * @param amount
+	 * @param record : may be null
+	 * @return true if the transfer happened
+	 * @throws BankDAOException
+	 */
+	@Override
+	public boolean transferFunds(int sourceAccID, int destAccID, int amount, TransactionRecord record)
+			throws BankDAOException {
+		
+		if (sourceAccID == destAccID) {
+			return moveFunds(SELF_TRANSFER_CTE, record, sourceAccID, amount);
+		}
+		
+		return moveFunds(TRANSFER_CTE, record, 
+				sourceAccID, destAccID, amount, sourceAccID, amount, destAccID, amount, destAccID);
 	}
 
 	/** 
@@ -516,6 +839,21 @@ public class PostgresDAO implements BankDAO {
 		}
 	}
 
+	@Override
+	public int allocateUserProfileID() throws BankDAOException {
+		return profileIDs.allocate();
+	}
+
+	@Override
+	public int allocateBankAccountID() throws BankDAOException {
+		return accountIDs.allocate();
+	}
+
+	@Override
+	public int allocateTransactionRecordID() throws BankDAOException {
+		return transactionIDs.allocate();
+	}
+
 	/**
 	 * Determines whether or not the given username is free to use. Used during registration, to make sure that usernames are unique.
 	 * @param username
@@ -528,119 +866,205 @@ public class PostgresDAO implements BankDAO {
 		return up.getType() == UserProfileType.NONE;
 	}
 
+	/**
+	 * Sets how many rows the cursors from the open*Cursor() methods fetch from the server at
+	 * a time. Bigger is faster, smaller uses less memory.
+	 * @param rows
+	 */
+	public void setFetchSize(int rows) {
+		
+		if (rows < 1) {
+			throw new IllegalArgumentException("fetch size must be at least 1");
+		}
+		
+		this.fetchSize = rows;
+	}
+	
+	/**
+	 * Connections are borrowed from DatabaseUtil's shared pool and given back by each method,
+	 * so there is nothing to clean up here.
+	 */
+	@Override
+	public void close() throws BankDAOException {
+		
+	}
+
 	// helper methods -------------------------------------------------------------
 	
 	/**
-	 * Gets the list of owning user IDs for the indicated account
-	 * @param conn : an already open connection
-	 * @param accID
-	 * @return
+	 * Runs one of the page queries, where the parameters are all ints in order.
+	 * @return the page, oldest first
 	 * @throws BankDAOException
 	 */
-	private List<Integer> getAccountOwnerList(Connection conn, int accID) throws BankDAOException{
+	private List<TransactionRecord> readTransactionRecordPage(String sql, PageDirection direction,
+			String caller, int... params) throws BankDAOException {
 		
-		try {
-			String sql = "SELECT user_id FROM account_ownership WHERE account_id = ?";
+		try (Connection conn = DatabaseUtil.getConnection()) {
+
+			if (conn == null) {
+				throw new BankDAOException(NULL_CONNECTION_MESSAGE);
+			}
+
 			PreparedStatement pstm = conn.prepareStatement(sql);
-			pstm.setInt(1, accID);
-			ResultSet ownerSet = pstm.executeQuery();
+			for (int i = 0; i < params.length; i++) {
+				pstm.setInt(i + 1, params[i]);
+			}
+			ResultSet trrSet = pstm.executeQuery();
+
+			List<TransactionRecord> page = getTransactionListFromResults(conn, trrSet);
+			if (direction == PageDirection.OLDER) {
+				Collections.reverse(page); // fetched newest first
+			}
+			return page;
+		} catch (SQLException e) {
+			log.log(Level.ERROR, "SQL exception in " + caller + ": " + e.getMessage());
+			throw new BankDAOException(GENERIC_SQL_EXCEPTION_MESSAGE);
+		}
+	}
+
+	private static String pageCondition(PageDirection direction) {
+		return direction == PageDirection.OLDER ? " AND transaction_id < ?" : " AND transaction_id > ?";
+	}
+
+	private static String pageOrder(PageDirection direction) {
+		return direction == PageDirection.OLDER ? " ORDER BY transaction_id DESC" : " ORDER BY transaction_id";
+	}
+
+	/**
+	 * Reserves a block of ID_BLOCK_SIZE IDs with a single nextval(). Databases made before the
+	 * sequences existed get them here, the first time they are needed.
+	 * @param sequence
+	 * @param table : what to seed a new sequence from
+	 * @param column
+	 * @return the first ID in the block
+	 * @throws BankDAOException
+	 */
+	private int reserveIdBlock(String sequence, String table, String column) throws BankDAOException {
+		
+		try (Connection conn = DatabaseUtil.getConnection()){
 			
-			List<Integer> owners = new ArrayList<>();
+			if (conn == null) {
+				throw new BankDAOException(NULL_CONNECTION_MESSAGE);
+			}
 			
-			while (ownerSet.next()) { // should be AT LEAST one
-				//System.out.println("DEBUG: in ownerSet loop");
-				int ownerID = ownerSet.getInt("user_id");
-				owners.add(ownerID);
+			try {
+				return nextVal(conn, sequence);
+			}
+			catch (SQLException e) {
+				if (!UNDEFINED_TABLE_STATE.equals(e.getSQLState())) {
+					throw e;
+				}
+				
+				log.log(Level.INFO, "Creating missing ID sequence: " + sequence);
+				DatabaseUtil.createIdSequence(conn, sequence, table, column);
+				return nextVal(conn, sequence);
 			}
-			return owners;
 		}
 		catch (SQLException e) {
-			log.log(Level.ERROR, "SQL exception in getAccountOwnerList: " + e.getMessage());
-			throw new BankDAOException(RESULT_SET_ERROR_MESSAGE);
+			log.log(Level.ERROR, "SQL exception in reserveIdBlock: " + e.getMessage());
+			throw new BankDAOException(GENERIC_SQL_EXCEPTION_MESSAGE);
 		}
 	}
 	
+	private static int nextVal(Connection conn, String sequence) throws SQLException {
+		
+		PreparedStatement pstm = conn.prepareStatement("SELECT nextval(?) AS first_id;");
+		pstm.setString(1, sequence);
+		ResultSet rs = pstm.executeQuery();
+		rs.next();
+		return rs.getInt("first_id");
+	}
+	
 	/**
-	 * Converts the results of a query into a list of BankAccount objects.
-	 * @param conn
+	 * Converts the results of a SELECT_ACCOUNTS_WITH_OWNERS query into a list of BankAccount objects.
 	 * @param accSet
 	 * @return
 	 * @throws SQLException
-	 * @throws BankDAOException
 	 */
-	private List<BankAccount> getAccountListFromResults(Connection conn, ResultSet accSet) 
-			throws SQLException, BankDAOException{
+	private List<BankAccount> getAccountListFromResults(ResultSet accSet) throws SQLException {
 		
 		List<BankAccount> accounts = new ArrayList<>();
 		
-		while (accSet.next()) { // should only be one result
-			BankAccount ba = new BankAccount();
-			int accID = accSet.getInt("account_id");
-			ba.setId(accID);
-			ba.setStatus(stringToBankAccountStatus(accSet.getString("status")));
-			ba.setType(stringToBankAccountType(accSet.getString("type")));
-			ba.setFunds(accSet.getInt("funds"));
-			ba.setOwners(getAccountOwnerList(conn, accID));
-			accounts.add(ba);
+		while (accSet.next()) {
+			accounts.add(getAccountFromRow(accSet));
 		}
 		
 		return accounts;
 	}
 	
 	/**
-	 * Gets the list of accounts owned by the indicated user
-	 * @param conn
-	 * @param userID
+	 * Converts the current row of a SELECT_ACCOUNTS_WITH_OWNERS query into a BankAccount.
+	 * @param accSet
 	 * @return
-	 * @throws BankDAOException
+	 * @throws SQLException
 	 */
-	private List<Integer> getUserOwnedAccountsList(Connection conn, int userID) throws BankDAOException{
+	private BankAccount getAccountFromRow(ResultSet accSet) throws SQLException {
 		
-		try {
-			String sql = "SELECT account_id FROM account_ownership WHERE user_id = ?";
-			PreparedStatement pstm = conn.prepareStatement(sql);
-			pstm.setInt(1, userID);
-			ResultSet accSet = pstm.executeQuery();
-			
-			List<Integer> accounts = new ArrayList<>();
-			
-			while (accSet.next()) { // should be AT LEAST one
-				//System.out.println("DEBUG: in ownerSet loop");
-				accounts.add(accSet.getInt("account_id"));
-			}
-			return accounts;
-		}
-		catch (SQLException e) {
-			log.log(Level.ERROR, "SQL exception in getUserOwnedAccountsList: " + e.getMessage());
-			throw new BankDAOException(RESULT_SET_ERROR_MESSAGE);
-		}
+		BankAccount ba = new BankAccount();
+		ba.setId(accSet.getInt("account_id"));
+		ba.setStatus(stringToBankAccountStatus(codeToString(ACCOUNT_STATUS_CODES, accSet.getShort("status"))));
+		ba.setType(stringToBankAccountType(codeToString(ACCOUNT_TYPE_CODES, accSet.getShort("type"))));
+		ba.setFunds(accSet.getInt("funds"));
+		ba.setVersion(accSet.getInt("version"));
+		ba.setOwners(sqlArrayToList(accSet.getArray("owners")));
+		return ba;
 	}
 	
 	/**
-	 * Converts the results of a query into a list of UserProfile objects.
-	 * @param conn
+	 * Converts the results of a SELECT_PROFILES_WITH_ACCOUNTS query into a list of UserProfile objects.
 	 * @param userSet
 	 * @return
 	 * @throws SQLException
-	 * @throws BankDAOException
 	 */
-	private List<UserProfile> getUserProfileListFromResults(Connection conn, ResultSet userSet)
-			throws SQLException, BankDAOException{
+	private List<UserProfile> getUserProfileListFromResults(ResultSet userSet) throws SQLException {
 		
 		List<UserProfile> users = new ArrayList<>();
-		while (userSet.next()) { // should only be one result
-			UserProfile up = new UserProfile();
-			int userID = userSet.getInt("user_id");
-			up.setId(userID);
-			up.setUsername(userSet.getString("username"));
-			up.setPassword(userSet.getString("password"));
-			up.setType(stringToUserProfileType(userSet.getString("type")));
-			up.setOwnedAccounts(getUserOwnedAccountsList(conn, userID));
-			users.add(up);
+		
+		while (userSet.next()) {
+			users.add(getUserProfileFromRow(userSet));
 		}
+		
 		return users;
 	}
 	
+	/**
+	 * Converts the current row of a SELECT_PROFILES_WITH_ACCOUNTS query into a UserProfile.
+	 * @param userSet
+	 * @return
+	 * @throws SQLException
+	 */
+	private UserProfile getUserProfileFromRow(ResultSet userSet) throws SQLException {
+		
+		UserProfile up = new UserProfile();
+		up.setId(userSet.getInt("user_id"));
+		up.setUsername(userSet.getString("username"));
+		up.setPassword(userSet.getString("password"));
+		up.setType(stringToUserProfileType(codeToString(PROFILE_TYPE_CODES, userSet.getShort("type"))));
+		up.setVersion(userSet.getInt("version"));
+		up.setOwnedAccounts(sqlArrayToList(userSet.getArray("accounts")));
+		return up;
+	}
+	
+	/**
+	 * Converts an aggregated int[] column into a list. 
+	 * @param array : null if there was nothing to aggregate
+	 * @return
+	 * @throws SQLException
+	 */
+	private static List<Integer> sqlArrayToList(Array array) throws SQLException {
+		
+		List<Integer> ids = new ArrayList<>();
+		
+		if (array != null) {
+			for (Object id : (Object[])array.getArray()) {
+				ids.add(((Number)id).intValue());
+			}
+			array.free();
+		}
+		
+		return ids;
+	}
+	
 	/**
 	 * Converts the results of a query into a list of TransactionRecords objects.
 	 * @param conn
@@ -654,150 +1078,490 @@ public class PostgresDAO implements BankDAO {
 		
 		List<TransactionRecord> transactions = new ArrayList<>();
 		while (trrSet.next()) { // should only be one result
-			TransactionRecord tr = new TransactionRecord();
-			tr.setId(trrSet.getInt("transaction_id"));
-			tr.setType(stringToTransactionType(trrSet.getString("type")));
-			tr.setTime(trrSet.getString("time"));
-			tr.setActingUser(trrSet.getInt("acting_user"));
-			tr.setSourceAccount(trrSet.getInt("source_account"));
-			tr.setDestinationAccount(trrSet.getInt("destination_account"));
-			tr.setMoneyAmount(trrSet.getInt("money_amount"));
-			transactions.add(tr);
+			transactions.add(getTransactionFromRow(trrSet));
 		}
 		
 		return transactions;
 	}
 	
 	/**
-	 * Who doesn't love nested helper methods?
-	 * Figures out which helper method to send the given Bankdata to 
+	 * Converts the current row of a transaction_record query into a TransactionRecord.
+	 * @param trrSet
+	 * @return
+	 * @throws SQLException
+	 */
+	private TransactionRecord getTransactionFromRow(ResultSet trrSet) throws SQLException {
+		
+		TransactionRecord tr = new TransactionRecord();
+		tr.setId(trrSet.getInt("transaction_id"));
+		tr.setType(stringToTransactionType(codeToString(TRANSACTION_TYPE_CODES, trrSet.getShort("type"))));
+		tr.setTime(fromTimestamp(trrSet.getTimestamp("time")));
+		tr.setActingUser(trrSet.getInt("acting_user"));
+		tr.setSourceAccount(trrSet.getInt("source_account"));
+		tr.setDestinationAccount(trrSet.getInt("destination_account"));
+		tr.setMoneyAmount(trrSet.getInt("money_amount"));
+		return tr;
+	}
+	
+	/**
+	 * Runs the query on a connection of its own, with auto-commit off and a fetch size, so 
+	 * that the driver reads the results through a server-side cursor, fetchSize rows at a time,
+	 * instead of all at once. The connection goes back to the pool when the cursor is closed.
+	 * @param sql
+	 * @param mapper : turns the current row into an object
+	 * @return
+	 * @throws BankDAOException
+	 */
+	private <T extends BankData> BankDataCursor<T> openResultSetCursor(String sql, RowMapper<T> mapper)
+			throws BankDAOException {
+		
+		Connection conn = DatabaseUtil.getConnection();
+		
+		if (conn == null) {
+			throw new BankDAOException(NULL_CONNECTION_MESSAGE);
+		}
+		
+		try {
+			conn.setAutoCommit(false); // otherwise the driver fetches everything at once
+			PreparedStatement pstm = conn.prepareStatement(
+					sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+			pstm.setFetchSize(fetchSize);
+			return new ResultSetCursor<>(conn, pstm.executeQuery(), mapper);
+		}
+		catch (SQLException e) {
+			log.log(Level.ERROR, "SQL exception in openResultSetCursor: " + e.getMessage());
+			closeQuietly(conn);
+			throw new BankDAOException(GENERIC_SQL_EXCEPTION_MESSAGE);
+		}
+	}
+	
+	/**
+	 * Rolls back and gives the connection back to the pool, ignoring any problems.
 	 * @param conn
-	 * @param bd
 	 */
-	private void writeHelp(Connection conn, BankData bd) throws BankDAOException, SQLException{
+	private static void closeQuietly(Connection conn) {
 		
-		if (bd instanceof UserProfile) {
-			writeUserProfile(conn, (UserProfile)bd);
+		try {
+			conn.rollback();
+			conn.setAutoCommit(true);
 		}
-		else if (bd instanceof BankAccount) {
-			writeBankAccount(conn, (BankAccount)bd);
+		catch (SQLException e) {
+			// the pool checks connections before handing them out again
 		}
-		else if (bd instanceof TransactionRecord) {
-			writeTransactionRecord(conn, (TransactionRecord)bd);
+		
+		try {
+			conn.close();
 		}
-		else { // should never be reached
-			log.log(Level.ERROR, "Unrecognized child of BankData in writeHelp: " + bd.getClass());
-			throw new BankDAOException(WRITE_BANKDATA_NO_RECOGNIED_MESSAGE);
+		catch (SQLException e) {
+			log.log(Level.WARN, "Could not return connection to pool: " + e.getMessage());
 		}
 	}
+	
+	/**
+	 * Runs one of the funds CTEs, and writes the record if it worked. The whole thing is
+	 * a single statement, so it is atomic even in auto-commit mode. A record without an ID
+	 * is given one first, which is given back if nothing moved.
+	 * @param movedCTE
+	 * @param record : may be null
+	 * @param params : for the CTE, in order
+	 * @return true if the CTE's "moved" has a row
+	 * @throws BankDAOException
+	 */
+	private boolean moveFunds(String movedCTE, TransactionRecord record, int... params) 
+			throws BankDAOException {
+		
+		boolean newID = record != null && record.getId() == 0;
+		
+		if (newID) {
+			record.setId(transactionIDs.allocate());
+		}
+		
+		if (runFundsStatement(movedCTE, record, params)) {
+			return true;
+		}
+		
+		if (newID) {
+			transactionIDs.giveBack(record.getId());
+			record.setId(0);
+		}
+		return false;
+	}
+	
+	/**
+	 * See moveFunds().
+	 */
+	private boolean runFundsStatement(String movedCTE, TransactionRecord record, int... params) 
+			throws BankDAOException {
+		
+		String sql = "WITH " + movedCTE + (record == null ? "" : RECORD_CTE)
+				+ " SELECT count(*) AS moved FROM moved;";
+		
+		try (Connection conn = DatabaseUtil.getConnection()){
+			
+			if (conn == null) {
+				throw new BankDAOException(NULL_CONNECTION_MESSAGE);
+			}
+			
+			PreparedStatement pstm = conn.prepareStatement(sql);
+			int i = 1;
+			
+			for (int p : params) {
+				pstm.setInt(i++, p);
+			}
+			
+			if (record != null) {
+				pstm.setInt(i++, record.getId());
+				pstm.setTimestamp(i++, toTimestamp(record.getTime()));
+				pstm.setShort(i++, codeOf(TRANSACTION_TYPE_CODES, record.getType()));
+				pstm.setInt(i++, record.getActingUser());
+				pstm.setInt(i++, record.getSourceAccount());
+				pstm.setInt(i++, record.getDestinationAccount());
+				pstm.setInt(i++, record.getMoneyAmount());
+			}
+			
+			ResultSet movedSet = pstm.executeQuery();
+			movedSet.next();
+			return movedSet.getInt("moved") > 0;
+		}
+		catch (SQLException e){
+			log.log(Level.ERROR, "SQL exception in moveFunds: " + e.getMessage());
+			throw new BankDAOException(GENERIC_SQL_EXCEPTION_MESSAGE);
+		}
+	}
+	
+	/**
+	 * Who doesn't love nested helper methods?
+	 * Sorts the given BankData by type, and writes each type with one batch per statement.
+	 * Profiles and accounts go first, since ownership rows and transaction records refer to them.
+	 * Doesn't commit.
+	 * @param conn
+	 * @param toWrite
+	 */
+	private void writeHelp(Connection conn, List<BankData> toWrite) throws BankDAOException, SQLException{
+		
+		List<UserProfile> profiles = new ArrayList<>();
+		List<BankAccount> accounts = new ArrayList<>();
+		List<TransactionRecord> records = new ArrayList<>();
+		
+		// ownership is replaced wholesale for every profile and account written, and the
+		// last one written wins, as if they had been written one at a time
+		Set<Integer> replacedUsers = new HashSet<>();
+		Set<Integer> replacedAccounts = new HashSet<>();
+		List<int[]> ownerships = new ArrayList<>(); // {user_id, account_id}
+		
+		for (BankData bd : toWrite) {
+			if (bd instanceof UserProfile) {
+				UserProfile up = (UserProfile)bd;
+				profiles.add(up);
+				replacedUsers.add(up.getId());
+				ownerships.removeIf(pair -> pair[0] == up.getId());
+				for (int accID : up.getOwnedAccounts()) {
+					ownerships.add(new int[] {up.getId(), accID});
+				}
+			}
+			else if (bd instanceof BankAccount) {
+				BankAccount ba = (BankAccount)bd;
+				accounts.add(ba);
+				replacedAccounts.add(ba.getId());
+				ownerships.removeIf(pair -> pair[1] == ba.getId());
+				for (int ownerID : ba.getOwners()) {
+					ownerships.add(new int[] {ownerID, ba.getId()});
+				}
+			}
+			else if (bd instanceof TransactionRecord) {
+				records.add((TransactionRecord)bd);
+			}
+			else { // should never be reached
+				log.log(Level.ERROR, "Unrecognized child of BankData in writeHelp: " + bd.getClass());
+				throw new BankDAOException(WRITE_BANKDATA_NO_RECOGNIED_MESSAGE);
+			}
+		}
+		
+		writeUserProfiles(conn, profiles);
+		writeBankAccounts(conn, accounts);
+		writeOwnerships(conn, replacedUsers, replacedAccounts, ownerships);
+		writeTransactionRecords(conn, records);
+	}
 
 	/**
-	 * Helper method to write a single user profile
-	 * @param up
+	 * Helper method to write user profiles
+	 * @param conn
+	 * @param profiles
 	 */
-	private void writeUserProfile(Connection conn, UserProfile up) throws SQLException{
-		
-		// the only thing that changes is the owned accounts.
-		// try to insert the user, if there's a conflict, don't change anything.
-		// separately, update the owned accounts relationship
-		
-		String sql;
-		PreparedStatement pstm;
-		
-		sql = "INSERT INTO user_profile (user_id, username, password, type)" 
-				+ "VALUES (?, ?, ? ,?)"
-				+ "ON CONFLICT (user_id) DO NOTHING;";
-		pstm = conn.prepareStatement(sql);
-		pstm.setInt(1, up.getId());
-		pstm.setString(2, up.getUsername());
-		pstm.setString(3, up.getPassword());
-		pstm.setString(4, "" + up.getType()); // easy way of enum to string
-		pstm.execute();
-		
-		// now handle the owned accounts
-		// I think the easiest way to do this is to delete all of the ownership records for this user
-		// and then re-add only the ones that still exist
-		sql = "DELETE FROM account_ownership WHERE user_id = ?;";
-		pstm = conn.prepareStatement(sql);
-		pstm.setInt(1, up.getId());
-		pstm.execute();
-		
-		sql = "INSERT INTO account_ownership (user_id, account_id) VALUES (?, ?);";
-		for (int accID : up.getOwnedAccounts()) {
-			pstm = conn.prepareStatement(sql);
-			pstm.setInt(1, up.getId());
-			pstm.setInt(2, accID);
-			pstm.execute();
+	private void writeUserProfiles(Connection conn, List<UserProfile> profiles) throws SQLException{
+		
+		if (profiles.isEmpty()) {
+			return;
+		}
+		
+		// the only thing that changes is the owned accounts, see writeOwnerships.
+		// try to insert the user, if there's a conflict, only move its version on.
+		String sql = "INSERT INTO user_profile (user_id, username, password, type, version)" 
+				+ "VALUES (?, ?, ? ,?, 1)"
+				+ "ON CONFLICT (user_id) DO UPDATE SET version = user_profile.version + 1;";
+		
+		try (PreparedStatement pstm = conn.prepareStatement(sql)) {
+			for (UserProfile up : profiles) {
+				pstm.setInt(1, up.getId());
+				pstm.setString(2, up.getUsername());
+				pstm.setString(3, up.getPassword());
+				pstm.setShort(4, codeOf(PROFILE_TYPE_CODES, up.getType()));
+				pstm.addBatch();
+			}
+			pstm.executeBatch();
 		}
 	}
 	
 	/**
-	 * Helper method to write a single bank account
-	 * @param ba
+	 * Helper method to write bank accounts
+	 * @param conn
+	 * @param accounts
 	 */
-	private void writeBankAccount(Connection conn, BankAccount ba) throws SQLException{
+	private void writeBankAccounts(Connection conn, List<BankAccount> accounts) throws SQLException{
 		
-		String sql;
-		PreparedStatement pstm;
+		if (accounts.isEmpty()) {
+			return;
+		}
 		
-		sql = "INSERT INTO bank_account (account_id, status, type, funds)" 
+		String sql = "INSERT INTO bank_account (account_id, status, type, funds)" 
 				+ "VALUES (?, ?, ? ,?) "
 				+ "ON CONFLICT (account_id) DO UPDATE "
 				+ "SET status = ?,"
 				+ "type = ?,"
-				+ "funds = ?;";
-		pstm = conn.prepareStatement(sql);
-		pstm.setInt(1, ba.getId());
-		pstm.setString(2, "" + ba.getStatus());
-		pstm.setString(3, "" + ba.getType());
-		pstm.setInt(4, ba.getFunds());
-		pstm.setString(5, "" + ba.getStatus());
-		pstm.setString(6, "" + ba.getType());
-		pstm.setInt(7, ba.getFunds());
-		pstm.execute();
-		
-		// now update the ownership relation
-		sql = "DELETE FROM account_ownership WHERE account_id = ?;";
-		pstm = conn.prepareStatement(sql);
-		pstm.setInt(1, ba.getId());
-		pstm.execute();
-		
-		sql = "INSERT INTO account_ownership (user_id, account_id) VALUES (?, ?);";
-		for (int ownerID : ba.getOwners()) {
-			pstm = conn.prepareStatement(sql);
-			pstm.setInt(1, ownerID);
-			pstm.setInt(2, ba.getId());
-			pstm.execute();
+				+ "funds = ?,"
+				+ "version = bank_account.version + 1;";
+		
+		try (PreparedStatement pstm = conn.prepareStatement(sql)) {
+			for (BankAccount ba : accounts) {
+				pstm.setInt(1, ba.getId());
+				pstm.setShort(2, codeOf(ACCOUNT_STATUS_CODES, ba.getStatus()));
+				pstm.setShort(3, codeOf(ACCOUNT_TYPE_CODES, ba.getType()));
+				pstm.setInt(4, ba.getFunds());
+				pstm.setShort(5, codeOf(ACCOUNT_STATUS_CODES, ba.getStatus()));
+				pstm.setShort(6, codeOf(ACCOUNT_TYPE_CODES, ba.getType()));
+				pstm.setInt(7, ba.getFunds());
+				pstm.addBatch();
+			}
+			pstm.executeBatch();
 		}
 	}
 	
 	/**
-	 * Helper method to write a single TransactionRecord
+	 * Helper method for writeIfUnchanged: writes the account's own row, if it is still at the
+	 * given version.
 	 * @param conn
-	 * @param tr
+	 * @param ba
+	 * @return true if the row was written
+	 * @throws SQLException
 	 */
-	private void writeTransactionRecord(Connection conn, TransactionRecord tr) throws SQLException {
+	private boolean writeBankAccountIfVersion(Connection conn, BankAccount ba) throws SQLException {
 		
-		String sql;
-		PreparedStatement pstm;
-
-		sql = "INSERT INTO transaction_record (transaction_id, time, type, acting_user, "
+		String sql = "UPDATE bank_account SET status = ?, type = ?, funds = ?, version = version + 1 "
+				+ "WHERE account_id = ? AND version = ?;";
+		
+		try (PreparedStatement pstm = conn.prepareStatement(sql)) {
+			pstm.setShort(1, codeOf(ACCOUNT_STATUS_CODES, ba.getStatus()));
+			pstm.setShort(2, codeOf(ACCOUNT_TYPE_CODES, ba.getType()));
+			pstm.setInt(3, ba.getFunds());
+			pstm.setInt(4, ba.getId());
+			pstm.setInt(5, ba.getVersion());
+			
+			if (pstm.executeUpdate() == 1) {
+				return true;
+			}
+		}
+		
+		if (ba.getVersion() != 0) {
+			return false;
+		}
+		
+		// a read of an account that doesn't exist gives version 0
+		sql = "INSERT INTO bank_account (account_id, status, type, funds, version) "
+				+ "VALUES (?, ?, ?, ?, 1) ON CONFLICT (account_id) DO NOTHING;";
+		
+		try (PreparedStatement pstm = conn.prepareStatement(sql)) {
+			pstm.setInt(1, ba.getId());
+			pstm.setShort(2, codeOf(ACCOUNT_STATUS_CODES, ba.getStatus()));
+			pstm.setShort(3, codeOf(ACCOUNT_TYPE_CODES, ba.getType()));
+			pstm.setInt(4, ba.getFunds());
+			
+			return pstm.executeUpdate() == 1;
+		}
+	}
+	
+	/**
+	 * Helper method for writeIfUnchanged: locks the row of each profile in the list, and checks
+	 * it is still at the profile's version. Writing the profile moves the version on.
+	 * @param conn
+	 * @param data : may hold other BankData too, which is skipped
+	 * @return true if every profile is unchanged
+	 * @throws SQLException
+	 */
+	private boolean profilesAtVersion(Connection conn, List<BankData> data) throws SQLException {
+		
+		String sql = "SELECT version FROM user_profile WHERE user_id = ? FOR UPDATE;";
+		
+		try (PreparedStatement pstm = conn.prepareStatement(sql)) {
+			for (BankData bd : data) {
+				if (!(bd instanceof UserProfile)) {
+					continue;
+				}
+				
+				UserProfile up = (UserProfile)bd;
+				pstm.setInt(1, up.getId());
+				
+				try (ResultSet rs = pstm.executeQuery()) {
+					// a read of a profile that doesn't exist gives version 0
+					int version = rs.next() ? rs.getInt("version") : 0;
+					if (version != up.getVersion()) {
+						return false;
+					}
+				}
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Helper method to update the ownership relation. 
+	 * I think the easiest way to do this is to delete all of the ownership records for the
+	 * written users and accounts, and then re-add only the ones that still exist.
+	 * @param conn
+	 * @param users : whose ownership rows are replaced
+	 * @param accounts : whose ownership rows are replaced
+	 * @param ownerships : the rows to add, as {user_id, account_id}
+	 */
+	private void writeOwnerships(Connection conn, Set<Integer> users, Set<Integer> accounts, 
+			List<int[]> ownerships) throws SQLException{
+		
+		deleteOwnerships(conn, "DELETE FROM account_ownership WHERE user_id = ?;", users);
+		deleteOwnerships(conn, "DELETE FROM account_ownership WHERE account_id = ?;", accounts);
+		
+		if (ownerships.isEmpty()) {
+			return;
+		}
+		
+		String sql = "INSERT INTO account_ownership (user_id, account_id) VALUES (?, ?);";
+		
+		try (PreparedStatement pstm = conn.prepareStatement(sql)) {
+			for (int[] pair : ownerships) {
+				pstm.setInt(1, pair[0]);
+				pstm.setInt(2, pair[1]);
+				pstm.addBatch();
+			}
+			pstm.executeBatch();
+		}
+	}
+	
+	/**
+	 * Runs the given DELETE once per ID, as a batch
+	 * @param conn
+	 * @param sql
+	 * @param ids
+	 */
+	private void deleteOwnerships(Connection conn, String sql, Set<Integer> ids) throws SQLException{
+		
+		if (ids.isEmpty()) {
+			return;
+		}
+		
+		try (PreparedStatement pstm = conn.prepareStatement(sql)) {
+			for (int id : ids) {
+				pstm.setInt(1, id);
+				pstm.addBatch();
+			}
+			pstm.executeBatch();
+		}
+	}
+	
+	/**
+	 * Helper method to write TransactionRecords
+	 * @param conn
+	 * @param records
+	 */
+	private void writeTransactionRecords(Connection conn, List<TransactionRecord> records) throws SQLException {
+		
+		if (records.isEmpty()) {
+			return;
+		}
+		
+		String sql = "INSERT INTO transaction_record (transaction_id, time, type, acting_user, "
 				+ "source_account, destination_account, money_amount) "
 				+ "VALUES (?, ? , ?, ?, ?, ?, ?) "
 				+ "ON CONFLICT (transaction_id) DO NOTHING;"; // should never be overwritten
-		pstm = conn.prepareStatement(sql);
-		pstm.setInt(1, tr.getId());
-		pstm.setString(2, tr.getTime());
-		pstm.setString(3, "" + tr.getType());
-		pstm.setInt(4, tr.getActingUser());
-		pstm.setInt(5, tr.getSourceAccount());
-		pstm.setInt(6, tr.getDestinationAccount());
-		pstm.setInt(7, tr.getMoneyAmount());
-		pstm.execute();
+		
+		try (PreparedStatement pstm = conn.prepareStatement(sql)) {
+			for (TransactionRecord tr : records) {
+				pstm.setInt(1, tr.getId());
+				pstm.setTimestamp(2, toTimestamp(tr.getTime()));
+				pstm.setShort(3, codeOf(TRANSACTION_TYPE_CODES, tr.getType()));
+				pstm.setInt(4, tr.getActingUser());
+				pstm.setInt(5, tr.getSourceAccount());
+				pstm.setInt(6, tr.getDestinationAccount());
+				pstm.setInt(7, tr.getMoneyAmount());
+				pstm.addBatch();
+			}
+			pstm.executeBatch();
+		}
 	}
 	
 	// util methods ------------------------------------------------------------
 	
+	/**
+	 * enum (or its String) -> SMALLINT code, see ACCOUNT_STATUS_CODES etc
+	 * @param codes
+	 * @param value
+	 * @return the code, or 0 (NONE) if the value isn't in the array
+	 */
+	static short codeOf(String[] codes, Object value) {
+		
+		String s = "" + value;
+		for (short i = 0; i < codes.length; i++) {
+			if (codes[i].equals(s)) {
+				return i;
+			}
+		}
+		
+		return 0;
+	}
+	
+	/**
+	 * SMALLINT code -> String, which the stringTo methods turn into the enum
+	 * @param codes
+	 * @param code
+	 * @return
+	 */
+	private static String codeToString(String[] codes, short code) {
+		return code >= 0 && code < codes.length ? codes[code] : codes[0];
+	}
+	
+	/**
+	 * Transaction times are ISO-8601 local date-times (as made by LocalDateTime.toString()),
+	 * and are stored as TIMESTAMPTZ in this machine's time zone.
+	 * @param time
+	 * @return
+	 * @throws SQLException if the time can't be parsed, so the write fails like any other
+	 */
+	static Timestamp toTimestamp(String time) throws SQLException {
+		
+		try {
+			return Timestamp.valueOf(LocalDateTime.parse(time));
+		}
+		catch (DateTimeParseException | NullPointerException e) {
+			throw new SQLException("Not a valid transaction time: " + time);
+		}
+	}
+	
+	/**
+	 * The other direction of toTimestamp
+	 * @param timestamp
+	 * @return
+	 */
+	private static String fromTimestamp(Timestamp timestamp) {
+		return timestamp == null ? null : timestamp.toLocalDateTime().toString();
+	}
+	
 	/**
 	 * String -> enum
 	 * @param s
@@ -883,4 +1647,54 @@ public class PostgresDAO implements BankDAO {
 				return TransactionType.NONE;
 		}
 	}
+	
+	// nested classes ------------------------------------------------------------
+	
+	/**
+	 * Turns the current row of a ResultSet into an object, for ResultSetCursor.
+	 */
+	private interface RowMapper<T> {
+		T map(ResultSet rs) throws SQLException;
+	}
+	
+	/**
+	 * See openResultSetCursor(). Owns its connection until it is closed.
+	 */
+	private static class ResultSetCursor<T extends BankData> extends AbstractBankDataCursor<T> {
+		
+		private final Connection conn;
+		private final ResultSet rs;
+		private final RowMapper<T> mapper;
+		
+		private ResultSetCursor(Connection conn, ResultSet rs, RowMapper<T> mapper) {
+			this.conn = conn;
+			this.rs = rs;
+			this.mapper = mapper;
+		}
+		
+		@Override
+		protected T fetch() throws BankDAOException {
+			
+			try {
+				return rs.next() ? mapper.map(rs) : null;
+			}
+			catch (SQLException e) {
+				log.log(Level.ERROR, "SQL exception in ResultSetCursor: " + e.getMessage());
+				throw new BankDAOException(RESULT_SET_ERROR_MESSAGE);
+			}
+		}
+		
+		@Override
+		protected void release() {
+			
+			try {
+				rs.close(); // closes the server-side cursor
+			}
+			catch (SQLException e) {
+				// the rollback below takes care of it
+			}
+			
+			closeQuietly(conn);
+		}
+	}
 }
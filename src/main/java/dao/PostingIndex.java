@@ -0,0 +1,402 @@
+/**
+ * An on-disk secondary index from an int key (eg a user or account ID) to the positions
+ * of every entry in a bank data file that has that key. Used by the TextFileDAO to find
+ * a user's or an account's transaction history without reading every record.
+ *
+ * The index file holds a hash table of keys, followed by the postings themselves:
+ * 	header: [int magic][int slot count][int used slots][int unused]
+ * 			[long data file length][long data file last modified]
+ * 	each slot: [int occupied][int key][long newest posting], where 0 means the slot is empty
+ * 	each posting: [long entry offset][long previous posting for the same key, or -1]
+ * 			[int entry ID][int unused]
+ *
+ * So each key's postings form a chain running back through the file, newest first, and a
+ * lookup only reads the postings for that key. Each posting also holds its entry's ID, so
+ * a page of IDs can be picked out of a chain before any entry is read (see postings()). Postings are numbered from the end of the
+ * hash table, so the table can grow without touching the chains.
+ * Like the UsernameIndex, the header remembers the size and modification time of the
+ * data file as of the last update, so a stale index can be detected and rebuilt.
+ *
+ * @author Andrew Curry
+ */
+package dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+public class PostingIndex {
+
+	// class/static variables
+	private static final int MAGIC = 0x50535432; // "PST2"; files from before entry IDs are rebuilt
+	private static final int HEADER_SIZE = 32;
+	private static final int SLOT_SIZE = 16;
+	private static final int POSTING_SIZE = 24;
+	private static final int MIN_SLOTS = 256; // always a power of 2
+	private static final int OCCUPIED = 1;
+	private static final long NO_POSTING = -1;
+
+	// instance variables
+	private String dataFilename;
+	private String indexFilename;
+	private int slotCount;
+	private int used;
+
+	// constructor
+	public PostingIndex(String dataFilename, String indexFilename) {
+		this.dataFilename = dataFilename;
+		this.indexFilename = indexFilename;
+		this.slotCount = 0;
+		this.used = 0;
+	}
+
+	// methods
+
+	/**
+	 * Checks the index file's header against the data file.
+	 * @return true if the index file exists and is up to date with the data file
+	 * @throws IOException
+	 */
+	public synchronized boolean isCurrent() throws IOException {
+
+		Path path = Paths.get(indexFilename);
+
+		if (!Files.exists(path)) {
+			return false;
+		}
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			if (channel.read(header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC) {
+				return false;
+			}
+
+			File dataFile = new File(dataFilename);
+			if (header.getLong(16) != dataFile.length() || header.getLong(24) != dataFile.lastModified()) {
+				return false;
+			}
+
+			slotCount = header.getInt(4);
+			used = header.getInt(8);
+			return channel.size() >= postingsStart(slotCount);
+		}
+	}
+
+	/**
+	 * @param key
+	 * @return the offset of every entry indexed under the key, in the order they were added
+	 * @throws IOException
+	 */
+	public List<Long> find(int key) throws IOException {
+
+		List<Posting> postings = postings(key);
+		List<Long> offsets = new ArrayList<>(postings.size());
+
+		for (Posting p : postings) {
+			offsets.add(p.getOffset());
+		}
+
+		Collections.reverse(offsets);
+		return offsets;
+	}
+
+	/**
+	 * Only reads the index file, not the data file.
+	 * @param key
+	 * @return every posting under the key, newest (last added) first
+	 * @throws IOException
+	 */
+	public synchronized List<Posting> postings(int key) throws IOException {
+
+		List<Posting> postings = new ArrayList<>();
+
+		try (FileChannel channel = FileChannel.open(Paths.get(indexFilename), StandardOpenOption.READ)) {
+
+			ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+			findSlot(channel, key, slot);
+
+			if (slot.getInt(0) != OCCUPIED) {
+				return postings; // never seen this key
+			}
+
+			// follow the chain back from the newest posting
+			ByteBuffer buffer = ByteBuffer.allocate(POSTING_SIZE);
+			long posting = slot.getLong(8);
+			while (posting != NO_POSTING) {
+				readFully(channel, postingsStart(slotCount) + posting * POSTING_SIZE, buffer);
+				postings.add(new Posting(buffer.getLong(0), buffer.getInt(16)));
+				posting = buffer.getLong(8);
+			}
+		}
+
+		return postings;
+	}
+
+	/**
+	 * Adds an entry to the key's postings. Call markCurrent() once the data file
+	 * has stopped changing.
+	 * @param key
+	 * @param offset : where the entry starts in the data file
+	 * @param entryID
+	 * @throws IOException
+	 */
+	public synchronized void add(int key, long offset, int entryID) throws IOException {
+
+		if ((used + 1) * 2 > slotCount) {
+			grow();
+		}
+
+		try (FileChannel channel = FileChannel.open(Paths.get(indexFilename),
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+			ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+			int i = findSlot(channel, key, slot);
+			long previous = NO_POSTING;
+
+			if (slot.getInt(0) == OCCUPIED) {
+				previous = slot.getLong(8);
+			}
+			else {
+				used++;
+			}
+
+			long posting = (channel.size() - postingsStart(slotCount)) / POSTING_SIZE;
+			ByteBuffer newPosting = ByteBuffer.allocate(POSTING_SIZE);
+			newPosting.putLong(0, offset);
+			newPosting.putLong(8, previous);
+			newPosting.putInt(16, entryID);
+			writeFully(channel, postingsStart(slotCount) + posting * POSTING_SIZE, newPosting);
+
+			slot.clear();
+			slot.putInt(0, OCCUPIED);
+			slot.putInt(4, key);
+			slot.putLong(8, posting);
+			writeFully(channel, slotPosition(i), slot);
+		}
+	}
+
+	/**
+	 * Throws away the index file, and writes a new one holding exactly the given postings.
+	 * Also marks the index as up to date with the data file.
+	 * @param postings : key -> entries, in file order
+	 * @throws IOException
+	 */
+	public synchronized void rebuild(Map<Integer, List<Posting>> postings) throws IOException {
+
+		int newSlotCount = MIN_SLOTS;
+		while (newSlotCount < postings.size() * 2) {
+			newSlotCount *= 2;
+		}
+
+		int postingCount = 0;
+		for (List<Posting> chain : postings.values()) {
+			postingCount += chain.size();
+		}
+
+		ByteBuffer table = ByteBuffer.allocate(newSlotCount * SLOT_SIZE);
+		ByteBuffer chains = ByteBuffer.allocate(postingCount * POSTING_SIZE);
+		long posting = 0;
+
+		for (Map.Entry<Integer, List<Posting>> e : postings.entrySet()) {
+			long previous = NO_POSTING;
+
+			for (Posting p : e.getValue()) {
+				chains.putLong(p.getOffset());
+				chains.putLong(previous);
+				chains.putInt(p.getEntryID());
+				chains.putInt(0);
+				previous = posting++;
+			}
+
+			insert(table, newSlotCount, e.getKey(), previous);
+		}
+
+		writeIndex(table, newSlotCount, postings.size(), chains);
+	}
+
+	/**
+	 * Records the current size and modification time of the data file in the header,
+	 * so that the next isCurrent() check passes.
+	 * @throws IOException
+	 */
+	public synchronized void markCurrent() throws IOException {
+
+		File dataFile = new File(dataFilename);
+		ByteBuffer stamp = ByteBuffer.allocate(16);
+		stamp.putLong(0, dataFile.length());
+		stamp.putLong(8, dataFile.lastModified());
+
+		ByteBuffer count = ByteBuffer.allocate(4);
+		count.putInt(0, used);
+
+		try (FileChannel channel = FileChannel.open(Paths.get(indexFilename), StandardOpenOption.WRITE)) {
+			writeFully(channel, 16, stamp);
+			writeFully(channel, 8, count);
+		}
+	}
+
+	// helper methods
+
+	/**
+	 * Probes the hash table for the key.
+	 * @param slot : left holding the contents of the returned slot
+	 * @return the slot holding the key, or the empty slot where it would go
+	 * @throws IOException
+	 */
+	private int findSlot(FileChannel channel, int key, ByteBuffer slot) throws IOException {
+
+		int i = hash(key) & (slotCount - 1);
+
+		while (true) {
+			readFully(channel, slotPosition(i), slot);
+
+			if (slot.getInt(0) != OCCUPIED || slot.getInt(4) == key) {
+				return i;
+			}
+
+			i = (i + 1) & (slotCount - 1);
+		}
+	}
+
+	/**
+	 * Doubles the size of the hash table. The postings are copied across as they are.
+	 * @throws IOException
+	 */
+	private void grow() throws IOException {
+
+		int newSlotCount = Math.max(MIN_SLOTS, slotCount * 2);
+		ByteBuffer table = ByteBuffer.allocate(newSlotCount * SLOT_SIZE);
+		ByteBuffer chains;
+
+		try (FileChannel channel = FileChannel.open(Paths.get(indexFilename), StandardOpenOption.READ)) {
+
+			ByteBuffer old = ByteBuffer.allocate(slotCount * SLOT_SIZE);
+			readFully(channel, HEADER_SIZE, old);
+
+			for (int i = 0; i < slotCount; i++) {
+				if (old.getInt(i * SLOT_SIZE) == OCCUPIED) {
+					insert(table, newSlotCount, old.getInt(i * SLOT_SIZE + 4), old.getLong(i * SLOT_SIZE + 8));
+				}
+			}
+
+			chains = ByteBuffer.allocate((int)(channel.size() - postingsStart(slotCount)));
+			readFully(channel, postingsStart(slotCount), chains);
+		}
+
+		writeIndex(table, newSlotCount, used, chains);
+	}
+
+	/**
+	 * Places a slot in an in-memory table, without checking for duplicates.
+	 */
+	private static void insert(ByteBuffer table, int tableSlots, int key, long newestPosting) {
+
+		int i = hash(key) & (tableSlots - 1);
+		while (table.getInt(i * SLOT_SIZE) == OCCUPIED) {
+			i = (i + 1) & (tableSlots - 1);
+		}
+
+		table.putInt(i * SLOT_SIZE, OCCUPIED);
+		table.putInt(i * SLOT_SIZE + 4, key);
+		table.putLong(i * SLOT_SIZE + 8, newestPosting);
+	}
+
+	/**
+	 * Writes a complete index file next to the old one and moves it into place.
+	 * @throws IOException
+	 */
+	private void writeIndex(ByteBuffer table, int newSlotCount, int newUsed, ByteBuffer chains) throws IOException {
+
+		File dataFile = new File(dataFilename);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(0, MAGIC);
+		header.putInt(4, newSlotCount);
+		header.putInt(8, newUsed);
+		header.putLong(16, dataFile.length());
+		header.putLong(24, dataFile.lastModified());
+
+		Path tempPath = Paths.get(indexFilename + ".tmp");
+
+		try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			table.clear();
+			chains.flip();
+			ByteBuffer[] contents = {header, table, chains};
+			while (header.hasRemaining() || table.hasRemaining() || chains.hasRemaining()) {
+				channel.write(contents);
+			}
+		}
+
+		Files.move(tempPath, Paths.get(indexFilename),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		slotCount = newSlotCount;
+		used = newUsed;
+	}
+
+	private static void readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+
+		buffer.clear();
+		while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+			// keep reading
+		}
+	}
+
+	private static void writeFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+
+		buffer.clear();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer, position + buffer.position());
+		}
+	}
+
+	private static long slotPosition(int i) {
+		return HEADER_SIZE + (long)i * SLOT_SIZE;
+	}
+
+	private static long postingsStart(int slots) {
+		return HEADER_SIZE + (long)slots * SLOT_SIZE;
+	}
+
+	private static int hash(int key) {
+
+		int h = key * 0x9e3779b9;
+		return h ^ (h >>> 16);
+	}
+
+	// nested classes
+
+	/**
+	 * Where an entry is, and its ID.
+	 */
+	public static class Posting {
+
+		private final long offset;
+		private final int entryID;
+
+		public Posting(long offset, int entryID) {
+			this.offset = offset;
+			this.entryID = entryID;
+		}
+
+		public long getOffset() {
+			return offset;
+		}
+
+		public int getEntryID() {
+			return entryID;
+		}
+	}
+}
@@ -11,10 +11,37 @@ import java.io.BufferedWriter;
 import java.io.Closeable;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
 
 import com.revature.bankDataObjects.BankAccount;
 import com.revature.bankDataObjects.BankData;
@@ -27,7 +54,50 @@ import com.revature.bankDataObjects.TransactionRecord.TransactionType;
 
 public class TextFileDAO implements BankDAO {
 	
+	// enums
+	
+	/**
+	 * Optional storage behaviors, passed to the constructor.
+	 * With no options, every call goes straight to the file.
+	 */
+	public enum StorageOption {
+		INDEXED, // load the file once into hash indexes, and serve reads from memory
+		APPEND_ONLY, // append new versions of entries instead of rewriting the file, compact later
+		USERNAME_INDEX, // keep a hash index of usernames in a file next to the data file
+		HISTORY_INDEX, // keep indexes of transaction records by user and by account next to the data file
+		JOURNALED, // make writes durable through a write-ahead journal, and replay it on startup
+		PARTITIONED // keep profiles, accounts and transactions in separate files, see partitionFile()
+	}
+	
 	// class/static variables
+	private static Logger log = Logger.getLogger(TextFileDAO.class);
+	
+	// append-only files are compacted once this many bytes (or the size of the compacted
+	// file, whichever is bigger) have been appended, or when the background check finds
+	// anything to merge
+	private static final long DEFAULT_COMPACTION_THRESHOLD = 1024 * 1024;
+	private static final long COMPACTION_CHECK_SECONDS = 60;
+	
+	// with the JOURNALED option, the data file is synced and the journal emptied once the
+	// journal grows past this many bytes
+	private static final long DEFAULT_CHECKPOINT_THRESHOLD = 1024 * 1024;
+	private static final String JOURNAL_EXTENSION = ".wal";
+	
+	// with the PARTITIONED option, profiles and accounts get a file each, and transaction
+	// records are spread over this many files by ID. the extensions are added to the filename.
+	public static final int TRANSACTION_PARTITIONS = 8;
+	private static final String PROFILE_FILE_EXTENSION = ".prf";
+	private static final String ACCOUNT_FILE_EXTENSION = ".acc";
+	private static final String TRANSACTION_FILE_EXTENSION = ".trr"; // + the partition number
+	private static final int ALL_PARTITIONS = -1; // a file holding every transaction record
+	private static final int NO_PARTITION = -2; // a file holding no transaction records
+	
+	private static final int NO_ACCOUNT = -1; // same as in a TRR entry
+	
+	// file extensions for the HISTORY_INDEX files, added to the data filename
+	private static final String ACTING_USER_INDEX_EXTENSION = ".byuser";
+	private static final String ACCOUNT_HISTORY_INDEX_EXTENSION = ".byacct";
+	
 	private static final String USER_PROFILE_PREFIX = "PRF";
 	private static final String BANK_ACCOUNT_PREFIX = "ACC";
 	private static final String TRANSACTION_RECORD_PREFIX = "TRR";
@@ -57,24 +127,154 @@ public class TextFileDAO implements BankDAO {
 	private static final String TRANSACTION_TYPE_USER_REGISTERED = "URG";
 	private static final String TRANSACTION_TYPE_NONE = "NON";
 	
+	// lookup tables for the EntryParser: each code lines up with the value at the same index
+	private static final String[] ENTRY_PREFIXES = {
+			USER_PROFILE_PREFIX, BANK_ACCOUNT_PREFIX, TRANSACTION_RECORD_PREFIX};
+	
+	private static final String[] ACCOUNT_STATUS_CODES = {
+			ACCOUNT_STATUS_OPEN, ACCOUNT_STATUS_CLOSED, ACCOUNT_STATUS_PENDING, ACCOUNT_STATUS_NONE};
+	private static final BankAccountStatus[] ACCOUNT_STATUSES = {
+			BankAccountStatus.OPEN, BankAccountStatus.CLOSED, BankAccountStatus.PENDING, BankAccountStatus.NONE};
+	
+	private static final String[] ACCOUNT_TYPE_CODES = {
+			ACCOUNT_TYPE_SINGLE, ACCOUNT_TYPE_JOINT, ACCOUNT_TYPE_NONE};
+	private static final BankAccountType[] ACCOUNT_TYPES = {
+			BankAccountType.SINGLE, BankAccountType.JOINT, BankAccountType.NONE};
+	
+	private static final String[] PROFILE_TYPE_CODES = {
+			PROFILE_TYPE_CUSTOMER, PROFILE_TYPE_EMPLOYEE, PROFILE_TYPE_ADMIN, PROFILE_TYPE_NONE};
+	private static final UserProfileType[] PROFILE_TYPES = {
+			UserProfileType.CUSTOMER, UserProfileType.EMPLOYEE, UserProfileType.ADMIN, UserProfileType.NONE};
+	
+	private static final String[] TRANSACTION_TYPE_CODES = {
+			TRANSACTION_TYPE_ACCOUNT_REGISTERED, TRANSACTION_TYPE_ACCOUNT_APPROVED, 
+			TRANSACTION_TYPE_ACCOUNT_CLOSED, TRANSACTION_TYPE_ACCOUNT_OWNER_ADDED, 
+			TRANSACTION_TYPE_ACCOUNT_OWNER_REMOVED, TRANSACTION_TYPE_FUNDS_TRANSFERED, 
+			TRANSACTION_TYPE_FUNDS_DEPOSITED, TRANSACTION_TYPE_FUNDS_WITHDRAWN, 
+			TRANSACTION_TYPE_USER_REGISTERED, TRANSACTION_TYPE_NONE};
+	private static final TransactionType[] TRANSACTION_TYPES = {
+			TransactionType.ACCOUNT_REGISTERED, TransactionType.ACCOUNT_APPROVED, 
+			TransactionType.ACCOUNT_CLOSED, TransactionType.ACCOUNT_OWNER_ADDED, 
+			TransactionType.ACCOUNT_OWNER_REMOVED, TransactionType.FUNDS_TRANSFERRED, 
+			TransactionType.FUNDS_DEPOSITED, TransactionType.FUNDS_WITHDRAWN, 
+			TransactionType.USER_REGISTERED, TransactionType.NONE};
+	
 	// instance variables
 	private String filename;
 	private BufferedReader reader;
 	private BufferedWriter writer;
+	private EnumSet<StorageOption> options;
+	private List<Segment> segments; // the files holding the data, see Segment
+	
+	// in-memory indexes, only used with the INDEXED option.
+	// entries are kept as strings, keyed by ID, in file order.
+	// guarded by this: plain maps, so every read as well as every write must hold the lock
+	private Map<Integer, String> profileIndex;
+	private Map<Integer, String> accountIndex;
+	private Map<Integer, String> transactionIndex;
+	private Map<String, Integer> usernameIndex; // username -> user ID
+	
+	// append-only bookkeeping, only used with the APPEND_ONLY option (see also Segment)
+	private long compactionThreshold;
+	private boolean compactionPending;
+	private ScheduledExecutorService compactor;
+	
+	// write-ahead journal, only used with the JOURNALED option
+	private WriteAheadJournal journal;
+	private long checkpointThreshold;
+	
+	// new IDs are handed out in blocks, so most allocations don't need a scan
+	private IdAllocator profileIDs;
+	private IdAllocator accountIDs;
+	private IdAllocator transactionIDs;
+	private IdAllocator.AfterHighest profileIDSource; // told about stored IDs, see noteStoredIDs()
+	private IdAllocator.AfterHighest accountIDSource;
+	private IdAllocator.AfterHighest transactionIDSource;
+	
+	// the file has no room for versions, see writeIfUnchanged()
+	private final DataVersions accountVersions = new DataVersions(BankAccount.class);
+	private final DataVersions profileVersions = new DataVersions(UserProfile.class);
+	private final WriteListeners writeListeners = new WriteListeners();
 	
 	// constructor(s)
 	public TextFileDAO(String filename) throws BankDAOException {
+		this(filename, new StorageOption[0]);
+	}
+	
+	public TextFileDAO(String filename, StorageOption... options) throws BankDAOException {
 		this.filename = filename;
+		this.options = EnumSet.noneOf(StorageOption.class);
+		this.segments = new ArrayList<>();
 		
-		// make sure the filename is valid
-		try {
-			reader = openFileReader();
+		for (StorageOption o : options) {
+			this.options.add(o);
 		}
-		catch (BankDAOException e) {
-			throw e;
+		
+		if (isPartitioned()) {
+			segments.add(new Segment(filename + PROFILE_FILE_EXTENSION, true, false, NO_PARTITION));
+			segments.add(new Segment(filename + ACCOUNT_FILE_EXTENSION, false, true, NO_PARTITION));
+			
+			for (int i = 0; i < TRANSACTION_PARTITIONS; i++) {
+				segments.add(new Segment(filename + TRANSACTION_FILE_EXTENSION + i, false, false, i));
+			}
+			
+			// a new set of partitions starts out empty
+			for (Segment seg : segments) {
+				try {
+					new File(seg.filename).createNewFile();
+				}
+				catch (IOException e) {
+					throw (new BankDAOException("Could not create file: " + seg.filename));
+				}
+			}
+		}
+		else {
+			// make sure the filename is valid
+			try {
+				reader = openFileReader();
+			}
+			catch (BankDAOException e) {
+				throw e;
+			}
+			
+			closeFile(reader);
+			segments.add(new Segment(filename, true, true, ALL_PARTITIONS));
+		}
+		
+		if (isIndexed()) {
+			loadIndexes();
+		}
+		
+		for (Segment seg : segments) {
+			openFileIndexes(seg);
+		}
+		
+		profileIDSource = IdAllocator.afterHighest(this::getHighestUserProfileID);
+		accountIDSource = IdAllocator.afterHighest(this::getHighestBankAccountID);
+		transactionIDSource = IdAllocator.afterHighest(this::getHighestTransactionRecordID);
+		profileIDs = new IdAllocator(profileIDSource);
+		accountIDs = new IdAllocator(accountIDSource);
+		transactionIDs = new IdAllocator(transactionIDSource);
+		
+		if (isAppendOnly()) {
+			compactionThreshold = DEFAULT_COMPACTION_THRESHOLD;
+			compactionPending = false;
+			
+			compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "TextFileDAO-compactor");
+				t.setDaemon(true);
+				return t;
+			});
+			compactor.scheduleWithFixedDelay(
+					this::backgroundCompact, 
+					COMPACTION_CHECK_SECONDS, 
+					COMPACTION_CHECK_SECONDS, 
+					TimeUnit.SECONDS);
 		}
 		
-		closeFile(reader);
+		if (isJournaled()) {
+			openJournal();
+		}
 	}
 	
 	// methods from BankDAO interface
@@ -94,9 +294,22 @@ public class TextFileDAO implements BankDAO {
 	 */
 	public BankAccount readBankAccount(int accID) throws BankDAOException {
 		
-		String entry = searchFile(BANK_ACCOUNT_PREFIX + " " + accID);
+		String entry;
+		int version = accountVersions.get(accID); // before the entry, see DataVersions.get()
+		
+		if (isIndexed()) {
+			synchronized (this) { // the indexes are only changed under this lock
+				revalidate(BANK_ACCOUNT_PREFIX);
+				entry = accountIndex.getOrDefault(accID, "");
+			}
+		}
+		else {
+			entry = searchFile(idTag(BANK_ACCOUNT_PREFIX, accID));
+		}
+		
 		BankAccount ba = buildAccountFromEntry(entry);
 		ba.setId(accID); // fixes problem if no matching bank account is found
+		ba.setVersion(version);
 		return ba;
 	}
 
@@ -108,21 +321,47 @@ public class TextFileDAO implements BankDAO {
 	public List<BankAccount> readAllBankAccounts() throws BankDAOException {
 		
 		List<BankAccount> accounts = new ArrayList<>();
-		List<String> entries = searchFileMultiple(BANK_ACCOUNT_PREFIX);
 		
-		for (String e : entries) {
-			accounts.add(buildAccountFromEntry(e));
+		synchronized (this) { // so no write can come between the entries and their versions
+			revalidate(BANK_ACCOUNT_PREFIX);
+			List<String> entries = isIndexed() 
+					? new ArrayList<>(accountIndex.values())
+					: searchFileMultiple(BANK_ACCOUNT_PREFIX);
+			
+			for (String e : entries) {
+				BankAccount ba = buildAccountFromEntry(e);
+				ba.setVersion(accountVersions.get(ba.getId()));
+				accounts.add(ba);
+			}
 		}
 		
 		return accounts;
 	}
 
+	@Override
+	public BankDataCursor<BankAccount> openBankAccountCursor() throws BankDAOException {
+		return openEntryCursor(BANK_ACCOUNT_PREFIX, accountIndex, this::buildAccountFromEntry);
+	}
+
 	@Override
 	public UserProfile readUserProfile(int userID) throws BankDAOException {
 		
-		String entry = searchFile(USER_PROFILE_PREFIX + " " + userID);
+		String entry;
+		int version = profileVersions.get(userID); // before the entry, see DataVersions.get()
+		
+		if (isIndexed()) {
+			synchronized (this) {
+				revalidate(USER_PROFILE_PREFIX);
+				entry = profileIndex.getOrDefault(userID, "");
+			}
+		}
+		else {
+			entry = searchFile(idTag(USER_PROFILE_PREFIX, userID));
+		}
+		
 		UserProfile up = buildUserProfileFromEntry(entry);
 		up.setId(userID); // in case it wasn't found
+		up.setVersion(version);
 		return up;
 	}
 	
@@ -135,12 +374,32 @@ public class TextFileDAO implements BankDAO {
 	@Override
 	public UserProfile readUserProfile(String username) throws BankDAOException{
 		
+		if (isIndexed()) {
+			String entry;
+			int version;
+			synchronized (this) { // versions only change under this lock too
+				revalidate(USER_PROFILE_PREFIX);
+				Integer userID = usernameIndex.get(username);
+				entry = userID == null ? "" : profileIndex.get(userID);
+				version = userID == null ? 0 : profileVersions.get(userID);
+			}
+			UserProfile up = buildUserProfileFromEntry(entry);
+			up.setVersion(version);
+			return up;
+		}
+		
+		DataVersions versions = profileVersions.copy(); // before the entry, see DataVersions.copy()
+		
+		if (hasUsernameIndex()) {
+			return buildVersionedProfile(searchUsernameIndex(username), versions);
+		}
+		
 		List<String> entries = searchFileMultiple(USER_PROFILE_PREFIX);
+		EntryParser parser = new EntryParser();
 		
 		for (String e : entries) {
-			String[] tokens = e.split(" ", 4);
-			if (tokens[2].equals(username)) {
-				return buildUserProfileFromEntry(e);
+			if (hasUsername(parser, e, username)) {
+				return buildVersionedProfile(e, versions);
 			}
 		}
 		
@@ -151,19 +410,44 @@ public class TextFileDAO implements BankDAO {
 	public List<UserProfile> readAllUserProfiles() throws BankDAOException {
 		
 		List<UserProfile> profiles = new ArrayList<>();
-		List<String> entries = searchFileMultiple(USER_PROFILE_PREFIX);
+		List<String> entries;
+		DataVersions versions;
+		
+		synchronized (this) {
+			revalidate(USER_PROFILE_PREFIX);
+			entries = isIndexed() 
+					? new ArrayList<>(profileIndex.values())
+					: searchFileMultiple(USER_PROFILE_PREFIX);
+			versions = profileVersions.copy(); // so the entries can be parsed outside the lock
+		}
 		
 		for (String e : entries) {
-			profiles.add(buildUserProfileFromEntry(e));
+			profiles.add(buildVersionedProfile(e, versions));
 		}
 		
 		return profiles;
 	}
 
+	@Override
+	public BankDataCursor<UserProfile> openUserProfileCursor() throws BankDAOException {
+		return openEntryCursor(USER_PROFILE_PREFIX, profileIndex, this::buildUserProfileFromEntry);
+	}
+
 	@Override
 	public TransactionRecord readTransactionRecord(int recID) throws BankDAOException {
 		
-		String entry = searchFile(TRANSACTION_RECORD_PREFIX + " " + recID);
+		String entry;
+		
+		if (isIndexed()) {
+			synchronized (this) {
+				revalidate(idTag(TRANSACTION_RECORD_PREFIX, recID));
+				entry = transactionIndex.getOrDefault(recID, "");
+			}
+		}
+		else {
+			entry = searchFile(idTag(TRANSACTION_RECORD_PREFIX, recID));
+		}
+		
 		TransactionRecord tr = buildTransactionRecordFromEntry(entry);
 		tr.setId(recID); // fixes issue when not found
 		return tr;
@@ -173,183 +457,1601 @@ public class TextFileDAO implements BankDAO {
 	public List<TransactionRecord> readAllTransactionRecords() throws BankDAOException {
 		
 		List<TransactionRecord> transactions = new ArrayList<>();
-		List<String> entries = searchFileMultiple(TRANSACTION_RECORD_PREFIX);
+		List<String> entries;
+		
+		synchronized (this) {
+			revalidate(TRANSACTION_RECORD_PREFIX);
+			entries = isIndexed() 
+					? new ArrayList<>(transactionIndex.values())
+					: searchFileMultiple(TRANSACTION_RECORD_PREFIX);
+		}
 		
 		for (String e : entries) {
 			transactions.add(buildTransactionRecordFromEntry(e));
 		}
 		
-		return transactions;
+		return transactions;
+	}
+
+	@Override
+	public BankDataCursor<TransactionRecord> openTransactionRecordCursor() throws BankDAOException {
+		return openEntryCursor(TRANSACTION_RECORD_PREFIX, transactionIndex, this::buildTransactionRecordFromEntry);
+	}
+
+	/**
+	 * Writes the given BankData object to the data storage. WILL overwrite if matching
+	 * data is already present.
+	 * @param bd
+	 */
+	@Override
+	public void write(BankData bd) throws BankDAOException {
+		List<BankData> toWrite = new ArrayList<BankData>();
+		toWrite.add(bd);
+		write(toWrite); // just use the list method
+	}
+
+	/**
+	 * Writes each of the BankData objects in the given List to the data storage. 
+	 * WILL overwrite if matching data is already present.
+	 * With the JOURNALED option, the whole list is one journal record, and this only returns
+	 * once that record is as durable as the sync policy requires (see commitEntries()).
+	 * @param bd
+	 */
+	@Override
+	public void write(List<BankData> toWrite) throws BankDAOException {
+		
+		List<String> entries = formatEntries(toWrite);
+		long seq;
+		
+		synchronized (this) {
+			seq = commitEntries(entries);
+			accountVersions.changed(toWrite);
+			profileVersions.changed(toWrite);
+			noteStoredIDs(toWrite);
+		}
+		
+		awaitDurable(seq);
+		writeListeners.written(toWrite);
+	}
+	
+	/**
+	 * The version checks and the write all happen while holding the DAO's lock, which every
+	 * other write also takes, so nothing can change the account or the profiles in between.
+	 * Changes made to the file by something else are picked up first (with the INDEXED
+	 * option), and count as changes to every account or profile.
+	 */
+	@Override
+	public boolean writeIfUnchanged(BankAccount ba, List<BankData> alsoWrite) throws BankDAOException {
+		
+		List<BankData> toWrite = new ArrayList<>(alsoWrite.size() + 1);
+		toWrite.add(ba);
+		toWrite.addAll(alsoWrite);
+		
+		List<String> entries = formatEntries(toWrite);
+		long seq;
+		
+		synchronized (this) {
+			revalidate(BANK_ACCOUNT_PREFIX);
+			revalidate(USER_PROFILE_PREFIX);
+			
+			if (accountVersions.get(ba.getId()) != ba.getVersion()) {
+				return false;
+			}
+			for (BankData bd : alsoWrite) {
+				if (bd instanceof UserProfile 
+						&& profileVersions.get(bd.getId()) != ((UserProfile)bd).getVersion()) {
+					return false;
+				}
+			}
+			
+			seq = commitEntries(entries);
+			accountVersions.changed(toWrite);
+			profileVersions.changed(toWrite);
+			noteStoredIDs(toWrite);
+			ba.setVersion(accountVersions.get(ba.getId()));
+			for (BankData bd : alsoWrite) {
+				if (bd instanceof UserProfile) {
+					((UserProfile)bd).setVersion(profileVersions.get(bd.getId()));
+				}
+			}
+		}
+		
+		awaitDurable(seq);
+		writeListeners.written(toWrite);
+		return true;
+	}
+	
+	/**
+	 * The username is looked up and the profile written while holding the DAO's lock, which
+	 * every other write also takes.
+	 */
+	@Override
+	public boolean writeIfUsernameFree(UserProfile up) throws BankDAOException {
+		
+		List<BankData> toWrite = new ArrayList<>();
+		toWrite.add(up);
+		
+		List<String> entries = formatEntries(toWrite);
+		long seq;
+		
+		synchronized (this) {
+			if (!isUsernameFree(up.getUsername())) {
+				return false;
+			}
+			
+			seq = commitEntries(entries);
+			profileVersions.changed(toWrite);
+			noteStoredIDs(toWrite);
+		}
+		
+		awaitDurable(seq);
+		writeListeners.written(toWrite);
+		return true;
+	}
+	
+	@Override
+	public void addWriteListener(WriteListener listener) {
+		writeListeners.add(listener);
+	}
+	
+	@Override
+	public boolean depositFunds(int accID, int amount, TransactionRecord record) throws BankDAOException {
+		return moveFunds(NO_ACCOUNT, accID, amount, record);
+	}
+	
+	@Override
+	public boolean withdrawFunds(int accID, int amount, TransactionRecord record) throws BankDAOException {
+		return moveFunds(accID, NO_ACCOUNT, amount, record);
+	}
+	
+	@Override
+	public boolean transferFunds(int sourceAccID, int destAccID, int amount, TransactionRecord record) 
+			throws BankDAOException {
+		return moveFunds(sourceAccID, destAccID, amount, record);
+	}
+	
+	/**
+	 * Checks and changes the accounts while holding the DAO's lock, so no other write can
+	 * get in between. With the JOURNALED option, the changed accounts and the record are
+	 * one journal record.
+	 * @param sourceAccID : where the money comes from, or NO_ACCOUNT for a deposit
+	 * @param destAccID : where the money goes, or NO_ACCOUNT for a withdrawal
+	 * @param amount
+	 * @param record : may be null; given an ID if it has none (see BankDAO.depositFunds())
+	 * @return false if an account isn't open or the source can't cover the amount
+	 * @throws BankDAOException
+	 */
+	private boolean moveFunds(int sourceAccID, int destAccID, int amount, TransactionRecord record) 
+			throws BankDAOException {
+		
+		long seq;
+		// allocated before taking the lock, since a new block of IDs takes the lock too
+		boolean newID = record != null && record.getId() == 0;
+		
+		if (newID) {
+			record.setId(transactionIDs.allocate());
+		}
+		
+		synchronized (this) {
+			BankAccount source = sourceAccID == NO_ACCOUNT ? null : readBankAccount(sourceAccID);
+			BankAccount dest = destAccID == NO_ACCOUNT ? null : readBankAccount(destAccID);
+			
+			if ((source != null && (source.getStatus() != BankAccountStatus.OPEN || source.getFunds() < amount))
+					|| (dest != null && dest.getStatus() != BankAccountStatus.OPEN)) {
+				if (newID) {
+					transactionIDs.giveBack(record.getId());
+					record.setId(0);
+				}
+				return false;
+			}
+			
+			List<BankData> changed = new ArrayList<>();
+			
+			if (sourceAccID != destAccID) { // moving money to the same account changes nothing
+				if (source != null) {
+					source.setFunds(source.getFunds() - amount);
+					changed.add(source);
+				}
+				if (dest != null) {
+					dest.setFunds(dest.getFunds() + amount);
+					changed.add(dest);
+				}
+			}
+			
+			if (record != null) {
+				changed.add(record);
+			}
+			
+			seq = commitEntries(formatEntries(changed));
+			accountVersions.changed(changed);
+			noteStoredIDs(changed);
+		}
+		
+		awaitDurable(seq);
+		return true;
+	}
+	
+	/**
+	 * @param toWrite
+	 * @return the entries for the given BankData
+	 * @throws BankDAOException
+	 */
+	private List<String> formatEntries(List<BankData> toWrite) throws BankDAOException {
+		
+		List<String> entries = new ArrayList<>(toWrite.size());
+		
+		for (BankData bd : toWrite) {
+			entries.add(formatEntry(bd));
+		}
+		
+		return entries;
+	}
+	
+	/**
+	 * Package-private so that other classes can write .bdf files directly (see PostgresBulkCopy).
+	 * @param bd
+	 * @return the entry (line) for the given BankData
+	 * @throws BankDAOException
+	 */
+	static String formatEntry(BankData bd) throws BankDAOException {
+		
+		if (bd.getClass() == UserProfile.class) {
+			return saveUserProfile((UserProfile)bd);
+		}
+		else if (bd.getClass() == BankAccount.class) {
+			return saveBankAccount((BankAccount)bd);
+		}
+		else if (bd.getClass() == TransactionRecord.class) {
+			return saveTransactionRecord((TransactionRecord)bd);
+		}
+		else {
+			throw new BankDAOException("BankData subclass not supported in write: " + bd.getClass());
+		}
+	}
+	
+	/**
+	 * Journals (if needed) and applies the given entries. Must hold the DAO's lock, so that 
+	 * the journal and the file see the writes in the same order.
+	 * The file is never ahead of the journal. When indexed writes are deferred to checkpoints
+	 * (see defersFileWrites()), the entries only go into the indexes here, and the caller 
+	 * waits for the journal record after letting go of the lock, so that concurrent writes 
+	 * can share a single sync. Otherwise the file is written right away, so the record has 
+	 * to be durable first, and the wait happens here, under the lock.
+	 * @param entries
+	 * @return the journal sequence number to pass to awaitDurable(), or 0 if there is 
+	 * 			nothing left to wait for
+	 * @throws BankDAOException
+	 */
+	private long commitEntries(List<String> entries) throws BankDAOException {
+		
+		if (!isJournaled()) {
+			applyEntries(entries);
+			return 0;
+		}
+		
+		long seq = journal.append(entries);
+		
+		if (!defersFileWrites()) {
+			try {
+				journal.awaitDurable(seq);
+			}
+			catch (IOException e) {
+				// the entries were never applied, so the checkpoint drops them along with the journal
+				log.log(Level.WARN, "Journal sync failed, checkpointing: " + e.getMessage());
+				checkpoint();
+				throw (new BankDAOException("ALERT: write failed to sync journal: " + filename + JOURNAL_EXTENSION));
+			}
+			
+			seq = 0;
+		}
+		
+		applyEntries(entries);
+		
+		if (journal.size() >= checkpointThreshold) {
+			checkpoint();
+		}
+		
+		return seq;
+	}
+	
+	/**
+	 * Waits for a journal record to be durable. Call without holding the DAO's lock, so that
+	 * concurrent writes can share a single sync. If the journal can't be synced, the entries
+	 * are already in the indexes, so they are made durable by a checkpoint instead.
+	 * @param seq : from commitEntries()
+	 * @throws BankDAOException
+	 */
+	private void awaitDurable(long seq) throws BankDAOException {
+		
+		if (seq == 0) {
+			return;
+		}
+		
+		try {
+			journal.awaitDurable(seq);
+		}
+		catch (IOException e) {
+			log.log(Level.WARN, "Journal sync failed, checkpointing: " + e.getMessage());
+			checkpoint(); // writes and syncs the file, and releases anyone else waiting on the journal
+		}
+	}
+	
+	/**
+	 * Tells the ID allocators about the IDs just stored, so they don't have to look through
+	 * the whole file for the highest one each time they reserve a block.
+	 * @param stored
+	 */
+	private void noteStoredIDs(List<BankData> stored) {
+		
+		for (BankData bd : stored) {
+			if (bd instanceof UserProfile) {
+				profileIDSource.stored(bd.getId());
+			}
+			else if (bd instanceof BankAccount) {
+				accountIDSource.stored(bd.getId());
+			}
+			else if (bd instanceof TransactionRecord) {
+				transactionIDSource.stored(bd.getId());
+			}
+		}
+	}
+	
+	/**
+	 * Puts the given entries into the file (and the indexes), according to the storage options.
+	 * @param entries
+	 * @throws BankDAOException
+	 */
+	private void applyEntries(List<String> entries) throws BankDAOException {
+		
+		if (isIndexed()) {
+			for (String entry : entries) {
+				indexEntry(entry);
+			}
+		}
+		
+		// only the files that the entries belong in are touched
+		for (Map.Entry<Segment, List<String>> e : groupBySegment(entries).entrySet()) {
+			Segment seg = e.getKey();
+			
+			if (isAppendOnly()) {
+				// newer versions go on the end of the file, old ones get cleaned up by compact()
+				appendLines(seg, e.getValue());
+			}
+			else if (isIndexed()) {
+				if (defersFileWrites()) {
+					seg.behind = true; // reads come from the indexes, the file can wait for a checkpoint
+				}
+				else {
+					writeLines(seg, indexedEntries(seg)); // dump the indexes back out to the file
+				}
+			}
+			else {
+				// get all of the data so that we can verify if entries already exist
+				List<String> fileData = scanSegments(Collections.singletonList(seg), "");
+				List<String> outputData = new ArrayList<>(e.getValue()); // copy the list
+				Set<String> writtenTags = new HashSet<>();
+				
+				for (String entry : e.getValue()) {
+					writtenTags.add(entryTag(entry));
+				}
+				
+				for (String s : fileData) {
+					if (writtenTags.add(entryTag(s))) { // don't add duplicates/outdated entries
+						outputData.add(s);
+					}
+				}
+				
+				writeLines(seg, outputData);
+			}
+		}
+	}
+	
+	/**
+	 * Only meaningful with the APPEND_ONLY option: rewrites each file that has been appended
+	 * to so that it only holds the newest version of each entry. The new file is written next
+	 * to the old one and then moved over it, so a failed compaction leaves the old file intact.
+	 * @throws BankDAOException
+	 */
+	public synchronized void compact() throws BankDAOException {
+		
+		for (Segment seg : segments) {
+			if (seg.appendedBytes > 0) {
+				List<String> liveEntries = isIndexed() 
+						? indexedEntries(seg) 
+						: latestVersions(scanSegments(Collections.singletonList(seg), ""));
+				
+				writeLines(seg, liveEntries);
+				
+				seg.compactedSize = new File(seg.filename).length();
+				seg.appendedBytes = 0;
+			}
+		}
+		
+		compactionPending = false;
+	}
+	
+	/**
+	 * Splits a single data file into the files used by the PARTITIONED option, replacing
+	 * whatever they held before. The original file is left as it is.
+	 * @param filename : the same name that is then passed to the constructor
+	 * @throws BankDAOException
+	 */
+	public static void partitionFile(String filename) throws BankDAOException {
+		
+		TextFileDAO source = new TextFileDAO(filename);
+		List<String> entries = source.searchFileMultiple("");
+		source.close();
+		
+		TextFileDAO partitioned = new TextFileDAO(filename, StorageOption.PARTITIONED);
+		
+		synchronized (partitioned) {
+			Map<Segment, List<String>> bySegment = partitioned.groupBySegment(entries);
+			
+			for (Segment seg : partitioned.segments) {
+				partitioned.writeLines(seg, bySegment.getOrDefault(seg, Collections.emptyList()));
+			}
+		}
+		
+		partitioned.close();
+	}
+	
+	/**
+	 * Only meaningful with the JOURNALED option: brings the file up to date with everything
+	 * in the journal, syncs it, and then empties the journal. Happens automatically when the
+	 * journal gets big enough, and on close().
+	 * @throws BankDAOException
+	 */
+	public synchronized void checkpoint() throws BankDAOException {
+		
+		if (journal == null) {
+			return;
+		}
+		
+		for (Segment seg : segments) {
+			if (seg.behind) {
+				writeLines(seg, indexedEntries(seg));
+				seg.behind = false;
+			}
+			
+			try (FileChannel channel = FileChannel.open(Paths.get(seg.filename), StandardOpenOption.WRITE)) {
+				channel.force(true);
+			}
+			catch (IOException e) {
+				throw (new BankDAOException("ALERT: checkpoint failed to sync file: " + seg.filename));
+			}
+		}
+		
+		try {
+			journal.truncate();
+		}
+		catch (IOException e) {
+			throw (new BankDAOException("ALERT: checkpoint failed to empty journal: " + filename + JOURNAL_EXTENSION));
+		}
+	}
+	
+	/**
+	 * Only meaningful with the JOURNALED option: sets when the journal is forced to disk.
+	 * The default is ALWAYS.
+	 * @param policy
+	 * @param amount : milliseconds for EVERY_N_MILLIS, records for EVERY_N_RECORDS
+	 */
+	public void setSyncPolicy(WriteAheadJournal.SyncPolicy policy, long amount) {
+		
+		if (journal != null) {
+			journal.setSyncPolicy(policy, amount);
+		}
+	}
+	
+	/**
+	 * Sets how big the journal can get before a checkpoint is triggered.
+	 * @param bytes
+	 */
+	public void setCheckpointThreshold(long bytes) {
+		checkpointThreshold = bytes;
+	}
+	
+	/**
+	 * Sets how many bytes can be appended before a compaction is triggered.
+	 * The file is also always allowed to double in size between compactions.
+	 * @param bytes
+	 */
+	public void setCompactionThreshold(long bytes) {
+		compactionThreshold = bytes;
+	}
+	
+	/**
+	 * Stops the background compaction thread, compacting one last time if needed.
+	 * Also checkpoints and closes the journal.
+	 */
+	@Override
+	public synchronized void close() throws BankDAOException {
+		
+		if (compactor != null) {
+			compactor.shutdownNow();
+			compactor = null;
+			compact(); // anything not already merged
+		}
+		
+		if (journal != null) {
+			checkpoint();
+			
+			try {
+				journal.close();
+			}
+			catch (IOException e) {
+				throw (new BankDAOException("ALERT: could not close journal: " + filename + JOURNAL_EXTENSION));
+			}
+			
+			journal = null;
+		}
+	}
+	
+	/** 
+	 * @return the highest ID currently assigned to a user profile
+	 */
+	@Override
+	public int getHighestUserProfileID() throws BankDAOException {
+		
+		if (isIndexed()) {
+			synchronized (this) {
+				revalidate(USER_PROFILE_PREFIX);
+				return getHighestKey(profileIndex);
+			}
+		}
+		
+		return getHighestIDHelper(searchFileMultiple("PRF"));
+	};
+	
+	/** 
+	 * @return the highest ID currently assigned to a bank account
+	 */
+	@Override
+	public int getHighestBankAccountID() throws BankDAOException {
+		
+		if (isIndexed()) {
+			synchronized (this) {
+				revalidate(BANK_ACCOUNT_PREFIX);
+				return getHighestKey(accountIndex);
+			}
+		}
+		
+		return getHighestIDHelper(searchFileMultiple("ACC"));
+	};
+	
+	/** 
+	 * @return the highest ID currently assigned to a transaction record
+	 */
+	@Override
+	public int getHighestTransactionRecordID() throws BankDAOException {
+		
+		if (isIndexed()) {
+			synchronized (this) {
+				revalidate(TRANSACTION_RECORD_PREFIX);
+				return getHighestKey(transactionIndex);
+			}
+		}
+		
+		return getHighestIDHelper(searchFileMultiple("TRR"));
+	};
+	
+	@Override
+	public int allocateUserProfileID() throws BankDAOException {
+		return profileIDs.allocate();
+	}
+	
+	@Override
+	public int allocateBankAccountID() throws BankDAOException {
+		return accountIDs.allocate();
+	}
+	
+	@Override
+	public int allocateTransactionRecordID() throws BankDAOException {
+		return transactionIDs.allocate();
+	}
+	
+	/**
+	 * Determines whether or not the given username is free to use. Used during registration, to make sure that usernames are unique.
+	 * @param username
+	 * @return
+	 */
+	@Override
+	public boolean isUsernameFree(String username) throws BankDAOException {
+		
+		if (isIndexed()) {
+			synchronized (this) {
+				revalidate(USER_PROFILE_PREFIX);
+				return !usernameIndex.containsKey(username);
+			}
+		}
+		
+		if (hasUsernameIndex()) {
+			return searchUsernameIndex(username).equals("");
+		}
+		
+		List<String> userEntries = searchFileMultiple(USER_PROFILE_PREFIX);
+		EntryParser parser = new EntryParser();
+		
+		for (String e : userEntries) {
+			if (hasUsername(parser, e, username)) {
+				return false;
+			}
+		}
+		
+		return true; // if we got to the end, we didn't find it
+	}
+	
+	/**
+	 * Fetches all TransactionRecords that were carried out by the given user.
+	 * @param actingUserId
+	 * @return
+	 * @throws BankDAOException
+	 */
+	@Override
+	public List<TransactionRecord> readTransactionRecordByActingUserId(int actingUserID) throws BankDAOException{
+		
+		if (hasHistoryIndex()) {
+			return searchHistoryIndex(true, actingUserID, 
+					tr -> tr.getActingUser() == actingUserID);
+		}
+		
+		List<TransactionRecord> allRecords = readAllTransactionRecords(); // is it more efficient to work with the strings?
+		List<TransactionRecord> matchingRecords = new ArrayList<>();
+		
+		for (TransactionRecord tr : allRecords) {
+			if (tr.getActingUser() == actingUserID) {
+				matchingRecords.add(tr);
+			}
+		}
+		
+		return matchingRecords;
+	}
+	
+	/**
+	 * Fetches all TransactionRecords that involved the given account (as source or destination)
+	 * @param accID
+	 * @return
+	 * @throws BankDAOException
+	 */
+	@Override
+	public List<TransactionRecord> readTransactionRecordByAccountId(int accID) throws BankDAOException{
+		
+		if (hasHistoryIndex()) {
+			return searchHistoryIndex(false, accID, 
+					tr -> tr.getSourceAccount() == accID || tr.getDestinationAccount() == accID);
+		}
+		
+		List<TransactionRecord> allRecords = readAllTransactionRecords(); // is it more efficient to work with the strings?
+		List<TransactionRecord> matchingRecords = new ArrayList<>();
+		
+		for (TransactionRecord tr : allRecords) {
+			if (tr.getSourceAccount() == accID || tr.getDestinationAccount() == accID) {
+				matchingRecords.add(tr);
+			}
+		}
+		
+		return matchingRecords;
+	}
+	
+	/**
+	 * With the HISTORY_INDEX option, the page is picked from the IDs in the index, and only its
+	 * records are read (see searchHistoryPage()). Otherwise, the whole history is read the same
+	 * way as readTransactionRecordByActingUserId(), and the page is picked out of it.
+	 */
+	@Override
+	public List<TransactionRecord> readTransactionRecordPageByActingUserId(int actingUserID, 
+			int startID, int limit, PageDirection direction) throws BankDAOException {
+		
+		if (hasHistoryIndex()) {
+			return searchHistoryPage(true, actingUserID, startID, limit, direction, 
+					tr -> tr.getActingUser() == actingUserID);
+		}
+		
+		return direction.selectPage(readTransactionRecordByActingUserId(actingUserID), startID, limit);
+	}
+	
+	/**
+	 * See readTransactionRecordPageByActingUserId()
+	 */
+	@Override
+	public List<TransactionRecord> readTransactionRecordPageByAccountId(int accID, 
+			int startID, int limit, PageDirection direction) throws BankDAOException {
+		
+		if (hasHistoryIndex()) {
+			return searchHistoryPage(false, accID, startID, limit, direction, 
+					tr -> tr.getSourceAccount() == accID || tr.getDestinationAccount() == accID);
+		}
+		
+		return direction.selectPage(readTransactionRecordByAccountId(accID), startID, limit);
+	}
+	
+	// helper / util methods for file IO
+	
+	/**
+	 * @return true if reads are served from the in-memory indexes
+	 */
+	private boolean isIndexed() {
+		return options.contains(StorageOption.INDEXED);
+	}
+	
+	/**
+	 * @return true if writes are appended to the end of the file
+	 */
+	private boolean isAppendOnly() {
+		return options.contains(StorageOption.APPEND_ONLY);
+	}
+	
+	/**
+	 * @return true if usernames are looked up through the on-disk username index
+	 */
+	private boolean hasUsernameIndex() {
+		return options.contains(StorageOption.USERNAME_INDEX);
+	}
+	
+	/**
+	 * @return true if writes go through the write-ahead journal
+	 */
+	private boolean isJournaled() {
+		return options.contains(StorageOption.JOURNALED);
+	}
+	
+	/**
+	 * With the journal to fall back on, and every read served from memory, rewriting the
+	 * whole file can wait until the next checkpoint. The history indexes point into the file,
+	 * so they need it kept up to date.
+	 * @return true if indexed writes only reach the file at checkpoints
+	 */
+	private boolean defersFileWrites() {
+		return isJournaled() && isIndexed() && !isAppendOnly() && !hasHistoryIndex();
+	}
+	
+	/**
+	 * @return true if transaction history is looked up through the on-disk history indexes
+	 */
+	private boolean hasHistoryIndex() {
+		return options.contains(StorageOption.HISTORY_INDEX);
+	}
+	
+	/**
+	 * @return true if the data is split over several files
+	 */
+	private boolean isPartitioned() {
+		return options.contains(StorageOption.PARTITIONED);
+	}
+	
+	/**
+	 * @param entry
+	 * @return which of the PARTITIONED files the entry belongs in: 0 for profiles, 1 for accounts,
+	 * 			and 2 onwards for transaction records. -1 if the entry isn't recognized.
+	 */
+	private static int partitionOf(String entry) {
+		
+		EntryParser parser = new EntryParser(entry);
+		int prefix = parser.nextCode(ENTRY_PREFIXES);
+		
+		if (prefix < 0 || !parser.hasNext()) {
+			return -1;
+		}
+		
+		try {
+			int id = parser.nextInt();
+			return prefix < 2 ? prefix : 2 + transactionPartition(id);
+		}
+		catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * @param recID
+	 * @return which of the transaction files the record belongs in
+	 */
+	private static int transactionPartition(int recID) {
+		return Math.floorMod(recID, TRANSACTION_PARTITIONS);
+	}
+	
+	/**
+	 * @param entry
+	 * @return the file that the given entry belongs in
+	 * @throws BankDAOException
+	 */
+	private Segment segmentFor(String entry) throws BankDAOException {
+		
+		if (!isPartitioned()) {
+			return segments.get(0);
+		}
+		
+		int partition = partitionOf(entry);
+		
+		if (partition < 0) {
+			throw (new BankDAOException("ALERT: unrecognized entry: " + entry));
+		}
+		
+		return segments.get(partition);
+	}
+	
+	/**
+	 * @param tag : a search tag, eg "PRF", "ACC 444" or ""
+	 * @return every file that could hold entries matching the tag
+	 */
+	private List<Segment> segmentsFor(String tag) {
+		
+		if (!isPartitioned()) {
+			return segments;
+		}
+		
+		EntryParser parser = new EntryParser(tag);
+		
+		switch (parser.nextCode(ENTRY_PREFIXES)) {
+			case 0: // USER_PROFILE_PREFIX
+				return segments.subList(0, 1);
+			case 1: // BANK_ACCOUNT_PREFIX
+				return segments.subList(1, 2);
+			case 2: // TRANSACTION_RECORD_PREFIX
+				if (parser.hasNext()) {
+					try {
+						int partition = 2 + transactionPartition(parser.nextInt());
+						return segments.subList(partition, partition + 1);
+					}
+					catch (NumberFormatException e) {
+						// not an ID, so it could be in any of them
+					}
+				}
+				return segments.subList(2, segments.size());
+			default:
+				return segments;
+		}
+	}
+	
+	/**
+	 * @param entries
+	 * @return the entries, grouped by the file they belong in
+	 * @throws BankDAOException
+	 */
+	private Map<Segment, List<String>> groupBySegment(List<String> entries) throws BankDAOException {
+		
+		Map<Segment, List<String>> bySegment = new LinkedHashMap<>();
+		
+		for (String entry : entries) {
+			bySegment.computeIfAbsent(segmentFor(entry), seg -> new ArrayList<>()).add(entry);
+		}
+		
+		return bySegment;
+	}
+	
+	/**
+	 * @return the file that holds the user profiles
+	 */
+	private Segment profileSegment() {
+		return segments.get(0);
+	}
+	
+	/**
+	 * @param prefix
+	 * @param id
+	 * @return the search tag for a single entry, eg "PRF 101 ". The trailing space keeps
+	 * 			"PRF 10" from matching "PRF 101".
+	 */
+	private static String idTag(String prefix, int id) {
+		return prefix + " " + id + " ";
+	}
+	
+	/**
+	 * @param entry
+	 * @return the type tag + ' ' + the ID of the given entry, eg "PRF 101"
+	 */
+	private static String entryTag(String entry) {
+		
+		int firstSpace = entry.indexOf(' ');
+		int secondSpace = entry.indexOf(' ', firstSpace + 1);
+		
+		if (firstSpace < 0 || secondSpace < 0) {
+			return entry;
+		}
+		
+		return entry.substring(0, secondSpace);
+	}
+	
+	/**
+	 * Drops every entry that has a newer version later in the list.
+	 * Each surviving entry keeps the position of its first version.
+	 * @param entries
+	 * @return
+	 */
+	private static List<String> latestVersions(List<String> entries) {
+		
+		Map<String, String> latest = new LinkedHashMap<>();
+		
+		for (String entry : entries) {
+			latest.put(entryTag(entry), entry);
+		}
+		
+		return new ArrayList<>(latest.values());
+	}
+	
+	/**
+	 * Adds the given entries to the end of the file, and kicks off a background
+	 * compaction if enough has been appended.
+	 * @param seg : the file to add to
+	 * @param lines
+	 * @throws BankDAOException
+	 */
+	private void appendLines(Segment seg, List<String> lines) throws BankDAOException {
+		
+		long offset = new File(seg.filename).length(); // where the first new line will start
+		List<Long> lineOffsets = new ArrayList<>(lines.size());
+		
+		writer = openFileWriter(seg.filename, true);
+		
+		try {
+			for (String s : lines) {
+				writer.write(s);
+				writer.write("\n");
+				lineOffsets.add(offset);
+				
+				long lineBytes = s.getBytes(StandardCharsets.UTF_8).length + 1;
+				offset += lineBytes;
+				seg.appendedBytes += lineBytes;
+			}
+		}
+		catch (IOException e) {
+			throw (new BankDAOException("ALERT: write failed to append to file: " + seg.filename));
+		}
+		finally {
+			closeFile(writer);
+		}
+		
+		seg.stamp();
+		
+		if (seg.usernameIndex != null) {
+			updateUsernameIndex(seg, lines, lineOffsets);
+		}
+		
+		if (seg.actingUserIndex != null) {
+			updateHistoryIndexes(seg, lines, lineOffsets);
+		}
+		
+		if (!compactionPending && compactor != null
+				&& seg.appendedBytes >= Math.max(compactionThreshold, seg.compactedSize)) {
+			compactionPending = true;
+			compactor.execute(this::backgroundCompact);
+		}
+	}
+	
+	/**
+	 * Run by the compaction thread.
+	 */
+	private void backgroundCompact() {
+		
+		try {
+			compact();
+		}
+		catch (BankDAOException e) {
+			log.log(Level.WARN, "Background compaction failed: " + e.getMessage());
+		}
+	}
+	
+	/**
+	 * Opens the journal, replaying (and then checkpointing) anything left in it by a
+	 * previous run that didn't shut down cleanly.
+	 * @throws BankDAOException
+	 */
+	private void openJournal() throws BankDAOException {
+		
+		checkpointThreshold = DEFAULT_CHECKPOINT_THRESHOLD;
+		List<List<String>> records;
+		
+		try {
+			journal = new WriteAheadJournal(filename + JOURNAL_EXTENSION);
+			records = journal.recover();
+		}
+		catch (IOException e) {
+			throw (new BankDAOException("ALERT: could not open journal: " + filename + JOURNAL_EXTENSION));
+		}
+		
+		if (records.isEmpty()) {
+			return;
+		}
+		
+		log.log(Level.INFO, "Replaying " + records.size() + " journal records into " + filename);
+		
+		for (List<String> entries : records) {
+			applyEntries(entries);
+		}
+		
+		checkpoint();
+	}
+	
+	/**
+	 * Opens whichever on-disk indexes the file needs, rebuilding any that are out of date.
+	 * @param seg
+	 * @throws BankDAOException
+	 */
+	private void openFileIndexes(Segment seg) throws BankDAOException {
+		
+		if (hasUsernameIndex() && seg.holdsProfiles) {
+			seg.usernameIndex = new UsernameIndex(seg.filename, seg.scanner);
+			
+			try {
+				if (!seg.usernameIndex.isCurrent()) {
+					rebuildUsernameIndex(seg);
+				}
+			}
+			catch (IOException e) {
+				throw (new BankDAOException("ALERT: could not open username index for file: " + seg.filename));
+			}
+		}
+		
+		if (hasHistoryIndex() && seg.holdsTransactions()) {
+			seg.actingUserIndex = new PostingIndex(seg.filename, seg.filename + ACTING_USER_INDEX_EXTENSION);
+			seg.accountHistoryIndex = new PostingIndex(seg.filename, seg.filename + ACCOUNT_HISTORY_INDEX_EXTENSION);
+			
+			try {
+				if (!seg.actingUserIndex.isCurrent() || !seg.accountHistoryIndex.isCurrent()) {
+					rebuildHistoryIndexes(seg);
+				}
+			}
+			catch (IOException e) {
+				throw (new BankDAOException("ALERT: could not open history indexes for file: " + seg.filename));
+			}
+		}
+	}
+	
+	/**
+	 * Rebuilds whichever on-disk indexes the file has, after the whole file has been rewritten.
+	 * @param seg
+	 * @throws BankDAOException
+	 */
+	private void rebuildFileIndexes(Segment seg) throws BankDAOException {
+		
+		if (seg.usernameIndex != null) {
+			rebuildUsernameIndex(seg);
+		}
+		
+		if (seg.actingUserIndex != null) {
+			rebuildHistoryIndexes(seg);
+		}
+	}
+	
+	/**
+	 * Looks up a PRF entry through the on-disk username index, first rebuilding the index
+	 * if the file was changed by something other than this DAO.
+	 * @param username
+	 * @return the entry, or the empty string if there is no such user
+	 * @throws BankDAOException
+	 */
+	private synchronized String searchUsernameIndex(String username) throws BankDAOException {
+		
+		Segment seg = profileSegment();
+		
+		try {
+			if (!seg.usernameIndex.isCurrent()) {
+				rebuildUsernameIndex(seg);
+			}
+			
+			return seg.usernameIndex.findEntry(username);
+		}
+		catch (IOException e) {
+			throw (new BankDAOException("ALERT: could not search username index for file: " + seg.filename));
+		}
+	}
+	
+	/**
+	 * Rebuilds the on-disk username index from scratch, from the PRF entries in the file.
+	 * In an append-only file, each username ends up pointing at its newest entry.
+	 * @param seg : the file holding the profiles
+	 * @throws BankDAOException
+	 */
+	private void rebuildUsernameIndex(Segment seg) throws BankDAOException {
+		
+		Map<String, Long> usernameOffsets = new HashMap<>();
+		
+		try {
+			seg.scanner.forEachLine(USER_PROFILE_PREFIX + " ", (offset, entry) -> {
+				String username = UsernameIndex.usernameOf(entry);
+				if (username != null) {
+					usernameOffsets.put(username, offset);
+				}
+			});
+			
+			seg.usernameIndex.rebuild(usernameOffsets);
+		}
+		catch (IOException e) {
+			throw (new BankDAOException("ALERT: could not rebuild username index for file: " + seg.filename));
+		}
+	}
+	
+	/**
+	 * Points the on-disk username index at newly appended PRF entries.
+	 * @param seg : the file that was appended to
+	 * @param lines : the appended entries
+	 * @param lineOffsets : where each of them starts in the file
+	 * @throws BankDAOException
+	 */
+	private void updateUsernameIndex(Segment seg, List<String> lines, List<Long> lineOffsets) 
+			throws BankDAOException {
+		
+		try {
+			for (int i = 0; i < lines.size(); i++) {
+				String username = UsernameIndex.usernameOf(lines.get(i));
+				if (username != null) {
+					seg.usernameIndex.put(username, lineOffsets.get(i));
+				}
+			}
+			
+			seg.usernameIndex.markCurrent();
+		}
+		catch (IOException e) {
+			throw (new BankDAOException("ALERT: could not update username index for file: " + seg.filename));
+		}
+	}
+	
+	/**
+	 * Fetches the transaction records that the history indexes list under the key,
+	 * first rebuilding any index whose file was changed by something other than this DAO.
+	 * Only the matching records are read from the files.
+	 * @param byUser : if true, search by acting user, otherwise by account
+	 * @param key
+	 * @param matches : double-checks each record against the key
+	 * @return the records, in file order
+	 * @throws BankDAOException
+	 */
+	private synchronized List<TransactionRecord> searchHistoryIndex(boolean byUser, int key,
+			Predicate<TransactionRecord> matches) throws BankDAOException {
+		
+		List<String> entries = new ArrayList<>();
+		
+		for (Segment seg : segmentsFor(TRANSACTION_RECORD_PREFIX)) {
+			try {
+				if (!seg.actingUserIndex.isCurrent() || !seg.accountHistoryIndex.isCurrent()) {
+					rebuildHistoryIndexes(seg);
+				}
+				
+				PostingIndex index = byUser ? seg.actingUserIndex : seg.accountHistoryIndex;
+				entries.addAll(seg.scanner.readLinesAt(index.find(key)));
+			}
+			catch (IOException e) {
+				throw (new BankDAOException("ALERT: could not search history index for file: " + seg.filename));
+			}
+		}
+		
+		if (isAppendOnly()) {
+			entries = latestVersions(entries);
+		}
+		
+		List<TransactionRecord> records = new ArrayList<>(entries.size());
+		
+		for (String e : entries) {
+			if (e.startsWith(TRANSACTION_RECORD_PREFIX + " ")) {
+				TransactionRecord tr = buildTransactionRecordFromEntry(e);
+				if (matches.test(tr)) {
+					records.add(tr);
+				}
+			}
+		}
+		
+		return records;
+	}
+	
+	/**
+	 * Like searchHistoryIndex(), but for one page (see PageDirection). The postings hold the
+	 * records' IDs, so the page is picked from the index alone, and only its records are read
+	 * from the files. Every posting under the key is still looked at, since a file's records
+	 * aren't always in ID order (IDs are handed out before the records are written).
+	 * @param byUser : if true, search by acting user, otherwise by account
+	 * @param key
+	 * @param startID
+	 * @param limit
+	 * @param direction
+	 * @param matches : double-checks each record against the key
+	 * @return the page, oldest first
+	 * @throws BankDAOException
+	 */
+	private synchronized List<TransactionRecord> searchHistoryPage(boolean byUser, int key, 
+			int startID, int limit, PageDirection direction, Predicate<TransactionRecord> matches) 
+			throws BankDAOException {
+		
+		List<HistoryPosting> candidates = new ArrayList<>();
+		
+		for (Segment seg : segmentsFor(TRANSACTION_RECORD_PREFIX)) {
+			try {
+				if (!seg.actingUserIndex.isCurrent() || !seg.accountHistoryIndex.isCurrent()) {
+					rebuildHistoryIndexes(seg);
+				}
+				
+				PostingIndex index = byUser ? seg.actingUserIndex : seg.accountHistoryIndex;
+				Set<Integer> seen = new HashSet<>(); // an ID's newest posting comes first
+				
+				for (PostingIndex.Posting p : index.postings(key)) {
+					if (seen.add(p.getEntryID()) && direction.isPast(p.getEntryID(), startID)) {
+						candidates.add(new HistoryPosting(seg, p));
+					}
+				}
+			}
+			catch (IOException e) {
+				throw (new BankDAOException("ALERT: could not search history index for file: " + seg.filename));
+			}
+		}
+		
+		// closest to the start first
+		Comparator<HistoryPosting> byID = Comparator.comparingInt(hp -> hp.posting.getEntryID());
+		candidates.sort(direction == PageDirection.OLDER ? byID.reversed() : byID);
+		
+		List<TransactionRecord> page = new ArrayList<>();
+		int next = 0;
+		
+		// only read as many as the page still needs, in case some don't match after all
+		while (page.size() < limit && next < candidates.size()) {
+			int end = Math.min(candidates.size(), next + limit - page.size());
+			page.addAll(readHistoryPostings(candidates.subList(next, end), matches));
+			next = end;
+		}
+		
+		page.sort(Comparator.comparingInt(TransactionRecord::getId));
+		return page;
+	}
+	
+	/**
+	 * @param postings
+	 * @param matches : double-checks each record against the key
+	 * @return the records the postings point to that still match
+	 * @throws BankDAOException
+	 */
+	private List<TransactionRecord> readHistoryPostings(List<HistoryPosting> postings, 
+			Predicate<TransactionRecord> matches) throws BankDAOException {
+		
+		Map<Segment, List<Long>> bySegment = new LinkedHashMap<>();
+		
+		for (HistoryPosting hp : postings) {
+			bySegment.computeIfAbsent(hp.seg, seg -> new ArrayList<>()).add(hp.posting.getOffset());
+		}
+		
+		List<TransactionRecord> records = new ArrayList<>(postings.size());
+		
+		for (Map.Entry<Segment, List<Long>> e : bySegment.entrySet()) {
+			List<String> entries;
+			
+			try {
+				entries = e.getKey().scanner.readLinesAt(e.getValue());
+			}
+			catch (IOException ex) {
+				throw (new BankDAOException("ALERT: could not read history from file: " + e.getKey().filename));
+			}
+			
+			for (String entry : entries) {
+				if (entry.startsWith(TRANSACTION_RECORD_PREFIX + " ")) {
+					TransactionRecord tr = buildTransactionRecordFromEntry(entry);
+					if (matches.test(tr)) {
+						records.add(tr);
+					}
+				}
+			}
+		}
+		
+		return records;
+	}
+	
+	/**
+	 * Rebuilds both on-disk history indexes from scratch, from the TRR entries in the file.
+	 * @param seg : a file holding transaction records
+	 * @throws BankDAOException
+	 */
+	private void rebuildHistoryIndexes(Segment seg) throws BankDAOException {
+		
+		Map<Integer, List<PostingIndex.Posting>> byUser = new HashMap<>();
+		Map<Integer, List<PostingIndex.Posting>> byAccount = new HashMap<>();
+		
+		try {
+			seg.scanner.forEachLine(TRANSACTION_RECORD_PREFIX + " ", (offset, entry) -> {
+				int[] keys = historyKeys(entry);
+				if (keys != null) {
+					PostingIndex.Posting p = new PostingIndex.Posting(offset, keys[3]);
+					byUser.computeIfAbsent(keys[0], k -> new ArrayList<>()).add(p);
+					byAccount.computeIfAbsent(keys[1], k -> new ArrayList<>()).add(p);
+					if (keys[2] != keys[1]) {
+						byAccount.computeIfAbsent(keys[2], k -> new ArrayList<>()).add(p);
+					}
+				}
+			});
+			
+			seg.actingUserIndex.rebuild(byUser);
+			seg.accountHistoryIndex.rebuild(byAccount);
+		}
+		catch (IOException e) {
+			throw (new BankDAOException("ALERT: could not rebuild history indexes for file: " + seg.filename));
+		}
+	}
+	
+	/**
+	 * Adds newly appended TRR entries to the on-disk history indexes.
+	 * @param seg : the file that was appended to
+	 * @param lines : the appended entries
+	 * @param lineOffsets : where each of them starts in the file
+	 * @throws BankDAOException
+	 */
+	private void updateHistoryIndexes(Segment seg, List<String> lines, List<Long> lineOffsets) 
+			throws BankDAOException {
+		
+		try {
+			for (int i = 0; i < lines.size(); i++) {
+				int[] keys = historyKeys(lines.get(i));
+				if (keys != null) {
+					seg.actingUserIndex.add(keys[0], lineOffsets.get(i), keys[3]);
+					seg.accountHistoryIndex.add(keys[1], lineOffsets.get(i), keys[3]);
+					if (keys[2] != keys[1]) {
+						seg.accountHistoryIndex.add(keys[2], lineOffsets.get(i), keys[3]);
+					}
+				}
+			}
+			
+			seg.actingUserIndex.markCurrent();
+			seg.accountHistoryIndex.markCurrent();
+		}
+		catch (IOException e) {
+			throw (new BankDAOException("ALERT: could not update history indexes for file: " + seg.filename));
+		}
+	}
+	
+	/**
+	 * @param entry
+	 * @return {acting user, source account, destination account, ID} for a TRR entry, 
+	 * 			or null for any other entry
+	 */
+	private static int[] historyKeys(String entry) {
+		
+		if (!entry.startsWith(TRANSACTION_RECORD_PREFIX + " ")) {
+			return null;
+		}
+		
+		// sample entry for format: "TRR 123 3:00 FDD 101 -1 444 87654"
+		EntryParser parser = new EntryParser(entry);
+		parser.skip(); // prefix
+		int id = parser.nextInt();
+		parser.skip(); // time
+		parser.skip(); // type
+		
+		return new int[] {parser.nextInt(), parser.nextInt(), parser.nextInt(), id};
+	}
+	
+	/**
+	 * @param parser : reset to the given entry
+	 * @param entry : a PRF entry
+	 * @param username
+	 * @return true if the entry belongs to the given username
+	 */
+	private static boolean hasUsername(EntryParser parser, String entry, String username) {
+		
+		parser.reset(entry);
+		parser.skip(); // prefix
+		parser.skip(); // id
+		return parser.nextEquals(username);
+	}
+	
+	/**
+	 * Reads the whole file once, and builds the in-memory indexes from it.
+	 * @throws BankDAOException
+	 */
+	private void loadIndexes() throws BankDAOException {
+		
+		profileIndex = new LinkedHashMap<>();
+		accountIndex = new LinkedHashMap<>();
+		transactionIndex = new LinkedHashMap<>();
+		usernameIndex = new HashMap<>();
+		
+		for (String entry : searchFileMultiple("")) {
+			indexEntry(entry);
+		}
+		
+		for (Segment seg : segments) {
+			seg.stamp();
+		}
+	}
+	
+	/**
+	 * Only meaningful with the INDEXED option: checks whether any file that could hold entries
+	 * matching the tag has been changed by something other than this DAO (an operator, another
+	 * process, Driver.prepareTextFile()...), and if so reloads just the entries from that file.
+	 * The check is one stat() per file, so it is done before every indexed read.
+	 * @param tag : as for searchFileMultiple()
+	 * @throws BankDAOException
+	 */
+	private synchronized void revalidate(String tag) throws BankDAOException {
+		
+		if (!isIndexed()) {
+			return;
+		}
+		
+		for (Segment seg : segmentsFor(tag)) {
+			if (seg.isStale()) {
+				reloadSegment(seg);
+			}
+		}
+	}
+	
+	/**
+	 * Throws away the in-memory entries that belong in the given file, and reads them back in.
+	 * @param seg
+	 * @throws BankDAOException
+	 */
+	private void reloadSegment(Segment seg) throws BankDAOException {
+		
+		if (seg.behind) {
+			// the journaled writes that haven't reached the file yet would be lost, so the
+			// file gets overwritten at the next checkpoint instead
+			log.log(Level.WARN, "Ignoring outside changes to file with unsaved writes: " + seg.filename);
+			seg.stamp();
+			return;
+		}
+		
+		log.log(Level.INFO, "Reloading file changed outside of the DAO: " + seg.filename);
+		
+		if (seg.holdsProfiles) {
+			profileIndex.clear();
+			usernameIndex.clear();
+			profileVersions.changeAll();
+			profileIDSource.rescan();
+		}
+		
+		if (seg.holdsAccounts) {
+			accountIndex.clear();
+			accountVersions.changeAll();
+			accountIDSource.rescan();
+		}
+		
+		if (seg.holdsTransactions()) {
+			transactionIDSource.rescan();
+		}
+		
+		if (seg.partition == ALL_PARTITIONS) {
+			transactionIndex.clear();
+		}
+		else if (seg.holdsTransactions()) {
+			transactionIndex.keySet().removeIf(id -> transactionPartition(id) == seg.partition);
+		}
+		
+		List<String> entries = scanSegments(Collections.singletonList(seg), "");
+		seg.stamp(); // before indexing, so a change made meanwhile is caught next time
+		
+		for (String entry : entries) {
+			indexEntry(entry);
+		}
+		
+		// the on-disk indexes check the file themselves, and the append-only counters
+		// only need to be roughly right
+		seg.compactedSize = new File(seg.filename).length();
+		seg.appendedBytes = 0;
 	}
-
+	
 	/**
-	 * Writes the given BankData object to the data storage. WILL overwrite if matching
-	 * data is already present.
-	 * @param bd
+	 * Adds the given entry to the matching in-memory index, replacing any older
+	 * version of the same entry.
+	 * @param entry
 	 */
-	@Override
-	public void write(BankData bd) throws BankDAOException {
-		List<BankData> toWrite = new ArrayList<BankData>();
-		toWrite.add(bd);
-		write(toWrite); // just use the list method
+	private void indexEntry(String entry) {
+		
+		if (entry.indexOf(' ') < 0) {
+			return; // blank or malformed line, nothing to index
+		}
+		
+		EntryParser parser = new EntryParser(entry);
+		int prefix = parser.nextCode(ENTRY_PREFIXES);
+		int id = parser.nextInt();
+		
+		switch (prefix) {
+			case 0: // USER_PROFILE_PREFIX
+				String oldEntry = profileIndex.put(id, entry);
+				if (oldEntry != null) {
+					usernameIndex.remove(UsernameIndex.usernameOf(oldEntry));
+				}
+				usernameIndex.put(parser.next(), id);
+				break;
+			case 1: // BANK_ACCOUNT_PREFIX
+				accountIndex.put(id, entry);
+				break;
+			case 2: // TRANSACTION_RECORD_PREFIX
+				transactionIndex.put(id, entry);
+				break;
+		}
 	}
-
+	
 	/**
-	 * Writes each of the BankData objects in the given List to the data storage. 
-	 * WILL overwrite if matching data is already present.
-	 * @param bd
+	 * @param seg
+	 * @return every entry held by the in-memory indexes that belongs in the given file
 	 */
-	@Override
-	public void write(List<BankData> toWrite) throws BankDAOException {
+	private List<String> indexedEntries(Segment seg) {
 		
 		List<String> entries = new ArrayList<>();
 		
-		for (BankData bd : toWrite) {
-			String entry;
-			
-			if (bd.getClass() == UserProfile.class) {
-				entry = saveUserProfile((UserProfile)bd);
-			}
-			else if (bd.getClass() == BankAccount.class) {
-				entry = saveBankAccount((BankAccount)bd);
-			}
-			else if (bd.getClass() == TransactionRecord.class) {
-				entry = saveTransactionRecord((TransactionRecord)bd);
-			}
-			else {
-				throw new BankDAOException("BankData subclass not supported in write: " + bd.getClass());
-			}
-			
-			entries.add(entry);
+		if (seg.holdsProfiles) {
+			entries.addAll(profileIndex.values());
 		}
 		
-		// get all of the data so that we can verify if entries already exist
-		List<String> fileData = searchFileMultiple("");
-		List<String> outputData = new ArrayList<>(entries); // copy the list
+		if (seg.holdsAccounts) {
+			entries.addAll(accountIndex.values());
+		}
 		
-		// rather than just calling WriteEntry for each entry, going to optimize things a little
-		// (actually is this even better?)
-		for (String s : fileData) {
-			String[] tokens = s.split(" ", 3);
-			String tag = tokens[0] + " " + tokens[1];
-			boolean was_found = false;
-			
-			for (String entry : outputData) {
-				if (entry.startsWith(tag)) {
-					was_found = true;
-					break; // don't add duplicates/outdated entries
+		if (seg.partition == ALL_PARTITIONS) {
+			entries.addAll(transactionIndex.values());
+		}
+		else if (seg.holdsTransactions()) {
+			for (Map.Entry<Integer, String> e : transactionIndex.entrySet()) {
+				if (transactionPartition(e.getKey()) == seg.partition) {
+					entries.add(e.getValue());
 				}
-			} // end inner loop
-			
-			if (!was_found) {
-				outputData.add(s);
 			}
-		} // end outer loop
-		
-		writer = openFileWriter(filename);
-		
-		try {
-			for (String s : outputData) {
-				writer.write(s);
-				writer.write("\n");
-			}			
-		}
-		catch (IOException e) {
-			throw (new BankDAOException("ALERT: write failed to write to file: " + filename));
-		}
-		finally {
-			closeFile(writer);
 		}
+		
+		return entries;
 	}
 	
-	/** 
-	 * @return the highest ID currently assigned to a user profile
-	 */
-	@Override
-	public int getHighestUserProfileID() throws BankDAOException {
-		return getHighestIDHelper(searchFileMultiple("PRF"));
-	};
-	
-	/** 
-	 * @return the highest ID currently assigned to a bank account
-	 */
-	@Override
-	public int getHighestBankAccountID() throws BankDAOException {
-		return getHighestIDHelper(searchFileMultiple("ACC"));
-	};
-	
-	/** 
-	 * @return the highest ID currently assigned to a transaction record
-	 */
-	@Override
-	public int getHighestTransactionRecordID() throws BankDAOException {
-		return getHighestIDHelper(searchFileMultiple("TRR"));
-	};
-	
 	/**
-	 * Determines whether or not the given username is free to use. Used during registration, to make sure that usernames are unique.
-	 * @param username
-	 * @return
+	 * @param index
+	 * @return the highest ID in the given index, or -1 if it is empty
 	 */
-	@Override
-	public boolean isUsernameFree(String username) throws BankDAOException {
-		
-		List<String> userEntries = searchFileMultiple(USER_PROFILE_PREFIX);
+	private static int getHighestKey(Map<Integer, String> index) {
+		int highest = -1;
 		
-		for (String e : userEntries) {
-			String[] tokens = e.split(" ", 4);
-			if (tokens[2].equals(username)) {
-				return false;
+		for (int id : index.keySet()) {
+			if (id > highest) {
+				highest = id;
 			}
 		}
 		
-		return true; // if we got to the end, we didn't find it
+		return highest;
 	}
 	
 	/**
-	 * Fetches all TransactionRecords that were carried out by the given user.
-	 * @param actingUserId
-	 * @return
+	 * Replaces the contents of the file with the given entries, one per line.
+	 * The new file is written next to the old one and then moved over it, so a failed
+	 * write leaves the old file intact.
+	 * @param seg : the file to replace
+	 * @param lines
 	 * @throws BankDAOException
 	 */
-	@Override
-	public List<TransactionRecord> readTransactionRecordByActingUserId(int actingUserID) throws BankDAOException{
+	private void writeLines(Segment seg, List<String> lines) throws BankDAOException {
 		
-		List<TransactionRecord> allRecords = readAllTransactionRecords(); // is it more efficient to work with the strings?
-		List<TransactionRecord> matchingRecords = new ArrayList<>();
+		String tempFilename = seg.filename + ".tmp";
 		
-		for (TransactionRecord tr : allRecords) {
-			if (tr.getActingUser() == actingUserID) {
-				matchingRecords.add(tr);
-			}
+		writeLines(tempFilename, lines);
+		
+		try {
+			Files.move(
+					Paths.get(tempFilename), 
+					Paths.get(seg.filename), 
+					StandardCopyOption.REPLACE_EXISTING, 
+					StandardCopyOption.ATOMIC_MOVE);
+		}
+		catch (IOException e) {
+			throw (new BankDAOException("ALERT: write could not replace file: " + seg.filename));
 		}
 		
-		return matchingRecords;
+		seg.stamp();
+		rebuildFileIndexes(seg); // every entry may have moved
 	}
 	
 	/**
-	 * Fetches all TransactionRecords that involved the given account (as source or destination)
-	 * @param accID
-	 * @return
+	 * Replaces the contents of the given file with the given entries, one per line.
+	 * @param target
+	 * @param lines
 	 * @throws BankDAOException
 	 */
-	@Override
-	public List<TransactionRecord> readTransactionRecordByAccountId(int accID) throws BankDAOException{
+	private void writeLines(String target, List<String> lines) throws BankDAOException {
 		
-		List<TransactionRecord> allRecords = readAllTransactionRecords(); // is it more efficient to work with the strings?
-		List<TransactionRecord> matchingRecords = new ArrayList<>();
+		writer = openFileWriter(target, false);
 		
-		for (TransactionRecord tr : allRecords) {
-			if (tr.getSourceAccount() == accID || tr.getDestinationAccount() == accID) {
-				matchingRecords.add(tr);
-			}
+		try {
+			for (String s : lines) {
+				writer.write(s);
+				writer.write("\n");
+			}			
+		}
+		catch (IOException e) {
+			throw (new BankDAOException("ALERT: write failed to write to file: " + target));
+		}
+		finally {
+			closeFile(writer);
 		}
-		
-		return matchingRecords;
 	}
 	
-	// helper / util methods for file IO
-	
 	/**
 	 * Yet another helper method
 	 * @param entries
@@ -357,10 +2059,12 @@ public class TextFileDAO implements BankDAO {
 	 */
 	private int getHighestIDHelper(List<String> entries) {
 		int highest = -1;
+		EntryParser parser = new EntryParser();
 		
 		for (String e : entries) {
-			String[] tokens = e.split(" ", 3);
-			int id = Integer.parseInt(tokens[1]);
+			parser.reset(e);
+			parser.skip(); // prefix
+			int id = parser.nextInt();
 			if (id > highest) {
 				highest = id;
 			}
@@ -385,13 +2089,16 @@ public class TextFileDAO implements BankDAO {
 	}
 	
 	/**
-	 * Opens the file with a BufferedWriter, handles the try/catch
-	 * @return a reference to a new BufferedReader
+	 * Opens the file with a BufferedWriter, handles the try/catch.
+	 * Always writes UTF-8, which is what the scanner and the username index expect.
+	 * @param append : if true, add to the end of the file instead of replacing it
+	 * @return a reference to a new BufferedWriter
 	 */
-	private static BufferedWriter openFileWriter(String filename) throws BankDAOException {
+	private static BufferedWriter openFileWriter(String filename, boolean append) throws BankDAOException {
 		
 		try {
-			BufferedWriter temp = new BufferedWriter(new FileWriter(filename));
+			BufferedWriter temp = new BufferedWriter(new OutputStreamWriter(
+					new FileOutputStream(filename, append), StandardCharsets.UTF_8));
 			return temp;
 		}
 		catch (IOException e) {
@@ -423,27 +2130,22 @@ public class TextFileDAO implements BankDAO {
 	 * @param tag : the type tag + ' ' + the ID, eg "PRF 101"
 	 * @return a string containing all of the data in the entry matching the tag
 	 */
-	public String searchFile(String tag) throws BankDAOException {
-		reader = openFileReader();
-		String result = "";
-		
-		try {
-			while (reader.ready()) {
-				String line = reader.readLine();
-				if (line.startsWith(tag)){
-					result = line;
-					break;
+	public synchronized String searchFile(String tag) throws BankDAOException {
+		
+		for (Segment seg : segmentsFor(tag)) {
+			try {
+				// in an append-only file the last version wins
+				String result = seg.scanner.findLine(tag, isAppendOnly());
+				if (!result.isEmpty()) {
+					return result;
 				}
 			}
-		}
-		catch (IOException e) {
-			throw (new BankDAOException("Problem searching file: " + filename));
-		}
-		finally {
-			closeFile(reader);
+			catch (IOException e) {
+				throw (new BankDAOException("Problem searching file: " + seg.filename));
+			}
 		}
 		
-		return result;
+		return "";
 	}
 	
 	/**
@@ -455,26 +2157,108 @@ public class TextFileDAO implements BankDAO {
 	 * @return
 	 * @throws BankDAOException
 	 */
-	public List<String> searchFileMultiple(String tag) throws BankDAOException {
-		reader = openFileReader();
-		List<String> results = new ArrayList<String>();
+	public synchronized List<String> searchFileMultiple(String tag) throws BankDAOException {
 		
-		try {
-			while (reader.ready()) {
-				String line = reader.readLine();
-				if (line.startsWith(tag)){
-					results.add(line);
+		List<String> results = scanSegments(segmentsFor(tag), tag);
+		
+		if (isAppendOnly()) {
+			return latestVersions(results);
+		}
+		
+		return results;
+	}
+	
+	/**
+	 * Opens a cursor over every entry matching the tag. With INDEXED, the entries are already in
+	 * memory, so the cursor walks a copy of the index and only builds objects as they are asked 
+	 * for. Otherwise it reads the files a buffer at a time, and sees them as they were when it
+	 * was opened (writes replace the file, and appends past the end are ignored). Append-only
+	 * files are compacted first, so each entry only shows up once.
+	 * @param tag
+	 * @param index : the in-memory index for the tag, only used with INDEXED
+	 * @param builder
+	 * @return
+	 * @throws BankDAOException
+	 */
+	private synchronized <T extends BankData> BankDataCursor<T> openEntryCursor(String tag, 
+			Map<Integer, String> index, Function<String, T> builder) throws BankDAOException {
+		
+		if (isIndexed()) {
+			revalidate(tag);
+			return new EntryCursor<>(new ArrayList<>(index.values()).iterator(), 
+					Collections.emptyList(), builder);
+		}
+		
+		List<Segment> toRead = segmentsFor(tag);
+		
+		if (isAppendOnly()) {
+			for (Segment seg : toRead) {
+				if (seg.appendedBytes > 0) {
+					compact();
+					break;
 				}
 			}
 		}
+		
+		// every file is opened now, so the cursor sees them all as they are at this point
+		List<MappedRecordScanner.LineCursor> files = new ArrayList<>();
+		
+		try {
+			for (Segment seg : toRead) {
+				files.add(seg.scanner.openCursor(tag));
+			}
+		}
 		catch (IOException e) {
-			throw (new BankDAOException("Problem searching file: " + filename));
+			for (MappedRecordScanner.LineCursor lines : files) {
+				try {
+					lines.close();
+				}
+				catch (IOException ignored) {
+					// already failing
+				}
+			}
+			throw (new BankDAOException("Problem opening file for " + tag + " entries: " + filename));
 		}
-		finally {
-			closeFile(reader);
+		
+		return new EntryCursor<>(Collections.emptyIterator(), files, builder);
+	}
+	
+	/**
+	 * Finds every entry matching the tag in the given files. Several files are scanned
+	 * in parallel, and the results are put together in the order the files are listed.
+	 * @param toScan
+	 * @param tag
+	 * @return
+	 * @throws BankDAOException
+	 */
+	private List<String> scanSegments(List<Segment> toScan, String tag) throws BankDAOException {
+		
+		if (toScan.size() == 1) {
+			Segment seg = toScan.get(0);
+			
+			try {
+				return seg.scanner.findLines(tag);
+			}
+			catch (IOException e) {
+				throw (new BankDAOException("Problem searching file: " + seg.filename));
+			}
 		}
 		
-		return results;
+		try {
+			return toScan.parallelStream()
+					.flatMap(seg -> {
+						try {
+							return seg.scanner.findLines(tag).stream();
+						}
+						catch (IOException e) {
+							throw new UncheckedIOException(seg.filename, e);
+						}
+					})
+					.collect(Collectors.toList());
+		}
+		catch (UncheckedIOException e) {
+			throw (new BankDAOException("Problem searching file: " + e.getMessage()));
+		}
 	}
 	
 	/**
@@ -493,44 +2277,27 @@ public class TextFileDAO implements BankDAO {
 		}
 		else { // if found
 			// sample entry for format: "ACC 444 OPN SNG 78923 101"
-			String[] tokens = entry.split(" ");
-			ba.setId(Integer.parseInt(tokens[1]));
+			EntryParser parser = new EntryParser(entry);
+			parser.skip(); // prefix
+			ba.setId(parser.nextInt());
 			
-			
-			switch(tokens[2]) { // set the status
-				case ACCOUNT_STATUS_OPEN:
-					ba.setStatus(BankAccountStatus.OPEN);
-					break;
-				case ACCOUNT_STATUS_CLOSED:
-					ba.setStatus(BankAccountStatus.CLOSED);
-					break;
-				case ACCOUNT_STATUS_PENDING:
-					ba.setStatus(BankAccountStatus.PENDING);
-					break;
-				case ACCOUNT_STATUS_NONE:
-					ba.setStatus(BankAccountStatus.NONE);
-					break;
+			int status = parser.nextCode(ACCOUNT_STATUS_CODES);
+			if (status >= 0) {
+				ba.setStatus(ACCOUNT_STATUSES[status]);
 			}
 			
-			switch(tokens[3]) { // set the account type
-				case ACCOUNT_TYPE_JOINT:
-					ba.setType(BankAccountType.JOINT);
-					break;
-				case ACCOUNT_TYPE_SINGLE:
-					ba.setType(BankAccountType.SINGLE);
-					break;
-				case ACCOUNT_TYPE_NONE:
-					ba.setType(BankAccountType.NONE);
-					break;
+			int type = parser.nextCode(ACCOUNT_TYPE_CODES);
+			if (type >= 0) {
+				ba.setType(ACCOUNT_TYPES[type]);
 			}
 			
-			ba.setFunds(Integer.parseInt(tokens[4]));
+			ba.setFunds(parser.nextInt());
 			
 			// the rest of the tokens are the ID numbers of the owner(s) of this account
 			List<Integer> owners = new ArrayList<>();
 			
-			for (int i = 5; i < tokens.length; i++) {
-				owners.add(Integer.parseInt(tokens[i]));
+			while (parser.hasNext()) {
+				owners.add(parser.nextInt());
 			}
 			
 			ba.setOwners(owners);
@@ -539,6 +2306,19 @@ public class TextFileDAO implements BankDAO {
 		return ba;
 	}
 	
+	/**
+	 * As buildUserProfileFromEntry(), with the profile's version taken from the given versions.
+	 * @param entry
+	 * @param versions : taken before the entry was read
+	 * @return
+	 */
+	private UserProfile buildVersionedProfile(String entry, DataVersions versions) {
+		
+		UserProfile up = buildUserProfileFromEntry(entry);
+		up.setVersion(versions.get(up.getId()));
+		return up;
+	}
+	
 	/**
 	 * Returns a UserProfile object based on the given entry. If the entry is the empty string,
 	 * returns a UserProfile with type NONE.
@@ -555,31 +2335,22 @@ public class TextFileDAO implements BankDAO {
 		}
 		else {
 			// sample entry for format "PRF 101 user pass CST 444"
-			String[] tokens = entry.split(" ");
-			up.setId(Integer.parseInt(tokens[1]));
-			up.setUsername(tokens[2]);
-			up.setPassword(tokens[3]);
-			
-			switch(tokens[4]) { // set the type
-			case PROFILE_TYPE_ADMIN:
-				up.setType(UserProfileType.ADMIN);
-				break;
-			case PROFILE_TYPE_CUSTOMER:
-				up.setType(UserProfileType.CUSTOMER);
-				break;
-			case PROFILE_TYPE_EMPLOYEE:
-				up.setType(UserProfileType.EMPLOYEE);
-				break;
-			case PROFILE_TYPE_NONE:
-				up.setType(UserProfileType.NONE);
-				break;
+			EntryParser parser = new EntryParser(entry);
+			parser.skip(); // prefix
+			up.setId(parser.nextInt());
+			up.setUsername(parser.next());
+			up.setPassword(parser.next());
+			
+			int type = parser.nextCode(PROFILE_TYPE_CODES);
+			if (type >= 0) {
+				up.setType(PROFILE_TYPES[type]);
 			}
 			
 			// the rest of the tokens are ID numbers corresponding to owned accounts
 			List<Integer> ownedAccounts = new ArrayList<>();
 			
-			for (int i = 5; i < tokens.length; i++) {
-				ownedAccounts.add(Integer.parseInt(tokens[i]));
+			while (parser.hasNext()) {
+				ownedAccounts.add(parser.nextInt());
 			}
 			up.setOwnedAccounts(ownedAccounts);
 		}
@@ -603,42 +2374,21 @@ public class TextFileDAO implements BankDAO {
 		}
 		else { // if found
 			// sample entry for format: "TRR 123 3:00 FDD 101 -1 444 87654"
-			String[] tokens = entry.split(" ");
+			EntryParser parser = new EntryParser(entry);
+			parser.skip(); // prefix
 			
-			tr.setId(Integer.parseInt(tokens[1]));
-			tr.setTime(tokens[2]);
+			tr.setId(parser.nextInt());
+			tr.setTime(parser.next());
 			
-			switch(tokens[3]) { // type
-				case TRANSACTION_TYPE_ACCOUNT_REGISTERED:
-					tr.setType(TransactionType.ACCOUNT_REGISTERED);
-					break;
-				case TRANSACTION_TYPE_ACCOUNT_APPROVED:
-					tr.setType(TransactionType.ACCOUNT_APPROVED);
-					break;
-				case TRANSACTION_TYPE_ACCOUNT_CLOSED:
-					tr.setType(TransactionType.ACCOUNT_CLOSED);
-					break;
-				case TRANSACTION_TYPE_FUNDS_DEPOSITED:
-					tr.setType(TransactionType.FUNDS_DEPOSITED);
-					break;
-				case TRANSACTION_TYPE_FUNDS_WITHDRAWN:
-					tr.setType(TransactionType.FUNDS_WITHDRAWN);
-					break;
-				case TRANSACTION_TYPE_FUNDS_TRANSFERED:
-					tr.setType(TransactionType.FUNDS_TRANSFERRED);
-					break;
-				case TRANSACTION_TYPE_USER_REGISTERED:
-					tr.setType(TransactionType.USER_REGISTERED);
-					break;
-				case TRANSACTION_TYPE_NONE:
-					tr.setType(TransactionType.NONE);
-					break;
+			int type = parser.nextCode(TRANSACTION_TYPE_CODES);
+			if (type >= 0) {
+				tr.setType(TRANSACTION_TYPES[type]);
 			}
 			
-			tr.setActingUser(Integer.parseInt(tokens[4]));
-			tr.setSourceAccount(Integer.parseInt(tokens[5]));
-			tr.setDestinationAccount(Integer.parseInt(tokens[6]));
-			tr.setMoneyAmount(Integer.parseInt(tokens[7]));
+			tr.setActingUser(parser.nextInt());
+			tr.setSourceAccount(parser.nextInt());
+			tr.setDestinationAccount(parser.nextInt());
+			tr.setMoneyAmount(parser.nextInt());
 		}
 		
 		return tr;
@@ -648,7 +2398,7 @@ public class TextFileDAO implements BankDAO {
 	 * Returns a string entry of the given UserProfile
 	 * @param up
 	 */
-	private String saveUserProfile(UserProfile up) {
+	private static String saveUserProfile(UserProfile up) {
 		
 		String entry = USER_PROFILE_PREFIX + " " + up.getId();
 		
@@ -683,7 +2433,7 @@ public class TextFileDAO implements BankDAO {
 	 * Returns a string entry of the given bank account.
 	 * @param ba
 	 */
-	private String saveBankAccount(BankAccount ba) {
+	private static String saveBankAccount(BankAccount ba) {
 		
 		String entry = BANK_ACCOUNT_PREFIX + " " + ba.getId();
 		
@@ -728,7 +2478,7 @@ public class TextFileDAO implements BankDAO {
 	 * Returns a string entry of the given transaction record
 	 * @param tr
 	 */
-	private String saveTransactionRecord(TransactionRecord tr) {
+	private static String saveTransactionRecord(TransactionRecord tr) {
 		
 		String entry = TRANSACTION_RECORD_PREFIX + " " + tr.getId();
 		
@@ -775,4 +2525,139 @@ public class TextFileDAO implements BankDAO {
 		
 		return entry;
 	}
+	
+	// nested classes
+	
+	/**
+	 * See openEntryCursor(). Hands out the entries from memory first (if there are any),
+	 * then the entries in each file, one file at a time.
+	 */
+	private static class EntryCursor<T extends BankData> extends AbstractBankDataCursor<T> {
+		
+		private final Iterator<String> inMemory;
+		private final List<MappedRecordScanner.LineCursor> files; // the ones not finished yet
+		private final Function<String, T> builder;
+		
+		private EntryCursor(Iterator<String> inMemory, List<MappedRecordScanner.LineCursor> files, 
+				Function<String, T> builder) {
+			this.inMemory = inMemory;
+			this.files = files;
+			this.builder = builder;
+		}
+		
+		@Override
+		protected T fetch() throws BankDAOException {
+			
+			if (inMemory.hasNext()) {
+				return builder.apply(inMemory.next());
+			}
+			
+			try {
+				while (!files.isEmpty()) {
+					String entry = files.get(0).next();
+					if (entry != null) {
+						return builder.apply(entry);
+					}
+					
+					files.remove(0).close();
+				}
+			}
+			catch (IOException e) {
+				throw (new BankDAOException("Problem reading data file: " + e.getMessage()));
+			}
+			
+			return null;
+		}
+		
+		@Override
+		protected void release() throws BankDAOException {
+			
+			IOException problem = null;
+			
+			for (MappedRecordScanner.LineCursor lines : files) {
+				try {
+					lines.close();
+				}
+				catch (IOException e) {
+					problem = e;
+				}
+			}
+			files.clear();
+			
+			if (problem != null) {
+				throw (new BankDAOException("Problem closing data file: " + problem.getMessage()));
+			}
+		}
+	}
+	
+	/**
+	 * One of the files holding the data: the only file, or one of the PARTITIONED files.
+	 * Each file has its own scanner, on-disk indexes and append-only bookkeeping.
+	 */
+	private static class Segment {
+		
+		private final String filename;
+		private final MappedRecordScanner scanner;
+		private final boolean holdsProfiles;
+		private final boolean holdsAccounts;
+		private final int partition; // which transaction records, ALL_PARTITIONS or NO_PARTITION
+		
+		private UsernameIndex usernameIndex; // only on the file with the profiles
+		private PostingIndex actingUserIndex; // only on files with transaction records
+		private PostingIndex accountHistoryIndex;
+		
+		private long compactedSize; // size of the file right after the last compaction
+		private long appendedBytes; // bytes appended since then
+		private boolean behind; // true if the file is missing writes that are in the journal
+		
+		// size and modification time of the file as this DAO last left it
+		private long stampLength;
+		private long stampModified;
+		
+		private Segment(String filename, boolean holdsProfiles, boolean holdsAccounts, int partition) {
+			this.filename = filename;
+			this.scanner = new MappedRecordScanner(filename);
+			this.holdsProfiles = holdsProfiles;
+			this.holdsAccounts = holdsAccounts;
+			this.partition = partition;
+			this.compactedSize = new File(filename).length();
+			this.appendedBytes = 0;
+			this.behind = false;
+		}
+		
+		private boolean holdsTransactions() {
+			return partition != NO_PARTITION;
+		}
+		
+		/**
+		 * Remembers the file as it is now, eg right after this DAO wrote to it.
+		 */
+		private void stamp() {
+			File file = new File(filename);
+			stampLength = file.length();
+			stampModified = file.lastModified();
+		}
+		
+		/**
+		 * @return true if the file has been changed since the last stamp()
+		 */
+		private boolean isStale() {
+			File file = new File(filename);
+			return file.length() != stampLength || file.lastModified() != stampModified;
+		}
+	}
+	
+	/**
+	 * A history index posting, and the file it points into (see searchHistoryPage()).
+	 */
+	private static class HistoryPosting {
+		
+		private final Segment seg;
+		private final PostingIndex.Posting posting;
+		
+		private HistoryPosting(Segment seg, PostingIndex.Posting posting) {
+			this.seg = seg;
+			this.posting = posting;
+		}
+	}
 }
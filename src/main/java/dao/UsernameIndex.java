@@ -0,0 +1,344 @@
+/**
+ * An on-disk hash index from username to the position of that user's PRF entry in a
+ * bank data file. It lives in a file next to the data file (eg "testfile.bdf.usr"), so
+ * a lookup is a couple of small positioned reads no matter how many users there are,
+ * and nothing has to be loaded into memory when the DAO starts.
+ *
+ * The index file is an open-addressing hash table:
+ * 	header: [int magic][int slot count][int used slots][int unused]
+ * 			[long data file length][long data file last modified]
+ * 	each slot: [int username hash][long entry offset]. A hash of 0 means the slot is empty.
+ *
+ * Only the hash is stored, so every hit is checked against the username in the data file.
+ * The header remembers the size and modification time of the data file as of the last
+ * update; if they don't match, the index is out of date and has to be rebuilt.
+ * Usernames are assumed not to change once written, as in the rest of the bank system.
+ *
+ * @author Andrew Curry
+ */
+package dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+public class UsernameIndex {
+
+	// class/static variables
+	private static final int MAGIC = 0x55534E31; // "USN1"
+	private static final int HEADER_SIZE = 32;
+	private static final int SLOT_SIZE = 12;
+	private static final int MIN_SLOTS = 1024; // always a power of 2
+	private static final int EMPTY = 0;
+
+	public static final String FILE_EXTENSION = ".usr";
+
+	// instance variables
+	private String dataFilename;
+	private String indexFilename;
+	private MappedRecordScanner scanner; // used to check hits against the data file
+	private int slotCount;
+	private int used;
+
+	// constructor
+	public UsernameIndex(String dataFilename, MappedRecordScanner scanner) {
+		this.dataFilename = dataFilename;
+		this.indexFilename = dataFilename + FILE_EXTENSION;
+		this.scanner = scanner;
+		this.slotCount = 0;
+		this.used = 0;
+	}
+
+	// methods
+
+	/**
+	 * Checks the index file's header against the data file.
+	 * @return true if the index file exists and is up to date with the data file
+	 * @throws IOException
+	 */
+	public synchronized boolean isCurrent() throws IOException {
+
+		Path path = Paths.get(indexFilename);
+
+		if (!Files.exists(path)) {
+			return false;
+		}
+
+		try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			if (channel.read(header, 0) < HEADER_SIZE || header.getInt(0) != MAGIC) {
+				return false;
+			}
+
+			File dataFile = new File(dataFilename);
+			if (header.getLong(16) != dataFile.length() || header.getLong(24) != dataFile.lastModified()) {
+				return false;
+			}
+
+			slotCount = header.getInt(4);
+			used = header.getInt(8);
+			return channel.size() == HEADER_SIZE + (long)slotCount * SLOT_SIZE;
+		}
+	}
+
+	/**
+	 * Finds the PRF entry for the given username.
+	 * @param username
+	 * @return the entry, or the empty string if there is no such user
+	 * @throws IOException
+	 */
+	public synchronized String findEntry(String username) throws IOException {
+
+		int hash = hash(username);
+		ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+
+		try (FileChannel channel = FileChannel.open(Paths.get(indexFilename), StandardOpenOption.READ)) {
+
+			for (int i = hash & (slotCount - 1); ; i = (i + 1) & (slotCount - 1)) {
+				readSlot(channel, i, slot);
+				int slotHash = slot.getInt(0);
+
+				if (slotHash == EMPTY) {
+					return ""; // end of the probe chain
+				}
+				if (slotHash == hash) {
+					String entry = scanner.readLineAt(slot.getLong(4));
+					if (username.equals(usernameOf(entry))) {
+						return entry;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Points the given username at a new offset, adding it if it isn't indexed yet.
+	 * Call markCurrent() once the data file has stopped changing.
+	 * @param username
+	 * @param offset : where the user's newest PRF entry starts in the data file
+	 * @throws IOException
+	 */
+	public synchronized void put(String username, long offset) throws IOException {
+
+		if ((used + 1) * 2 > slotCount) {
+			grow();
+		}
+
+		int hash = hash(username);
+		ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+
+		try (FileChannel channel = FileChannel.open(Paths.get(indexFilename),
+				StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+
+			for (int i = hash & (slotCount - 1); ; i = (i + 1) & (slotCount - 1)) {
+				readSlot(channel, i, slot);
+				int slotHash = slot.getInt(0);
+				boolean replace = false;
+
+				if (slotHash == EMPTY) {
+					used++;
+					replace = true;
+				}
+				else if (slotHash == hash) {
+					// an older version of the same user, or a different user with the same hash
+					replace = username.equals(usernameOf(scanner.readLineAt(slot.getLong(4))));
+				}
+
+				if (replace) {
+					slot.clear();
+					slot.putInt(0, hash);
+					slot.putLong(4, offset);
+					channel.write(slot, slotPosition(i));
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Throws away the index file, and writes a new one holding exactly the given usernames.
+	 * Also marks the index as up to date with the data file.
+	 * @param offsets : username -> offset of the user's PRF entry
+	 * @throws IOException
+	 */
+	public synchronized void rebuild(Map<String, Long> offsets) throws IOException {
+
+		int newSlotCount = MIN_SLOTS;
+		while (newSlotCount < offsets.size() * 2) {
+			newSlotCount *= 2;
+		}
+
+		ByteBuffer table = ByteBuffer.allocate(newSlotCount * SLOT_SIZE);
+
+		for (Map.Entry<String, Long> e : offsets.entrySet()) {
+			insert(table, newSlotCount, hash(e.getKey()), e.getValue());
+		}
+
+		writeTable(table, newSlotCount, offsets.size());
+	}
+
+	/**
+	 * Records the current size and modification time of the data file in the header,
+	 * so that the next isCurrent() check passes.
+	 * @throws IOException
+	 */
+	public synchronized void markCurrent() throws IOException {
+
+		File dataFile = new File(dataFilename);
+		ByteBuffer stamp = ByteBuffer.allocate(16);
+		stamp.putLong(0, dataFile.length());
+		stamp.putLong(8, dataFile.lastModified());
+
+		try (FileChannel channel = FileChannel.open(Paths.get(indexFilename), StandardOpenOption.WRITE)) {
+			channel.write(stamp, 16);
+
+			ByteBuffer count = ByteBuffer.allocate(4);
+			count.putInt(0, used);
+			channel.write(count, 8);
+		}
+	}
+
+	/**
+	 * Deletes the index file, if there is one.
+	 * @throws IOException
+	 */
+	public synchronized void delete() throws IOException {
+		Files.deleteIfExists(Paths.get(indexFilename));
+		slotCount = 0;
+		used = 0;
+	}
+
+	/**
+	 * @param entry : a PRF entry, eg "PRF 101 user pass CST 444"
+	 * @return the username in the entry, or null if it isn't a PRF entry
+	 */
+	public static String usernameOf(String entry) {
+
+		if (!entry.startsWith("PRF ")) {
+			return null;
+		}
+
+		int start = entry.indexOf(' ', 4) + 1;
+		int end = entry.indexOf(' ', start);
+
+		if (start == 0 || end < 0) {
+			return null;
+		}
+
+		return entry.substring(start, end);
+	}
+
+	// helper methods
+
+	/**
+	 * Doubles the number of slots. The stored hashes are enough to place each
+	 * slot in the new table, so the data file isn't touched.
+	 * @throws IOException
+	 */
+	private void grow() throws IOException {
+
+		int newSlotCount = Math.max(MIN_SLOTS, slotCount * 2);
+		ByteBuffer table = ByteBuffer.allocate(newSlotCount * SLOT_SIZE);
+
+		if (slotCount > 0) {
+			ByteBuffer old = ByteBuffer.allocate(slotCount * SLOT_SIZE);
+
+			try (FileChannel channel = FileChannel.open(Paths.get(indexFilename), StandardOpenOption.READ)) {
+				while (old.hasRemaining() && channel.read(old, HEADER_SIZE + old.position()) > 0) {
+					// keep reading
+				}
+			}
+
+			for (int i = 0; i < slotCount; i++) {
+				int hash = old.getInt(i * SLOT_SIZE);
+				if (hash != EMPTY) {
+					insert(table, newSlotCount, hash, old.getLong(i * SLOT_SIZE + 4));
+				}
+			}
+		}
+
+		writeTable(table, newSlotCount, used);
+	}
+
+	/**
+	 * Places a slot in an in-memory table, without checking for duplicates.
+	 */
+	private static void insert(ByteBuffer table, int tableSlots, int hash, long offset) {
+
+		int i = hash & (tableSlots - 1);
+		while (table.getInt(i * SLOT_SIZE) != EMPTY) {
+			i = (i + 1) & (tableSlots - 1);
+		}
+
+		table.putInt(i * SLOT_SIZE, hash);
+		table.putLong(i * SLOT_SIZE + 4, offset);
+	}
+
+	/**
+	 * Writes a complete index file next to the old one and moves it into place.
+	 * @param table : all of the slots
+	 * @throws IOException
+	 */
+	private void writeTable(ByteBuffer table, int newSlotCount, int newUsed) throws IOException {
+
+		File dataFile = new File(dataFilename);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		header.putInt(0, MAGIC);
+		header.putInt(4, newSlotCount);
+		header.putInt(8, newUsed);
+		header.putLong(16, dataFile.length());
+		header.putLong(24, dataFile.lastModified());
+
+		Path tempPath = Paths.get(indexFilename + ".tmp");
+
+		try (FileChannel channel = FileChannel.open(tempPath, StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			table.clear();
+			ByteBuffer[] contents = {header, table};
+			while (table.hasRemaining()) {
+				channel.write(contents);
+			}
+		}
+
+		Files.move(tempPath, Paths.get(indexFilename),
+				StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+		slotCount = newSlotCount;
+		used = newUsed;
+	}
+
+	private static void readSlot(FileChannel channel, int i, ByteBuffer slot) throws IOException {
+
+		slot.clear();
+		while (slot.hasRemaining() && channel.read(slot, slotPosition(i) + slot.position()) > 0) {
+			// keep reading
+		}
+	}
+
+	private static long slotPosition(int i) {
+		return HEADER_SIZE + (long)i * SLOT_SIZE;
+	}
+
+	/**
+	 * @param username
+	 * @return a well-mixed, non-zero hash of the username
+	 */
+	private static int hash(String username) {
+
+		int h = username.hashCode();
+		h ^= (h >>> 16);
+		h *= 0x85ebca6b;
+		h ^= (h >>> 13);
+
+		return h == EMPTY ? 1 : h;
+	}
+}
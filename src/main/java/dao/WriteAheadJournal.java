@@ -0,0 +1,368 @@
+/**
+ * A write-ahead journal for a file-backed DAO. Each call to the DAO's write() becomes one
+ * journal record, which is made durable before the DAO's data file is touched. If the
+ * program dies, the records are replayed on the next start.
+ * Once the data file itself has been synced, the journal can be truncated.
+ *
+ * Records written at about the same time are flushed together with a single force(), so
+ * concurrent writers share one disk sync instead of paying for one each (group commit).
+ * How often the journal is forced depends on the SyncPolicy.
+ *
+ * Record format: [int payload length][int CRC32 of payload][payload], where the payload is
+ * the record's entries in UTF-8, separated by newlines. A record that was only partly
+ * written when the program died fails its checksum, and it and everything after it
+ * are dropped during recovery.
+ *
+ * @author Andrew Curry
+ */
+package dao;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+public class WriteAheadJournal {
+
+	// enums
+
+	/**
+	 * When the journal is forced to disk.
+	 */
+	public enum SyncPolicy {
+		ALWAYS, // every write waits for its record to be forced (shared with concurrent writes)
+		EVERY_N_MILLIS, // a background thread forces the journal every N milliseconds
+		EVERY_N_RECORDS // the write that brings the unsynced count up to N forces the journal
+	}
+
+	// class/static variables
+	private static Logger log = Logger.getLogger(WriteAheadJournal.class);
+
+	private static final int RECORD_HEADER_SIZE = 8;
+
+	// instance variables
+	private String filename;
+	private FileChannel channel;
+	private SyncPolicy policy;
+	private long policyAmount; // the N in EVERY_N_MILLIS / EVERY_N_RECORDS
+	private ScheduledExecutorService syncer; // only used with EVERY_N_MILLIS
+
+	// everything below is guarded by this
+	private ByteArrayOutputStream pending; // encoded records not yet written to the channel
+	private long end; // where the next record will be written
+	private long appendedSeq; // sequence number of the last record added
+	private long writtenSeq; // ... of the last record written to the channel
+	private long syncedSeq; // ... of the last record forced to disk
+	private boolean flushing; // true while a thread is writing/forcing without holding the lock
+
+	// constructor
+	public WriteAheadJournal(String filename) throws IOException {
+		this.filename = filename;
+		this.channel = FileChannel.open(Paths.get(filename),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		this.policy = SyncPolicy.ALWAYS;
+		this.policyAmount = 0;
+		this.pending = new ByteArrayOutputStream();
+		this.end = channel.size();
+		this.appendedSeq = 0;
+		this.writtenSeq = 0;
+		this.syncedSeq = 0;
+		this.flushing = false;
+	}
+
+	// methods
+
+	/**
+	 * Reads every complete record in the journal, and cuts off anything after the last
+	 * complete record. Should be called once, before any records are added.
+	 * @return the entries of each record, in the order they were written
+	 * @throws IOException
+	 */
+	public synchronized List<List<String>> recover() throws IOException {
+
+		List<List<String>> records = new ArrayList<>();
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		long position = 0;
+		long size = channel.size();
+
+		while (position + RECORD_HEADER_SIZE <= size) {
+			readFully(position, header);
+			int length = header.getInt(0);
+
+			if (length < 0 || position + RECORD_HEADER_SIZE + length > size) {
+				break; // torn record
+			}
+
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			readFully(position + RECORD_HEADER_SIZE, payload);
+
+			CRC32 crc = new CRC32();
+			crc.update(payload.array(), 0, length);
+			if ((int)crc.getValue() != header.getInt(4)) {
+				break; // torn record
+			}
+
+			String text = new String(payload.array(), StandardCharsets.UTF_8);
+			records.add(text.isEmpty() ? new ArrayList<>() : Arrays.asList(text.split("\n")));
+			position += RECORD_HEADER_SIZE + length;
+		}
+
+		if (position < size) {
+			log.log(Level.WARN, "Dropping " + (size - position) + " bytes of incomplete records from journal: " + filename);
+			channel.truncate(position);
+		}
+
+		end = position;
+		return records;
+	}
+
+	/**
+	 * Adds a record to the journal. It is not necessarily written, let alone durable,
+	 * until awaitDurable() returns.
+	 * @param entries
+	 * @return the record's sequence number, to pass to awaitDurable()
+	 */
+	public synchronized long append(List<String> entries) {
+
+		byte[] payload = String.join("\n", entries).getBytes(StandardCharsets.UTF_8);
+		CRC32 crc = new CRC32();
+		crc.update(payload, 0, payload.length);
+
+		ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+		header.putInt(0, payload.length);
+		header.putInt(4, (int)crc.getValue());
+
+		pending.write(header.array(), 0, RECORD_HEADER_SIZE);
+		pending.write(payload, 0, payload.length);
+		return ++appendedSeq;
+	}
+
+	/**
+	 * Blocks until the given record is as durable as the sync policy requires:
+	 * forced to disk with ALWAYS, or at least handed to the OS with the other policies.
+	 * Don't call this while holding a lock that other writers need, or they can't join
+	 * the same flush.
+	 * @param seq : from append()
+	 * @throws IOException
+	 */
+	public void awaitDurable(long seq) throws IOException {
+
+		switch (policy) {
+			case ALWAYS:
+				flushThrough(seq, true);
+				break;
+			case EVERY_N_RECORDS:
+				boolean force;
+				synchronized (this) {
+					force = appendedSeq - syncedSeq >= policyAmount;
+				}
+				flushThrough(seq, force);
+				break;
+			case EVERY_N_MILLIS:
+				flushThrough(seq, false); // the syncer thread does the forcing
+				break;
+		}
+	}
+
+	/**
+	 * Writes out and forces every record added so far.
+	 * @throws IOException
+	 */
+	public void sync() throws IOException {
+
+		long seq;
+		synchronized (this) {
+			seq = appendedSeq;
+		}
+
+		flushThrough(seq, true);
+	}
+
+	/**
+	 * Sets when the journal is forced to disk. The default is ALWAYS.
+	 * @param policy
+	 * @param amount : milliseconds for EVERY_N_MILLIS, records for EVERY_N_RECORDS,
+	 * 			ignored for ALWAYS
+	 */
+	public synchronized void setSyncPolicy(SyncPolicy policy, long amount) {
+
+		this.policy = policy;
+		this.policyAmount = amount;
+		stopSyncer();
+
+		if (policy == SyncPolicy.EVERY_N_MILLIS) {
+			syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "WriteAheadJournal-sync");
+				t.setDaemon(true);
+				return t;
+			});
+			syncer.scheduleWithFixedDelay(this::backgroundSync, amount, amount, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return how many bytes are in the journal, including records not yet written out
+	 */
+	public synchronized long size() {
+		return end + pending.size();
+	}
+
+	/**
+	 * Empties the journal. Only call this once everything in it has been applied to the
+	 * data file and the data file has been synced; anyone waiting on a record is released,
+	 * since the record is now durable in the data file.
+	 * @throws IOException
+	 */
+	public synchronized void truncate() throws IOException {
+
+		while (flushing) {
+			waitForFlush();
+		}
+
+		pending.reset();
+		channel.truncate(0);
+		channel.force(false);
+		end = 0;
+		writtenSeq = appendedSeq;
+		syncedSeq = appendedSeq;
+		notifyAll();
+	}
+
+	/**
+	 * Stops the background syncer, syncs anything left, and closes the file.
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+
+		synchronized (this) {
+			stopSyncer();
+		}
+
+		sync();
+		channel.close();
+	}
+
+	// helper methods
+
+	/**
+	 * Makes sure the record with the given sequence number has been written, and forced
+	 * if asked. Whichever thread gets here first writes (and forces) every pending record,
+	 * while any others that arrive in the meantime wait for it, and usually find their own
+	 * records were included.
+	 * @param seq
+	 * @param force
+	 * @throws IOException
+	 */
+	private void flushThrough(long seq, boolean force) throws IOException {
+
+		byte[] toWrite;
+		long position;
+		long upTo;
+
+		synchronized (this) {
+			while (true) {
+				if (force ? syncedSeq >= seq : writtenSeq >= seq) {
+					return; // someone else already did it
+				}
+				if (!flushing) {
+					break; // our turn
+				}
+				waitForFlush();
+			}
+
+			flushing = true;
+			toWrite = pending.toByteArray();
+			pending.reset();
+			position = end;
+			end += toWrite.length;
+			upTo = appendedSeq;
+		}
+
+		boolean success = false;
+
+		try {
+			// the lock isn't held here, so other writers can keep adding records
+			ByteBuffer buffer = ByteBuffer.wrap(toWrite);
+			while (buffer.hasRemaining()) {
+				channel.write(buffer, position + buffer.position());
+			}
+
+			if (force) {
+				channel.force(false);
+			}
+
+			success = true;
+		}
+		finally {
+			synchronized (this) {
+				flushing = false;
+
+				if (success) {
+					writtenSeq = Math.max(writtenSeq, upTo);
+					if (force) {
+						syncedSeq = Math.max(syncedSeq, upTo);
+					}
+				}
+
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Run by the syncer thread.
+	 */
+	private void backgroundSync() {
+
+		try {
+			sync();
+		}
+		catch (IOException e) {
+			log.log(Level.WARN, "Background journal sync failed: " + e.getMessage());
+		}
+	}
+
+	private void stopSyncer() {
+
+		if (syncer != null) {
+			syncer.shutdownNow();
+			syncer = null;
+		}
+	}
+
+	/**
+	 * Waits for the current flush to finish. Must hold the lock.
+	 * @throws IOException if interrupted
+	 */
+	private void waitForFlush() throws IOException {
+
+		try {
+			wait();
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for journal: " + filename);
+		}
+	}
+
+	private void readFully(long position, ByteBuffer buffer) throws IOException {
+
+		buffer.clear();
+		while (buffer.hasRemaining() && channel.read(buffer, position + buffer.position()) > 0) {
+			// keep reading
+		}
+	}
+}
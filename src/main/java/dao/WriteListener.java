@@ -0,0 +1,22 @@
+/**
+ * Is told about the BankData a DAO has written, so that anything holding copies of that data
+ * (like a session's logged in user) knows when to read it again, instead of reading it again
+ * every time just in case. See BankDAO.addWriteListener().
+ *
+ * @author Andrew Curry
+ */
+package dao;
+
+import java.util.List;
+
+import com.revature.bankDataObjects.BankData;
+
+public interface WriteListener {
+
+	/**
+	 * Called once the given data is stored. May be called on any thread, possibly while the DAO
+	 * is holding its own locks, so it should be quick and shouldn't call back into the DAO.
+	 * @param written : should not be changed
+	 */
+	public void written(List<BankData> written);
+}
@@ -0,0 +1,57 @@
+/**
+ * The WriteListeners added to a DAO (see BankDAO.addWriteListener()). Listeners can be added
+ * while writes are being reported, so the list is copied on add, which is rare, rather than
+ * locked on every write.
+ *
+ * @author Andrew Curry
+ */
+package dao;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.log4j.Level;
+import org.apache.log4j.Logger;
+
+import com.revature.bankDataObjects.BankData;
+
+class WriteListeners {
+
+	// static variables
+	private static Logger log = Logger.getLogger(WriteListeners.class);
+
+	// instance variables
+	private final List<WriteListener> listeners;
+
+	// constructor
+	WriteListeners() {
+		listeners = new CopyOnWriteArrayList<>();
+	}
+
+	// methods
+
+	void add(WriteListener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Tells every listener about the given data, which should already be stored. A listener
+	 * that throws is logged and skipped, since the write itself has already happened.
+	 * @param written
+	 */
+	void written(List<BankData> written) {
+
+		if (written.isEmpty()) {
+			return;
+		}
+
+		for (WriteListener listener : listeners) {
+			try {
+				listener.written(written);
+			}
+			catch (RuntimeException e) {
+				log.log(Level.WARN, "write listener failed: " + e.getMessage());
+			}
+		}
+	}
+}
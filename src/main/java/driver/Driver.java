@@ -7,6 +7,8 @@ package driver;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.log4j.Level;
 import org.apache.log4j.Logger;
@@ -14,22 +16,33 @@ import org.apache.log4j.Logger;
 import BankIO.BankIO;
 import BankIO.CommandLineIO;
 import bankSystem.BankSystem;
+import bankSystem.TransactionRecordWriter;
 import dao.BankDAO;
 import dao.BankDAOException;
+import dao.BinaryFileDAO;
 import dao.DatabaseUtil;
 import dao.PostgresDAO;
 import dao.TextFileDAO;
+import dao.TextFileDAO.StorageOption;
 
 public class Driver {
 
 	// constants
 	private static final String USE_TEXT_ARG = "-t";
 	private static final String RESET_DATABSE_ARG = "-r";
+	private static final String INDEX_TEXT_ARG = "-i"; // only matters with -t
+	private static final String APPEND_TEXT_ARG = "-a"; // only matters with -t
+	private static final String USERNAME_INDEX_TEXT_ARG = "-u"; // only matters with -t
+	private static final String HISTORY_INDEX_TEXT_ARG = "-h"; // only matters with -t
+	private static final String JOURNAL_TEXT_ARG = "-j"; // only matters with -t
+	private static final String PARTITION_TEXT_ARG = "-p"; // only matters with -t
+	private static final String USE_BINARY_ARG = "-b";
 	
 	// class / static vars
 	private static Logger log = Logger.getLogger(Driver.class);
 	
 	static private final String testFilename = "testfile.bdf"; // 'bank data file'
+	static private final String binaryFilename = "testfile"; // base name for the binary files
 	static private final String[] FILELINES = {
 			"PRF 101 user pass CST 444", "ACC 444 OPN SNG 78923 101", 
 			"PRF 103 user2 pass CST 317 515", "ACC 317 OPN SNG 7892312 103", 
@@ -43,16 +56,39 @@ public class Driver {
 		log.log(Level.INFO, "Project0 Bank online");
 		// look for flags in the params
 		boolean useText = false;
+		boolean useBinary = false;
 		boolean resetDatabase = false;
+		List<StorageOption> textOptions = new ArrayList<>();
 		
 		for (String s : args) {
 			
 			if (s.equals(USE_TEXT_ARG)){
 				useText = true;
 			}
+			else if (s.equals(USE_BINARY_ARG)) {
+				useBinary = true;
+			}
 			else if (s.equals(RESET_DATABSE_ARG)) {
 				resetDatabase = true;
 			}
+			else if (s.equals(INDEX_TEXT_ARG)) {
+				textOptions.add(StorageOption.INDEXED);
+			}
+			else if (s.equals(APPEND_TEXT_ARG)) {
+				textOptions.add(StorageOption.APPEND_ONLY);
+			}
+			else if (s.equals(USERNAME_INDEX_TEXT_ARG)) {
+				textOptions.add(StorageOption.USERNAME_INDEX);
+			}
+			else if (s.equals(HISTORY_INDEX_TEXT_ARG)) {
+				textOptions.add(StorageOption.HISTORY_INDEX);
+			}
+			else if (s.equals(JOURNAL_TEXT_ARG)) {
+				textOptions.add(StorageOption.JOURNALED);
+			}
+			else if (s.equals(PARTITION_TEXT_ARG)) {
+				textOptions.add(StorageOption.PARTITIONED);
+			}
 		}
 		
 		BankIO io = new CommandLineIO();
@@ -61,9 +97,19 @@ public class Driver {
 		BankDAO dao = null; // will be instantiated (or crash)
 		
 		try {
-			if (useText) {
-				dao = new TextFileDAO(testFilename);
+			if (useBinary) {
+				// built fresh from the text file each time, like the text file itself
+				dao = BinaryFileDAO.convertTextFile(testFilename, binaryFilename);
+			}
+			else if (useText) {
+				if (textOptions.contains(StorageOption.PARTITIONED)) {
+					// split up fresh from the text file each time, like the binary files
+					TextFileDAO.partitionFile(testFilename);
+				}
 				
+				dao = new TextFileDAO(
+						testFilename, 
+						textOptions.toArray(new StorageOption[textOptions.size()]));
 			}
 			else {
 				dao = new PostgresDAO();
@@ -79,10 +125,21 @@ public class Driver {
 		}
 		
 		
-		BankSystem bank = new BankSystem(io, dao);
+		BankSystem bank = new BankSystem(io, dao, TransactionRecordWriter.Durability.BACKGROUND);
 		bank.start();
 		// clean things up
+		bank.close();
 		io.close();
+		
+		try {
+			dao.close();
+		}
+		catch (BankDAOException e) {
+			log.log(Level.ERROR, "Error while closing DAO object: " + e.getMessage());
+		}
+		
+		DatabaseUtil.closePool(); // does nothing unless the database was used
+		
 		log.log(Level.INFO, "Project0 Bank offline");
 	}
 	
@@ -0,0 +1,204 @@
+/**
+ * JMH benchmark for many sessions sharing one BankSystem. Each benchmark thread is its own
+ * session (a different customer), stepping through a mix of typical requests against
+ * the shared DAO. Run it with a growing number of threads to see how throughput changes as
+ * sessions are added, eg:
+ * 	mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * 	for t in 1 2 4 8; do
+ * 		java -cp target/classes:target/test-classes:$(cat cp.txt) org.openjdk.jmh.Main BankSystemBenchmark -t $t
+ * 	done
+ *
+ * The session logic itself shares nothing, but every request goes through the DAO. Both file
+ * DAOs take one lock for every write and every lookup (BinaryFileDAO for the whole read), so
+ * with TEXT or BINARY, extra sessions only take turns on that lock: throughput levels off at
+ * about one core's worth, and those runs show the cost of that lock rather than scaling.
+ * POSTGRES is the one that can scale with cores, since PostgresDAO only shares its connection
+ * pool (DatabaseUtil.getConnection(), at most ConnectionPool.DEFAULT_MAX_SIZE connections),
+ * and the database takes row locks. It needs the database in DatabaseConfig.txt, and 
+ * REPLACES EVERYTHING IN IT with the benchmark's customers; without one, that run fails and
+ * the others still go ahead. To run only that one, add: -p storage=POSTGRES
+ *
+ * The fixture files are written to a new temporary directory, which is removed afterwards.
+ *
+ * Andrew Curry
+ */
+package bankTest;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import BankIO.MockIO;
+import bankSystem.BankSession;
+import bankSystem.BankSystem;
+import bankSystem.Request;
+import bankSystem.Request.RequestType;
+import dao.BankDAO;
+import dao.BankDAOException;
+import dao.BinaryFileDAO;
+import dao.DatabaseUtil;
+import dao.PostgresBulkCopy;
+import dao.PostgresDAO;
+import dao.TextFileDAO;
+import dao.TextFileDAO.StorageOption;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BankSystemBenchmark {
+
+	private static final String BENCHMARK_FILENAME = "benchmark.bdf";
+	private static final String BINARY_FILENAME = "benchmark_binary";
+	private static final int CUSTOMERS = 256; // more than the benchmark will have threads
+
+	/**
+	 * The BankSystem and DAO that every session shares.
+	 */
+	@State(Scope.Benchmark)
+	public static class Bank {
+
+		@Param({"TEXT", "BINARY", "POSTGRES"})
+		public String storage;
+
+		private Path directory; // holds every fixture file
+		private BankDAO dao;
+		private BankSystem bank;
+		private AtomicInteger nextCustomer = new AtomicInteger();
+
+		@Setup
+		public void setup() throws IOException, BankDAOException {
+
+			directory = Files.createTempDirectory("bankBenchmark");
+			String textFilename = directory.resolve(BENCHMARK_FILENAME).toString();
+			BufferedWriter writer = new BufferedWriter(new FileWriter(textFilename));
+
+			for (int i = 1; i <= CUSTOMERS; i++) {
+				writer.write("PRF " + i + " user" + i + " pass CST " + i + "\n");
+				writer.write("ACC " + i + " OPN SNG 1000000 " + i + "\n");
+			}
+
+			writer.close();
+
+			try {
+				if (storage.equals("BINARY")) {
+					dao = BinaryFileDAO.convertTextFile(textFilename, 
+							directory.resolve(BINARY_FILENAME).toString());
+				}
+				else if (storage.equals("POSTGRES")) {
+					PostgresBulkCopy.loadFile(textFilename, true);
+					dao = new PostgresDAO();
+				}
+				else {
+					dao = new TextFileDAO(textFilename, StorageOption.INDEXED,
+							StorageOption.USERNAME_INDEX, StorageOption.HISTORY_INDEX);
+				}
+			}
+			catch (BankDAOException e) {
+				deleteFixtures(); // tearDown() isn't called if this fails
+				throw e;
+			}
+
+			bank = new BankSystem(dao);
+		}
+
+		@TearDown
+		public void tearDown() throws IOException, BankDAOException {
+
+			dao.close();
+			if (storage.equals("POSTGRES")) {
+				DatabaseUtil.resetDatabase();
+			}
+
+			deleteFixtures();
+		}
+
+		/**
+		 * Removes the temporary directory, along with the data files and their indexes.
+		 * @throws IOException
+		 */
+		private void deleteFixtures() throws IOException {
+
+			try (Stream<Path> files = Files.list(directory)) {
+				for (Path file : (Iterable<Path>)files::iterator) {
+					Files.deleteIfExists(file);
+				}
+			}
+			Files.deleteIfExists(directory);
+		}
+	}
+
+	/**
+	 * One customer's session, logged in for the whole run.
+	 */
+	@State(Scope.Thread)
+	public static class Session {
+
+		private MockIO io;
+		private BankSession session;
+		private Request[] requests; // stepped through in a loop
+		private int next;
+
+		@Setup
+		public void setup(Bank bank) {
+
+			String id = "" + bank.nextCustomer.incrementAndGet();
+			io = new MockIO();
+			session = bank.bank.openSession(io);
+
+			io.setNextRequest(request(RequestType.LOG_IN, "user" + id, "pass"));
+			bank.bank.step(session);
+
+			requests = new Request[] {
+					request(RequestType.VIEW_SELF_PROFILE),
+					request(RequestType.VIEW_ACCOUNTS, BankSystem.USER_PROFILE_TAG, id),
+					request(RequestType.DEPOSIT, id, "100"),
+					request(RequestType.WITHDRAW, id, "100"),
+					request(RequestType.VIEW_TRANSACTIONS, BankSystem.ACCOUNT_TAG, id)
+			};
+			next = 0;
+		}
+
+		private static Request request(RequestType type, String... params) {
+
+			List<String> list = new ArrayList<>();
+			for (String p : params) {
+				list.add(p);
+			}
+			return new Request(type, list);
+		}
+	}
+
+	/**
+	 * Handles one request in this thread's session.
+	 */
+	@Benchmark
+	public boolean step(Bank bank, Session session) {
+
+		session.io.setNextRequest(session.requests[session.next]);
+		session.next = (session.next + 1) % session.requests.length;
+		session.io.resetCachedOutput();
+		return bank.bank.step(session.session);
+	}
+}
@@ -0,0 +1,380 @@
+/**
+ * This file contains Junit tests for the BinaryFileDAO class.
+ * The binary files are built from the same text file used in the TextFileDAO tests.
+ * 
+ * Andrew Curry, Project 0
+ */
+package bankTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.revature.bankDataObjects.BankAccount;
+import com.revature.bankDataObjects.BankData;
+import com.revature.bankDataObjects.TransactionRecord;
+import com.revature.bankDataObjects.UserProfile;
+import com.revature.bankDataObjects.BankAccount.BankAccountStatus;
+import com.revature.bankDataObjects.BankAccount.BankAccountType;
+import com.revature.bankDataObjects.TransactionRecord.TransactionType;
+import com.revature.bankDataObjects.UserProfile.UserProfileType;
+
+import dao.BankDAOException;
+import dao.BankDataCursor;
+import dao.BinaryFileDAO;
+import dao.PageDirection;
+
+public class BinaryFileDAOTest {
+	
+	// some helper methods/variables
+	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder(); // holds every file the tests make
+	
+	private BinaryFileDAO bdao;
+	private String testFilename; // 'bank data file'
+	private String binaryFilename;
+	static private final String[] FILELINES = {
+			"PRF 101 user pass CST 444", "ACC 444 OPN SNG 78923 101", "PRF 103 user2 pass CST 317 515",
+			"ACC 317 OPN SNG 7892312 103", "PRF 999 admin admin ADM", "ACC 515 OPN SNG 111111 103",
+			"TRR 123 3:00 FDP 101 -1 444 87654"
+	};
+	
+	/**
+	 * Sets up a text file, and converts it into a fresh set of binary files.
+	 */
+	@Before
+	public void prepareBinaryFileDAO() throws IOException, BankDAOException {
+		
+		testFilename = new File(folder.getRoot(), "testfile.bdf").getPath();
+		binaryFilename = new File(folder.getRoot(), "testfile_binary").getPath();
+		BufferedWriter writer = new BufferedWriter(new FileWriter(testFilename));
+		
+		for (String line : FILELINES){
+			writer.write(line);
+			writer.write("\n");
+		}
+		
+		writer.close();
+		bdao = BinaryFileDAO.convertTextFile(testFilename, binaryFilename);
+	}
+	
+	@After
+	public void closeBinaryFileDAO() throws BankDAOException {
+		bdao.close();
+	}
+	
+	@Test
+	public void testReadBankAccount() throws BankDAOException {
+		
+		// "ACC 317 OPN SNG 7892312 103"
+		BankAccount ba = bdao.readBankAccount(317);
+		assertEquals(317, ba.getId());
+		assertEquals(BankAccountStatus.OPEN, ba.getStatus());
+		assertEquals(BankAccountType.SINGLE, ba.getType());
+		assertEquals(7892312, ba.getFunds());
+		assertEquals(1, ba.getOwners().size());
+		assertTrue(103 == ba.getOwners().get(0));
+		
+		ba = bdao.readBankAccount(5555); // not found
+		assertEquals(5555, ba.getId());
+		assertEquals(BankAccountType.NONE, ba.getType());
+		assertEquals(BankAccountType.NONE, bdao.readBankAccount(-1).getType());
+		
+		assertEquals(3, bdao.readAllBankAccounts().size());
+	}
+	
+	@Test
+	public void testReadUserProfile() throws BankDAOException {
+		
+		// "PRF 103 user2 pass CST 317 515"
+		UserProfile up = bdao.readUserProfile(103);
+		assertEquals(103, up.getId());
+		assertEquals("user2", up.getUsername());
+		assertEquals("pass", up.getPassword());
+		assertEquals(UserProfileType.CUSTOMER, up.getType());
+		List<Integer> ownedAccounts = new ArrayList<>();
+		ownedAccounts.add(317);
+		ownedAccounts.add(515);
+		assertEquals(ownedAccounts, up.getOwnedAccounts());
+		
+		assertEquals(999, bdao.readUserProfile("admin").getId());
+		assertEquals(UserProfileType.NONE, bdao.readUserProfile("nobody").getType());
+		assertEquals(UserProfileType.NONE, bdao.readUserProfile(7777).getType());
+		assertEquals(3, bdao.readAllUserProfiles().size());
+		
+		assertFalse(bdao.isUsernameFree("user"));
+		assertTrue(bdao.isUsernameFree("this_username_is_not_in_use"));
+	}
+	
+	@Test
+	public void testWriteIfUsernameFree() throws BankDAOException {
+		
+		UserProfile up = new UserProfile(1000);
+		up.setUsername("user");
+		up.setPassword("pass");
+		up.setType(UserProfileType.CUSTOMER);
+		assertFalse(bdao.writeIfUsernameFree(up));
+		assertEquals(UserProfileType.NONE, bdao.readUserProfile(1000).getType());
+		
+		up.setUsername("user3");
+		assertTrue(bdao.writeIfUsernameFree(up));
+		assertEquals(1000, bdao.readUserProfile("user3").getId());
+		assertFalse(bdao.writeIfUsernameFree(up));
+	}
+	
+	@Test
+	public void testReadTransactionRecords() throws BankDAOException {
+		
+		// "TRR 123 3:00 FDP 101 -1 444 87654"
+		TransactionRecord tr = bdao.readTransactionRecord(123);
+		assertEquals(123, tr.getId());
+		assertEquals("3:00", tr.getTime());
+		assertEquals(TransactionType.FUNDS_DEPOSITED, tr.getType());
+		assertEquals(101, tr.getActingUser());
+		assertEquals(-1, tr.getSourceAccount());
+		assertEquals(444, tr.getDestinationAccount());
+		assertEquals(87654, tr.getMoneyAmount());
+		
+		assertEquals(TransactionType.NONE, bdao.readTransactionRecord(7777).getType());
+		assertEquals(1, bdao.readAllTransactionRecords().size());
+		assertEquals(1, bdao.readTransactionRecordByAccountId(444).size());
+		assertEquals(1, bdao.readTransactionRecordByActingUserId(101).size());
+		assertTrue(bdao.readTransactionRecordByAccountId(317).isEmpty());
+	}
+	
+	@Test
+	public void testWriteAndOverflow() throws BankDAOException {
+		
+		// too many owners and too long a timestamp to fit in their slots
+		BankAccount ba = bdao.readBankAccount(444);
+		ba.setType(BankAccountType.JOINT);
+		ba.setFunds(99999);
+		for (int i = 1; i <= 5; i++) {
+			ba.addOwner(i);
+		}
+		
+		TransactionRecord tr = new TransactionRecord(124);
+		tr.setTime("2020-04-01T12:34:56.123456789 and then some more text");
+		tr.setType(TransactionType.FUNDS_TRANSFERRED);
+		tr.setActingUser(101);
+		tr.setSourceAccount(444);
+		tr.setDestinationAccount(317);
+		tr.setMoneyAmount(1);
+		
+		UserProfile up = bdao.readUserProfile(101);
+		up.setUsername("renamed");
+		
+		List<BankData> toWrite = new ArrayList<>();
+		toWrite.add(ba);
+		toWrite.add(tr);
+		toWrite.add(up);
+		bdao.write(toWrite);
+		
+		ba = bdao.readBankAccount(444);
+		assertEquals(BankAccountType.JOINT, ba.getType());
+		assertEquals(99999, ba.getFunds());
+		assertEquals(6, ba.getOwners().size());
+		
+		assertEquals(tr.getTime(), bdao.readTransactionRecord(124).getTime());
+		assertEquals(2, bdao.readTransactionRecordByAccountId(444).size());
+		
+		assertTrue(bdao.isUsernameFree("user"));
+		assertEquals(101, bdao.readUserProfile("renamed").getId());
+		
+		assertEquals(999, bdao.getHighestUserProfileID());
+		assertEquals(515, bdao.getHighestBankAccountID());
+		assertEquals(124, bdao.getHighestTransactionRecordID());
+	}
+	
+	@Test
+	public void testDataSurvivesReopening() throws BankDAOException {
+		
+		BankAccount ba = bdao.readBankAccount(515);
+		ba.setFunds(5);
+		bdao.write(ba);
+		bdao.close();
+		
+		bdao = new BinaryFileDAO(binaryFilename);
+		assertEquals(5, bdao.readBankAccount(515).getFunds());
+		assertEquals(103, bdao.readUserProfile("user2").getId());
+	}
+
+	@Test
+	public void testMoveFunds() throws BankDAOException {
+		
+		TransactionRecord tr = new TransactionRecord(124);
+		tr.setTime("6:00");
+		tr.setType(TransactionType.FUNDS_TRANSFERRED);
+		tr.setActingUser(103);
+		tr.setSourceAccount(317);
+		tr.setDestinationAccount(444);
+		tr.setMoneyAmount(100);
+		
+		assertTrue(bdao.transferFunds(317, 444, 100, tr));
+		assertEquals(7892212, bdao.readBankAccount(317).getFunds());
+		assertEquals(79023, bdao.readBankAccount(444).getFunds());
+		assertEquals(100, bdao.readTransactionRecord(124).getMoneyAmount());
+		
+		assertFalse(bdao.withdrawFunds(444, 79024, null)); // overdraft
+		assertFalse(bdao.depositFunds(4444, 1, null)); // no such account
+		assertTrue(bdao.withdrawFunds(444, 79023, null));
+		assertTrue(bdao.depositFunds(444, 7, null));
+		assertEquals(7, bdao.readBankAccount(444).getFunds());
+		
+		// a record without an ID only keeps the one it is given if the money moves
+		tr = new TransactionRecord();
+		tr.setTime("7:00");
+		tr.setType(TransactionType.FUNDS_WITHDRAWN);
+		tr.setActingUser(103);
+		tr.setDestinationAccount(444);
+		tr.setMoneyAmount(7);
+		assertFalse(bdao.withdrawFunds(444, 8, tr));
+		assertEquals(0, tr.getId());
+		assertTrue(bdao.withdrawFunds(444, 7, tr));
+		assertEquals(tr.getId() + 1, bdao.allocateTransactionRecordID()); // none used up
+		assertEquals(7, bdao.readTransactionRecord(tr.getId()).getMoneyAmount());
+	}
+	
+	@Test
+	public void testWriteIfUnchanged() throws BankDAOException {
+		
+		BankAccount ba = bdao.readBankAccount(444);
+		BankAccount stale = bdao.readBankAccount(444);
+		
+		ba.setFunds(5);
+		assertTrue(bdao.writeIfUnchanged(ba, new ArrayList<>()));
+		assertEquals(stale.getVersion() + 1, ba.getVersion());
+		
+		stale.setFunds(6);
+		assertFalse(bdao.writeIfUnchanged(stale, new ArrayList<>()));
+		assertEquals(5, bdao.readBankAccount(444).getFunds());
+		
+		// changes through the funds methods count too
+		assertTrue(bdao.withdrawFunds(444, 1, null));
+		assertFalse(bdao.writeIfUnchanged(ba, new ArrayList<>()));
+		
+		// the rest of the list is only written along with the account
+		ba = bdao.readBankAccount(444);
+		TransactionRecord tr = new TransactionRecord(124);
+		tr.setTime("6:00");
+		tr.setType(TransactionType.ACCOUNT_CLOSED);
+		tr.setActingUser(999);
+		tr.setDestinationAccount(444);
+		List<BankData> alsoWrite = new ArrayList<>();
+		alsoWrite.add(tr);
+		
+		assertFalse(bdao.writeIfUnchanged(stale, alsoWrite));
+		assertEquals(TransactionType.NONE, bdao.readTransactionRecord(124).getType());
+		ba.setStatus(BankAccountStatus.CLOSED);
+		assertTrue(bdao.writeIfUnchanged(ba, alsoWrite));
+		assertEquals(TransactionType.ACCOUNT_CLOSED, bdao.readTransactionRecord(124).getType());
+		assertEquals(BankAccountStatus.CLOSED, bdao.readBankAccount(444).getStatus());
+		
+		// so are the profiles written along with it
+		ba = bdao.readBankAccount(317);
+		UserProfile staleProfile = bdao.readUserProfile(103);
+		bdao.write(bdao.readUserProfile(103));
+		alsoWrite = new ArrayList<>();
+		alsoWrite.add(staleProfile);
+		assertFalse(bdao.writeIfUnchanged(ba, alsoWrite));
+		UserProfile up = bdao.readUserProfile(103);
+		alsoWrite.set(0, up);
+		assertTrue(bdao.writeIfUnchanged(ba, alsoWrite));
+		assertEquals(up.getVersion(), bdao.readUserProfile(103).getVersion());
+	}
+	
+	@Test
+	public void testAllocateIDs() throws BankDAOException {
+		
+		int first = bdao.allocateUserProfileID();
+		assertEquals(bdao.getHighestUserProfileID() + 1, first);
+		assertEquals(first + 1, bdao.allocateUserProfileID());
+		
+		// IDs that were handed out but never written can come back after reopening
+		bdao.close();
+		bdao = new BinaryFileDAO(binaryFilename);
+		assertEquals(first, bdao.allocateUserProfileID());
+		assertEquals(124, bdao.allocateTransactionRecordID());
+	}
+	
+	@Test
+	public void testCursor() throws BankDAOException {
+		
+		List<Integer> ids = new ArrayList<>();
+		
+		try (BankDataCursor<BankAccount> cursor = bdao.openBankAccountCursor()) {
+			while (cursor.hasNext()) {
+				ids.add(cursor.next().getId());
+			}
+		}
+		
+		assertEquals(3, ids.size());
+		assertEquals(bdao.readAllBankAccounts().size(), ids.size());
+		
+		try (BankDataCursor<TransactionRecord> cursor = bdao.openTransactionRecordCursor()) {
+			assertEquals(87654, cursor.next().getMoneyAmount());
+			assertFalse(cursor.hasNext());
+		}
+	}
+	
+	@Test
+	public void testHistoryPages() throws BankDAOException {
+		
+		// enough records to span several chunks; user 101 did every third one
+		List<BankData> toWrite = new ArrayList<>();
+		for (int id = 200; id < 3200; id++) {
+			TransactionRecord tr = new TransactionRecord(id);
+			tr.setTime("5:00");
+			tr.setType(TransactionType.FUNDS_TRANSFERRED);
+			tr.setActingUser(id % 3 == 0 ? 101 : 103);
+			tr.setSourceAccount(id % 3 == 0 ? 317 : 515);
+			tr.setDestinationAccount(444);
+			tr.setMoneyAmount(1);
+			toWrite.add(tr);
+		}
+		bdao.write(toWrite);
+		
+		// the latest page, oldest first
+		List<TransactionRecord> page = bdao.readTransactionRecordPageByActingUserId(
+				101, PageDirection.OLDER.fromEnd(), 4, PageDirection.OLDER);
+		assertEquals(4, page.size());
+		assertEquals(3189, page.get(0).getId());
+		assertEquals(3198, page.get(3).getId());
+		
+		// a page that crosses a chunk boundary, in both directions
+		page = bdao.readTransactionRecordPageByActingUserId(101, 1030, 5, PageDirection.OLDER);
+		assertEquals(1017, page.get(0).getId());
+		assertEquals(1029, page.get(4).getId());
+		page = bdao.readTransactionRecordPageByActingUserId(101, 1020, 5, PageDirection.NEWER);
+		assertEquals(1023, page.get(0).getId());
+		assertEquals(1035, page.get(4).getId());
+		
+		// the oldest page reaches the record from the text file, then there's nothing left
+		page = bdao.readTransactionRecordPageByActingUserId(101, 204, 10, PageDirection.OLDER);
+		assertEquals(2, page.size());
+		assertEquals(123, page.get(0).getId());
+		assertTrue(bdao.readTransactionRecordPageByActingUserId(101, 123, 10, PageDirection.OLDER).isEmpty());
+		
+		// by account, as source or destination
+		page = bdao.readTransactionRecordPageByAccountId(317, 300, 2, PageDirection.OLDER);
+		assertEquals(294, page.get(0).getId());
+		assertEquals(297, page.get(1).getId());
+		page = bdao.readTransactionRecordPageByAccountId(444, 3197, 10, PageDirection.NEWER);
+		assertEquals(2, page.size());
+	}
+	
+} // end class
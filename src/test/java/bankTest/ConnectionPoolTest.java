@@ -0,0 +1,206 @@
+/**
+ * This class contains Junit tests for the ConnectionPool class.
+ * No database is needed; the pool is given fake connections.
+ * 
+ * @author Andrew Curry
+ */
+package bankTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import dao.ConnectionPool;
+
+public class ConnectionPoolTest {
+	
+	// helper classes/methods ------------------------------------------------------
+	
+	/**
+	 * Just enough state to stand in for a real connection.
+	 */
+	private static class FakeConnection {
+		
+		boolean closed = false;
+		boolean valid = true;
+		boolean autoCommit = true;
+		int rollbacks = 0;
+		
+		Connection asConnection() {
+			return (Connection)Proxy.newProxyInstance(
+					Connection.class.getClassLoader(), 
+					new Class<?>[] {Connection.class}, 
+					(proxy, method, args) -> {
+						switch (method.getName()) {
+							case "close":
+								closed = true;
+								return null;
+							case "isClosed":
+								return closed;
+							case "isValid":
+								return valid && !closed;
+							case "getAutoCommit":
+								return autoCommit;
+							case "setAutoCommit":
+								autoCommit = (Boolean)args[0];
+								return null;
+							case "rollback":
+								rollbacks++;
+								return null;
+							case "hashCode":
+								return System.identityHashCode(proxy);
+							case "equals":
+								return proxy == args[0];
+							default:
+								return null;
+						}
+					});
+		}
+	}
+	
+	private List<FakeConnection> opened;
+	private ConnectionPool pool;
+	
+	@Before
+	public void setupPool() {
+		
+		opened = new ArrayList<>();
+		pool = new ConnectionPool(() -> {
+			FakeConnection fc = new FakeConnection();
+			opened.add(fc);
+			return fc.asConnection();
+		}, 1, 2);
+	}
+	
+	@After
+	public void closePool() {
+		pool.close();
+	}
+	
+	// test methods ----------------------------------------------------------------
+	
+	@Test
+	public void testConnectionsAreReused() throws SQLException {
+		
+		Connection conn = pool.borrow();
+		conn.close();
+		assertTrue(conn.isClosed());
+		assertFalse(opened.get(0).closed); // only handed back
+		
+		try (Connection again = pool.borrow()) {
+			assertNotSame(conn, again);
+			assertFalse(again.isClosed());
+		}
+		
+		assertEquals(1, opened.size());
+		assertEquals(2, pool.getStatistics().getBorrows());
+		assertEquals(1, pool.getStatistics().getIdle());
+		
+		try {
+			conn.createStatement(); // the old handle is dead
+			fail();
+		}
+		catch (SQLException e) {
+			// expected
+		}
+	}
+	
+	@Test
+	public void testBorrowWaitsThenTimesOut() throws SQLException, InterruptedException {
+		
+		pool.setBorrowTimeout(50);
+		Connection first = pool.borrow();
+		Connection second = pool.borrow();
+		
+		try {
+			pool.borrow();
+			fail();
+		}
+		catch (SQLException e) {
+			assertEquals(1, pool.getStatistics().getTimeouts());
+		}
+		
+		// a waiting borrower gets the next connection handed back
+		pool.setBorrowTimeout(5000);
+		Thread returner = new Thread(() -> {
+			try {
+				Thread.sleep(50);
+				first.close();
+			}
+			catch (InterruptedException | SQLException e) {
+				// test fails below
+			}
+		});
+		returner.start();
+		
+		Connection third = pool.borrow();
+		returner.join();
+		assertEquals(2, opened.size());
+		assertEquals(2, pool.getStatistics().getWaits());
+		
+		third.close();
+		second.close();
+	}
+	
+	@Test
+	public void testBrokenConnectionIsReplaced() throws SQLException, InterruptedException {
+		
+		pool.borrow().close();
+		opened.get(0).valid = false;
+		Thread.sleep(600); // long enough that the idle connection gets checked
+		
+		try (Connection conn = pool.borrow()) {
+			assertEquals(2, opened.size());
+			assertTrue(opened.get(0).closed);
+			assertFalse(conn.isClosed()); // the replacement
+		}
+		
+		assertEquals(1, pool.getStatistics().getValidationFailures());
+	}
+	
+	@Test
+	public void testReturnedTransactionIsRolledBack() throws SQLException {
+		
+		Connection conn = pool.borrow();
+		conn.setAutoCommit(false);
+		conn.close();
+		
+		assertEquals(1, opened.get(0).rollbacks);
+		assertTrue(opened.get(0).autoCommit);
+	}
+	
+	@Test
+	public void testIdleEvictionAndLeakDetection() throws SQLException, InterruptedException {
+		
+		Connection first = pool.borrow();
+		Connection second = pool.borrow();
+		first.close();
+		second.close();
+		assertEquals(2, pool.getStatistics().getTotal());
+		
+		pool.setIdleTimeout(0);
+		pool.maintain();
+		assertEquals(1, pool.getStatistics().getTotal()); // down to the minimum
+		assertEquals(1, pool.getStatistics().getEvictions());
+		
+		pool.setLeakThreshold(10);
+		Connection leaked = pool.borrow();
+		Thread.sleep(30);
+		pool.maintain();
+		pool.maintain(); // only reported once
+		assertEquals(1, pool.getStatistics().getLeaks());
+		leaked.close();
+	}
+}
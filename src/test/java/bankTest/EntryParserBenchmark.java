@@ -0,0 +1,201 @@
+/**
+ * JMH benchmarks for parsing bank data file entries.
+ * Not a JUnit test; run it with the JMH runner on the test classpath, eg:
+ * 	mvn test-compile dependency:build-classpath -Dmdep.outputFile=cp.txt
+ * 	java -cp target/classes:target/test-classes:$(cat cp.txt) org.openjdk.jmh.Main EntryParserBenchmark
+ *
+ * The split* benchmarks are the old String.split() way of reading an entry, kept here as
+ * the baseline. The cursor* benchmarks read the same fields with the EntryParser.
+ * The readAll* benchmarks run the TextFileDAO's real builders over an indexed file,
+ * so nearly all of their time is spent parsing.
+ *
+ * Andrew Curry
+ */
+package bankTest;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.revature.bankDataObjects.BankAccount;
+import com.revature.bankDataObjects.TransactionRecord;
+import com.revature.bankDataObjects.UserProfile;
+
+import dao.BankDAOException;
+import dao.EntryParser;
+import dao.TextFileDAO;
+import dao.TextFileDAO.StorageOption;
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntryParserBenchmark {
+
+	private static final String BENCHMARK_FILENAME = "benchmark.bdf";
+	private static final int ENTRIES_PER_TYPE = 10000;
+
+	private static final String ACCOUNT_ENTRY = "ACC 444 OPN JNT 78923 101 103";
+	private static final String PROFILE_ENTRY = "PRF 103 user2 pass CST 317 515";
+	private static final String TRANSACTION_ENTRY = "TRR 123 3:00 FTR 101 317 444 87654";
+
+	private static final String[] ACCOUNT_STATUS_CODES = {"OPN", "CLS", "PND", "NON"};
+	private static final String[] ACCOUNT_TYPE_CODES = {"SNG", "JNT", "NON"};
+
+	private TextFileDAO dao;
+
+	@Setup
+	public void setup() throws IOException, BankDAOException {
+
+		BufferedWriter writer = new BufferedWriter(new FileWriter(BENCHMARK_FILENAME));
+
+		for (int i = 0; i < ENTRIES_PER_TYPE; i++) {
+			writer.write("PRF " + i + " user" + i + " pass CST " + i + "\n");
+			writer.write("ACC " + i + " OPN SNG " + (i * 37) + " " + i + "\n");
+			writer.write("TRR " + i + " 3:00 FDP " + i + " -1 " + i + " " + (i * 11) + "\n");
+		}
+
+		writer.close();
+		dao = new TextFileDAO(BENCHMARK_FILENAME, StorageOption.INDEXED);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException, BankDAOException {
+		dao.close();
+		Files.deleteIfExists(Paths.get(BENCHMARK_FILENAME));
+	}
+
+	// single entries --------------------------------------------------------
+
+	@Benchmark
+	public BankAccount splitAccount() {
+
+		String[] tokens = ACCOUNT_ENTRY.split(" ");
+		BankAccount ba = new BankAccount();
+		ba.setId(Integer.parseInt(tokens[1]));
+
+		switch (tokens[2]) {
+			case "OPN":
+				ba.setStatus(BankAccount.BankAccountStatus.OPEN);
+				break;
+			case "CLS":
+				ba.setStatus(BankAccount.BankAccountStatus.CLOSED);
+				break;
+		}
+
+		switch (tokens[3]) {
+			case "JNT":
+				ba.setType(BankAccount.BankAccountType.JOINT);
+				break;
+			case "SNG":
+				ba.setType(BankAccount.BankAccountType.SINGLE);
+				break;
+		}
+
+		ba.setFunds(Integer.parseInt(tokens[4]));
+		List<Integer> owners = new ArrayList<>();
+		for (int i = 5; i < tokens.length; i++) {
+			owners.add(Integer.parseInt(tokens[i]));
+		}
+		ba.setOwners(owners);
+		return ba;
+	}
+
+	@Benchmark
+	public BankAccount cursorAccount() {
+
+		EntryParser parser = new EntryParser(ACCOUNT_ENTRY);
+		BankAccount ba = new BankAccount();
+		parser.skip();
+		ba.setId(parser.nextInt());
+
+		int status = parser.nextCode(ACCOUNT_STATUS_CODES);
+		if (status == 0) {
+			ba.setStatus(BankAccount.BankAccountStatus.OPEN);
+		}
+
+		int type = parser.nextCode(ACCOUNT_TYPE_CODES);
+		if (type == 1) {
+			ba.setType(BankAccount.BankAccountType.JOINT);
+		}
+
+		ba.setFunds(parser.nextInt());
+		List<Integer> owners = new ArrayList<>();
+		while (parser.hasNext()) {
+			owners.add(parser.nextInt());
+		}
+		ba.setOwners(owners);
+		return ba;
+	}
+
+	@Benchmark
+	public int splitTransactionKeys() {
+
+		String[] tokens = TRANSACTION_ENTRY.split(" ");
+		return Integer.parseInt(tokens[4]) + Integer.parseInt(tokens[5]) + Integer.parseInt(tokens[6]);
+	}
+
+	@Benchmark
+	public int cursorTransactionKeys() {
+
+		EntryParser parser = new EntryParser(TRANSACTION_ENTRY);
+		parser.skip();
+		parser.skip();
+		parser.skip();
+		parser.skip();
+		return parser.nextInt() + parser.nextInt() + parser.nextInt();
+	}
+
+	@Benchmark
+	public boolean splitUsernameMatch() {
+		return PROFILE_ENTRY.split(" ", 4)[2].equals("user2");
+	}
+
+	@Benchmark
+	public boolean cursorUsernameMatch() {
+
+		EntryParser parser = new EntryParser(PROFILE_ENTRY);
+		parser.skip();
+		parser.skip();
+		return parser.nextEquals("user2");
+	}
+
+	// whole files, through the DAO --------------------------------------------
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public List<BankAccount> readAllBankAccounts() throws BankDAOException {
+		return dao.readAllBankAccounts();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public List<UserProfile> readAllUserProfiles() throws BankDAOException {
+		return dao.readAllUserProfiles();
+	}
+
+	@Benchmark
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public List<TransactionRecord> readAllTransactionRecords() throws BankDAOException {
+		return dao.readAllTransactionRecords();
+	}
+}
@@ -11,14 +11,22 @@ import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 
 import org.junit.Before;
-//import org.junit.Rule;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 //import org.junit.rules.ExpectedException;
 //import org.junit.validator.PublicClassValidator;
 
@@ -28,17 +36,20 @@ import com.revature.bankDataObjects.UserProfile;
 import com.revature.bankDataObjects.UserProfile.UserProfileType;
 
 import BankIO.MockIO;
+import bankSystem.BankSession;
 import bankSystem.BankSystem;
 import bankSystem.Request;
 import bankSystem.Request.RequestType;
+import bankSystem.TransactionRecordWriter;
 
 import com.revature.bankDataObjects.BankAccount.BankAccountStatus;
 import com.revature.bankDataObjects.BankAccount.BankAccountType;
-//import com.revature.bankDataObjects.TransactionRecord;
-//import com.revature.bankDataObjects.TransactionRecord.TransactionType;
+import com.revature.bankDataObjects.TransactionRecord;
+import com.revature.bankDataObjects.TransactionRecord.TransactionType;
 
 //import dao.BankDAO;
 import dao.BankDAOException;
+import dao.PageDirection;
 import dao.TextFileDAO;
 
 public class TestBankSystem {
@@ -48,7 +59,10 @@ public class TestBankSystem {
 	private static TextFileDAO tdao;
 	private static MockIO mio;
 	
-	static private final String testFilename = "testfile.bdf"; // 'bank data file'
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder(); // holds every file the tests make
+	
+	private String testFilename; // 'bank data file'
 	static private final String[] FILELINES = {
 			"PRF 101 user pass CST 444", "ACC 444 OPN SNG 78923 101", 
 			"PRF 103 user2 pass CST 317 515", "ACC 317 OPN SNG 7892312 103", 
@@ -106,6 +120,7 @@ public class TestBankSystem {
 	@Before
 	public void setup() {
 		
+		testFilename = new File(folder.getRoot(), "testfile.bdf").getPath();
 		prepareTextFile();
 		prepareTextFileDAO();
 		mio = new MockIO();
@@ -278,7 +293,32 @@ public class TestBankSystem {
 				output.get(1), 
 				BankSystem.QUIT_MESSAGE);
 	}
-	
+
+	@Test
+	public void testQuitSavesRecords() throws BankDAOException {
+
+		bank = new BankSystem(mio, tdao, TransactionRecordWriter.Durability.BACKGROUND);
+
+		List<String> params = new ArrayList<String>();
+		params.add("newuser");
+		params.add("newpass");
+		mio.setNextRequest(new Request(RequestType.REGISTER_USER, params));
+		bank.testLoop();
+
+		mio.setNextRequest(new Request(RequestType.QUIT, new ArrayList<>()));
+		bank.testLoop();
+
+		// the registration's record is saved by the time the session ends
+		int newID = tdao.readUserProfile("newuser").getId();
+		boolean found = false;
+		for (TransactionRecord tr : tdao.readTransactionRecordByActingUserId(newID)) {
+			found |= tr.getType() == TransactionType.USER_REGISTERED;
+		}
+		assertTrue(found);
+
+		bank.close();
+	}
+
 	@Test
 	public void testApply() throws BankDAOException{
 		
@@ -459,6 +499,312 @@ public class TestBankSystem {
 		assertEquals(0, ba.getFunds());
 	}
 	
+	/**
+	 * Makes a DAO where another deposit of 1 lands on the account just before each of the first
+	 * few conditional writes, as if another session (or process) got there first.
+	 * @param races : how many writes to get in front of
+	 */
+	private TextFileDAO racingDAO(int races) throws BankDAOException {
+		
+		return new TextFileDAO(testFilename) {
+			
+			private int left = races;
+			
+			@Override
+			public boolean writeIfUnchanged(BankAccount ba, List<BankData> alsoWrite) throws BankDAOException {
+				if (left > 0) {
+					left--;
+					depositFunds(ba.getId(), 1, null);
+				}
+				return super.writeIfUnchanged(ba, alsoWrite);
+			}
+		};
+	}
+	
+	@Test
+	public void testCloseAccountRetriesOnConflict() throws BankDAOException {
+		
+		tdao = racingDAO(2);
+		bank = new BankSystem(mio, tdao);
+		
+		logInHelp("admin", "admin");
+		List<String> params = new ArrayList<String>();
+		params.add("444");
+		mio.setNextRequest(new Request(RequestType.CLOSE_ACCOUNT, params));
+		bank.testLoop();
+		
+		assertTrue(mio.getCachedOutput().contains(BankSystem.CLOSE_ACCOUNT_MESSAGE));
+		
+		BankAccount ba = tdao.readBankAccount(444);
+		assertEquals(BankAccountStatus.CLOSED, ba.getStatus());
+		assertEquals(0, ba.getFunds());
+		
+		// the money paid out includes the deposits that got in first
+		for (TransactionRecord tr : tdao.readTransactionRecordByAccountId(444)) {
+			if (tr.getType() == TransactionType.ACCOUNT_CLOSED) {
+				assertEquals(78923 + 2, tr.getMoneyAmount());
+			}
+		}
+	}
+	
+	@Test
+	public void testCloseAccountGivesUpWhenBusy() throws BankDAOException {
+		
+		tdao = racingDAO(BankSystem.MAX_ACCOUNT_CHANGE_ATTEMPTS);
+		bank = new BankSystem(mio, tdao);
+		
+		logInHelp("admin", "admin");
+		List<String> params = new ArrayList<String>();
+		params.add("444");
+		mio.setNextRequest(new Request(RequestType.CLOSE_ACCOUNT, params));
+		bank.testLoop();
+		
+		assertTrue(mio.getCachedOutput().contains(BankSystem.ACCOUNT_BUSY_MESSAGE));
+		
+		BankAccount ba = tdao.readBankAccount(444);
+		assertEquals(BankAccountStatus.OPEN, ba.getStatus());
+		assertEquals(78923 + BankSystem.MAX_ACCOUNT_CHANGE_ATTEMPTS, ba.getFunds());
+	}
+	
+	@Test
+	public void testConcurrentOwnerChangesOnOneUser() throws Exception {
+		
+		// the first write of each session waits until both have read user 101's profile
+		CyclicBarrier bothRead = new CyclicBarrier(2);
+		AtomicInteger toHold = new AtomicInteger(2);
+		tdao = new TextFileDAO(testFilename) {
+			
+			@Override
+			public boolean writeIfUnchanged(BankAccount ba, List<BankData> alsoWrite) throws BankDAOException {
+				if (toHold.getAndDecrement() > 0) {
+					try {
+						bothRead.await(10, TimeUnit.SECONDS);
+					}
+					catch (Exception e) {
+						throw new BankDAOException("ALERT: sessions never met: " + e);
+					}
+				}
+				return super.writeIfUnchanged(ba, alsoWrite);
+			}
+		};
+		bank = new BankSystem(tdao);
+		
+		// two sessions add user 101 to different accounts at the same time
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		List<Future<MockIO>> sessions = new ArrayList<>();
+		
+		for (String accID : new String[] {"317", "515"}) {
+			BankSession session = bank.openSession(new MockIO());
+			MockIO io = logInSession(session, "user2", "pass");
+			
+			sessions.add(pool.submit(() -> {
+				List<String> params = new ArrayList<String>();
+				params.add(accID);
+				params.add("101");
+				io.setNextRequest(new Request(RequestType.ADD_ACCOUNT_OWNER, params));
+				bank.step(session);
+				return io;
+			}));
+		}
+		
+		for (Future<MockIO> session : sessions) {
+			assertTrue(session.get(30, TimeUnit.SECONDS).getCachedOutput()
+					.contains(BankSystem.ADD_OWNER_TO_ACCOUNT_MESSAGE));
+		}
+		pool.shutdown();
+		
+		// the one that wrote second saw the profile had changed, and started over
+		List<Integer> owned = tdao.readUserProfile(101).getOwnedAccounts();
+		assertTrue(owned.contains(444));
+		assertTrue(owned.contains(317));
+		assertTrue(owned.contains(515));
+		assertTrue(tdao.readBankAccount(317).getOwners().contains(101));
+		assertTrue(tdao.readBankAccount(515).getOwners().contains(101));
+	}
+	
+	@Test
+	public void testApplyWhileOwnerAdded() throws Exception {
+		
+		// the first write of each session waits until both have read user 101's profile
+		CyclicBarrier bothRead = new CyclicBarrier(2);
+		AtomicInteger toHold = new AtomicInteger(2);
+		tdao = new TextFileDAO(testFilename) {
+			
+			@Override
+			public boolean writeIfUnchanged(BankAccount ba, List<BankData> alsoWrite) throws BankDAOException {
+				if (toHold.getAndDecrement() > 0) {
+					try {
+						bothRead.await(10, TimeUnit.SECONDS);
+					}
+					catch (Exception e) {
+						throw new BankDAOException("ALERT: sessions never met: " + e);
+					}
+				}
+				return super.writeIfUnchanged(ba, alsoWrite);
+			}
+		};
+		bank = new BankSystem(tdao);
+		
+		// user 101 applies for an account while user2 adds them to another one
+		BankSession applying = bank.openSession(new MockIO());
+		MockIO applyingIO = logInSession(applying, "user", "pass");
+		BankSession adding = bank.openSession(new MockIO());
+		MockIO addingIO = logInSession(adding, "user2", "pass");
+		
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		Future<?> applied = pool.submit(() -> {
+			applyingIO.setNextRequest(new Request(RequestType.APPLY_OPEN_ACCOUNT));
+			bank.step(applying);
+		});
+		Future<?> added = pool.submit(() -> {
+			List<String> params = new ArrayList<String>();
+			params.add("317");
+			params.add("101");
+			addingIO.setNextRequest(new Request(RequestType.ADD_ACCOUNT_OWNER, params));
+			bank.step(adding);
+		});
+		applied.get(30, TimeUnit.SECONDS);
+		added.get(30, TimeUnit.SECONDS);
+		pool.shutdown();
+		
+		assertTrue(applyingIO.getCachedOutput().contains(BankSystem.APPLY_OPEN_ACCOUNT_MESSAGE));
+		assertTrue(addingIO.getCachedOutput().contains(BankSystem.ADD_OWNER_TO_ACCOUNT_MESSAGE));
+		
+		// neither change was written over by the other
+		List<Integer> owned = tdao.readUserProfile(101).getOwnedAccounts();
+		assertEquals(3, owned.size());
+		assertTrue(owned.contains(444));
+		assertTrue(owned.contains(317));
+		
+		// the applying session sees its new account, whether or not the other write has landed
+		owned.remove(Integer.valueOf(317));
+		assertTrue(applying.getCurrentUser().getOwnedAccounts().containsAll(owned));
+	}
+
+	@Test
+	public void testConcurrentRegistrationOfOneUsername() throws Exception {
+		
+		// each session gets its new ID only once both have started registering
+		CyclicBarrier bothStarted = new CyclicBarrier(2);
+		tdao = new TextFileDAO(testFilename) {
+			
+			@Override
+			public int allocateUserProfileID() throws BankDAOException {
+				try {
+					bothStarted.await(10, TimeUnit.SECONDS);
+				}
+				catch (Exception e) {
+					throw new BankDAOException("ALERT: sessions never met: " + e);
+				}
+				return super.allocateUserProfileID();
+			}
+		};
+		bank = new BankSystem(tdao);
+		
+		ExecutorService pool = Executors.newFixedThreadPool(2);
+		List<Future<MockIO>> sessions = new ArrayList<>();
+		
+		for (int i = 0; i < 2; i++) {
+			BankSession session = bank.openSession(new MockIO());
+			MockIO io = (MockIO)session.getIO();
+			
+			sessions.add(pool.submit(() -> {
+				List<String> params = new ArrayList<String>();
+				params.add("newuser");
+				params.add("pass");
+				io.setNextRequest(new Request(RequestType.REGISTER_USER, params));
+				bank.step(session);
+				return io;
+			}));
+		}
+		
+		int registered = 0;
+		int refused = 0;
+		for (Future<MockIO> session : sessions) {
+			List<Object> output = session.get(30, TimeUnit.SECONDS).getCachedOutput();
+			if (output.contains(BankSystem.USER_REGISTERED_MESSAGED)) {
+				registered++;
+			}
+			if (output.contains(BankSystem.USERNAME_IN_USE_MESSAGE)) {
+				refused++;
+			}
+		}
+		pool.shutdown();
+		
+		assertEquals(1, registered);
+		assertEquals(1, refused);
+		
+		int withName = 0;
+		for (UserProfile up : tdao.readAllUserProfiles()) {
+			if (up.getUsername().equals("newuser")) {
+				withName++;
+			}
+		}
+		assertEquals(1, withName);
+	}
+
+	/**
+	 * Logs the given session in, with its own MockIO.
+	 * @return the session's IO
+	 */
+	private MockIO logInSession(BankSession session, String user, String pass) {
+
+		MockIO io = (MockIO)session.getIO();
+		List<String> params = new ArrayList<String>();
+		params.add(user);
+		params.add(pass);
+		io.setNextRequest(new Request(RequestType.LOG_IN, params));
+		bank.step(session);
+		return io;
+	}
+
+	@Test
+	public void testCurrentUserOnlyReadWhenWritten() throws BankDAOException {
+
+		int[] reads = {0}; // of user 101's profile, by ID
+		tdao = new TextFileDAO(testFilename) {
+
+			@Override
+			public UserProfile readUserProfile(int userID) throws BankDAOException {
+				if (userID == 101) {
+					reads[0]++;
+				}
+				return super.readUserProfile(userID);
+			}
+		};
+		bank = new BankSystem(tdao);
+
+		BankSession session = bank.openSession(new MockIO());
+		MockIO io = logInSession(session, "user", "pass");
+
+		// nothing has written the profile, so viewing it doesn't read it again
+		reads[0] = 0;
+		io.setNextRequest(new Request(RequestType.VIEW_SELF_PROFILE, new ArrayList<String>()));
+		for (int i = 0; i < 5; i++) {
+			bank.step(session);
+		}
+		assertEquals(0, reads[0]);
+		assertFalse(session.getCurrentUser().getOwnedAccounts().contains(317));
+
+		// another session adds user 101 to one of its accounts
+		BankSession other = bank.openSession(new MockIO());
+		MockIO otherIO = logInSession(other, "user2", "pass");
+		List<String> params = new ArrayList<String>();
+		params.add("317");
+		params.add("101");
+		otherIO.setNextRequest(new Request(RequestType.ADD_ACCOUNT_OWNER, params));
+		bank.step(other);
+
+		// which the first session picks up on its next step, and then stops reading again
+		reads[0] = 0;
+		bank.step(session);
+		assertTrue(session.getCurrentUser().getOwnedAccounts().contains(317));
+
+		bank.step(session);
+		bank.step(session);
+		assertEquals(1, reads[0]);
+	}
+
 	@Test
 	public void testCloseBadAccount() {
 		
@@ -830,6 +1176,34 @@ public class TestBankSystem {
 		assertTrue(foundIDs.contains(2));
 	}
 	
+	@Test
+	public void testViewTransactionsPage() throws BankDAOException{
+		
+		//"TRR 1 3:00 FDP 101 -1 444 87654", "TRR 2 3:00 FDP 103 -1 444 225", 
+		//"TRR 3 4:00 FDP 999 -1 515 12345"
+		logInHelp("user", "pass"); 
+		
+		// the page before TRR 2
+		List<String> params = new ArrayList<String>();
+		params.add(BankSystem.ACCOUNT_TAG);
+		params.add("444");
+		params.add("2");
+		params.add(PageDirection.OLDER.name());
+		mio.setNextRequest(new Request(RequestType.VIEW_TRANSACTIONS, params));
+		bank.testLoop();
+		
+		List<Integer> foundIDs = parseOutputForIDs(mio.getCachedOutput());
+		assertEquals(1, foundIDs.size());
+		assertTrue(foundIDs.contains(1));
+		
+		// nothing after TRR 2
+		params.set(3, PageDirection.NEWER.name());
+		mio.setNextRequest(new Request(RequestType.VIEW_TRANSACTIONS, params));
+		bank.testLoop();
+		
+		assertTrue(mio.getCachedOutput().contains(BankSystem.VIEW_TRANSACTIONS_NO_MORE_MESSAGE));
+	}
+	
 	@Test
 	public void testCreateEmployee() throws BankDAOException{
 		
@@ -877,4 +1251,117 @@ public class TestBankSystem {
 		assertEquals("newAdm", adm.getUsername());
 		assertEquals("pass", adm.getPassword());
 	}
+	
+	@Test
+	public void testConcurrentSessions() throws Exception {
+		
+		// half the sessions are user 101 (account 444), half are user 103 (account 317)
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<BankSession>> sessions = new ArrayList<>();
+		
+		for (int i = 0; i < 8; i++) {
+			String username = i % 2 == 0 ? "user" : "user2";
+			String accID = i % 2 == 0 ? "444" : "317";
+			
+			sessions.add(pool.submit(() -> {
+				MockIO io = new MockIO();
+				BankSession session = bank.openSession(io);
+				
+				List<String> params = new ArrayList<>();
+				params.add(username);
+				params.add("pass");
+				io.setNextRequest(new Request(RequestType.LOG_IN, params));
+				bank.step(session);
+				
+				params = new ArrayList<>();
+				params.add(accID);
+				params.add("1");
+				io.setNextRequest(new Request(RequestType.DEPOSIT, params));
+				for (int j = 0; j < 25; j++) {
+					bank.step(session);
+				}
+				
+				return session;
+			}));
+		}
+		
+		for (int i = 0; i < sessions.size(); i++) {
+			BankSession session = sessions.get(i).get();
+			assertEquals(i % 2 == 0 ? 101 : 103, session.getCurrentUser().getId());
+		}
+		pool.shutdown();
+		
+		// every deposit from every session counted
+		assertEquals(78923 + 100, tdao.readBankAccount(444).getFunds());
+		assertEquals(7892312 + 100, tdao.readBankAccount(317).getFunds());
+		
+		// and the default session was never logged in
+		mio.setNextRequest(new Request(RequestType.QUIT));
+		bank.testLoop();
+		assertTrue(mio.getCachedOutput().contains(BankSystem.NO_USER_LOGGED_IN_MESSAGE));
+	}
+	
+	@Test
+	public void testConcurrentOppositeTransfers() throws Exception {
+
+		// user 101 moves money 444 -> 317 while user 103 moves it back, 317 -> 444
+		ExecutorService pool = Executors.newFixedThreadPool(4);
+		List<Future<?>> sessions = new ArrayList<>();
+
+		for (int i = 0; i < 4; i++) {
+			boolean forward = i % 2 == 0;
+
+			sessions.add(pool.submit(() -> {
+				MockIO io = new MockIO();
+				BankSession session = bank.openSession(io);
+
+				List<String> params = new ArrayList<>();
+				params.add(forward ? "user" : "user2");
+				params.add("pass");
+				io.setNextRequest(new Request(RequestType.LOG_IN, params));
+				bank.step(session);
+
+				params = new ArrayList<>();
+				params.add(forward ? "444" : "317");
+				params.add(forward ? "317" : "444");
+				params.add("3");
+				io.setNextRequest(new Request(RequestType.TRANSFER, params));
+				for (int j = 0; j < 20; j++) {
+					bank.step(session);
+				}
+
+				return null;
+			}));
+		}
+
+		for (Future<?> session : sessions) {
+			session.get(30, TimeUnit.SECONDS); // would hang on a deadlock
+		}
+		pool.shutdown();
+
+		// every transfer went through, and no money was made or lost
+		int transfers = 0;
+		for (TransactionRecord tr : tdao.readTransactionRecordByAccountId(444)) {
+			if (tr.getType() == TransactionType.FUNDS_TRANSFERRED) {
+				transfers++;
+			}
+		}
+		assertEquals(80, transfers);
+		assertEquals(78923, tdao.readBankAccount(444).getFunds());
+		assertEquals(7892312, tdao.readBankAccount(317).getFunds());
+	}
+
+	@Test
+	public void testSubmitSession() throws Exception {
+		
+		MockIO io = new MockIO();
+		io.setNextRequest(new Request(RequestType.QUIT));
+		ExecutorService pool = Executors.newSingleThreadExecutor();
+		
+		bank.submitSession(io, pool).get(); // returns once the session quits
+		pool.shutdown();
+		
+		assertEquals(BankSystem.START_MESSAGE, io.getCachedOutput().get(0));
+		assertTrue(io.getCachedOutput().contains(BankSystem.QUIT_MESSAGE));
+	}
 }
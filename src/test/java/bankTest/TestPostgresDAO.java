@@ -6,6 +6,7 @@
  */
 package bankTest;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -18,6 +19,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.revature.bankDataObjects.BankAccount;
+import com.revature.bankDataObjects.BankData;
 import com.revature.bankDataObjects.TransactionRecord;
 import com.revature.bankDataObjects.TransactionRecord.TransactionType;
 import com.revature.bankDataObjects.BankAccount.BankAccountStatus;
@@ -27,6 +29,7 @@ import com.revature.bankDataObjects.UserProfile.UserProfileType;
 
 import dao.BankDAOException;
 import dao.DatabaseUtil;
+import dao.PostgresBulkCopy;
 import dao.PostgresDAO;
 
 public class TestPostgresDAO {
@@ -282,6 +285,59 @@ public class TestPostgresDAO {
 		assertTrue(ownedAccounts.contains(111));
 	}
 	
+	@Test
+	public void testWriteIfUnchanged() throws BankDAOException{
+		
+		BankAccount ba = pdao.readBankAccount(1);
+		BankAccount stale = pdao.readBankAccount(1);
+		assertEquals(0, ba.getVersion());
+		
+		ba.setFunds(5);
+		assertTrue(pdao.writeIfUnchanged(ba, new ArrayList<>()));
+		assertEquals(1, ba.getVersion());
+		assertEquals(1, pdao.readBankAccount(1).getVersion());
+		
+		stale.setFunds(6);
+		assertFalse(pdao.writeIfUnchanged(stale, new ArrayList<>()));
+		assertEquals(5, pdao.readBankAccount(1).getFunds());
+		
+		// deposits and plain writes move the version on too
+		assertTrue(pdao.depositFunds(1, 1, null));
+		assertEquals(2, pdao.readBankAccount(1).getVersion());
+		pdao.write(pdao.readBankAccount(1));
+		assertEquals(3, pdao.readBankAccount(1).getVersion());
+		assertFalse(pdao.writeIfUnchanged(ba, new ArrayList<>()));
+		
+		// owners are written with the account
+		ba = pdao.readBankAccount(1);
+		ba.addOwner(4);
+		ba.setType(BankAccountType.JOINT);
+		assertTrue(pdao.writeIfUnchanged(ba, new ArrayList<>()));
+		assertTrue(pdao.readUserProfile(4).getOwnedAccounts().contains(1));
+		
+		// a new account can only be made once
+		BankAccount first = pdao.readBankAccount(111);
+		BankAccount second = pdao.readBankAccount(111);
+		first.setStatus(BankAccountStatus.PENDING);
+		first.setType(BankAccountType.SINGLE);
+		second.setStatus(BankAccountStatus.PENDING);
+		second.setType(BankAccountType.SINGLE);
+		assertTrue(pdao.writeIfUnchanged(first, new ArrayList<>()));
+		assertFalse(pdao.writeIfUnchanged(second, new ArrayList<>()));
+		
+		// profiles written along with an account are checked too
+		ba = pdao.readBankAccount(1);
+		UserProfile staleProfile = pdao.readUserProfile(4);
+		pdao.write(pdao.readUserProfile(4));
+		List<BankData> alsoWrite = new ArrayList<>();
+		alsoWrite.add(staleProfile);
+		assertFalse(pdao.writeIfUnchanged(ba, alsoWrite));
+		UserProfile up = pdao.readUserProfile(4);
+		alsoWrite.set(0, up);
+		assertTrue(pdao.writeIfUnchanged(ba, alsoWrite));
+		assertEquals(up.getVersion(), pdao.readUserProfile(4).getVersion());
+	}
+	
 	@Test
 	public void testWriteTransactionRecord() throws BankDAOException{
 		
@@ -291,7 +347,7 @@ public class TestPostgresDAO {
 		assertEquals(TransactionType.NONE, tr.getType());
 		
 		tr = new TransactionRecord(111);
-		tr.setTime("3:00");
+		tr.setTime("2021-03-01T03:00");
 		tr.setType(TransactionType.FUNDS_TRANSFERRED);
 		tr.setActingUser(1);
 		tr.setSourceAccount(1);
@@ -300,7 +356,7 @@ public class TestPostgresDAO {
 		pdao.write(tr);
 		
 		tr = pdao.readTransactionRecord(111); // should be found now
-		assertEquals("3:00", tr.getTime());
+		assertEquals("2021-03-01T03:00", tr.getTime());
 		assertEquals(TransactionType.FUNDS_TRANSFERRED, tr.getType());
 		assertEquals(1, tr.getActingUser());
 		assertEquals(1, tr.getSourceAccount());
@@ -329,4 +385,66 @@ public class TestPostgresDAO {
 		assertTrue(pdao.isUsernameFree("unused"));
 		assertFalse(pdao.isUsernameFree("admin"));
 	}
+	
+	@Test
+	public void testWriteIfUsernameFree() throws BankDAOException{
+		
+		UserProfile up = new UserProfile(pdao.allocateUserProfileID());
+		up.setUsername("admin");
+		up.setPassword("pass");
+		up.setType(UserProfileType.CUSTOMER);
+		assertFalse(pdao.writeIfUsernameFree(up));
+		assertEquals(UserProfileType.NONE, pdao.readUserProfile(up.getId()).getType());
+		
+		up.setUsername("unused");
+		assertTrue(pdao.writeIfUsernameFree(up));
+		assertEquals(up.getId(), pdao.readUserProfile("unused").getId());
+		assertFalse(pdao.writeIfUsernameFree(up));
+	}
+	
+	@Test
+	public void testAllocateIDs() throws BankDAOException{
+		
+		assertEquals(5, pdao.allocateUserProfileID());
+		assertEquals(6, pdao.allocateUserProfileID());
+		assertEquals(3, pdao.allocateBankAccountID());
+		assertEquals(2, pdao.allocateTransactionRecordID());
+		
+		// a second DAO (as in another session) gets its own block
+		PostgresDAO other = new PostgresDAO();
+		assertEquals(5 + PostgresDAO.ID_BLOCK_SIZE, other.allocateUserProfileID());
+	}
+	
+	@Test
+	public void testBulkCopyRoundTrip() throws BankDAOException{
+		
+		String filename = "testfile_bulk.bdf";
+		
+		PostgresBulkCopy.Counts exported = PostgresBulkCopy.exportFile(filename);
+		assertEquals(4, exported.getProfiles());
+		assertEquals(2, exported.getAccounts());
+		assertEquals(1, exported.getTransactions());
+		
+		// replacing everything with the export gives back the same data
+		PostgresBulkCopy.Counts loaded = PostgresBulkCopy.loadFile(filename, true);
+		assertEquals(2, loaded.getOwnerships());
+		assertEquals(4, pdao.readAllUserProfiles().size());
+		assertEquals(1, (int)pdao.readUserProfile("cust").getOwnedAccounts().get(0));
+		assertEquals(123456, pdao.readBankAccount(1).getFunds());
+		assertEquals(TransactionType.FUNDS_DEPOSITED, pdao.readTransactionRecord(1).getType());
+		
+		// adding the same rows again clashes, and nothing is changed
+		try {
+			PostgresBulkCopy.loadFile(filename, false);
+			assertTrue(false);
+		}
+		catch (BankDAOException e) {
+			assertEquals(2, pdao.readAllBankAccounts().size());
+		}
+		
+		// IDs handed out afterwards don't clash with the loaded ones
+		assertEquals(5, pdao.allocateUserProfileID());
+		
+		new File(filename).delete();
+	}
 }
@@ -10,15 +10,23 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileReader;
 import java.io.FileWriter;
 import java.io.IOException;
 
+import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
 import com.revature.bankDataObjects.BankAccount;
 import com.revature.bankDataObjects.BankData;
@@ -31,7 +39,12 @@ import com.revature.bankDataObjects.TransactionRecord.TransactionType;
 
 //import dao.BankDAO;
 import dao.BankDAOException;
+import dao.BankDataCursor;
+import dao.EntryParser;
+import dao.PageDirection;
 import dao.TextFileDAO;
+import dao.WriteAheadJournal;
+import dao.TextFileDAO.StorageOption;
 
 public class TextFileDAOTest {
 	
@@ -43,14 +56,22 @@ public class TextFileDAOTest {
 	
 	// some helper methods/variables
 	
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder(); // holds every file the tests make
+	
 	static private TextFileDAO tdao;
-	static private final String testFilename = "testfile.bdf"; // 'bank data file'
+	private String testFilename; // 'bank data file'
 	static private final String[] FILELINES = {
 			"PRF 101 user pass CST 444", "ACC 444 OPN SNG 78923 101", "PRF 103 user2 pass CST 317 515",
 			"ACC 317 OPN SNG 7892312 103", "PRF 999 admin admin ADM", "ACC 515 OPN SNG 111111 103",
 			"TRR 123 3:00 FDP 101 -1 444 87654"
 	};
 	
+	@Before
+	public void setup() {
+		testFilename = new File(folder.getRoot(), "testfile.bdf").getPath();
+	}
+	
 	/**
 	 * Sets up a text file for use in tests.
 	 * @return true if the file could be set up, false otherwise
@@ -494,6 +515,25 @@ public class TextFileDAOTest {
 		assertFalse(tdao.isUsernameFree("user"));
 	}
 	
+	@Test
+	public void testWriteIfUsernameFree() throws BankDAOException {
+		
+		prepareTextFile();
+		prepareTextFileDAO();
+		
+		UserProfile up = new UserProfile(1000);
+		up.setUsername("user");
+		up.setPassword("pass");
+		up.setType(UserProfileType.CUSTOMER);
+		assertFalse(tdao.writeIfUsernameFree(up));
+		assertEquals(UserProfileType.NONE, tdao.readUserProfile(1000).getType());
+		
+		up.setUsername("user3");
+		assertTrue(tdao.writeIfUsernameFree(up));
+		assertEquals(1000, tdao.readUserProfile("user3").getId());
+		assertFalse(tdao.writeIfUsernameFree(up));
+	}
+	
 	@Test
 	public void testReadProfileByUsername() throws BankDAOException{
 		
@@ -524,4 +564,1033 @@ public class TextFileDAOTest {
 		assertEquals(1, records.size());
 	}
 	
+	// tests for the INDEXED storage option -------------------------------
+	
+	@Test
+	public void testIndexedReads() throws BankDAOException {
+		
+		prepareTextFile();
+		TextFileDAO idao = new TextFileDAO(testFilename, StorageOption.INDEXED);
+		
+		BankAccount ba = idao.readBankAccount(444);
+		assertEquals(444, ba.getId());
+		assertEquals(BankAccountStatus.OPEN, ba.getStatus());
+		assertEquals(78923, ba.getFunds());
+		assertEquals(BankAccountType.NONE, idao.readBankAccount(44).getType());
+		
+		UserProfile up = idao.readUserProfile("user2");
+		assertEquals(103, up.getId());
+		assertEquals(2, up.getOwnedAccounts().size());
+		assertEquals(UserProfileType.NONE, idao.readUserProfile(7777).getType());
+		
+		assertEquals(87654, idao.readTransactionRecord(123).getMoneyAmount());
+		assertEquals(3, idao.readAllBankAccounts().size());
+		assertEquals(3, idao.readAllUserProfiles().size());
+		assertEquals(1, idao.readTransactionRecordByAccountId(444).size());
+		
+		assertEquals(999, idao.getHighestUserProfileID());
+		assertEquals(515, idao.getHighestBankAccountID());
+		assertEquals(123, idao.getHighestTransactionRecordID());
+		assertFalse(idao.isUsernameFree("admin"));
+		assertTrue(idao.isUsernameFree("nobody"));
+	}
+	
+	@Test
+	public void testIndexedWriteReachesFile() throws BankDAOException {
+		
+		prepareTextFile();
+		TextFileDAO idao = new TextFileDAO(testFilename, StorageOption.INDEXED);
+		
+		BankAccount ba = idao.readBankAccount(444);
+		ba.setFunds(5);
+		UserProfile up = new UserProfile(1000);
+		up.setUsername("indexed");
+		up.setPassword("pass");
+		up.setType(UserProfileType.CUSTOMER);
+		
+		List<BankData> toWrite = new ArrayList<>();
+		toWrite.add(ba);
+		toWrite.add(up);
+		idao.write(toWrite);
+		
+		// served from the index
+		assertEquals(5, idao.readBankAccount(444).getFunds());
+		assertEquals(1000, idao.readUserProfile("indexed").getId());
+		assertEquals(1000, idao.getHighestUserProfileID());
+		
+		// and also written through to the file
+		prepareTextFileDAO();
+		assertEquals(5, tdao.readBankAccount(444).getFunds());
+		assertEquals(1000, tdao.readUserProfile("indexed").getId());
+		assertEquals(4, tdao.readAllUserProfiles().size());
+		assertEquals(1, tdao.readAllTransactionRecords().size());
+	}
+	
+	@Test
+	public void testIndexedNoticesOutsideChanges() throws BankDAOException, IOException {
+		
+		prepareTextFile();
+		TextFileDAO idao = new TextFileDAO(testFilename, StorageOption.INDEXED);
+		assertEquals(78923, idao.readBankAccount(444).getFunds());
+		
+		// someone else edits the file
+		BufferedWriter writer = new BufferedWriter(new FileWriter(testFilename, true));
+		writer.write("ACC 777 OPN SNG 12 101\n");
+		writer.close();
+		
+		assertEquals(12, idao.readBankAccount(777).getFunds());
+		assertEquals(4, idao.readAllBankAccounts().size());
+		assertEquals(3, idao.readAllUserProfiles().size()); // reloaded, not duplicated
+		
+		// and the DAO's own writes don't count as outside changes
+		BankAccount ba = idao.readBankAccount(777);
+		ba.setFunds(13);
+		idao.write(ba);
+		assertEquals(13, idao.readBankAccount(777).getFunds());
+	}
+	
+	@Test
+	public void testPartitionedReloadsOnlyChangedFile() throws BankDAOException, IOException {
+		
+		prepareTextFile();
+		TextFileDAO.partitionFile(testFilename);
+		TextFileDAO pdao = new TextFileDAO(
+				testFilename, StorageOption.PARTITIONED, StorageOption.INDEXED);
+		
+		BufferedWriter writer = new BufferedWriter(new FileWriter(testFilename + ".acc"));
+		writer.write("ACC 444 CLS SNG 0 101\n");
+		writer.close();
+		
+		assertEquals(BankAccountStatus.CLOSED, pdao.readBankAccount(444).getStatus());
+		assertEquals(1, pdao.readAllBankAccounts().size());
+		assertEquals(3, pdao.readAllUserProfiles().size());
+		assertEquals(87654, pdao.readTransactionRecord(123).getMoneyAmount());
+	}
+	
+	// tests for the APPEND_ONLY storage option ---------------------------
+	
+	/**
+	 * Reads the raw lines of the test file
+	 * @return
+	 * @throws IOException
+	 */
+	private List<String> readTestFileLines() throws IOException {
+		
+		BufferedReader reader = new BufferedReader(new FileReader(testFilename));
+		List<String> data = new ArrayList<>();
+		while (reader.ready()) {
+			data.add(reader.readLine());
+		}
+		reader.close();
+		return data;
+	}
+	
+	@Test
+	public void testAppendOnlyWrite() throws BankDAOException, IOException {
+		
+		prepareTextFile();
+		TextFileDAO adao = new TextFileDAO(testFilename, StorageOption.APPEND_ONLY);
+		
+		BankAccount ba = adao.readBankAccount(444);
+		ba.setFunds(1);
+		adao.write(ba);
+		ba.setFunds(2);
+		adao.write(ba);
+		
+		// the old lines are untouched, new versions go on the end
+		List<String> data = readTestFileLines();
+		assertEquals(FILELINES.length + 2, data.size());
+		assertEquals("ACC 444 OPN SNG 78923 101", data.get(1));
+		assertEquals("ACC 444 OPN SNG 2 101", data.get(data.size() - 1));
+		
+		// but only the newest version is visible
+		assertEquals(2, adao.readBankAccount(444).getFunds());
+		assertEquals(3, adao.readAllBankAccounts().size());
+		assertEquals("ACC 444 OPN SNG 2 101", adao.searchFile("ACC 444"));
+		
+		adao.close();
+	}
+	
+	@Test
+	public void testAppendOnlyCompaction() throws BankDAOException, IOException {
+		
+		prepareTextFile();
+		TextFileDAO adao = new TextFileDAO(
+				testFilename, StorageOption.INDEXED, StorageOption.APPEND_ONLY);
+		
+		UserProfile up = adao.readUserProfile(101);
+		up.setPassword("changed");
+		adao.write(up);
+		adao.compact();
+		
+		List<String> data = readTestFileLines();
+		assertEquals(FILELINES.length, data.size());
+		assertTrue(data.contains("PRF 101 user changed CST 444"));
+		assertFalse(data.contains("PRF 101 user pass CST 444"));
+		
+		// a fresh DAO reading the compacted file sees the same thing
+		prepareTextFileDAO();
+		assertEquals("changed", tdao.readUserProfile("user").getPassword());
+		
+		adao.close();
+	}
+	
+	@Test
+	public void testAppendOnlyCompactionThreshold() throws BankDAOException, IOException, InterruptedException {
+		
+		prepareTextFile();
+		TextFileDAO adao = new TextFileDAO(testFilename, StorageOption.APPEND_ONLY);
+		adao.setCompactionThreshold(1);
+		
+		BankAccount ba = adao.readBankAccount(317);
+		
+		// keep appending until the file has doubled in size, which should trigger compaction
+		for (int i = 0; i < 20; i++) {
+			ba.setFunds(i);
+			adao.write(ba);
+		}
+		
+		adao.close(); // compacts anything the compactor has not already merged
+		
+		List<String> data = readTestFileLines();
+		assertEquals(FILELINES.length, data.size());
+		assertTrue(data.contains("ACC 317 OPN SNG 19 103"));
+	}
+	
+	// tests for the mapped scanner --------------------------------------
+	
+	@Test
+	public void testReadByIDDoesNotMatchLongerID() throws BankDAOException {
+		
+		prepareTextFile();
+		prepareTextFileDAO();
+		
+		// "ACC 444" is in the file, but 44 isn't
+		BankAccount ba = tdao.readBankAccount(44);
+		assertEquals(BankAccountType.NONE, ba.getType());
+		assertEquals(UserProfileType.NONE, tdao.readUserProfile(10).getType());
+	}
+	
+	@Test
+	public void testSearchFileWindowsLineEndings() throws BankDAOException, IOException {
+		
+		// CRLF line endings, and no newline after the last line
+		BufferedWriter writer = new BufferedWriter(new FileWriter(testFilename));
+		writer.write("PRF 101 user pass CST 444\r\nACC 444 OPN SNG 78923 101\r\nTRR 123 3:00 FDP 101 -1 444 87654");
+		writer.close();
+		prepareTextFileDAO();
+		
+		assertEquals("ACC 444 OPN SNG 78923 101", tdao.searchFile("ACC 444"));
+		assertEquals("TRR 123 3:00 FDP 101 -1 444 87654", tdao.searchFile("TRR"));
+		assertEquals(3, tdao.searchFileMultiple("").size());
+		assertEquals(78923, tdao.readBankAccount(444).getFunds());
+	}
+	
+	// tests for the USERNAME_INDEX storage option ----------------------
+	
+	@Test
+	public void testUsernameIndexReads() throws BankDAOException {
+		
+		prepareTextFile();
+		TextFileDAO udao = new TextFileDAO(testFilename, StorageOption.USERNAME_INDEX);
+		
+		assertTrue(new File(testFilename + ".usr").exists());
+		assertFalse(udao.isUsernameFree("user2"));
+		assertTrue(udao.isUsernameFree("user3"));
+		assertEquals(103, udao.readUserProfile("user2").getId());
+		assertEquals(UserProfileType.NONE, udao.readUserProfile("user3").getType());
+		
+		UserProfile up = new UserProfile(1000);
+		up.setUsername("user3");
+		up.setPassword("pass");
+		up.setType(UserProfileType.CUSTOMER);
+		udao.write(up);
+		
+		// the rewrite moved every entry, so the index must have been rebuilt
+		assertFalse(udao.isUsernameFree("user3"));
+		assertEquals(1000, udao.readUserProfile("user3").getId());
+		assertEquals(999, udao.readUserProfile("admin").getId());
+	}
+	
+	@Test
+	public void testUsernameIndexAppendOnly() throws BankDAOException {
+		
+		prepareTextFile();
+		TextFileDAO udao = new TextFileDAO(
+				testFilename, StorageOption.APPEND_ONLY, StorageOption.USERNAME_INDEX);
+		
+		UserProfile up = udao.readUserProfile("user");
+		up.setPassword("changed");
+		udao.write(up);
+		
+		// enough new users to make the index grow
+		List<BankData> toWrite = new ArrayList<>();
+		for (int i = 0; i < 600; i++) {
+			UserProfile newUser = new UserProfile(2000 + i);
+			newUser.setUsername("bulk" + i);
+			newUser.setPassword("pass");
+			newUser.setType(UserProfileType.CUSTOMER);
+			toWrite.add(newUser);
+		}
+		udao.write(toWrite);
+		
+		assertEquals("changed", udao.readUserProfile("user").getPassword());
+		assertEquals(2000, udao.readUserProfile("bulk0").getId());
+		assertEquals(2599, udao.readUserProfile("bulk599").getId());
+		assertTrue(udao.isUsernameFree("bulk600"));
+		
+		udao.compact();
+		assertEquals("changed", udao.readUserProfile("user").getPassword());
+		assertEquals(2300, udao.readUserProfile("bulk300").getId());
+		
+		// a change made behind the DAO's back is noticed
+		prepareTextFile();
+		assertEquals("pass", udao.readUserProfile("user").getPassword());
+		assertTrue(udao.isUsernameFree("bulk0"));
+		
+		udao.close();
+	}
+	
+	// tests for the HISTORY_INDEX storage option -----------------------
+	
+	/**
+	 * @return a new transaction record with the given details
+	 */
+	private TransactionRecord makeRecord(int id, int actingUser, int source, int destination) {
+		
+		TransactionRecord tr = new TransactionRecord(id);
+		tr.setTime("5:00");
+		tr.setType(TransactionType.FUNDS_TRANSFERRED);
+		tr.setActingUser(actingUser);
+		tr.setSourceAccount(source);
+		tr.setDestinationAccount(destination);
+		tr.setMoneyAmount(1);
+		return tr;
+	}
+	
+	@Test
+	public void testHistoryIndexReads() throws BankDAOException {
+		
+		prepareTextFile();
+		TextFileDAO hdao = new TextFileDAO(testFilename, StorageOption.HISTORY_INDEX);
+		
+		assertTrue(new File(testFilename + ".byuser").exists());
+		assertEquals(1, hdao.readTransactionRecordByActingUserId(101).size());
+		assertEquals(1, hdao.readTransactionRecordByAccountId(444).size());
+		assertTrue(hdao.readTransactionRecordByAccountId(317).isEmpty());
+		
+		List<BankData> toWrite = new ArrayList<>();
+		toWrite.add(makeRecord(124, 103, 317, 444));
+		toWrite.add(makeRecord(125, 103, 515, 515));
+		hdao.write(toWrite);
+		
+		List<TransactionRecord> records = hdao.readTransactionRecordByAccountId(444);
+		assertEquals(2, records.size());
+		assertEquals(247, records.get(0).getId() + records.get(1).getId()); // 123 and 124
+		assertEquals(1, hdao.readTransactionRecordByAccountId(515).size()); // not counted twice
+		assertEquals(2, hdao.readTransactionRecordByActingUserId(103).size());
+	}
+	
+	@Test
+	public void testHistoryIndexAppendOnly() throws BankDAOException {
+		
+		prepareTextFile();
+		TextFileDAO hdao = new TextFileDAO(
+				testFilename, StorageOption.APPEND_ONLY, StorageOption.HISTORY_INDEX);
+		
+		// enough different accounts to make the index grow
+		List<BankData> toWrite = new ArrayList<>();
+		for (int i = 0; i < 300; i++) {
+			toWrite.add(makeRecord(200 + i, 101, 444, 1000 + i));
+		}
+		hdao.write(toWrite);
+		
+		assertEquals(301, hdao.readTransactionRecordByActingUserId(101).size());
+		assertEquals(301, hdao.readTransactionRecordByAccountId(444).size());
+		assertEquals(499, hdao.readTransactionRecordByAccountId(1299).get(0).getId());
+		
+		hdao.compact();
+		assertEquals(301, hdao.readTransactionRecordByAccountId(444).size());
+		assertEquals(1, hdao.readTransactionRecordByAccountId(1000).size());
+		
+		// a change made behind the DAO's back is noticed
+		prepareTextFile();
+		assertEquals(1, hdao.readTransactionRecordByActingUserId(101).size());
+		assertTrue(hdao.readTransactionRecordByAccountId(1000).isEmpty());
+		
+		hdao.close();
+	}
+	
+	// tests for the entry parser ----------------------------------------
+	
+	@Test
+	public void testEntryParser() {
+		
+		EntryParser parser = new EntryParser("TRR 123 3:00 FDP 101 -1 444 -2147483648");
+		String[] prefixes = {"PRF", "ACC", "TRR"};
+		
+		assertEquals(2, parser.nextCode(prefixes));
+		assertEquals(123, parser.nextInt());
+		assertEquals("3:00", parser.next());
+		assertEquals(-1, parser.nextCode(prefixes));
+		assertEquals(101, parser.nextInt());
+		assertEquals(-1, parser.nextInt());
+		assertTrue(parser.nextEquals("444"));
+		assertEquals(Integer.MIN_VALUE, parser.nextInt());
+		assertFalse(parser.hasNext());
+		
+		parser.reset("PRF 101 user pass CST");
+		parser.skip();
+		parser.skip();
+		assertFalse(parser.nextEquals("use"));
+		assertTrue(parser.nextEquals("pass"));
+	}
+	
+	@Test
+	public void testReadOwnerAddedTransaction() throws BankDAOException {
+		
+		prepareTextFile();
+		prepareTextFileDAO();
+		
+		TransactionRecord tr = new TransactionRecord(124);
+		tr.setTime("4:00");
+		tr.setType(TransactionType.ACCOUNT_OWNER_ADDED);
+		tr.setActingUser(101);
+		tr.setSourceAccount(-1);
+		tr.setDestinationAccount(444);
+		tdao.write(tr);
+		
+		tr = tdao.readTransactionRecord(124);
+		assertEquals(TransactionType.ACCOUNT_OWNER_ADDED, tr.getType());
+		assertEquals(-1, tr.getSourceAccount());
+		assertEquals(444, tr.getDestinationAccount());
+	}
+	
+	// tests for the JOURNALED storage option ---------------------------
+	
+	@Test
+	public void testJournaledWriteAndCheckpoint() throws BankDAOException, IOException {
+		
+		prepareTextFile();
+		TextFileDAO jdao = new TextFileDAO(testFilename, StorageOption.JOURNALED);
+		File journalFile = new File(testFilename + ".wal");
+		
+		BankAccount ba = jdao.readBankAccount(444);
+		ba.setFunds(10);
+		jdao.write(ba);
+		
+		assertTrue(journalFile.length() > 0);
+		assertTrue(readTestFileLines().contains("ACC 444 OPN SNG 10 101"));
+		
+		jdao.close(); // checkpoints
+		assertEquals(0, journalFile.length());
+		assertEquals(10, new TextFileDAO(testFilename).readBankAccount(444).getFunds());
+	}
+	
+	@Test
+	public void testJournalReplay() throws BankDAOException, IOException {
+		
+		prepareTextFile();
+		TextFileDAO jdao = new TextFileDAO(
+				testFilename, StorageOption.INDEXED, StorageOption.JOURNALED);
+		
+		BankAccount ba = jdao.readBankAccount(317);
+		ba.setFunds(20);
+		jdao.write(ba);
+		ba.setFunds(21);
+		jdao.write(ba);
+		
+		// indexed writes only reach the file at a checkpoint
+		assertEquals(21, jdao.readBankAccount(317).getFunds());
+		assertTrue(readTestFileLines().contains("ACC 317 OPN SNG 7892312 103"));
+		
+		// "crash" without closing, in the middle of writing another record
+		BufferedWriter journalWriter = new BufferedWriter(new FileWriter(testFilename + ".wal", true));
+		journalWriter.write("\u0000\u0000\u0000");
+		journalWriter.close();
+		
+		TextFileDAO recovered = new TextFileDAO(testFilename, StorageOption.JOURNALED);
+		assertTrue(readTestFileLines().contains("ACC 317 OPN SNG 21 103"));
+		assertEquals(0, new File(testFilename + ".wal").length());
+		assertEquals(21, recovered.readBankAccount(317).getFunds());
+		recovered.close();
+	}
+	
+	@Test
+	public void testJournalSyncedBeforeFile() throws BankDAOException, IOException {
+		
+		prepareTextFile();
+		TextFileDAO jdao = new TextFileDAO(
+				testFilename, StorageOption.APPEND_ONLY, StorageOption.JOURNALED);
+		List<String> before = readTestFileLines();
+		
+		BankAccount ba = jdao.readBankAccount(444);
+		ba.setFunds(10);
+		
+		// an interrupted thread can't write to the journal's channel, so the sync fails
+		boolean failed = false;
+		Thread.currentThread().interrupt();
+		try {
+			jdao.write(ba);
+		}
+		catch (BankDAOException e) {
+			failed = true;
+		}
+		finally {
+			Thread.interrupted();
+		}
+		
+		// the file was never touched, so the failed write can't show up anywhere
+		assertTrue(failed);
+		assertEquals(before, readTestFileLines());
+		assertEquals(78923, jdao.readBankAccount(444).getFunds());
+		assertEquals(0, new File(testFilename + ".wal").length());
+	}
+	
+	@Test
+	public void testJournalConcurrentWrites() throws BankDAOException, InterruptedException {
+		
+		prepareTextFile();
+		TextFileDAO jdao = new TextFileDAO(
+				testFilename, StorageOption.INDEXED, StorageOption.JOURNALED);
+		jdao.setSyncPolicy(WriteAheadJournal.SyncPolicy.EVERY_N_RECORDS, 4);
+		jdao.setCheckpointThreshold(2048); // a few checkpoints along the way
+		
+		List<Thread> threads = new ArrayList<>();
+		List<BankDAOException> failures = new ArrayList<>();
+		
+		for (int t = 0; t < 8; t++) {
+			int threadNumber = t;
+			threads.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < 20; i++) {
+						TransactionRecord tr = new TransactionRecord(1000 + threadNumber * 20 + i);
+						tr.setTime("1:00");
+						tr.setType(TransactionType.FUNDS_DEPOSITED);
+						tr.setActingUser(101);
+						tr.setSourceAccount(-1);
+						tr.setDestinationAccount(444);
+						tr.setMoneyAmount(i);
+						jdao.write(tr);
+					}
+				}
+				catch (BankDAOException e) {
+					synchronized (failures) {
+						failures.add(e);
+					}
+				}
+			}));
+		}
+		
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		
+		assertTrue(failures.isEmpty());
+		jdao.close();
+		
+		prepareTextFileDAO();
+		assertEquals(161, tdao.readAllTransactionRecords().size());
+		assertEquals(1159, tdao.getHighestTransactionRecordID());
+	}
+	
+	// tests for partitioned files -----------------------------------------
+	
+	@Test
+	public void testPartitionedReadsAndWrites() throws BankDAOException {
+		
+		prepareTextFile();
+		TextFileDAO.partitionFile(testFilename);
+		TextFileDAO pdao = new TextFileDAO(testFilename, StorageOption.PARTITIONED);
+		
+		assertTrue(new File(testFilename + ".prf").exists());
+		assertTrue(new File(testFilename + ".trr" + (123 % TextFileDAO.TRANSACTION_PARTITIONS)).exists());
+		assertEquals(3, pdao.readAllUserProfiles().size());
+		assertEquals(3, pdao.readAllBankAccounts().size());
+		assertEquals(87654, pdao.readTransactionRecord(123).getMoneyAmount());
+		assertEquals(FILELINES.length, pdao.searchFileMultiple("").size());
+		assertEquals(103, pdao.readUserProfile("user2").getId());
+		
+		List<BankData> toWrite = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			toWrite.add(makeRecord(200 + i, 103, 317, 444));
+		}
+		pdao.write(toWrite);
+		
+		assertEquals(21, pdao.readAllTransactionRecords().size());
+		assertEquals(20, pdao.readTransactionRecordByActingUserId(103).size());
+		assertEquals(219, pdao.getHighestTransactionRecordID());
+	}
+	
+	@Test
+	public void testPartitionedWriteOnlyTouchesItsFile() throws BankDAOException {
+		
+		prepareTextFile();
+		TextFileDAO.partitionFile(testFilename);
+		TextFileDAO pdao = new TextFileDAO(testFilename, StorageOption.PARTITIONED);
+		File accountFile = new File(testFilename + ".acc");
+		long accountFileModified = accountFile.lastModified();
+		accountFile.setLastModified(accountFileModified - 10000);
+		
+		pdao.write(makeRecord(124, 101, 444, 317));
+		
+		assertEquals(accountFileModified - 10000, accountFile.lastModified());
+		assertEquals(2, pdao.readAllTransactionRecords().size());
+	}
+	
+	@Test
+	public void testPartitionedWithOtherOptions() throws BankDAOException {
+		
+		prepareTextFile();
+		TextFileDAO.partitionFile(testFilename);
+		TextFileDAO pdao = new TextFileDAO(testFilename, StorageOption.PARTITIONED, 
+				StorageOption.APPEND_ONLY, StorageOption.USERNAME_INDEX, 
+				StorageOption.HISTORY_INDEX, StorageOption.JOURNALED);
+		
+		UserProfile up = pdao.readUserProfile(101);
+		up.setUsername("renamed");
+		pdao.write(up);
+		pdao.write(makeRecord(124, 101, 444, 317));
+		pdao.write(makeRecord(125, 101, 317, 444));
+		
+		assertEquals(101, pdao.readUserProfile("renamed").getId());
+		assertEquals(3, pdao.readTransactionRecordByAccountId(444).size());
+		pdao.close();
+		
+		// every file gets compacted on close, and the partitions are read back as they are
+		pdao = new TextFileDAO(testFilename, StorageOption.PARTITIONED, StorageOption.INDEXED);
+		assertEquals(3, pdao.readAllUserProfiles().size());
+		assertEquals(3, pdao.readAllTransactionRecords().size());
+		assertEquals("renamed", pdao.readUserProfile(101).getUsername());
+		pdao.close();
+	}
+	
+	// tests for moving funds --------------------------------------------
+	
+	@Test
+	public void testMoveFunds() throws BankDAOException {
+		
+		prepareTextFile();
+		prepareTextFileDAO();
+		
+		assertTrue(tdao.transferFunds(317, 444, 100, makeRecord(124, 103, 317, 444)));
+		assertEquals(7892212, tdao.readBankAccount(317).getFunds());
+		assertEquals(79023, tdao.readBankAccount(444).getFunds());
+		assertEquals(317, tdao.readTransactionRecord(124).getSourceAccount());
+		
+		assertFalse(tdao.transferFunds(444, 317, 79024, makeRecord(125, 101, 444, 317))); // overdraft
+		assertEquals(0, tdao.readTransactionRecord(125).getMoneyAmount()); // not written
+		assertFalse(tdao.depositFunds(4444, 1, null)); // no such account
+		assertTrue(tdao.transferFunds(444, 444, 5, null)); // changes nothing
+		assertEquals(79023, tdao.readBankAccount(444).getFunds());
+		
+		BankAccount ba = tdao.readBankAccount(515);
+		ba.setStatus(BankAccountStatus.CLOSED);
+		tdao.write(ba);
+		assertFalse(tdao.transferFunds(444, 515, 1, null)); // not open
+		
+		assertTrue(tdao.withdrawFunds(444, 79023, null));
+		assertTrue(tdao.depositFunds(444, 7, null));
+		assertEquals(7, tdao.readBankAccount(444).getFunds());
+		
+		// a record without an ID only keeps the one it is given if the money moves
+		TransactionRecord tr = makeRecord(0, 103, 444, 317);
+		assertFalse(tdao.withdrawFunds(444, 8, tr));
+		assertEquals(0, tr.getId());
+		assertTrue(tdao.withdrawFunds(444, 7, tr));
+		assertEquals(tr.getId() + 1, tdao.allocateTransactionRecordID()); // none used up
+		assertEquals(444, tdao.readTransactionRecord(tr.getId()).getSourceAccount());
+	}
+	
+	@Test
+	public void testWriteIfUnchanged() throws BankDAOException, IOException {
+		
+		prepareTextFile();
+		TextFileDAO idao = new TextFileDAO(testFilename, StorageOption.INDEXED);
+		
+		BankAccount ba = idao.readBankAccount(444);
+		BankAccount stale = idao.readBankAccount(444);
+		int version = ba.getVersion();
+		
+		ba.setFunds(5);
+		assertTrue(idao.writeIfUnchanged(ba, Collections.emptyList()));
+		assertEquals(version + 1, ba.getVersion());
+		assertEquals(ba.getVersion(), idao.readBankAccount(444).getVersion());
+		
+		// read before the write, so it must not overwrite it
+		stale.setFunds(6);
+		assertFalse(idao.writeIfUnchanged(stale, Collections.emptyList()));
+		assertEquals(5, idao.readBankAccount(444).getFunds());
+		
+		// a deposit is a change too
+		assertTrue(idao.depositFunds(444, 1, null));
+		assertFalse(idao.writeIfUnchanged(ba, Collections.emptyList()));
+		
+		// what else is written goes with the account, or not at all
+		ba = idao.readBankAccount(444);
+		UserProfile up = idao.readUserProfile(103);
+		up.addAccount(444);
+		ba.addOwner(103);
+		stale = idao.readBankAccount(444);
+		assertTrue(idao.writeIfUnchanged(ba, Arrays.<BankData>asList(up)));
+		assertTrue(idao.readUserProfile(103).getOwnedAccounts().contains(444));
+		
+		up.removeAccount(444);
+		assertFalse(idao.writeIfUnchanged(stale, Arrays.<BankData>asList(up)));
+		assertTrue(idao.readUserProfile(103).getOwnedAccounts().contains(444));
+		
+		// and so is a profile written along with it
+		ba = idao.readBankAccount(317);
+		UserProfile staleProfile = idao.readUserProfile("user2");
+		idao.write(idao.readUserProfile(103));
+		assertFalse(idao.writeIfUnchanged(ba, Arrays.<BankData>asList(staleProfile)));
+		up = idao.readUserProfile(103);
+		int profileVersion = up.getVersion();
+		assertTrue(idao.writeIfUnchanged(ba, Arrays.<BankData>asList(up)));
+		assertEquals(profileVersion + 1, up.getVersion());
+		assertEquals(up.getVersion(), idao.readUserProfile(103).getVersion());
+		
+		// a new account can only be made once
+		BankAccount first = idao.readBankAccount(888);
+		BankAccount second = idao.readBankAccount(888);
+		first.setStatus(BankAccountStatus.PENDING);
+		first.setType(BankAccountType.SINGLE);
+		second.setStatus(BankAccountStatus.PENDING);
+		second.setType(BankAccountType.SINGLE);
+		assertTrue(idao.writeIfUnchanged(first, Collections.emptyList()));
+		assertFalse(idao.writeIfUnchanged(second, Collections.emptyList()));
+		
+		// changes made to the file by someone else count as changes to every account
+		ba = idao.readBankAccount(317);
+		BufferedWriter writer = new BufferedWriter(new FileWriter(testFilename, true));
+		writer.write("ACC 317 OPN SNG 1 103\n");
+		writer.close();
+		ba.setFunds(2);
+		assertFalse(idao.writeIfUnchanged(ba, Collections.emptyList()));
+		assertEquals(1, idao.readBankAccount(317).getFunds());
+		idao.close();
+	}
+	
+	@Test
+	public void testConcurrentTransfersKeepTotal() throws BankDAOException, InterruptedException {
+		
+		prepareTextFile();
+		TextFileDAO idao = new TextFileDAO(testFilename, StorageOption.INDEXED);
+		int total = idao.readBankAccount(444).getFunds() + idao.readBankAccount(515).getFunds();
+		List<Thread> threads = new ArrayList<>();
+		
+		for (int t = 0; t < 4; t++) {
+			boolean forwards = t % 2 == 0;
+			threads.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < 50; i++) {
+						if (forwards) {
+							idao.transferFunds(444, 515, 1000, null);
+						}
+						else {
+							idao.transferFunds(515, 444, 1000, null);
+						}
+					}
+				}
+				catch (BankDAOException e) {
+					// shows up as a wrong total
+				}
+			}));
+		}
+		
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		
+		assertEquals(total, idao.readBankAccount(444).getFunds() + idao.readBankAccount(515).getFunds());
+		assertTrue(idao.readBankAccount(444).getFunds() >= 0);
+	}
+
+	@Test
+	public void testIndexedReadsDuringWrites() throws BankDAOException, InterruptedException {
+
+		prepareTextFile();
+		TextFileDAO idao = new TextFileDAO(testFilename, StorageOption.INDEXED);
+		List<Throwable> failures = Collections.synchronizedList(new ArrayList<>());
+		List<Thread> threads = new ArrayList<>();
+
+		// a writer adds records and profiles, growing the indexes, while readers walk them
+		// for as long as it runs
+		threads.add(new Thread(() -> {
+			try {
+				for (int i = 0; i < 2000; i++) {
+					idao.write(makeRecord(1000 + i, 101, -1, 444));
+					UserProfile up = new UserProfile(1000 + i);
+					up.setUsername("user" + i);
+					up.setPassword("pass");
+					up.setType(UserProfileType.CUSTOMER);
+					idao.write(up);
+				}
+			}
+			catch (Throwable e) {
+				failures.add(e);
+			}
+		}));
+
+		Thread writer = threads.get(0);
+		for (int t = 0; t < 3; t++) {
+			threads.add(new Thread(() -> {
+				try {
+					for (int i = 0; writer.isAlive() || i < 10; i++) {
+						idao.readAllTransactionRecords();
+						idao.readAllUserProfiles();
+						idao.readUserProfile("user" + i);
+						idao.isUsernameFree("user" + i);
+						idao.getHighestTransactionRecordID();
+					}
+				}
+				catch (Throwable e) {
+					failures.add(e);
+				}
+			}));
+		}
+
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+
+		assertTrue(failures.toString(), failures.isEmpty());
+	}
+
+	@Test
+	public void testAllocateIDs() throws BankDAOException {
+		
+		prepareTextFile();
+		prepareTextFileDAO();
+		int highest = tdao.getHighestTransactionRecordID();
+		
+		int first = tdao.allocateTransactionRecordID();
+		assertEquals(highest + 1, first);
+		assertEquals(first + 1, tdao.allocateTransactionRecordID());
+		
+		// something written past the current block doesn't get handed out again
+		tdao.write(makeRecord(first + 500, 101, -1, 444));
+		Set<Integer> ids = new HashSet<>();
+		for (int i = 0; i < 200; i++) {
+			ids.add(tdao.allocateTransactionRecordID());
+		}
+		assertEquals(200, ids.size());
+		assertFalse(ids.contains(first + 500));
+		
+		assertTrue(tdao.allocateUserProfileID() > tdao.getHighestUserProfileID());
+		assertTrue(tdao.allocateBankAccountID() > tdao.getHighestBankAccountID());
+	}
+
+	@Test
+	public void testAllocateIDsOnlyScansOnce() throws BankDAOException {
+
+		prepareTextFile();
+		int[] scans = {0};
+		tdao = new TextFileDAO(testFilename) {
+
+			@Override
+			public int getHighestTransactionRecordID() throws BankDAOException {
+				scans[0]++;
+				return super.getHighestTransactionRecordID();
+			}
+		};
+
+		// many blocks' worth, written as they go like the BankSystem does
+		int last = -1;
+		for (int i = 0; i < 200; i++) {
+			int id = tdao.allocateTransactionRecordID();
+			assertTrue(id > last);
+			tdao.write(makeRecord(id, 101, -1, 444));
+			last = id;
+		}
+		assertEquals(1, scans[0]);
+
+		// after a restart, the scan starts past everything written
+		prepareTextFileDAO();
+		assertEquals(last + 1, tdao.allocateTransactionRecordID());
+	}
+
+	@Test
+	public void testConcurrentAllocationsAreUnique() throws BankDAOException, InterruptedException {
+		
+		prepareTextFile();
+		TextFileDAO idao = new TextFileDAO(testFilename, StorageOption.INDEXED);
+		Set<Integer> ids = Collections.synchronizedSet(new HashSet<>());
+		List<Thread> threads = new ArrayList<>();
+		
+		for (int t = 0; t < 4; t++) {
+			threads.add(new Thread(() -> {
+				try {
+					for (int i = 0; i < 250; i++) {
+						ids.add(idao.allocateBankAccountID());
+					}
+				}
+				catch (BankDAOException e) {
+					// shows up as a missing ID
+				}
+			}));
+		}
+		
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		
+		assertEquals(1000, ids.size());
+	}
+	
+	// tests for cursors --------------------------------------------
+	
+	/**
+	 * @return the IDs of everything left in the cursor, which is then closed
+	 */
+	private List<Integer> drainCursor(BankDataCursor<? extends BankData> cursor) throws BankDAOException {
+		
+		List<Integer> ids = new ArrayList<>();
+		
+		try (BankDataCursor<? extends BankData> c = cursor) {
+			while (c.hasNext()) {
+				ids.add(c.next().getId());
+			}
+		}
+		
+		return ids;
+	}
+	
+	@Test
+	public void testCursorMatchesReadAll() throws BankDAOException {
+		
+		prepareTextFile();
+		StorageOption[][] optionSets = {
+				{}, {StorageOption.INDEXED}, {StorageOption.APPEND_ONLY}, {StorageOption.JOURNALED}
+		};
+		
+		for (StorageOption[] options : optionSets) {
+			TextFileDAO odao = new TextFileDAO(testFilename, options);
+			odao.write(makeRecord(124, 103, 317, 444));
+			BankAccount ba = odao.readBankAccount(444);
+			ba.setFunds(5);
+			odao.write(ba); // an append-only file now has two versions of it
+			
+			assertEquals(Arrays.asList(101, 103, 999), drainCursor(odao.openUserProfileCursor()));
+			assertEquals(3, drainCursor(odao.openBankAccountCursor()).size());
+			List<Integer> recordIDs = drainCursor(odao.openTransactionRecordCursor());
+			Collections.sort(recordIDs); // a rewritten file doesn't keep the order
+			assertEquals(Arrays.asList(123, 124), recordIDs);
+			
+			try (BankDataCursor<BankAccount> cursor = odao.openBankAccountCursor()) {
+				assertEquals(5, cursor.next().getFunds());
+			}
+			
+			odao.close();
+			prepareTextFile();
+		}
+	}
+	
+	@Test
+	public void testCursorReadsFileAsOpened() throws BankDAOException {
+		
+		prepareTextFile();
+		TextFileDAO adao = new TextFileDAO(testFilename, StorageOption.APPEND_ONLY);
+		
+		try (BankDataCursor<TransactionRecord> cursor = adao.openTransactionRecordCursor()) {
+			adao.write(makeRecord(124, 103, 317, 444)); // appended after the cursor opened
+			assertEquals(123, cursor.next().getId());
+			assertFalse(cursor.hasNext());
+		}
+		
+		assertEquals(2, drainCursor(adao.openTransactionRecordCursor()).size());
+		adao.close();
+	}
+	
+	@Test
+	public void testCursorOverLongFile() throws BankDAOException, IOException {
+		
+		// more than one buffer's worth, with a line that doesn't fit in the buffer
+		BufferedWriter writer = new BufferedWriter(new FileWriter(testFilename));
+		for (int i = 0; i < 5000; i++) {
+			writer.write("TRR " + i + " 3:00 FDP 101 -1 444 " + i + "\n");
+		}
+		StringBuilder longName = new StringBuilder();
+		for (int i = 0; i < 70000; i++) {
+			longName.append('x');
+		}
+		writer.write("PRF 1 " + longName + " pass CST\n");
+		writer.write("TRR 5000 3:00 FDP 101 -1 444 5000"); // no newline at the end
+		writer.close();
+		prepareTextFileDAO();
+		
+		List<Integer> ids = drainCursor(tdao.openTransactionRecordCursor());
+		assertEquals(5001, ids.size());
+		assertEquals(5000, (int)ids.get(5000));
+		
+		try (BankDataCursor<UserProfile> cursor = tdao.openUserProfileCursor()) {
+			assertEquals(longName.toString(), cursor.next().getUsername());
+			assertFalse(cursor.hasNext());
+		}
+	}
+	
+	@Test
+	public void testHistoryPages() throws BankDAOException {
+		
+		prepareTextFile();
+		TextFileDAO hdao = new TextFileDAO(testFilename, StorageOption.HISTORY_INDEX);
+		
+		// user 101 did TRR 123 (from the file) and 200-249; user 103 did 250-259
+		List<BankData> toWrite = new ArrayList<>();
+		for (int i = 0; i < 60; i++) {
+			toWrite.add(makeRecord(200 + i, i < 50 ? 101 : 103, 317, 444));
+		}
+		hdao.write(toWrite);
+		
+		// the latest page, oldest first
+		List<TransactionRecord> page = hdao.readTransactionRecordPageByActingUserId(
+				101, PageDirection.OLDER.fromEnd(), 10, PageDirection.OLDER);
+		assertEquals(10, page.size());
+		assertEquals(240, page.get(0).getId());
+		assertEquals(249, page.get(9).getId());
+		
+		// the page before it, then back again
+		page = hdao.readTransactionRecordPageByActingUserId(101, 240, 10, PageDirection.OLDER);
+		assertEquals(230, page.get(0).getId());
+		page = hdao.readTransactionRecordPageByActingUserId(101, 239, 10, PageDirection.NEWER);
+		assertEquals(240, page.get(0).getId());
+		
+		// the oldest page is short, and there's nothing past either end
+		page = hdao.readTransactionRecordPageByActingUserId(101, 205, 10, PageDirection.OLDER);
+		assertEquals(6, page.size());
+		assertEquals(123, page.get(0).getId());
+		assertTrue(hdao.readTransactionRecordPageByActingUserId(101, 123, 10, PageDirection.OLDER).isEmpty());
+		assertTrue(hdao.readTransactionRecordPageByActingUserId(101, 249, 10, PageDirection.NEWER).isEmpty());
+		
+		// by account: 444 is the destination of every record, 317 the source of all but TRR 123
+		page = hdao.readTransactionRecordPageByAccountId(444, 201, 3, PageDirection.OLDER);
+		assertEquals(Arrays.asList(123, 200), Arrays.asList(page.get(0).getId(), page.get(1).getId()));
+		page = hdao.readTransactionRecordPageByAccountId(317, PageDirection.NEWER.fromEnd(), 3, PageDirection.NEWER);
+		assertEquals(200, page.get(0).getId());
+		assertEquals(202, page.get(2).getId());
+		
+		// records aren't always written in ID order, and pages still go by ID
+		hdao.write(makeRecord(271, 104, 317, 444));
+		hdao.write(makeRecord(270, 104, 317, 444));
+		hdao.write(makeRecord(269, 104, 317, 444));
+		page = hdao.readTransactionRecordPageByActingUserId(104, PageDirection.OLDER.fromEnd(), 2, PageDirection.OLDER);
+		assertEquals(Arrays.asList(270, 271), Arrays.asList(page.get(0).getId(), page.get(1).getId()));
+		page = hdao.readTransactionRecordPageByActingUserId(104, 269, 5, PageDirection.NEWER);
+		assertEquals(Arrays.asList(270, 271), Arrays.asList(page.get(0).getId(), page.get(1).getId()));
+		
+		hdao.close();
+	}
+	
 } // end class
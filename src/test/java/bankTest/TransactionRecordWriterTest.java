@@ -0,0 +1,270 @@
+/**
+ * This class contains Junit tests for the TransactionRecordWriter class.
+ * It uses a TextFileDAO, held up or made to fail where needed.
+ *
+ * @author Andrew Curry
+ */
+package bankTest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.revature.bankDataObjects.BankData;
+import com.revature.bankDataObjects.TransactionRecord;
+import com.revature.bankDataObjects.TransactionRecord.TransactionType;
+
+import bankSystem.TransactionRecordWriter;
+import bankSystem.TransactionRecordWriter.Durability;
+import dao.BankDAOException;
+import dao.TextFileDAO;
+
+public class TransactionRecordWriterTest {
+
+	static private final String[] FILELINES = {
+			"PRF 101 user pass CST 444", "ACC 444 OPN SNG 78923 101",
+			"TRR 1 3:00 FDP 101 -1 444 87654"
+	};
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder(); // holds every file the tests make
+
+	private String testFilename;
+	private GatedDAO dao;
+	private TransactionRecordWriter writer;
+	private ExecutorService pool;
+
+	@Before
+	public void setup() throws IOException, BankDAOException {
+
+		testFilename = new File(folder.getRoot(), "testfile.bdf").getPath();
+		BufferedWriter fileWriter = new BufferedWriter(new FileWriter(testFilename));
+		for (String line : FILELINES) {
+			fileWriter.write(line);
+			fileWriter.write("\n");
+		}
+		fileWriter.close();
+
+		dao = new GatedDAO(testFilename);
+		pool = Executors.newFixedThreadPool(2);
+	}
+
+	@After
+	public void cleanup() throws BankDAOException {
+
+		dao.gate.countDown();
+		if (writer != null) {
+			writer.close();
+		}
+		pool.shutdownNow();
+		dao.close();
+	}
+
+	// helper methods and classes ---------------------------------------------------
+
+	/**
+	 * Counts its list writes, and can hold them up until the gate is opened, or fail them.
+	 */
+	private static class GatedDAO extends TextFileDAO {
+
+		private CountDownLatch gate = new CountDownLatch(0); // open
+		private volatile int batches = 0;
+		private volatile boolean failing = false;
+
+		private GatedDAO(String filename) throws BankDAOException {
+			super(filename);
+		}
+
+		@Override
+		public void write(List<BankData> toWrite) throws BankDAOException {
+
+			try {
+				gate.await();
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+
+			if (failing) {
+				throw new BankDAOException("ALERT: failing on purpose");
+			}
+
+			batches++;
+			super.write(toWrite);
+		}
+	}
+
+	private TransactionRecord makeRecord(int id) {
+
+		TransactionRecord tr = new TransactionRecord(id);
+		tr.setTime("5:00");
+		tr.setType(TransactionType.ACCOUNT_REGISTERED);
+		tr.setActingUser(101);
+		tr.setDestinationAccount(444);
+		return tr;
+	}
+
+	/**
+	 * @param future
+	 * @return true if the future finished within a short wait
+	 */
+	private boolean finishes(Future<?> future) throws Exception {
+
+		try {
+			future.get(200, TimeUnit.MILLISECONDS);
+			return true;
+		}
+		catch (TimeoutException e) {
+			return false;
+		}
+	}
+
+	// tests ------------------------------------------------------------------------
+
+	@Test
+	public void testWriteThrough() throws BankDAOException {
+
+		writer = new TransactionRecordWriter(dao, Durability.WRITE_THROUGH);
+		writer.save(makeRecord(10));
+
+		assertEquals(TransactionType.ACCOUNT_REGISTERED, dao.readTransactionRecord(10).getType());
+	}
+
+	@Test
+	public void testBackgroundFlush() throws BankDAOException {
+
+		writer = new TransactionRecordWriter(dao, Durability.BACKGROUND);
+		for (int id = 10; id < 60; id++) {
+			writer.save(makeRecord(id));
+		}
+		writer.flush();
+
+		for (int id = 10; id < 60; id++) {
+			assertEquals(TransactionType.ACCOUNT_REGISTERED, dao.readTransactionRecord(id).getType());
+		}
+	}
+
+	@Test
+	public void testSaveDoesntWaitForWrite() throws Exception {
+
+		dao.gate = new CountDownLatch(1);
+		writer = new TransactionRecordWriter(dao, Durability.BACKGROUND);
+
+		// returns while the write is still held up
+		assertTrue(finishes(pool.submit(() -> {
+			writer.save(makeRecord(10));
+			return null;
+		})));
+		assertEquals(TransactionType.NONE, dao.readTransactionRecord(10).getType());
+
+		dao.gate.countDown();
+		writer.flush();
+		assertEquals(TransactionType.ACCOUNT_REGISTERED, dao.readTransactionRecord(10).getType());
+	}
+
+	@Test
+	public void testRecordsWaitingAreBatched() throws Exception {
+
+		dao.gate = new CountDownLatch(1);
+		writer = new TransactionRecordWriter(dao, Durability.BACKGROUND);
+
+		// the first is taken out and held up; the rest pile up behind it
+		for (int id = 10; id < 30; id++) {
+			writer.save(makeRecord(id));
+		}
+
+		dao.gate.countDown();
+		writer.flush();
+
+		assertTrue(dao.batches <= 2);
+		assertEquals(1 + 20, dao.readAllTransactionRecords().size());
+	}
+
+	@Test
+	public void testFullBufferWaits() throws Exception {
+
+		dao.gate = new CountDownLatch(1);
+		writer = new TransactionRecordWriter(dao, Durability.BACKGROUND, 2, 2);
+
+		writer.save(makeRecord(10));
+		Thread.sleep(100); // the writer takes it out, and is held up writing it
+		writer.save(makeRecord(11));
+		writer.save(makeRecord(12));
+
+		Future<?> waiting = pool.submit(() -> {
+			writer.save(makeRecord(13));
+			return null;
+		});
+		assertFalse(finishes(waiting));
+
+		dao.gate.countDown();
+		assertTrue(finishes(waiting));
+
+		writer.flush();
+		assertEquals(TransactionType.ACCOUNT_REGISTERED, dao.readTransactionRecord(13).getType());
+	}
+
+	@Test
+	public void testBatchedReportsFailure() {
+
+		dao.failing = true;
+		writer = new TransactionRecordWriter(dao, Durability.BATCHED);
+
+		try {
+			writer.save(makeRecord(10));
+			fail("expected the failed write to be reported");
+		}
+		catch (BankDAOException e) {
+			// expected
+		}
+
+		// and a later one still goes through
+		dao.failing = false;
+		try {
+			writer.save(makeRecord(11));
+		}
+		catch (BankDAOException e) {
+			fail("a working write was reported as failed");
+		}
+	}
+
+	@Test
+	public void testCloseWritesWhatsLeft() throws BankDAOException {
+
+		dao.gate = new CountDownLatch(1);
+		writer = new TransactionRecordWriter(dao, Durability.BACKGROUND);
+		for (int id = 10; id < 20; id++) {
+			writer.save(makeRecord(id));
+		}
+
+		dao.gate.countDown();
+		writer.close();
+
+		for (int id = 10; id < 20; id++) {
+			assertEquals(TransactionType.ACCOUNT_REGISTERED, dao.readTransactionRecord(id).getType());
+		}
+
+		// once closed, records are written straight through
+		writer.save(makeRecord(20));
+		assertEquals(TransactionType.ACCOUNT_REGISTERED, dao.readTransactionRecord(20).getType());
+	}
+}